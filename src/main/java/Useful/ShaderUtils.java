@@ -7,6 +7,8 @@ import java.io.FileReader;
 import java.io.IOException;
 import java.io.InputStreamReader;
 import java.net.URL;
+import java.util.Collections;
+import java.util.List;
 
 public class ShaderUtils {
     public static boolean checkShaderStatus(int shaderId) {
@@ -26,7 +28,7 @@ public class ShaderUtils {
         try {
 
             BufferedReader reader = new BufferedReader(new FileReader(filename));
-            shaderId = loadShaderInternal(reader, type);
+            shaderId = compileShader(readShaderSourceInternal(reader, null, Collections.emptyList()), type);
             reader.close();
         } catch (IOException e) {
             System.err.println("Could not read file.");
@@ -38,12 +40,25 @@ public class ShaderUtils {
     }
 
     public static int loadShader(URL resource, int type) {
+        return loadShader(resource, type, null, Collections.emptyList());
+    }
+
+    /**
+     * Loads a shader variant.  If version is non-null it replaces the source's #version line, and each of the defines
+     * (e.g. "MULTI_DRAW" or "NR_POINT_LIGHTS 4") is added as a #define straight after it.
+     */
+    public static int loadShader(URL resource, int type, String version, List<String> defines) {
+        return compileShader(readShaderSource(resource, version, defines), type);
+    }
+
+    // As loadShader, but just returns the final source without compiling it
+    public static String readShaderSource(URL resource, String version, List<String> defines) {
         assert (resource != null);
-        int shaderId = 0;
+        String source = null;
 
         try {
             BufferedReader reader = new BufferedReader(new InputStreamReader(resource.openStream()));
-            shaderId = loadShaderInternal(reader, type);
+            source = readShaderSourceInternal(reader, version, defines);
             reader.close();
         } catch (IOException e) {
             System.err.println("Could not read file.");
@@ -51,18 +66,41 @@ public class ShaderUtils {
             System.exit(-1);
         }
 
-        return shaderId;
+        return source;
+    }
+
+    public static int compileShader(String source, int type) {
+        int shaderID = submitShader(source, type);
+        ShaderUtils.checkShaderStatus(shaderID);
+        return shaderID;
     }
 
+    // Starts the compile but doesn't wait for the result, call checkShaderStatus for that
+    public static int submitShader(String source, int type) {
+        int shaderID = GL20.glCreateShader(type);
+        GL20.glShaderSource(shaderID, source);
+        GL20.glCompileShader(shaderID);
+        return shaderID;
+    }
 
-    private static int loadShaderInternal(BufferedReader reader, int type) {
+    private static String readShaderSourceInternal(BufferedReader reader, String version, List<String> defines) {
         StringBuilder shaderSource = new StringBuilder();
-        int shaderID = 0;
 
         try {
             String line;
+            boolean seenVersion = false;
             while ((line = reader.readLine()) != null) {
-                shaderSource.append(line).append("\n");
+                // GLSL requires #version to come first, so the defines go straight after it
+                if (!seenVersion && line.trim().startsWith("#version")) {
+                    seenVersion = true;
+                    shaderSource.append(version != null ? "#version " + version : line).append("\n");
+                    for (String define : defines) {
+                        shaderSource.append("#define ").append(define).append("\n");
+                    }
+                }
+                else {
+                    shaderSource.append(line).append("\n");
+                }
             }
         } catch (IOException e) {
             System.err.println("Could not read file.");
@@ -70,10 +108,6 @@ public class ShaderUtils {
             System.exit(-1);
         }
 
-        shaderID = GL20.glCreateShader(type);
-        GL20.glShaderSource(shaderID, shaderSource);
-        GL20.glCompileShader(shaderID);
-        ShaderUtils.checkShaderStatus(shaderID);
-        return shaderID;
+        return shaderSource.toString();
     }
 }
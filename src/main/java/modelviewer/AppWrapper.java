@@ -15,7 +15,6 @@ import java.net.URISyntaxException;
 import java.nio.IntBuffer;
 import java.util.ArrayList;
 import java.util.Arrays;
-import java.util.Date;
 import java.util.Optional;
 
 import static org.lwjgl.glfw.Callbacks.glfwFreeCallbacks;
@@ -120,6 +119,8 @@ public class AppWrapper extends GLFWKeyCallback implements BlipHandler {
 
     @Override public void invoke(long window, int key, int scancode, int action, int mods) {
         currentScene.keyPressedImpl(window, key, scancode, action, mods);
+        // Moves the camera, or triggers a shortcut
+        RenderOnDemand.shared.request();
         app.handle(BlipInputKeyPressed.create(key, action));
     }
 
@@ -170,8 +171,7 @@ public class AppWrapper extends GLFWKeyCallback implements BlipHandler {
 
         // Make the OpenGL context current
         glfwMakeContextCurrent(window);
-        // Enable v-sync
-        glfwSwapInterval(1);
+        // V-sync is set by FrameClock, from the settings
 
         // Make the window visible
         glfwShowWindow(window);
@@ -180,6 +180,9 @@ public class AppWrapper extends GLFWKeyCallback implements BlipHandler {
         glfwSetWindowCloseCallback(window, (i) -> {
             app.handle(new BlipInputOpenGlWindowClosed());
         });
+        // Resized, or uncovered and needing its contents again
+        glfwSetFramebufferSizeCallback(window, (w, width, height) -> RenderOnDemand.shared.request());
+        glfwSetWindowRefreshCallback(window, (w) -> RenderOnDemand.shared.request());
 
 //		glfwSetInputMode(id, GLFW_CURSOR, GLFW_CURSOR_DISABLED);
 //		glfwSetInputMode(id, GLFW_CURSOR, GLFW_CURSOR_HIDDEN);
@@ -212,6 +215,8 @@ public class AppWrapper extends GLFWKeyCallback implements BlipHandler {
         // creates the GLCapabilities instance and makes the OpenGL
         // bindings available for use.
         GL.createCapabilities();
+        long startNanos = System.nanoTime();
+        boolean firstFrame = true;
 
         glEnable(GL_DEPTH_TEST);
         glEnable(GL_MULTISAMPLE);
@@ -221,31 +226,44 @@ public class AppWrapper extends GLFWKeyCallback implements BlipHandler {
         scenes.add(models);
         changeScene(0);
 
-        long timeLastFrameMsecs = new Date().getTime();
-        final long timePerTickMsecs = 1000 / gameTicksPerSec;
+        FrameClock clock = FrameClock.shared;
 
         // Run the rendering loop until the user has attempted to close
         // the window or has pressed the ESCAPE key.
         while ( !glfwWindowShouldClose(window) ) {
-            currentScene.draw(params);
-
-            long timeMsecs = new Date().getTime();
-            if (timeMsecs - timeLastFrameMsecs >= timePerTickMsecs) {
-                timeLastFrameMsecs = timeMsecs;
-                currentScene.doOneTick(true);
+            RenderOnDemand onDemand = RenderOnDemand.shared;
+            // Deferred work still needs frames to finish, and to show its results
+            boolean drawFrame = onDemand.takeFrame() || !onDemand.isEnabled() || FrameScheduler.shared.hasPending();
+            if (drawFrame) {
+                // The simulation ticks on its own thread, see SceneUpdater
+                clock.beginFrame();
+                currentScene.draw(params);
+                // Deferred GPU work gets whatever's left of the frame budget
+                FrameScheduler.shared.runDeferred(clock.getDeferredBudgetMs());
+
+                glfwSwapBuffers(window); // swap the color buffers
+                clock.endFrame();
+
+                if (firstFrame) {
+                    // Mostly shader compiles and model loading.  Worth watching as shader variants multiply.
+                    System.out.println("Time to first frame: " + (System.nanoTime() - startNanos) / 1000000 + "ms");
+                    firstFrame = false;
+                }
             }
 
-            glfwSwapBuffers(window); // swap the color buffers
-
-            // Poll for window events. The key callback above will only be
-            // invoked during this call.
-            glfwPollEvents();
-
+            // Handle window events. The key callback above will only be
+            // invoked during this call.  With nothing left to draw, sleeps until there's an event, which includes
+            // RenderOnDemand's requests from other threads.
+            if (onDemand.isEnabled() && !onDemand.isDirty() && !FrameScheduler.shared.hasPending()) {
+                glfwWaitEvents();
+                clock.resume();
+            }
+            else {
+                glfwPollEvents();
+            }
         }
     }
 
-    static final int gameTicksPerSec = 60;
-
     public void boundsChanged(Bounds bounds) {
 //        glfwSetWindowSize(window, (int) bounds.getWidth(), (int) bounds.getHeight());
     }
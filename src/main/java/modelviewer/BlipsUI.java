@@ -12,6 +12,7 @@ import java.util.function.Consumer;
  * desired effect, and spreads parts of the system that could be localised, all over the code.
  * Instead, allow components to add things to the UI.  Has advantage that UI is now completely decoupled, making unit
  * testing easier and making it possible to e.g. drop in a completely different UI later.
+ * Every callback changes something that's drawn, so each is wrapped to ask RenderOnDemand for a redraw.
  */
 
 class BlipUI implements Blip {
@@ -34,7 +35,7 @@ class BlipUICheckbox extends BlipUI {
         BlipUICheckbox out = new BlipUICheckbox();
         out.name = name;
         out.initialState = initialState;
-        out.onChanged = onChanged;
+        out.onChanged = RenderOnDemand.shared.after(onChanged);
         out.shortcut = shortcut;
         return out;
     }
@@ -51,7 +52,7 @@ class BlipUIButton extends BlipUI {
     static BlipUIButton create(String label, Runnable onClicked, Optional<Integer> shortcut) {
         BlipUIButton out = new BlipUIButton();
         out.label = label;
-        out.onClicked = onClicked;
+        out.onClicked = RenderOnDemand.shared.after(onClicked);
         out.shortcut = shortcut;
         return out;
     }
@@ -72,7 +73,7 @@ class BlipUIFileDialogButton extends BlipUI {
         BlipUIFileDialogButton out = new BlipUIFileDialogButton();
         out.label = label;
         out.dialogTitle = dialogTitle;
-        out.onFileSelected = onFileSelected;
+        out.onFileSelected = RenderOnDemand.shared.after(onFileSelected);
         out.shortcut = shortcut;
         out.initialDir = initialDir;
         return out;
@@ -91,7 +92,7 @@ class BlipUITextField extends BlipUI {
         BlipUITextField out = new BlipUITextField();
         out.label = label;
         out.initialState = initialState;
-        out.onChanged = onChanged;
+        out.onChanged = RenderOnDemand.shared.after(onChanged);
         return out;
     }
 }
@@ -107,7 +108,7 @@ class ComboBoxItem {
     static ComboBoxItem create(String value, Runnable onSelected, Optional<Integer> shortcut) {
         ComboBoxItem out = new ComboBoxItem();
         out.value = value;
-        out.onSelected = onSelected;
+        out.onSelected = RenderOnDemand.shared.after(onSelected);
         out.shortcut = shortcut;
         return out;
     }
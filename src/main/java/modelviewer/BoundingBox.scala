@@ -1,6 +1,6 @@
 package BasicModels
 
-import enterthematrix.Vector3d
+import enterthematrix.{Matrix4x4, Vector3, Vector3d}
 ;
 
 case class BoundingBox(minX: Float, maxX: Float, minY: Float, maxY: Float, minZ: Float, maxZ: Float) {
@@ -9,4 +9,51 @@ case class BoundingBox(minX: Float, maxX: Float, minY: Float, maxY: Float, minZ:
   }
 
   def getWidth = maxX - minX
+  def getHeight = maxY - minY
+  def getDepth = maxZ - minZ
+
+  def center = Vector3((minX + maxX) / 2, (minY + maxY) / 2, (minZ + maxZ) / 2)
+
+  // Of the sphere around center that just contains the box
+  def radius: Float = (Math.sqrt(getWidth * getWidth + getHeight * getHeight + getDepth * getDepth) / 2).toFloat
+
+  // The box containing this one after an affine transform, e.g. from model space to world space.  Rather than
+  // transforming all 8 corners, each axis takes whichever end of the box gives the smaller or larger result.
+  def transform(m: Matrix4x4): BoundingBox = {
+    val from = Array(minX, minY, minZ)
+    val to = Array(maxX, maxY, maxZ)
+    val mins = new Array[Float](3)
+    val maxs = new Array[Float](3)
+    for (row <- 0 until 3) {
+      var lo = m.get(row, 3)
+      var hi = lo
+      for (col <- 0 until 3) {
+        val a = m.get(row, col) * from(col)
+        val b = m.get(row, col) * to(col)
+        lo += Math.min(a, b)
+        hi += Math.max(a, b)
+      }
+      mins(row) = lo
+      maxs(row) = hi
+    }
+    BoundingBox(mins(0), maxs(0), mins(1), maxs(1), mins(2), maxs(2))
+  }
+}
+
+object BoundingBox {
+  // Around every position in positions, which has an x, y, z starting every stride floats
+  def fromPositions(positions: Array[Float], stride: Int): BoundingBox = {
+    if (positions.length < 3) return BoundingBox(0, 0, 0, 0, 0, 0)
+    var minX, minY, minZ = Float.MaxValue
+    var maxX, maxY, maxZ = -Float.MaxValue
+    for (i <- 0 to positions.length - 3 by stride) {
+      minX = Math.min(minX, positions(i))
+      maxX = Math.max(maxX, positions(i))
+      minY = Math.min(minY, positions(i + 1))
+      maxY = Math.max(maxY, positions(i + 1))
+      minZ = Math.min(minZ, positions(i + 2))
+      maxZ = Math.max(maxZ, positions(i + 2))
+    }
+    BoundingBox(minX, maxX, minY, maxY, minZ, maxZ)
+  }
 }
@@ -0,0 +1,189 @@
+package modelviewer;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.function.IntConsumer;
+import java.util.function.IntPredicate;
+
+// A tree of boxes over the objects in a SceneBounds, so queries can throw away whole groups of objects with one test
+// rather than testing every object.  Built top down, splitting each group at the median along its longest axis.
+// When objects move the boxes are refitted upwards from just their leaves, rather than rebuilt, which keeps working
+// well unless objects move a long way relative to each other.
+// Nodes are stored as arrays like SceneBounds.  Every node, not just the leaves, covers a contiguous range of order,
+// so everything under a node can be listed without walking down to its leaves.
+class BoundingVolumeHierarchy {
+    private static final int LEAF_SIZE = 4;
+
+    private final SceneBounds bounds;
+    // Object indexes, arranged so each node's objects are together
+    private int[] order = new int[0];
+    // The leaf each object is in
+    private int[] objectLeaf = new int[0];
+    private int nodeCount = 0;
+    private float[] minX = new float[0], minY = new float[0], minZ = new float[0];
+    private float[] maxX = new float[0], maxY = new float[0], maxZ = new float[0];
+    // left and right are -1 for leaves, parent is -1 for the root
+    private int[] left = new int[0], right = new int[0], parent = new int[0];
+    private int[] first = new int[0], count = new int[0];
+
+    BoundingVolumeHierarchy(SceneBounds bounds) {
+        this.bounds = bounds;
+    }
+
+    void build() {
+        int objects = bounds.size();
+        order = new int[objects];
+        for (int i = 0; i < objects; i++) order[i] = i;
+        objectLeaf = new int[objects];
+        int maxNodes = Math.max(1, 2 * objects - 1);
+        minX = new float[maxNodes];
+        minY = new float[maxNodes];
+        minZ = new float[maxNodes];
+        maxX = new float[maxNodes];
+        maxY = new float[maxNodes];
+        maxZ = new float[maxNodes];
+        left = new int[maxNodes];
+        right = new int[maxNodes];
+        parent = new int[maxNodes];
+        first = new int[maxNodes];
+        count = new int[maxNodes];
+        nodeCount = 0;
+        if (objects > 0) buildNode(0, objects, -1);
+    }
+
+    private int buildNode(int start, int end, int parentNode) {
+        int node = nodeCount++;
+        parent[node] = parentNode;
+        first[node] = start;
+        count[node] = end - start;
+        left[node] = -1;
+        right[node] = -1;
+        fitNode(node);
+
+        if (end - start <= LEAF_SIZE) {
+            for (int i = start; i < end; i++) objectLeaf[order[i]] = node;
+            return node;
+        }
+
+        float[] centers;
+        float extentX = maxX[node] - minX[node], extentY = maxY[node] - minY[node], extentZ = maxZ[node] - minZ[node];
+        if (extentX >= extentY && extentX >= extentZ) centers = bounds.centerX;
+        else if (extentY >= extentZ) centers = bounds.centerY;
+        else centers = bounds.centerZ;
+        Integer[] range = new Integer[end - start];
+        for (int i = start; i < end; i++) range[i - start] = order[i];
+        Arrays.sort(range, Comparator.comparingDouble(i -> centers[i]));
+        for (int i = start; i < end; i++) order[i] = range[i - start];
+
+        int middle = (start + end) / 2;
+        left[node] = buildNode(start, middle, node);
+        right[node] = buildNode(middle, end, node);
+        return node;
+    }
+
+    // Recomputes the node's box from its children, or from its objects for a leaf or a node still being built.
+    // Returns whether it changed.
+    private boolean fitNode(int node) {
+        float lx = Float.MAX_VALUE, ly = Float.MAX_VALUE, lz = Float.MAX_VALUE;
+        float hx = -Float.MAX_VALUE, hy = -Float.MAX_VALUE, hz = -Float.MAX_VALUE;
+        if (left[node] >= 0) {
+            for (int child : new int[] { left[node], right[node] }) {
+                lx = Math.min(lx, minX[child]);
+                ly = Math.min(ly, minY[child]);
+                lz = Math.min(lz, minZ[child]);
+                hx = Math.max(hx, maxX[child]);
+                hy = Math.max(hy, maxY[child]);
+                hz = Math.max(hz, maxZ[child]);
+            }
+        }
+        else {
+            for (int i = first[node]; i < first[node] + count[node]; i++) {
+                int object = order[i];
+                lx = Math.min(lx, bounds.minX[object]);
+                ly = Math.min(ly, bounds.minY[object]);
+                lz = Math.min(lz, bounds.minZ[object]);
+                hx = Math.max(hx, bounds.maxX[object]);
+                hy = Math.max(hy, bounds.maxY[object]);
+                hz = Math.max(hz, bounds.maxZ[object]);
+            }
+        }
+        boolean changed = lx != minX[node] || ly != minY[node] || lz != minZ[node]
+                || hx != maxX[node] || hy != maxY[node] || hz != maxZ[node];
+        minX[node] = lx;
+        minY[node] = ly;
+        minZ[node] = lz;
+        maxX[node] = hx;
+        maxY[node] = hy;
+        maxZ[node] = hz;
+        return changed;
+    }
+
+    // After the bounds of just these objects changed.  Walks up from each one's leaf until a box stops changing.
+    void refit(List<Integer> movedObjects) {
+        for (int object : movedObjects) {
+            int node = objectLeaf[object];
+            while (node >= 0 && fitNode(node)) {
+                node = parent[node];
+            }
+        }
+    }
+
+    // What a NodeTest says about a node's box.  INSIDE means every object under it is certainly wanted, so they
+    // aren't tested individually.
+    static final int OUTSIDE = 0, INTERSECTS = 1, INSIDE = 2;
+
+    interface NodeTest {
+        int test(float minX, float minY, float minZ, float maxX, float maxY, float maxZ);
+    }
+
+    // Calls found with every object under a node that doesn't fail nodeTest, if it also passes objectTest
+    void query(NodeTest nodeTest, IntPredicate objectTest, IntConsumer found) {
+        if (nodeCount > 0) query(0, nodeTest, objectTest, found);
+    }
+
+    // As above but just under root, one of subtrees()
+    void query(int root, NodeTest nodeTest, IntPredicate objectTest, IntConsumer found) {
+        int[] stack = new int[64];
+        int top = 0;
+        stack[top++] = root;
+        while (top > 0) {
+            int node = stack[--top];
+            int result = nodeTest.test(minX[node], minY[node], minZ[node], maxX[node], maxY[node], maxZ[node]);
+            if (result == OUTSIDE) continue;
+            if (result == INSIDE) {
+                for (int i = first[node]; i < first[node] + count[node]; i++) found.accept(order[i]);
+            }
+            else if (left[node] < 0) {
+                for (int i = first[node]; i < first[node] + count[node]; i++) {
+                    if (objectTest.test(order[i])) found.accept(order[i]);
+                }
+            }
+            else {
+                if (top + 2 > stack.length) stack = Arrays.copyOf(stack, stack.length * 2);
+                stack[top++] = right[node];
+                stack[top++] = left[node];
+            }
+        }
+    }
+
+    // Nodes a few levels down, for splitting a query between threads.  Together they cover every object once.
+    List<Integer> subtrees(int levels) {
+        List<Integer> out = new ArrayList<>();
+        if (nodeCount == 0) return out;
+        out.add(0);
+        for (int level = 0; level < levels; level++) {
+            List<Integer> next = new ArrayList<>();
+            for (int node : out) {
+                if (left[node] < 0) next.add(node);
+                else {
+                    next.add(left[node]);
+                    next.add(right[node]);
+                }
+            }
+            out = next;
+        }
+        return out;
+    }
+}
@@ -8,6 +8,25 @@ interface ICamera {
     Matrix4x4 getMatrix();
 }
 
+// A camera that doesn't move, for drawing one frame from, see FrameSnapshot
+final class CameraView implements ICamera {
+    private final Vector4 position;
+    private final Matrix4x4 matrix;
+
+    CameraView(Vector4 position, Matrix4x4 matrix) {
+        this.position = position;
+        this.matrix = matrix;
+    }
+
+    public Vector4 getPosition() {
+        return position;
+    }
+
+    public Matrix4x4 getMatrix() {
+        return matrix;
+    }
+}
+
 class Camera implements ICamera {
     // Remember: normalized co-ords have to be between -1 to 1. If using a projection matrix (perspective or ortho),
     // this will normalize from whatever range we want into that.  Else, have to output in that range.
@@ -3,6 +3,11 @@ package modelviewer;
 import enterthematrix.Matrix4x4;
 import enterthematrix.Vector4;
 
+import java.util.Arrays;
+
+// The moves set where the camera is heading, and it eases there one fixed tick at a time.  What's drawn is interpolated
+// between the last two ticks, so the motion is smooth and the same at any frame rate.  Owned by SceneUpdater, which
+// ticks it and hands the GL thread fixed views of it in FrameSnapshots.
 class CameraRotatingAroundOrigin implements ICamera {
     // Remember: normalized co-ords have to be between -1 to 1. If using a projection matrix (perspective or ortho),
     // this will normalize from whatever range we want into that.  Else, have to output in that range.
@@ -10,7 +15,15 @@ class CameraRotatingAroundOrigin implements ICamera {
     private final float initialZoom = 1.5f;
     private float zoom = initialZoom;
     private final Vector4 initialPosition = new Vector4(0.90f, 0.65f, 0.93f, 0);
-    private final Vector4 origin = new Vector4(0, 0, 0, 0);
+    private static final Vector4 origin = new Vector4(0, 0, 0, 0);
+    private float height = initialPosition.y();
+    // How quickly the eased values close on the ones above, the fraction left after a second being e^-EASING
+    private static final float EASING = 15f;
+    // Close enough to stop
+    private static final float SETTLED = 0.00001f;
+
+    // The rotation, zoom and height after the last tick and the one before, see view
+    private final float[] current = state(), previous = state();
 
     public Vector4 getPosition() {
         return position;
@@ -19,7 +32,7 @@ class CameraRotatingAroundOrigin implements ICamera {
     private Vector4 position = initialPosition;
 
     public void moveUp(float v) {
-        position = position.copy(position.x(), position.y() + v, position.z(), position.w());
+        height += v;
         dump();
     }
     public void moveDown(float v) {
@@ -62,21 +75,57 @@ class CameraRotatingAroundOrigin implements ICamera {
     public void rotateDown(float v) {
         rotateUp(v * -1);
     }
+    private float[] state() {
+        return new float[] { rotationAngleDegrees, zoom, height };
+    }
+
+    void tick(float seconds) {
+        System.arraycopy(current, 0, previous, 0, current.length);
+        float[] target = state();
+        float step = (float) (1 - Math.exp(-EASING * seconds));
+        for (int i = 0; i < current.length; i++) {
+            current[i] += (target[i] - current[i]) * step;
+            if (Math.abs(target[i] - current[i]) < SETTLED) current[i] = target[i];
+        }
+    }
+
+    // Copies, for FrameSnapshot
+    float[] getState() {
+        return current.clone();
+    }
+
+    float[] getPreviousState() {
+        return previous.clone();
+    }
+
+    // Still heading somewhere, so more frames are needed to show it
+    boolean isMoving() {
+        return !Arrays.equals(current, state()) || !Arrays.equals(previous, current);
+    }
+
     public void dump() {
         System.out.println(this);
     }
     @Override public String toString() {
-        return "x=" + position.x() + " y=" + position.y() + " z=" + position.z() + " rlr=" + rotationAngleDegrees;
+        return "x=" + position.x() + " y=" + height + " z=" + position.z() + " rlr=" + rotationAngleDegrees;
     }
 
+    // As of the last tick.  getPosition is updated to match.
     public Matrix4x4 getMatrix() {
+        CameraView view = view(current);
+        position = view.getPosition();
+        return view.getMatrix();
+    }
+
+    // The camera at a state from getState, or between two
+    static CameraView view(float[] state) {
 
-        float x = (float) (zoom * Math.cos(rotationAngleDegrees));
-        float z = (float) (zoom * Math.sin(rotationAngleDegrees));
+        float x = (float) (state[1] * Math.cos(state[0]));
+        float z = (float) (state[1] * Math.sin(state[0]));
 
-        position = new Vector4(x, position.y(), z, 1);
+        Vector4 eye = new Vector4(x, state[2], z, 1);
 
-        return Matrix4x4.lookAt(getPosition(), origin, new Vector4(0f,1f,0f,1f));
+        return new CameraView(eye, Matrix4x4.lookAt(eye, origin, new Vector4(0f,1f,0f,1f)));
     }
 
 }
@@ -0,0 +1,250 @@
+package modelviewer;
+
+import BasicModels.BoundingBox;
+import enterthematrix.Matrix4x4;
+import enterthematrix.Vector3;
+import org.lwjgl.BufferUtils;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import static org.lwjgl.opengl.GL15.*;
+import static org.lwjgl.opengl.GL30.glBindBufferBase;
+import static org.lwjgl.opengl.GL43.GL_SHADER_STORAGE_BUFFER;
+
+// Clustered forward shading, for far more point lights than the fixed set in the LightBuffer.  The view is split into
+// clusters, screen tiles times depth slices, and once a frame each light is added to every cluster its sphere of
+// influence might reach.  model_fragment.glsl then only evaluates the lights in its own cluster, so the cost per
+// fragment depends on how many lights overlap there rather than on how many there are.
+// The lights, the clusters and the light lists all go in SSBOs, so this needs GL 4.3.  They don't cast shadows, and
+// have no ambient term, which would add up over hundreds of lights.
+class ClusteredLights {
+    // Must match the bindings in model_fragment.glsl
+    static final int LIGHT_BINDING = 4, CLUSTER_BINDING = 5, INDEX_BINDING = 6;
+    static final int TILES_X = 16, TILES_Y = 9, SLICES = 32;
+    static final int CLUSTERS = TILES_X * TILES_Y * SLICES;
+    static final int MAX_LIGHTS = 4096;
+    // std430 sizes of the ClusterLight struct, and of the header before the clusters, in model_fragment.glsl
+    private static final int LIGHT_BYTES = 64, CLUSTER_HEADER_BYTES = 32;
+    // The slices are spaced logarithmically from here to the far plane.  Anything nearer is in the first slice, so
+    // the slices aren't spent on the first few millimetres in front of the camera.
+    private static final float FIRST_SLICE_DEPTH = 0.1f;
+
+    static final class Light {
+        final Vector3 position;
+        final Vector3 diffuse, specular;
+        final float constant, linear, quadratic;
+
+        Light(Vector3 position, Vector3 diffuse, Vector3 specular, float constant, float linear, float quadratic) {
+            this.position = position;
+            this.diffuse = diffuse;
+            this.specular = specular;
+            this.constant = constant;
+            this.linear = linear;
+            this.quadratic = quadratic;
+        }
+
+        // One of the scene's point lights, as it is now
+        static Light of(PointLight light) {
+            return new Light(light.getPosition(), light.diffuse, light.specular, light.getConstant(), light.getLinear(),
+                    light.getQuadratic());
+        }
+
+        // As PointLight.influenceRadius, for the colours that are drawn here
+        float influenceRadius() {
+            float brightest = Math.max(diffuse.x() + specular.x(),
+                    Math.max(diffuse.y() + specular.y(), diffuse.z() + specular.z()));
+            return PointLight.influenceRadius(constant, linear, quadratic, 256 * brightest);
+        }
+
+        // Lights of different colours scattered through region, reaching radius, for trying out lots of lights at once.
+        // The same every time for the same arguments.
+        static List<Light> scatter(int count, BoundingBox region, float radius) {
+            Random random = new Random(count);
+            // Attenuation falls to 1/256 at radius, see PointLight.influenceRadius
+            float quadratic = 255 / (radius * radius);
+            List<Light> out = new ArrayList<>();
+            for (int i = 0; i < count; i++) {
+                Vector3 position = new Vector3(region.minX() + random.nextFloat() * region.getWidth(),
+                        region.minY() + random.nextFloat() * region.getHeight(),
+                        region.minZ() + random.nextFloat() * region.getDepth());
+                // Golden ratio steps round the hue circle keep neighbouring lights distinct
+                // Split between diffuse and specular so the brightest channel adds up to 1
+                Vector3 colour = hue((i * 0.618034f) % 1).$times(0.5f);
+                out.add(new Light(position, colour, colour, 1, 0, quadratic));
+            }
+            return out;
+        }
+
+        // Fully saturated, h from 0 to 1
+        private static Vector3 hue(float h) {
+            float r = Math.abs(h * 6 - 3) - 1, g = 2 - Math.abs(h * 6 - 2), b = 2 - Math.abs(h * 6 - 4);
+            return new Vector3(clamp(r), clamp(g), clamp(b));
+        }
+
+        private static float clamp(float v) {
+            return Math.max(0, Math.min(1, v));
+        }
+    }
+
+    // Which lights are in which clusters.  Worked out apart from the buffers, so it needs no GL.
+    static final class Bins {
+        // For the slice a view space depth is in, floor(log(depth) * sliceScale + sliceBias)
+        float sliceScale, sliceBias;
+        // Per cluster, where its list starts in indices and how many lights are in it
+        final int[] counts = new int[CLUSTERS], offsets = new int[CLUSTERS];
+        // The light lists, packed in cluster order
+        int[] indices = new int[0];
+        int total = 0;
+
+        // The cluster range each light covers this frame: first and last tile across and down, first and last slice.
+        // An empty range if it can't be seen.
+        private int[] ranges = new int[0];
+
+        void bin(List<Light> lights, int lightCount, Matrix4x4 view, Matrix4x4 projection, float near, float far) {
+            if (ranges.length < lightCount * 6) ranges = new int[lightCount * 6];
+            sliceScale = (float) (SLICES / Math.log(far / FIRST_SLICE_DEPTH));
+            sliceBias = (float) (-Math.log(FIRST_SLICE_DEPTH) * sliceScale);
+
+            Arrays.fill(counts, 0);
+            for (int i = 0; i < lightCount; i++) {
+                findClusters(lights.get(i), view, projection, near, i * 6);
+                forEachCluster(i * 6, cluster -> counts[cluster]++);
+            }
+            total = 0;
+            for (int c = 0; c < CLUSTERS; c++) {
+                offsets[c] = total;
+                total += counts[c];
+            }
+
+            // counts is rebuilt as the lists fill up
+            if (indices.length < total) indices = new int[Math.max(total, indices.length * 2)];
+            Arrays.fill(counts, 0);
+            for (int i = 0; i < lightCount; i++) {
+                int light = i;
+                forEachCluster(i * 6, cluster -> indices[offsets[cluster] + counts[cluster]++] = light);
+            }
+        }
+
+        private void forEachCluster(int range, ClusterConsumer consumer) {
+            for (int z = ranges[range + 4]; z <= ranges[range + 5]; z++) {
+                for (int y = ranges[range + 2]; y <= ranges[range + 3]; y++) {
+                    for (int x = ranges[range]; x <= ranges[range + 1]; x++) {
+                        consumer.accept((z * TILES_Y + y) * TILES_X + x);
+                    }
+                }
+            }
+        }
+
+        // Conservative: the clusters overlapped by the screen rectangle and depth range of the box around the light's
+        // sphere, in view space
+        private void findClusters(Light light, Matrix4x4 view, Matrix4x4 projection, float near, int range) {
+            // An empty range unless the light turns out to be visible
+            ranges[range] = 0;
+            ranges[range + 1] = -1;
+            ranges[range + 4] = 0;
+            ranges[range + 5] = -1;
+
+            Vector3 p = light.position;
+            float x = view.get(0, 0) * p.x() + view.get(0, 1) * p.y() + view.get(0, 2) * p.z() + view.get(0, 3);
+            float y = view.get(1, 0) * p.x() + view.get(1, 1) * p.y() + view.get(1, 2) * p.z() + view.get(1, 3);
+            float depth = -(view.get(2, 0) * p.x() + view.get(2, 1) * p.y() + view.get(2, 2) * p.z() + view.get(2, 3));
+            float r = light.influenceRadius();
+            if (depth + r < near) return;
+
+            int minTileX = 0, maxTileX = TILES_X - 1, minTileY = 0, maxTileY = TILES_Y - 1;
+            // If the sphere reaches the near plane it could cover any part of the screen
+            if (depth - r > near) {
+                float xScale = projection.get(0, 0), yScale = projection.get(1, 1);
+                // x / depth is smallest and largest at corners of the box, and depth is positive at all of them
+                float minNdcX = Math.min((x - r) / (depth - r), (x - r) / (depth + r)) * xScale;
+                float maxNdcX = Math.max((x + r) / (depth - r), (x + r) / (depth + r)) * xScale;
+                float minNdcY = Math.min((y - r) / (depth - r), (y - r) / (depth + r)) * yScale;
+                float maxNdcY = Math.max((y + r) / (depth - r), (y + r) / (depth + r)) * yScale;
+                if (minNdcX > 1 || maxNdcX < -1 || minNdcY > 1 || maxNdcY < -1) return;
+                minTileX = tile(minNdcX, TILES_X);
+                maxTileX = tile(maxNdcX, TILES_X);
+                minTileY = tile(minNdcY, TILES_Y);
+                maxTileY = tile(maxNdcY, TILES_Y);
+            }
+
+            ranges[range] = minTileX;
+            ranges[range + 1] = maxTileX;
+            ranges[range + 2] = minTileY;
+            ranges[range + 3] = maxTileY;
+            ranges[range + 4] = slice(Math.max(depth - r, near), sliceScale, sliceBias);
+            ranges[range + 5] = slice(depth + r, sliceScale, sliceBias);
+        }
+    }
+
+    private final int lightBuffer = glGenBuffers(), clusterBuffer = glGenBuffers(), indexBuffer = glGenBuffers();
+    private ByteBuffer lightData = BufferUtils.createByteBuffer(LIGHT_BYTES);
+    private final ByteBuffer clusterData = BufferUtils.createByteBuffer(CLUSTER_HEADER_BYTES + CLUSTERS * 8);
+    private ByteBuffer indexData = BufferUtils.createByteBuffer(4);
+    private final Bins bins = new Bins();
+
+    // Bins lights into clusters for the camera and uploads everything
+    void update(List<Light> lights, Matrix4x4 view, Matrix4x4 projection, float near, float far, int widthPixels,
+                int heightPixels) {
+        int lightCount = Math.min(lights.size(), MAX_LIGHTS);
+        bins.bin(lights, lightCount, view, projection, near, far);
+
+        if (indexData.capacity() < Math.max(1, bins.total) * 4) {
+            indexData = BufferUtils.createByteBuffer(Math.max(bins.total, indexData.capacity() / 4 * 2) * 4);
+        }
+        indexData.clear();
+        indexData.asIntBuffer().put(bins.indices, 0, bins.total);
+        indexData.limit(Math.max(1, bins.total) * 4);
+
+        clusterData.clear();
+        clusterData.putFloat((float) TILES_X / widthPixels).putFloat((float) TILES_Y / heightPixels)
+                .putFloat(bins.sliceScale).putFloat(bins.sliceBias);
+        clusterData.putInt(TILES_X).putInt(TILES_Y).putInt(SLICES).putInt(0);
+        for (int c = 0; c < CLUSTERS; c++) {
+            clusterData.putInt(bins.offsets[c]).putInt(bins.counts[c]);
+        }
+        clusterData.flip();
+
+        if (lightData.capacity() < Math.max(1, lightCount) * LIGHT_BYTES) {
+            lightData = BufferUtils.createByteBuffer(lightCount * LIGHT_BYTES);
+        }
+        lightData.clear();
+        for (int i = 0; i < lightCount; i++) {
+            Light light = lights.get(i);
+            LightBuffer.putVec3(lightData, light.position).putFloat(light.influenceRadius());
+            LightBuffer.putVec3(lightData, light.diffuse).putFloat(light.constant);
+            LightBuffer.putVec3(lightData, light.specular).putFloat(light.linear);
+            lightData.putFloat(light.quadratic).putFloat(0).putFloat(0).putFloat(0);
+        }
+        lightData.limit(Math.max(1, lightCount) * LIGHT_BYTES);
+        lightData.position(0);
+
+        upload(lightBuffer, LIGHT_BINDING, lightData);
+        upload(clusterBuffer, CLUSTER_BINDING, clusterData);
+        upload(indexBuffer, INDEX_BINDING, indexData);
+    }
+
+    private static void upload(int buffer, int binding, ByteBuffer data) {
+        glBindBuffer(GL_SHADER_STORAGE_BUFFER, buffer);
+        // Replaced whole every frame, so the driver can hand back fresh storage rather than wait for the last frame
+        glBufferData(GL_SHADER_STORAGE_BUFFER, data, GL_STREAM_DRAW);
+        glBindBuffer(GL_SHADER_STORAGE_BUFFER, 0);
+        glBindBufferBase(GL_SHADER_STORAGE_BUFFER, binding, buffer);
+    }
+
+    private interface ClusterConsumer {
+        void accept(int cluster);
+    }
+
+    private static int tile(float ndc, int tiles) {
+        return Math.max(0, Math.min(tiles - 1, (int) Math.floor((ndc * 0.5f + 0.5f) * tiles)));
+    }
+
+    // As model_fragment.glsl works it out
+    private static int slice(float depth, float sliceScale, float sliceBias) {
+        return Math.max(0, Math.min(SLICES - 1, (int) Math.floor(Math.log(depth) * sliceScale + sliceBias)));
+    }
+}
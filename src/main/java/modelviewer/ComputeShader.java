@@ -0,0 +1,51 @@
+package modelviewer;
+
+import Useful.ShaderUtils;
+import enterthematrix.Matrix4x4;
+import matrixlwjgl.MatrixLwjgl;
+
+import java.util.Arrays;
+
+import static org.lwjgl.opengl.GL20.*;
+import static org.lwjgl.opengl.GL43.GL_COMPUTE_SHADER;
+
+// A compute program, for the GL 4.3 paths.  Much simpler than Shader: these are only used from one place each, so
+// there's no variable checking, binary caching or parallel compile.
+class ComputeShader {
+    private final String filename;
+    private final int program;
+
+    ComputeShader(String resourceFilename, String... defines) {
+        this.filename = resourceFilename;
+        String source = ShaderUtils.readShaderSource(AppWrapper.class.getResource(resourceFilename), null, Arrays.asList(defines));
+        int shader = ShaderUtils.compileShader(source, GL_COMPUTE_SHADER);
+        program = glCreateProgram();
+        glAttachShader(program, shader);
+        glLinkProgram(program);
+        if (glGetProgrami(program, GL_LINK_STATUS) == 0) {
+            System.err.println("Failed to link compute shader " + filename + ": " + glGetProgramInfoLog(program));
+        }
+        glDeleteShader(shader);
+    }
+
+    void use() {
+        glUseProgram(program);
+    }
+
+    void stop() {
+        glUseProgram(0);
+    }
+
+    void setInt(String name, int v) {
+        glUniform1i(glGetUniformLocation(program, name), v);
+    }
+
+    void setMatrix(String name, Matrix4x4 matrix) {
+        glUniformMatrix4fv(glGetUniformLocation(program, name), false, MatrixLwjgl.convertMatrixToBuffer(matrix));
+    }
+
+    // A vec4 array, 4 floats per element
+    void setVec4Array(String name, float[] values) {
+        glUniform4fv(glGetUniformLocation(program, name), values);
+    }
+}
@@ -0,0 +1,124 @@
+package modelviewer;
+
+import java.nio.ByteBuffer;
+
+import static org.lwjgl.opengl.GL11.*;
+import static org.lwjgl.opengl.GL13.GL_TEXTURE0;
+import static org.lwjgl.opengl.GL13.glActiveTexture;
+import static org.lwjgl.opengl.GL20.glDrawBuffers;
+import static org.lwjgl.opengl.GL30.*;
+
+// Deferred shading, an alternative to lighting every fragment of every model as it's drawn.  The models are drawn
+// once into a G-buffer with the GBUFFER variant of the standard shader, which only records each pixel's surface, then
+// the DEFERRED_LIGHTING variant lights each pixel exactly once in a full-screen pass.  The lighting cost then depends
+// on the screen size rather than on overdraw.  The price is the G-buffer's memory and bandwidth.
+// The G-buffer, see model_fragment.glsl:
+//   0  RGBA16F  normal, shininess
+//   1  RGBA8    diffuse, whether the pixel receives shadows
+//   2  RGBA8    specular, the model's light mask for the 4 point lights in the LightBuffer
+//   3  RGBA8    ambient
+//   depth, in the window's 24 bit depth, 8 bit stencil format so it can be blitted there for drawing after lighting
+class DeferredRenderer {
+    private static final int[] FORMATS = { GL_RGBA16F, GL_RGBA8, GL_RGBA8, GL_RGBA8 };
+
+    private final int[] textures = new int[FORMATS.length];
+    private int fbo = 0, depthTexture = 0, width = 0, height = 0;
+    // The lighting pass's triangle comes from gl_VertexID alone, but the core profile won't draw without a VAO bound
+    private final int emptyVao = glGenVertexArrays();
+    private boolean depthCopyChecked = false, depthCopyFailed = false;
+
+    // Everything drawn until endGBuffer goes into the G-buffer, which is cleared first
+    void beginGBuffer(int width, int height) {
+        if (width != this.width || height != this.height) allocate(width, height);
+        glBindFramebuffer(GL_FRAMEBUFFER, fbo);
+        glViewport(0, 0, width, height);
+        glClear(GL_COLOR_BUFFER_BIT | GL_DEPTH_BUFFER_BIT);
+    }
+
+    void endGBuffer() {
+        glBindFramebuffer(GL_FRAMEBUFFER, 0);
+    }
+
+    // Lights the G-buffer into the default framebuffer.  The caller has set everything else shader needs.
+    void light(Shader shader) {
+        for (int i = 0; i < textures.length; i++) {
+            glActiveTexture(GL_TEXTURE0 + ShaderStore.G_NORMAL_UNIT + i);
+            glBindTexture(GL_TEXTURE_2D, textures[i]);
+        }
+        glActiveTexture(GL_TEXTURE0 + ShaderStore.G_NORMAL_UNIT + textures.length);
+        glBindTexture(GL_TEXTURE_2D, depthTexture);
+        glActiveTexture(GL_TEXTURE0);
+
+        // Every pixel is drawn once, and the background is discarded in the shader
+        glDisable(GL_DEPTH_TEST);
+        try (ShaderUse wrap = new ShaderUse(shader)) {
+            glBindVertexArray(emptyVao);
+            glDrawArrays(GL_TRIANGLES, 0, 3);
+            glBindVertexArray(0);
+        }
+        glEnable(GL_DEPTH_TEST);
+    }
+
+    // Gives the default framebuffer the G-buffer's depth, so anything drawn forward afterwards, like the light
+    // markers, is hidden behind the models.  Does nothing if the window's depth format doesn't allow it.
+    void copyDepthToScreen() {
+        if (!depthCopyChecked) {
+            depthCopyChecked = true;
+            // Blitting depth needs matching formats
+            glBindFramebuffer(GL_FRAMEBUFFER, 0);
+            if (glGetFramebufferAttachmentParameteri(GL_FRAMEBUFFER, GL_DEPTH, GL_FRAMEBUFFER_ATTACHMENT_DEPTH_SIZE) != 24
+                    || glGetFramebufferAttachmentParameteri(GL_FRAMEBUFFER, GL_STENCIL, GL_FRAMEBUFFER_ATTACHMENT_STENCIL_SIZE) != 8) {
+                System.err.println("Window depth buffer isn't 24 bit depth, 8 bit stencil, so markers aren't depth tested against deferred shading");
+                depthCopyFailed = true;
+            }
+        }
+        if (depthCopyFailed) return;
+
+        glBindFramebuffer(GL_READ_FRAMEBUFFER, fbo);
+        glBindFramebuffer(GL_DRAW_FRAMEBUFFER, 0);
+        glBlitFramebuffer(0, 0, width, height, 0, 0, width, height, GL_DEPTH_BUFFER_BIT, GL_NEAREST);
+        glBindFramebuffer(GL_FRAMEBUFFER, 0);
+    }
+
+    private void allocate(int width, int height) {
+        delete();
+        this.width = width;
+        this.height = height;
+
+        fbo = glGenFramebuffers();
+        glBindFramebuffer(GL_FRAMEBUFFER, fbo);
+        int[] attachments = new int[FORMATS.length];
+        for (int i = 0; i < FORMATS.length; i++) {
+            textures[i] = createTexture(FORMATS[i], GL_RGBA, FORMATS[i] == GL_RGBA16F ? GL_FLOAT : GL_UNSIGNED_BYTE, width, height);
+            attachments[i] = GL_COLOR_ATTACHMENT0 + i;
+            glFramebufferTexture2D(GL_FRAMEBUFFER, attachments[i], GL_TEXTURE_2D, textures[i], 0);
+        }
+        depthTexture = createTexture(GL_DEPTH24_STENCIL8, GL_DEPTH_STENCIL, GL_UNSIGNED_INT_24_8, width, height);
+        glFramebufferTexture2D(GL_FRAMEBUFFER, GL_DEPTH_STENCIL_ATTACHMENT, GL_TEXTURE_2D, depthTexture, 0);
+        glDrawBuffers(attachments);
+        if (glCheckFramebufferStatus(GL_FRAMEBUFFER) != GL_FRAMEBUFFER_COMPLETE) {
+            System.err.println("Failed to create G-buffer framebuffer");
+        }
+        glBindFramebuffer(GL_FRAMEBUFFER, 0);
+    }
+
+    // Read with texelFetch, so no filtering
+    private static int createTexture(int internalFormat, int format, int type, int width, int height) {
+        int texture = glGenTextures();
+        glBindTexture(GL_TEXTURE_2D, texture);
+        glTexImage2D(GL_TEXTURE_2D, 0, internalFormat, width, height, 0, format, type, (ByteBuffer) null);
+        glTexParameteri(GL_TEXTURE_2D, GL_TEXTURE_MIN_FILTER, GL_NEAREST);
+        glTexParameteri(GL_TEXTURE_2D, GL_TEXTURE_MAG_FILTER, GL_NEAREST);
+        glBindTexture(GL_TEXTURE_2D, 0);
+        return texture;
+    }
+
+    private void delete() {
+        if (fbo != 0) {
+            glDeleteFramebuffers(fbo);
+            glDeleteTextures(textures);
+            glDeleteTextures(depthTexture);
+            fbo = 0;
+        }
+    }
+}
@@ -3,9 +3,7 @@ package modelviewer;
 import enterthematrix.Matrix4x4;
 import enterthematrix.Vector3;
 
-import static org.lwjgl.opengl.GL11.GL_TEXTURE_2D;
-import static org.lwjgl.opengl.GL11.glBindTexture;
-import static org.lwjgl.opengl.GL13.*;
+import java.nio.ByteBuffer;
 
 class DirectionalLight extends Light {
     final Vector3 direction;
@@ -19,29 +17,12 @@ class DirectionalLight extends Light {
     }
 
     @Override
-    public void setupShader(Shader shader) {
-        assert (shader.isInUse());
-        String lightText = "dirLight";
-        super.setupShaderImpl(shader, lightText);
-//        if (isEnabled()) {
-        shader.setVec3(lightText + ".direction", direction);
-        shader.setVec3(lightText + ".ambient", ambient);
-        shader.setFloat(lightText + ".ambientMin", ambientMin);
-        shader.setVec3(lightText + ".diffuse", diffuse);
-        shader.setVec3(lightText + ".specular", specular);
-
-        shader.setBoolean(lightText + ".shadowsEnabled", shadowsEnabled);
-
-//            if (shadowsEnabled) {
-//        shader.setInt(lightText +".shadowMap", 20);
-//        glActiveTexture(GL_TEXTURE3);
-
-        // Hardcoded constant is clumsy attempt to avoid stepping on the regular textures
-        shader.setInt(lightText + ".shadowMap", GL_TEXTURE20);
-        glActiveTexture(GL_TEXTURE20);
-        glBindTexture(GL_TEXTURE_2D, shadowTexture);
-//            }
-//        }
+    void writeUniformData(ByteBuffer buffer) {
+        LightBuffer.putVec3(buffer, direction).putFloat(ambientMin);
+        LightBuffer.putBoolean(LightBuffer.putVec3(buffer, ambient), isEnabled());
+        LightBuffer.putBoolean(LightBuffer.putVec3(buffer, diffuse), shadowsEnabled);
+        LightBuffer.putVec3(buffer, specular).putFloat(0);
+        shadowMap.writeAtlasRect(buffer);
     }
 
 
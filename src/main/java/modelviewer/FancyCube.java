@@ -1,5 +1,6 @@
 package modelviewer;
 
+import BasicModels.BoundingBox;
 import enterthematrix.Matrix4x4;
 import enterthematrix.Vector4;
 import matrixlwjgl.MatrixLwjgl;
@@ -115,11 +116,9 @@ class FancyCube extends Model {
     public void draw(Matrix4x4 projectionMatrix, Matrix4x4 cameraTranslate, Shader shader) {
         try (ShaderUse wrap = new ShaderUse(shader)) {
 //            shader.setVec3("material.ambient", material.getAmbient());
-            shader.setInt("material.texture", 0);
-            shader.setInt("material.diffuse", 0);
-//            shader.setVec3("material.specular", material.getSpecular());
-            shader.setInt("material.specular", 1);
-            shader.setFloat("material.shininess", material.getShininess());
+            shader.setInt("materialIndex", material.getBufferIndex());
+            shader.setBoolean("receivesShadows", receivesShadows());
+            shader.setInt("lightMask", lightMask);
 
             // Upload matrices to the uniform variables
             Matrix4x4 modelMatrix = getModelMatrix();
@@ -149,4 +148,30 @@ class FancyCube extends Model {
             GL30.glBindVertexArray(0);
         }
     }
+
+    @Override
+    void drawDepth(Shader shader) {
+        shader.setMatrix("modelMatrix", getModelMatrix());
+        GL11.glDrawArrays(GL11.GL_TRIANGLES, 0, 36);
+    }
+
+    @Override
+    int getVaoId() {
+        return vaoId;
+    }
+
+    // The unit cube the vertices describe
+    private static final BoundingBox LOCAL_BOUNDS = new BoundingBox(-0.5f, 0.5f, -0.5f, 0.5f, -0.5f, 0.5f);
+
+    @Override
+    BoundingBox getLocalBounds() {
+        return LOCAL_BOUNDS;
+    }
+
+    private static final SoftwareOcclusionBuffer.Occluder OCCLUDER = SoftwareOcclusionBuffer.Occluder.box(LOCAL_BOUNDS);
+
+    @Override
+    SoftwareOcclusionBuffer.Occluder getOccluder() {
+        return OCCLUDER;
+    }
 }
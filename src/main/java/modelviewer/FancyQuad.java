@@ -1,5 +1,6 @@
 package modelviewer;
 
+import BasicModels.BoundingBox;
 import enterthematrix.Matrix4x4;
 import enterthematrix.Vector4;
 import matrixlwjgl.MatrixLwjgl;
@@ -80,11 +81,10 @@ class FancyQuad extends Model {
     public void draw(Matrix4x4 projectionMatrix, Matrix4x4 cameraTranslate, Shader shader) {
         try (ShaderUse wrap = new ShaderUse(shader)) {
             if (material != null) {
-                if (material.getAmbient() != null) shader.setVec3("material.ambient", material.getAmbient());
-                if (material.getDiffuse() != null) shader.setVec3("material.diffuse", material.getDiffuse());
-                if (material.getSpecular() != null) shader.setVec3("material.specular", material.getSpecular());
-                shader.setFloat("material.shininess", material.getShininess());
+                shader.setInt("materialIndex", material.getBufferIndex());
             }
+            shader.setBoolean("receivesShadows", receivesShadows());
+            shader.setInt("lightMask", lightMask);
 //            shader.setInt("material.diffuseTexture", texture.getTextureId());
 
             //
@@ -115,9 +115,6 @@ class FancyQuad extends Model {
             glEnableVertexAttribArray(VBO_INDEX_NORMALS);
             glEnableVertexAttribArray(VBO_INDEX_DIFFUSE_MAP);
 
-            shader.setInt("material.diffuseTexture", GL_TEXTURE0);
-            shader.setInt("material.specularTexture", GL_TEXTURE1);
-
             glActiveTexture(GL_TEXTURE0);
             glBindTexture(GL_TEXTURE_2D, texture.getTextureId());
             glActiveTexture(GL_TEXTURE1);
@@ -133,4 +130,30 @@ class FancyQuad extends Model {
             GL30.glBindVertexArray(0);
         }
     }
+
+    @Override
+    void drawDepth(Shader shader) {
+        shader.setMatrix("modelMatrix", getModelMatrix());
+        GL11.glDrawArrays(GL11.GL_TRIANGLES, 0, 6);
+    }
+
+    @Override
+    int getVaoId() {
+        return vaoId;
+    }
+
+    // Flat in z, like the vertices
+    private static final BoundingBox LOCAL_BOUNDS = new BoundingBox(-0.5f, 0.5f, -0.5f, 0.5f, 0, 0);
+
+    @Override
+    BoundingBox getLocalBounds() {
+        return LOCAL_BOUNDS;
+    }
+
+    private static final SoftwareOcclusionBuffer.Occluder OCCLUDER = SoftwareOcclusionBuffer.Occluder.box(LOCAL_BOUNDS);
+
+    @Override
+    SoftwareOcclusionBuffer.Occluder getOccluder() {
+        return OCCLUDER;
+    }
 }
@@ -0,0 +1,159 @@
+package modelviewer;
+
+import static org.lwjgl.glfw.GLFW.glfwSwapInterval;
+
+// Paces the AppWrapper loop, from System.nanoTime: applies the vsync and frame cap settings, holds the budget for
+// FrameScheduler's deferred work, and keeps frame pacing stats.  Settings come in from the UI thread, everything else is on the GL thread.
+// Simulation doesn't run here but on SceneUpdater's thread, in fixed ticks of TICK_SECONDS counted out by Ticks, so it
+// behaves the same however fast or unevenly frames are drawn.
+class FrameClock {
+    static final FrameClock shared = new FrameClock();
+
+    static final int TICKS_PER_SECOND = 60;
+    static final float TICK_SECONDS = 1.0f / TICKS_PER_SECOND;
+    static final long TICK_NANOS = 1000000000L / TICKS_PER_SECOND;
+    static final int MAX_TICKS_PER_FRAME = 5;
+    private static final long NANOS_BETWEEN_STATS = 5000000000L;
+
+    private volatile boolean vsync = Persister.getOrElse("vsync", true);
+    // 0 for no cap
+    private volatile float frameCapFps = Persister.getOrElse("frameCapFps", 0f);
+    private volatile boolean printStats = Persister.getOrElse("frameStats", false);
+    private volatile float deferredBudgetMs = Persister.getOrElse("frameBudgetMs", 2f);
+    // What glfwSwapInterval was last given, null before the first frame
+    private Boolean appliedVsync = null;
+
+    private long frameStartNanos = System.nanoTime();
+
+    // Since the stats were last printed
+    private long statsStartNanos = frameStartNanos;
+    private int frames = 0;
+    private double frameMsSum = 0, frameMsSquaredSum = 0, frameMsMax = 0;
+
+    boolean isVsync() {
+        return vsync;
+    }
+
+    void setVsync(boolean vsync) {
+        this.vsync = vsync;
+        Persister.put("vsync", vsync);
+    }
+
+    float getFrameCapFps() {
+        return frameCapFps;
+    }
+
+    void setFrameCapFps(float frameCapFps) {
+        this.frameCapFps = Math.max(0, frameCapFps);
+        Persister.put("frameCapFps", this.frameCapFps);
+    }
+
+    boolean isPrintingStats() {
+        return printStats;
+    }
+
+    void setPrintingStats(boolean printStats) {
+        this.printStats = printStats;
+        Persister.put("frameStats", printStats);
+    }
+
+    float getDeferredBudgetMs() {
+        return deferredBudgetMs;
+    }
+
+    void setDeferredBudgetMs(float deferredBudgetMs) {
+        this.deferredBudgetMs = Math.max(0, deferredBudgetMs);
+        Persister.put("frameBudgetMs", this.deferredBudgetMs);
+    }
+
+    // At the start of each frame
+    void beginFrame() {
+        boolean vsyncNow = vsync;
+        if (appliedVsync == null || appliedVsync != vsyncNow) {
+            glfwSwapInterval(vsyncNow ? 1 : 0);
+            appliedVsync = vsyncNow;
+        }
+
+        long now = System.nanoTime();
+        long frameNanos = now - frameStartNanos;
+        frameStartNanos = now;
+        recordFrame(frameNanos / 1000000.0);
+    }
+
+    // After the buffers are swapped.  Waits out the rest of the frame if there's a cap.
+    void endFrame() {
+        float cap = frameCapFps;
+        if (cap > 0) {
+            long deadline = frameStartNanos + (long) (1000000000L / cap);
+            // Sleep is only good to a millisecond or so, so the last of the wait spins
+            long remaining;
+            while ((remaining = deadline - System.nanoTime()) > 0) {
+                if (remaining > 2000000) {
+                    try {
+                        Thread.sleep((remaining - 1000000) / 1000000);
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        return;
+                    }
+                }
+                else {
+                    Thread.yield();
+                }
+            }
+        }
+    }
+
+    // After the loop has been waiting for events, so the time spent idle isn't counted as a slow frame
+    void resume() {
+        frameStartNanos = System.nanoTime();
+    }
+
+    private void recordFrame(double frameMs) {
+        frames++;
+        frameMsSum += frameMs;
+        frameMsSquaredSum += frameMs * frameMs;
+        frameMsMax = Math.max(frameMsMax, frameMs);
+
+        if (frameStartNanos - statsStartNanos < NANOS_BETWEEN_STATS) return;
+        if (printStats) {
+            double seconds = (frameStartNanos - statsStartNanos) / 1000000000.0;
+            double average = frameMsSum / frames;
+            // The spread of frame times, which shows as stutter even when the average is fine
+            double deviation = Math.sqrt(Math.max(0, frameMsSquaredSum / frames - average * average));
+            System.out.println(String.format("Frames: %.1ffps, %.2fms average, %.2fms max, %.2fms deviation",
+                    frames / seconds, average, frameMsMax, deviation));
+        }
+        statsStartNanos = frameStartNanos;
+        frames = 0;
+        frameMsSum = frameMsSquaredSum = frameMsMax = 0;
+    }
+
+    // Counts elapsed time out in whole ticks, keeping the remainder for next time.  After a long stall only
+    // MAX_TICKS_PER_FRAME are caught up and the rest of the time is dropped, rather than each catch-up taking longer
+    // and falling further behind.
+    static final class Ticks {
+        private long accumulatedNanos = 0;
+
+        // Returns how many ticks to run for elapsedNanos more
+        int advance(long elapsedNanos) {
+            accumulatedNanos += elapsedNanos;
+            int due = (int) Math.min(accumulatedNanos / TICK_NANOS, MAX_TICKS_PER_FRAME);
+            if (accumulatedNanos >= (MAX_TICKS_PER_FRAME + 1) * TICK_NANOS) {
+                accumulatedNanos %= TICK_NANOS;
+            }
+            else {
+                accumulatedNanos -= due * TICK_NANOS;
+            }
+            return due;
+        }
+
+        // Time since the last tick that hasn't made up a whole one yet
+        long getRemainderNanos() {
+            return accumulatedNanos;
+        }
+
+        void reset() {
+            accumulatedNanos = 0;
+        }
+    }
+}
@@ -0,0 +1,69 @@
+package modelviewer;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+// GPU work that doesn't have to happen this frame, like refreshing a shadow map that's only a little out of date or
+// generating a new texture's mipmaps, is queued here and spread over the following frames, so a burst of it (dragging
+// a light setting invalidates every shadow map at once) doesn't spike a single frame.  The AppWrapper loop runs the most
+// urgent jobs after each frame until FrameClock's deferred budget is used.
+// There's one GL context, and GL calls have to come from its thread, so there's one scheduler and it's not thread safe.
+class FrameScheduler {
+    static final FrameScheduler shared = new FrameScheduler();
+
+    private static class Job {
+        final float priority;
+        final Runnable work;
+        int framesWaiting = 0;
+
+        Job(float priority, Runnable work) {
+            this.priority = priority;
+            this.work = work;
+        }
+    }
+
+    private final Map<String, Job> jobs = new LinkedHashMap<>();
+
+    // Higher priority runs first.  A job with the same key as a waiting one replaces it, as it was queued with newer
+    // state, but keeps its place in the queue.
+    void submit(String key, float priority, Runnable work) {
+        Job job = new Job(priority, work);
+        Job previous = jobs.put(key, job);
+        if (previous != null) {
+            job.framesWaiting = previous.framesWaiting;
+        }
+    }
+
+    boolean isPending(String key) {
+        return jobs.containsKey(key);
+    }
+
+    // Frames are still needed to get through the queue, even when rendering on demand
+    boolean hasPending() {
+        return !jobs.isEmpty();
+    }
+
+    // The budget is CPU time spent issuing the work, since GL calls return before the GPU has done them.  That's
+    // still what the frame loop waits on.
+    // At least one job runs every frame, so a budget too small for any job still makes progress.  Priority grows with
+    // each frame a job waits, so jobs of equal priority take turns and low priority ones aren't starved.
+    void runDeferred(float budgetMs) {
+        long deadline = System.nanoTime() + (long) (budgetMs * 1000000);
+        boolean first = true;
+        while (!jobs.isEmpty() && (first || System.nanoTime() < deadline)) {
+            String next = null;
+            float best = -1;
+            for (Map.Entry<String, Job> entry : jobs.entrySet()) {
+                Job job = entry.getValue();
+                float effective = job.priority * (1 + job.framesWaiting);
+                if (effective > best) {
+                    best = effective;
+                    next = entry.getKey();
+                }
+            }
+            jobs.remove(next).work.run();
+            first = false;
+        }
+        jobs.values().forEach(job -> job.framesWaiting++);
+    }
+}
@@ -0,0 +1,191 @@
+package modelviewer;
+
+import enterthematrix.Matrix4x4;
+import enterthematrix.Vector3;
+
+import java.util.Arrays;
+import java.util.Objects;
+
+// Everything about a frame that SceneUpdater works out off the GL thread: the camera, which models are in view, and
+// which point lights reach which models.  Never changed once built, so the GL thread can draw from one while the
+// updater builds the next.  Snapshots share what hasn't changed, the Inputs and the bounds in them, rather than
+// copying it.
+final class FrameSnapshot {
+    // What the snapshot depends on: the scene's bounds and the projection, which the GL thread sets each frame, and the
+    // settings and point lights, which the UI sets as they change.  Each change makes a new Inputs through
+    // SceneUpdater.updateInputs, so whichever thread reads one sees it whole.  Equal Inputs give an equal snapshot for
+    // the same camera.
+    static final class Inputs {
+        // A copy of the scene's bounds that's never updated once it's handed over.  A new one means new geometry.
+        // Null until the first frame.
+        final SceneBounds bounds;
+        final Matrix4x4 projection;
+        final boolean frustumCulling, drawFloor, drawCubes, drawModel;
+        // Per point light, radius 0 if it's off
+        private final Vector3[] lightPositions;
+        private final float[] lightRadii;
+
+        private Inputs(SceneBounds bounds, Matrix4x4 projection, boolean frustumCulling, boolean drawFloor,
+                       boolean drawCubes, boolean drawModel, Vector3[] lightPositions, float[] lightRadii) {
+            this.bounds = bounds;
+            this.projection = projection;
+            this.frustumCulling = frustumCulling;
+            this.drawFloor = drawFloor;
+            this.drawCubes = drawCubes;
+            this.drawModel = drawModel;
+            this.lightPositions = lightPositions;
+            this.lightRadii = lightRadii;
+        }
+
+        // Before there's any geometry, and without lights until withLights
+        Inputs(boolean frustumCulling, boolean drawFloor, boolean drawCubes, boolean drawModel) {
+            this(null, null, frustumCulling, drawFloor, drawCubes, drawModel, new Vector3[0], new float[0]);
+        }
+
+        Inputs withScene(SceneBounds bounds, Matrix4x4 projection) {
+            if (bounds == this.bounds && projection.equals(this.projection)) return this;
+            return new Inputs(bounds, projection, frustumCulling, drawFloor, drawCubes, drawModel, lightPositions, lightRadii);
+        }
+
+        Inputs withFrustumCulling(boolean frustumCulling) {
+            return new Inputs(bounds, projection, frustumCulling, drawFloor, drawCubes, drawModel, lightPositions, lightRadii);
+        }
+
+        Inputs withDrawFloor(boolean drawFloor) {
+            return new Inputs(bounds, projection, frustumCulling, drawFloor, drawCubes, drawModel, lightPositions, lightRadii);
+        }
+
+        Inputs withDrawCubes(boolean drawCubes) {
+            return new Inputs(bounds, projection, frustumCulling, drawFloor, drawCubes, drawModel, lightPositions, lightRadii);
+        }
+
+        Inputs withDrawModel(boolean drawModel) {
+            return new Inputs(bounds, projection, frustumCulling, drawFloor, drawCubes, drawModel, lightPositions, lightRadii);
+        }
+
+        // Takes the lights' positions and reach as they are now, on the thread that last changed them
+        Inputs withLights(PointLight[] lights) {
+            Vector3[] positions = new Vector3[lights.length];
+            float[] radii = new float[lights.length];
+            for (int i = 0; i < lights.length; i++) {
+                positions[i] = lights[i].getPosition();
+                radii[i] = lights[i].isEnabled() ? lights[i].influenceRadius() : 0;
+            }
+            return new Inputs(bounds, projection, frustumCulling, drawFloor, drawCubes, drawModel, positions, radii);
+        }
+
+        // Whether a model is switched on in the UI
+        boolean isDrawn(Model model) {
+            if (model instanceof FancyQuad) return drawFloor;
+            if (model instanceof FancyCube) return drawCubes;
+            return drawModel;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) return true;
+            if (!(o instanceof Inputs)) return false;
+            Inputs that = (Inputs) o;
+            return bounds == that.bounds && Objects.equals(projection, that.projection)
+                    && frustumCulling == that.frustumCulling && drawFloor == that.drawFloor
+                    && drawCubes == that.drawCubes && drawModel == that.drawModel
+                    && Arrays.equals(lightPositions, that.lightPositions) && Arrays.equals(lightRadii, that.lightRadii);
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(System.identityHashCode(bounds), projection, frustumCulling, drawFloor, drawCubes,
+                    drawModel, Arrays.hashCode(lightPositions), Arrays.hashCode(lightRadii));
+        }
+    }
+
+    final Inputs inputs;
+    // The camera at the last two ticks, see CameraRotatingAroundOrigin.getState, and when the last tick was
+    private final float[] previousCamera, camera;
+    private final long tickNanos;
+    // Per model in inputs.bounds
+    private final boolean[] visible;
+    private final int[] lightMasks;
+    // Per point light, whether it reaches a visible, drawn model, so needs its shadow map this frame
+    private final boolean[] shadowMapsInUse;
+
+    private FrameSnapshot(Inputs inputs, float[] previousCamera, float[] camera, long tickNanos, boolean[] visible,
+                          int[] lightMasks, boolean[] shadowMapsInUse) {
+        this.inputs = inputs;
+        this.previousCamera = previousCamera;
+        this.camera = camera;
+        this.tickNanos = tickNanos;
+        this.visible = visible;
+        this.lightMasks = lightMasks;
+        this.shadowMapsInUse = shadowMapsInUse;
+    }
+
+    // Culls the scene for the camera, between its states at the last two ticks
+    static FrameSnapshot build(Inputs inputs, float[] previousCamera, float[] camera, long tickNanos) {
+        SceneBounds bounds = inputs.bounds;
+        boolean[] visible;
+        if (!inputs.frustumCulling) {
+            visible = bounds.all();
+        }
+        else {
+            visible = bounds.cull(new Frustum(inputs.projection.$times(CameraRotatingAroundOrigin.view(camera).getMatrix())));
+            // It's drawn from anywhere between the two, so anything either can see counts
+            if (!Arrays.equals(previousCamera, camera)) {
+                boolean[] previouslyVisible = bounds.cull(new Frustum(
+                        inputs.projection.$times(CameraRotatingAroundOrigin.view(previousCamera).getMatrix())));
+                for (int i = 0; i < visible.length; i++) visible[i] |= previouslyVisible[i];
+            }
+        }
+
+        // See ModelViewerScene.applyLightCulling
+        int[] lightMasks = new int[bounds.size()];
+        boolean[] shadowMapsInUse = new boolean[inputs.lightRadii.length];
+        for (int light = 0; light < inputs.lightRadii.length; light++) {
+            if (inputs.lightRadii[light] <= 0) continue;
+            int bit = 1 << light, index = light;
+            bounds.forEachWithin(inputs.lightPositions[light], inputs.lightRadii[light], i -> {
+                lightMasks[i] |= bit;
+                shadowMapsInUse[index] |= visible[i] && inputs.isDrawn(bounds.get(i));
+            });
+        }
+        return new FrameSnapshot(inputs, previousCamera, camera, tickNanos, visible, lightMasks, shadowMapsInUse);
+    }
+
+    // The same camera, for different inputs
+    FrameSnapshot withInputs(Inputs inputs) {
+        return build(inputs, previousCamera, camera, tickNanos);
+    }
+
+    // The camera to draw from at nanos, interpolated between the last two ticks.  A tick behind, so it never has to
+    // guess where the camera will be.
+    CameraView cameraAt(long nanos) {
+        float alpha = Math.max(0, Math.min(1, (float) (nanos - tickNanos) / (FrameClock.TICK_SECONDS * 1e9f)));
+        float[] state = new float[camera.length];
+        for (int i = 0; i < state.length; i++) {
+            state[i] = previousCamera[i] + (camera[i] - previousCamera[i]) * alpha;
+        }
+        return CameraRotatingAroundOrigin.view(state);
+    }
+
+    boolean sameCamera(float[] previousCamera, float[] camera) {
+        return Arrays.equals(this.previousCamera, previousCamera) && Arrays.equals(this.camera, camera);
+    }
+
+    // Whether frames drawn at later times would show the camera somewhere else
+    boolean isCameraMoving() {
+        return !Arrays.equals(previousCamera, camera);
+    }
+
+    // A copy, as callers narrow it down further
+    boolean[] getVisible() {
+        return visible.clone();
+    }
+
+    int getLightMask(int model) {
+        return lightMasks[model];
+    }
+
+    boolean isShadowMapInUse(int light) {
+        return shadowMapsInUse[light];
+    }
+}
@@ -0,0 +1,29 @@
+package modelviewer;
+
+import enterthematrix.Matrix4x4;
+
+// The 6 planes bounding what a projection * view matrix can see, pulled straight out of the matrix (Gribb & Hartmann),
+// so it works the same for the camera's perspective and the lights' ortho projections.  Each plane is a, b, c, d with
+// (a, b, c) normalised and pointing inwards, so a point is inside if a*x + b*y + c*z + d >= 0 for every plane.
+class Frustum {
+    static final int PLANES = 6;
+    final float[] planes = new float[PLANES * 4];
+
+    Frustum(Matrix4x4 projectionView) {
+        // Clip space is -w <= x, y, z <= w, so each plane is row 3 plus or minus one of the other rows
+        int p = 0;
+        for (int row = 0; row < 3; row++) {
+            for (int sign = 1; sign >= -1; sign -= 2) {
+                float a = projectionView.get(3, 0) + sign * projectionView.get(row, 0);
+                float b = projectionView.get(3, 1) + sign * projectionView.get(row, 1);
+                float c = projectionView.get(3, 2) + sign * projectionView.get(row, 2);
+                float d = projectionView.get(3, 3) + sign * projectionView.get(row, 3);
+                float length = (float) Math.sqrt(a * a + b * b + c * c);
+                planes[p++] = a / length;
+                planes[p++] = b / length;
+                planes[p++] = c / length;
+                planes[p++] = d / length;
+            }
+        }
+    }
+}
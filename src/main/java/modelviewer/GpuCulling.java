@@ -0,0 +1,144 @@
+package modelviewer;
+
+import enterthematrix.Matrix4x4;
+
+import java.nio.ByteBuffer;
+
+import static org.lwjgl.opengl.GL11.*;
+import static org.lwjgl.opengl.GL12.GL_CLAMP_TO_EDGE;
+import static org.lwjgl.opengl.GL13.GL_TEXTURE0;
+import static org.lwjgl.opengl.GL13.glActiveTexture;
+import static org.lwjgl.opengl.GL15.GL_WRITE_ONLY;
+import static org.lwjgl.opengl.GL30.*;
+import static org.lwjgl.opengl.GL42.*;
+import static org.lwjgl.opengl.GL43.glDispatchCompute;
+
+// Frustum culling, and optionally occlusion culling, of MultiDrawModel's draws in a compute shader, so with tens of
+// thousands of meshes the CPU does no work per mesh.  gpu_cull.comp tests each draw's world bounds and appends the
+// visible ones to a compacted copy of the indirect commands, which MultiDrawModel then draws.
+// The occlusion test is against a Hi-Z pyramid: the previous frame's depth buffer, halved level by level keeping the
+// furthest depth, so any box can be tested with 4 samples.  It's tested with the previous frame's matrices, so it's
+// a frame late: something that comes into view from behind an occluder appears a frame after it should.
+// Needs GL 4.3, which Mesa's llvmpipe provides, so this also runs headless.
+class GpuCulling {
+    // Must match the bindings in gpu_cull.comp
+    static final int CULL_INPUT_BINDING = 1, COMMAND_BINDING = 2, COUNT_BINDING = 3;
+    // Must match local_size_x in gpu_cull.comp and the local sizes in hiz_downsample.comp
+    private static final int CULL_GROUP_SIZE = 64, DOWNSAMPLE_GROUP_SIZE = 8;
+
+    private final ComputeShader frustumShader = new ComputeShader("/shaders/gpu_cull.comp");
+    private final ComputeShader hiZShader = new ComputeShader("/shaders/gpu_cull.comp", "HI_Z");
+    private final ComputeShader downsampleShader = new ComputeShader("/shaders/hiz_downsample.comp");
+
+    // The depth buffer is blitted here, as the default framebuffer's can't be read by a shader
+    private int depthCopyFbo = 0, depthCopyTexture = 0;
+    private int hiZTexture = 0, width = 0, height = 0, levels = 0;
+    // What the pyramid was drawn with, null when there isn't one to test against
+    private Matrix4x4 hiZProjectionView = null;
+    private boolean hiZFailed = false;
+
+    // The caller has bound the buffers at the bindings above.  hiZ tests against the pyramid as well, if there is one.
+    void cull(int drawCount, Matrix4x4 projectionView, boolean hiZ) {
+        boolean occlusion = hiZ && hiZProjectionView != null;
+        ComputeShader shader = occlusion ? hiZShader : frustumShader;
+        shader.use();
+        shader.setInt("drawCount", drawCount);
+        shader.setVec4Array("frustumPlanes", new Frustum(projectionView).planes);
+        if (occlusion) {
+            glActiveTexture(GL_TEXTURE0 + ShaderStore.HI_Z_UNIT);
+            glBindTexture(GL_TEXTURE_2D, hiZTexture);
+            shader.setInt("hiZ", ShaderStore.HI_Z_UNIT);
+            shader.setMatrix("hiZProjectionView", hiZProjectionView);
+        }
+        glDispatchCompute((drawCount + CULL_GROUP_SIZE - 1) / CULL_GROUP_SIZE, 1, 1);
+        shader.stop();
+        // The commands are read by the draw, the counts as draw parameters
+        glMemoryBarrier(GL_COMMAND_BARRIER_BIT);
+    }
+
+    // After the main pass has drawn into the default framebuffer at this size, with projectionView.  Builds the
+    // pyramid for the next frame's cull.
+    void buildHiZ(int width, int height, Matrix4x4 projectionView) {
+        if (hiZFailed) return;
+        if (width != this.width || height != this.height) {
+            // Blitting depth needs matching formats
+            glBindFramebuffer(GL_FRAMEBUFFER, 0);
+            if (glGetFramebufferAttachmentParameteri(GL_FRAMEBUFFER, GL_DEPTH, GL_FRAMEBUFFER_ATTACHMENT_DEPTH_SIZE) != 24
+                    || glGetFramebufferAttachmentParameteri(GL_FRAMEBUFFER, GL_STENCIL, GL_FRAMEBUFFER_ATTACHMENT_STENCIL_SIZE) != 8) {
+                System.err.println("Window depth buffer isn't 24 bit depth, 8 bit stencil, so no Hi-Z culling");
+                hiZFailed = true;
+                return;
+            }
+            allocate(width, height);
+        }
+
+        glBindFramebuffer(GL_READ_FRAMEBUFFER, 0);
+        glBindFramebuffer(GL_DRAW_FRAMEBUFFER, depthCopyFbo);
+        glBlitFramebuffer(0, 0, width, height, 0, 0, width, height, GL_DEPTH_BUFFER_BIT, GL_NEAREST);
+        glBindFramebuffer(GL_FRAMEBUFFER, 0);
+
+        downsampleShader.use();
+        downsampleShader.setInt("source", ShaderStore.HI_Z_UNIT);
+        glActiveTexture(GL_TEXTURE0 + ShaderStore.HI_Z_UNIT);
+        for (int level = 0; level < levels; level++) {
+            glBindTexture(GL_TEXTURE_2D, level == 0 ? depthCopyTexture : hiZTexture);
+            downsampleShader.setInt("sourceLevel", level - 1);
+            glBindImageTexture(0, hiZTexture, level, false, 0, GL_WRITE_ONLY, GL_R32F);
+            int levelWidth = Math.max(1, width >> level), levelHeight = Math.max(1, height >> level);
+            glDispatchCompute((levelWidth + DOWNSAMPLE_GROUP_SIZE - 1) / DOWNSAMPLE_GROUP_SIZE,
+                    (levelHeight + DOWNSAMPLE_GROUP_SIZE - 1) / DOWNSAMPLE_GROUP_SIZE, 1);
+            // The next level reads this one
+            glMemoryBarrier(GL_TEXTURE_FETCH_BARRIER_BIT);
+        }
+        downsampleShader.stop();
+        glBindTexture(GL_TEXTURE_2D, 0);
+        hiZProjectionView = projectionView;
+    }
+
+    // Stops occlusion testing against a pyramid that's out of date, e.g. when Hi-Z is switched off and back on
+    void clearHiZ() {
+        hiZProjectionView = null;
+    }
+
+    private void allocate(int width, int height) {
+        delete();
+        this.width = width;
+        this.height = height;
+        levels = 32 - Integer.numberOfLeadingZeros(Math.max(width, height));
+
+        // Same format as a default 24 bit depth, 8 bit stencil window, which blitting requires
+        depthCopyTexture = glGenTextures();
+        glBindTexture(GL_TEXTURE_2D, depthCopyTexture);
+        glTexImage2D(GL_TEXTURE_2D, 0, GL_DEPTH24_STENCIL8, width, height, 0, GL_DEPTH_STENCIL, GL_UNSIGNED_INT_24_8, (ByteBuffer) null);
+        glTexParameteri(GL_TEXTURE_2D, GL_TEXTURE_MIN_FILTER, GL_NEAREST);
+        glTexParameteri(GL_TEXTURE_2D, GL_TEXTURE_MAG_FILTER, GL_NEAREST);
+        depthCopyFbo = glGenFramebuffers();
+        glBindFramebuffer(GL_FRAMEBUFFER, depthCopyFbo);
+        glFramebufferTexture2D(GL_FRAMEBUFFER, GL_DEPTH_STENCIL_ATTACHMENT, GL_TEXTURE_2D, depthCopyTexture, 0);
+        glDrawBuffer(GL_NONE);
+        glReadBuffer(GL_NONE);
+        if (glCheckFramebufferStatus(GL_FRAMEBUFFER) != GL_FRAMEBUFFER_COMPLETE) {
+            System.err.println("Failed to create Hi-Z depth copy framebuffer");
+        }
+        glBindFramebuffer(GL_FRAMEBUFFER, 0);
+
+        hiZTexture = glGenTextures();
+        glBindTexture(GL_TEXTURE_2D, hiZTexture);
+        glTexStorage2D(GL_TEXTURE_2D, levels, GL_R32F, width, height);
+        glTexParameteri(GL_TEXTURE_2D, GL_TEXTURE_MIN_FILTER, GL_NEAREST_MIPMAP_NEAREST);
+        glTexParameteri(GL_TEXTURE_2D, GL_TEXTURE_MAG_FILTER, GL_NEAREST);
+        glTexParameteri(GL_TEXTURE_2D, GL_TEXTURE_WRAP_S, GL_CLAMP_TO_EDGE);
+        glTexParameteri(GL_TEXTURE_2D, GL_TEXTURE_WRAP_T, GL_CLAMP_TO_EDGE);
+        glBindTexture(GL_TEXTURE_2D, 0);
+        hiZProjectionView = null;
+    }
+
+    private void delete() {
+        if (hiZTexture != 0) {
+            glDeleteFramebuffers(depthCopyFbo);
+            glDeleteTextures(depthCopyTexture);
+            glDeleteTextures(hiZTexture);
+            hiZTexture = 0;
+        }
+    }
+}
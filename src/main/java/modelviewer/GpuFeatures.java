@@ -0,0 +1,47 @@
+package modelviewer;
+
+import org.lwjgl.opengl.GL;
+import org.lwjgl.opengl.GL11;
+import org.lwjgl.opengl.GL41;
+import org.lwjgl.opengl.GLCapabilities;
+
+// The viewer has to keep running on plain GL 3.3 contexts, so anything newer is optional.  Checks for those optional
+// features live here, so there's one place to see what each path needs.
+class GpuFeatures {
+    // glMultiDrawElementsIndirect, SSBOs and compute shaders are core in 4.3, and the shaders index their per-draw data
+    // with gl_BaseInstanceARB
+    static boolean multiDrawIndirect() {
+        GLCapabilities caps = GL.getCapabilities();
+        return caps.OpenGL43 && caps.GL_ARB_shader_draw_parameters;
+    }
+
+    // glMultiDrawElementsIndirectCount, so GpuCulling's compacted commands can be drawn without reading back the count
+    static boolean indirectCount() {
+        GLCapabilities caps = GL.getCapabilities();
+        return caps.OpenGL46 || caps.GL_ARB_indirect_parameters;
+    }
+
+    // SSBOs read from fragment shaders, for ClusteredLights.  Core in 4.3, which guarantees 8 per fragment shader.
+    static boolean fragmentShaderStorage() {
+        return GL.getCapabilities().OpenGL43;
+    }
+
+    // GL_ANY_SAMPLES_PASSED_CONSERVATIVE, core in 4.3
+    static boolean conservativeOcclusionQueries() {
+        GLCapabilities caps = GL.getCapabilities();
+        return caps.OpenGL43 || caps.GL_ARB_ES3_compatibility;
+    }
+
+    // GL_TEXTURE_CUBE_MAP_ARRAY and samplerCubeArrayShadow, for LayeredShadowMaps' point light cubes.  Core in 4.0,
+    // and the shaders that sample them are compiled as GLSL 4.00 rather than relying on the extension.
+    static boolean cubeMapArrays() {
+        return GL.getCapabilities().OpenGL40;
+    }
+
+    // glGetProgramBinary/glProgramBinary, core in 4.1.  Some drivers support the calls but no formats.
+    static boolean programBinary() {
+        GLCapabilities caps = GL.getCapabilities();
+        return (caps.OpenGL41 || caps.GL_ARB_get_program_binary)
+                && GL11.glGetInteger(GL41.GL_NUM_PROGRAM_BINARY_FORMATS) > 0;
+    }
+}
@@ -0,0 +1,57 @@
+package modelviewer;
+
+import static org.lwjgl.opengl.GL11.GL_TRUE;
+import static org.lwjgl.opengl.GL15.*;
+import static org.lwjgl.opengl.GL33.GL_TIME_ELAPSED;
+import static org.lwjgl.opengl.GL33.glGetQueryObjectui64;
+
+// How long the GPU spends on a stretch of commands, from GL_TIME_ELAPSED queries.  CPU timings only show how long the
+// commands took to submit.  Results arrive a few frames late, so each timer cycles through several queries and only
+// reads ones that are ready, and never stalls.  Only one can be running at a time.
+class GpuTimer {
+    private static final int QUERIES = 4;
+    // Weight of each new result in the average
+    private static final double SMOOTHING = 0.05;
+
+    private final int[] queries = new int[QUERIES];
+    private final boolean[] pending = new boolean[QUERIES];
+    private int next = 0;
+    private boolean running = false;
+    private double averageMs = 0;
+    private boolean hasResult = false;
+
+    GpuTimer() {
+        glGenQueries(queries);
+    }
+
+    // If every query is still waiting for its result, this stretch just isn't timed
+    void begin() {
+        collect();
+        running = !pending[next];
+        if (running) glBeginQuery(GL_TIME_ELAPSED, queries[next]);
+    }
+
+    void end() {
+        if (!running) return;
+        glEndQuery(GL_TIME_ELAPSED);
+        pending[next] = true;
+        next = (next + 1) % QUERIES;
+        running = false;
+    }
+
+    private void collect() {
+        for (int i = 0; i < QUERIES; i++) {
+            if (pending[i] && glGetQueryObjecti(queries[i], GL_QUERY_RESULT_AVAILABLE) == GL_TRUE) {
+                pending[i] = false;
+                double ms = glGetQueryObjectui64(queries[i], GL_QUERY_RESULT) / 1000000.0;
+                averageMs = hasResult ? averageMs + (ms - averageMs) * SMOOTHING : ms;
+                hasResult = true;
+            }
+        }
+    }
+
+    // Smoothed over roughly the last 20 results, 0 before there are any
+    double getAverageMs() {
+        return averageMs;
+    }
+}
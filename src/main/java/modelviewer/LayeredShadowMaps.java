@@ -0,0 +1,258 @@
+package modelviewer;
+
+import enterthematrix.Matrix4x4;
+import enterthematrix.Vector3;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+import static org.lwjgl.opengl.GL11.*;
+import static org.lwjgl.opengl.GL12.glTexImage3D;
+import static org.lwjgl.opengl.GL13.GL_CLAMP_TO_BORDER;
+import static org.lwjgl.opengl.GL13.GL_TEXTURE0;
+import static org.lwjgl.opengl.GL13.glActiveTexture;
+import static org.lwjgl.opengl.GL14.GL_DEPTH_COMPONENT16;
+import static org.lwjgl.opengl.GL14.GL_DEPTH_COMPONENT24;
+import static org.lwjgl.opengl.GL30.*;
+import static org.lwjgl.opengl.GL32.GL_TEXTURE_CUBE_MAP_SEAMLESS;
+import static org.lwjgl.opengl.GL32.glFramebufferTexture;
+import static org.lwjgl.opengl.GL40.GL_TEXTURE_CUBE_MAP_ARRAY;
+
+// Alternative to a ShadowMap per light: every light's shadow map is a layer of one depth texture array, attached to a
+// single layered framebuffer.  shadow_mapping_layered.geom sends each triangle to every enabled light's layer, so the
+// scene is submitted once for all the shadow maps rather than once per light.
+// Layer 0 is the directional light, layer 1 + i is point light i.
+// With cube shadows, which need GpuFeatures.cubeMapArrays, the point lights instead get a whole cube each, in a
+// GL_TEXTURE_CUBE_MAP_ARRAY filled by a second layered pass: shadow_mapping_layered.geom with CUBE sends each triangle
+// to the faces of every light's cube it touches, layer cube * 6 + face.  They hold the distance from the light over its
+// PointLight.shadowFarPlane, so shadows reach all the way round the light rather than only towards the origin.  The
+// 2D array then only holds the directional light, as a layered attachment can't mix the two kinds of texture.
+class LayeredShadowMaps {
+    static final int LAYERS = 1 + ModelLighting.MAX_POINT_LIGHTS;
+    static final int CUBES = ModelLighting.MAX_POINT_LIGHTS;
+    // Far enough in that nothing by the light is clipped.  Depth precision doesn't suffer, as the depth is written by
+    // shadow_mapping_cube.frag rather than taken from the projection.
+    private static final float CUBE_NEAR_FRACTION = 0.0001f;
+    // GL's face order, and the up each face needs to match what a cube map lookup expects
+    private static final Vector3[] FACE_DIRECTIONS = {
+            new Vector3(1, 0, 0), new Vector3(-1, 0, 0), new Vector3(0, 1, 0),
+            new Vector3(0, -1, 0), new Vector3(0, 0, 1), new Vector3(0, 0, -1) };
+    private static final Vector3[] FACE_UPS = {
+            new Vector3(0, -1, 0), new Vector3(0, -1, 0), new Vector3(0, 0, 1),
+            new Vector3(0, 0, -1), new Vector3(0, -1, 0), new Vector3(0, -1, 0) };
+
+    // Allocated on first use, like the ShadowAtlas
+    private int depthMapFBO = 0;
+    private int textureId = 0;
+    private int cubeFBO = 0;
+    private int cubeTextureId = 0;
+    private int size = 0;
+    private int arrayLayers = LAYERS;
+    private boolean depth16 = false;
+    private boolean cubeShadows = false;
+    private int budgetMegabytes = -1;
+
+    // What the layers currently hold, null for layers that weren't drawn
+    private Matrix4x4[] renderedLightSpaceMatrices = null;
+    private int renderedGeometryVersion = -1;
+    // And the cubes, null for cubes that weren't drawn
+    private Vector3[] renderedCubePositions = null;
+    private float[] renderedCubeFarPlanes = null;
+    private int renderedCubesGeometryVersion = -1;
+
+    // Same budget as the ShadowAtlas, split evenly between the layers (or cube faces) since they must all be the same
+    // size
+    void configure(int budgetMegabytes, boolean depth16, boolean cubeShadows) {
+        if (budgetMegabytes == this.budgetMegabytes && depth16 == this.depth16 && cubeShadows == this.cubeShadows) return;
+        this.budgetMegabytes = budgetMegabytes;
+        int newArrayLayers = cubeShadows ? 1 : LAYERS;
+        int faces = newArrayLayers + (cubeShadows ? CUBES * 6 : 0);
+        int bytesPerTexel = depth16 ? 2 : 4;
+        long budgetTexels = Math.max(budgetMegabytes, 1) * 1024L * 1024L / bytesPerTexel / faces;
+        int newSize = Integer.highestOneBit((int) Math.sqrt(budgetTexels));
+        newSize = Math.max(ShadowAtlas.MIN_TILE_SIZE, Math.min(newSize, glGetInteger(GL_MAX_TEXTURE_SIZE)));
+
+        if (newSize != size || depth16 != this.depth16 || newArrayLayers != arrayLayers) {
+            if (depthMapFBO != 0) {
+                glDeleteFramebuffers(depthMapFBO);
+                glDeleteTextures(textureId);
+                depthMapFBO = 0;
+                textureId = 0;
+            }
+        }
+        if (newSize != size || depth16 != this.depth16 || !cubeShadows) {
+            if (cubeFBO != 0) {
+                glDeleteFramebuffers(cubeFBO);
+                glDeleteTextures(cubeTextureId);
+                cubeFBO = 0;
+                cubeTextureId = 0;
+            }
+        }
+        size = newSize;
+        arrayLayers = newArrayLayers;
+        this.depth16 = depth16;
+        this.cubeShadows = cubeShadows;
+    }
+
+    // 0 until it's first drawn into
+    int getTextureId() {
+        return textureId;
+    }
+
+    private void allocate() {
+        textureId = glGenTextures();
+        glBindTexture(GL_TEXTURE_2D_ARRAY, textureId);
+        glTexImage3D(GL_TEXTURE_2D_ARRAY, 0, depth16 ? GL_DEPTH_COMPONENT16 : GL_DEPTH_COMPONENT24, size, size, arrayLayers, 0, GL_DEPTH_COMPONENT, GL_FLOAT, (ByteBuffer) null);
+        glTexParameteri(GL_TEXTURE_2D_ARRAY, GL_TEXTURE_MIN_FILTER, GL_NEAREST);
+        glTexParameteri(GL_TEXTURE_2D_ARRAY, GL_TEXTURE_MAG_FILTER, GL_NEAREST);
+
+        // Prevent over-sampling
+        glTexParameteri(GL_TEXTURE_2D_ARRAY, GL_TEXTURE_WRAP_S, GL_CLAMP_TO_BORDER);
+        glTexParameteri(GL_TEXTURE_2D_ARRAY, GL_TEXTURE_WRAP_T, GL_CLAMP_TO_BORDER);
+        float borderColor[] = { 1.0f, 1.0f, 1.0f, 1.0f };
+        glTexParameterfv(GL_TEXTURE_2D_ARRAY, GL_TEXTURE_BORDER_COLOR, borderColor);
+
+        depthMapFBO = glGenFramebuffers();
+        glBindFramebuffer(GL_FRAMEBUFFER, depthMapFBO);
+        // Attaching the whole texture rather than one layer is what lets the geometry shader pick the layer
+        glFramebufferTexture(GL_FRAMEBUFFER, GL_DEPTH_ATTACHMENT, textureId, 0);
+        // Not rendering colour data
+        glDrawBuffer(GL_NONE);
+        glReadBuffer(GL_NONE);
+
+        if(glCheckFramebufferStatus(GL_FRAMEBUFFER) != GL_FRAMEBUFFER_COMPLETE) {
+            System.err.println("Failed to create layered shadow framebuffer");
+        }
+    }
+
+    private void allocateCubes() {
+        cubeTextureId = glGenTextures();
+        glBindTexture(GL_TEXTURE_CUBE_MAP_ARRAY, cubeTextureId);
+        // The depth is 6 layer-faces per cube
+        glTexImage3D(GL_TEXTURE_CUBE_MAP_ARRAY, 0, depth16 ? GL_DEPTH_COMPONENT16 : GL_DEPTH_COMPONENT24, size, size, CUBES * 6, 0, GL_DEPTH_COMPONENT, GL_FLOAT, (ByteBuffer) null);
+        glTexParameteri(GL_TEXTURE_CUBE_MAP_ARRAY, GL_TEXTURE_MIN_FILTER, GL_NEAREST);
+        glTexParameteri(GL_TEXTURE_CUBE_MAP_ARRAY, GL_TEXTURE_MAG_FILTER, GL_NEAREST);
+        // So the filtered comparisons blend across the faces' edges rather than clamping to them
+        glEnable(GL_TEXTURE_CUBE_MAP_SEAMLESS);
+
+        cubeFBO = glGenFramebuffers();
+        glBindFramebuffer(GL_FRAMEBUFFER, cubeFBO);
+        glFramebufferTexture(GL_FRAMEBUFFER, GL_DEPTH_ATTACHMENT, cubeTextureId, 0);
+        glDrawBuffer(GL_NONE);
+        glReadBuffer(GL_NONE);
+
+        if(glCheckFramebufferStatus(GL_FRAMEBUFFER) != GL_FRAMEBUFFER_COMPLETE) {
+            System.err.println("Failed to create cube shadow framebuffer");
+        }
+    }
+
+    // lightSpaceMatrices has an entry per layer, null if that light is disabled
+    public boolean isUpToDate(Matrix4x4[] lightSpaceMatrices, int geometryVersion) {
+        return depthMapFBO != 0 && Arrays.equals(lightSpaceMatrices, renderedLightSpaceMatrices)
+                && geometryVersion == renderedGeometryVersion;
+    }
+
+    public void markRendered(Matrix4x4[] lightSpaceMatrices, int geometryVersion) {
+        renderedLightSpaceMatrices = lightSpaceMatrices.clone();
+        renderedGeometryVersion = geometryVersion;
+    }
+
+    // Binds the framebuffer and sets up the shadow shader (and its multi-draw variant, if any) to draw every layer
+    // that has a matrix
+    public void setup(Matrix4x4[] lightSpaceMatrices, Shader... layeredShaders) {
+        if (depthMapFBO == 0) allocate();
+
+        int layerMask = 0;
+        for (int i = 0; i < arrayLayers; i++) {
+            if (lightSpaceMatrices[i] != null) layerMask |= 1 << i;
+        }
+
+        for (Shader shader : layeredShaders) {
+            try (ShaderUse su = new ShaderUse(shader)) {
+                for (int i = 0; i < LAYERS; i++) {
+                    if (lightSpaceMatrices[i] != null) {
+                        su.shader.setMatrix("lightSpaceMatrices[" + i + "]", lightSpaceMatrices[i]);
+                    }
+                }
+                su.shader.setInt("layerMask", layerMask);
+            }
+        }
+
+        glViewport(0, 0, size, size);
+        glBindFramebuffer(GL_FRAMEBUFFER, depthMapFBO);
+        glEnable(GL_DEPTH_TEST);
+        // Clears every layer
+        glClear(GL_DEPTH_BUFFER_BIT);
+    }
+
+    // positions has an entry per cube, null if that light has no shadow this frame
+    public boolean areCubesUpToDate(Vector3[] positions, float[] farPlanes, int geometryVersion) {
+        return cubeFBO != 0 && Arrays.equals(positions, renderedCubePositions)
+                && Arrays.equals(farPlanes, renderedCubeFarPlanes) && geometryVersion == renderedCubesGeometryVersion;
+    }
+
+    public void markCubesRendered(Vector3[] positions, float[] farPlanes, int geometryVersion) {
+        renderedCubePositions = positions.clone();
+        renderedCubeFarPlanes = farPlanes.clone();
+        renderedCubesGeometryVersion = geometryVersion;
+    }
+
+    // As setup, for the cubes.  The shaders are shadow_mapping_layered.geom's CUBE variants.
+    public void setupCubes(Vector3[] positions, float[] farPlanes, Shader... cubeShaders) {
+        if (cubeFBO == 0) allocateCubes();
+
+        int cubeMask = 0;
+        for (int i = 0; i < CUBES; i++) {
+            if (positions[i] != null) cubeMask |= 1 << i;
+        }
+
+        for (Shader shader : cubeShaders) {
+            try (ShaderUse su = new ShaderUse(shader)) {
+                for (int i = 0; i < CUBES; i++) {
+                    if (positions[i] == null) continue;
+                    Matrix4x4[] faces = cubeFaceMatrices(positions[i], farPlanes[i]);
+                    for (int face = 0; face < 6; face++) {
+                        su.shader.setMatrix("cubeFaceMatrices[" + (i * 6 + face) + "]", faces[face]);
+                    }
+                    su.shader.setVec3("cubeLightPositions[" + i + "]", positions[i]);
+                    su.shader.setFloat("cubeFarPlanes[" + i + "]", farPlanes[i]);
+                }
+                su.shader.setInt("cubeMask", cubeMask);
+            }
+        }
+
+        glViewport(0, 0, size, size);
+        glBindFramebuffer(GL_FRAMEBUFFER, cubeFBO);
+        glEnable(GL_DEPTH_TEST);
+        glClear(GL_DEPTH_BUFFER_BIT);
+    }
+
+    // The view-projections of a cube's faces, in GL's face order.  Each is 90 degrees square and looks out along its
+    // axis, turned so what it draws lands where a cube map lookup in that direction reads.
+    static Matrix4x4[] cubeFaceMatrices(Vector3 position, float farPlane) {
+        float near = farPlane * CUBE_NEAR_FRACTION;
+        Matrix4x4 projection = new Matrix4x4(
+                1, 0, 0, 0,
+                0, 1, 0, 0,
+                0, 0, -(farPlane + near) / (farPlane - near), -2 * farPlane * near / (farPlane - near),
+                0, 0, -1, 0);
+        Matrix4x4[] out = new Matrix4x4[6];
+        for (int face = 0; face < 6; face++) {
+            out[face] = projection.$times(Matrix4x4.lookAt(position, position.$plus(FACE_DIRECTIONS[face]),
+                    FACE_UPS[face]));
+        }
+        return out;
+    }
+
+    void bind(int textureUnit) {
+        glActiveTexture(GL_TEXTURE0 + textureUnit);
+        glBindTexture(GL_TEXTURE_2D_ARRAY, textureId);
+        ShadowAtlas.bindComparisonSampler(textureUnit);
+    }
+
+    void bindCubes(int textureUnit) {
+        glActiveTexture(GL_TEXTURE0 + textureUnit);
+        glBindTexture(GL_TEXTURE_CUBE_MAP_ARRAY, cubeTextureId);
+        ShadowAtlas.bindComparisonSampler(textureUnit);
+    }
+}
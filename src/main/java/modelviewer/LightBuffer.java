@@ -0,0 +1,55 @@
+package modelviewer;
+
+import enterthematrix.Vector3;
+import org.lwjgl.BufferUtils;
+
+import java.nio.ByteBuffer;
+
+import static org.lwjgl.opengl.GL15.*;
+import static org.lwjgl.opengl.GL30.glBindBufferBase;
+import static org.lwjgl.opengl.GL31.GL_UNIFORM_BUFFER;
+
+// All the light data, written once a frame into a uniform buffer that every program in the ShaderStore is bound to.
+// Replaces each pass sending every light field through its own uniform call.
+class LightBuffer {
+    static final String BLOCK_NAME = "LightBlock";
+    static final int BINDING = 1;
+    // std140 sizes of the DirLight and PointLight structs in model_fragment.glsl
+    static final int DIR_LIGHT_BYTES = 80;
+    static final int POINT_LIGHT_BYTES = 96;
+
+    private final int bufferId = glGenBuffers();
+    private final ByteBuffer data = BufferUtils.createByteBuffer(DIR_LIGHT_BYTES + ModelLighting.MAX_POINT_LIGHTS * POINT_LIGHT_BYTES
+            + ShadowCascades.UNIFORM_BYTES);
+
+    LightBuffer() {
+        glBindBuffer(GL_UNIFORM_BUFFER, bufferId);
+        glBufferData(GL_UNIFORM_BUFFER, data.capacity(), GL_DYNAMIC_DRAW);
+        glBindBuffer(GL_UNIFORM_BUFFER, 0);
+    }
+
+    void update(DirectionalLight directional, PointLight[] points, ShadowCascades cascades) {
+        data.clear();
+        directional.writeUniformData(data);
+        for (int i = 0; i < points.length; i++) {
+            data.position(DIR_LIGHT_BYTES + i * POINT_LIGHT_BYTES);
+            points[i].writeUniformData(data);
+        }
+        data.position(DIR_LIGHT_BYTES + points.length * POINT_LIGHT_BYTES);
+        cascades.writeUniformData(data);
+        data.clear();
+
+        glBindBuffer(GL_UNIFORM_BUFFER, bufferId);
+        glBufferSubData(GL_UNIFORM_BUFFER, 0, data);
+        glBindBuffer(GL_UNIFORM_BUFFER, 0);
+        glBindBufferBase(GL_UNIFORM_BUFFER, BINDING, bufferId);
+    }
+
+    static ByteBuffer putVec3(ByteBuffer buffer, Vector3 v) {
+        return buffer.putFloat(v.x()).putFloat(v.y()).putFloat(v.z());
+    }
+
+    static ByteBuffer putBoolean(ByteBuffer buffer, boolean v) {
+        return buffer.putInt(v ? 1 : 0);
+    }
+}
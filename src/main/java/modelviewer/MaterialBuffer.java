@@ -0,0 +1,69 @@
+package modelviewer;
+
+import org.lwjgl.BufferUtils;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.lwjgl.opengl.GL15.*;
+import static org.lwjgl.opengl.GL30.glBindBufferBase;
+import static org.lwjgl.opengl.GL31.GL_UNIFORM_BUFFER;
+
+// Every material in the scene, written once into a uniform buffer when a model is loaded.  Draws then just set
+// materialIndex, rather than sending the colours and shininess with each draw.
+class MaterialBuffer {
+    static final String BLOCK_NAME = "MaterialBlock";
+    static final int BINDING = 0;
+    // Must match MAX_MATERIALS in model_fragment.glsl.  256 * 48 bytes fits in the 16KB minimum GL_MAX_UNIFORM_BLOCK_SIZE.
+    static final int MAX_MATERIALS = 256;
+    // std140 layout of MaterialData: 3 vec3s each padded out to 16 bytes, with shininess in the last slot
+    private static final int MATERIAL_BYTES = 48;
+
+    private final int bufferId = glGenBuffers();
+    private final List<Material> materials = new ArrayList<>();
+
+    MaterialBuffer() {
+        glBindBuffer(GL_UNIFORM_BUFFER, bufferId);
+        glBufferData(GL_UNIFORM_BUFFER, MAX_MATERIALS * MATERIAL_BYTES, GL_STATIC_DRAW);
+        glBindBuffer(GL_UNIFORM_BUFFER, 0);
+    }
+
+    // Gives the material its index.  Nothing is sent to the GPU until upload().
+    void add(Material material) {
+        if (material.getBufferIndex() >= 0) return;
+
+        if (materials.size() >= MAX_MATERIALS) {
+            System.err.println("Too many materials, " + material.getName() + " will use the first material's colours");
+            material.setBufferIndex(0);
+        }
+        else {
+            material.setBufferIndex(materials.size());
+            materials.add(material);
+        }
+    }
+
+    void clear() {
+        materials.forEach(material -> material.setBufferIndex(-1));
+        materials.clear();
+    }
+
+    void upload() {
+        ByteBuffer data = BufferUtils.createByteBuffer(Math.max(1, materials.size()) * MATERIAL_BYTES);
+        materials.forEach(material -> {
+            LightBuffer.putVec3(data, material.getAmbient()).putFloat(0);
+            LightBuffer.putVec3(data, material.getDiffuse()).putFloat(0);
+            LightBuffer.putVec3(data, material.getSpecular()).putFloat(material.getShininess());
+        });
+        data.clear();
+
+        glBindBuffer(GL_UNIFORM_BUFFER, bufferId);
+        glBufferSubData(GL_UNIFORM_BUFFER, 0, data);
+        glBindBuffer(GL_UNIFORM_BUFFER, 0);
+        bind();
+    }
+
+    void bind() {
+        glBindBufferBase(GL_UNIFORM_BUFFER, BINDING, bufferId);
+    }
+}
@@ -51,6 +51,17 @@ class Material {
 
     private final List<TextureFromFile> diffuseTextures, specularTextures;
 
+    // Where this material lives in the MaterialBuffer, or -1 if it hasn't been added
+    private int bufferIndex = -1;
+
+    public int getBufferIndex() {
+        return bufferIndex;
+    }
+
+    void setBufferIndex(int bufferIndex) {
+        this.bufferIndex = bufferIndex;
+    }
+
     Material(String name, Vector3 ambient, Vector3 diffuse, Vector3 specular, float shininess) {
         this(name, ambient, diffuse, specular, shininess, new ArrayList<TextureFromFile>(), new ArrayList<TextureFromFile>());
     }
@@ -1,5 +1,6 @@
 package modelviewer;
 
+import BasicModels.BoundingBox;
 import enterthematrix.Matrix4x4;
 import enterthematrix.Vector4;
 import org.lwjgl.BufferUtils;
@@ -24,6 +25,8 @@ public class Mesh extends Model {
     private final int vaoId, vboIndicesId;
     private int indicesToDraw;
     private final Material material;
+    private final BoundingBox localBounds;
+    private final SoftwareOcclusionBuffer.Occluder occluder;
     //    private final int textureId;
 //    private final Texture texture, specularMap;
 
@@ -48,6 +51,9 @@ public class Mesh extends Model {
         this.material = material;
         this.data = data;
         this.indicesToDraw = data.indicesCount;
+        this.localBounds = BoundingBox.fromPositions(data.vertices, 3);
+        this.occluder = data.indices.length / 3 <= SoftwareOcclusionBuffer.MAX_OCCLUDER_TRIANGLES
+                ? new SoftwareOcclusionBuffer.Occluder(data.vertices, data.indices) : null;
 //        this.vertices = data.vertices;
 //        this.normals = normals;
 //        this.indicesCount = indices.length;
@@ -131,10 +137,10 @@ public class Mesh extends Model {
     @Override
     public void draw(Matrix4x4 projectionMatrix, Matrix4x4 cameraTranslate, Shader shader) {
         try (ShaderUse wrap = new ShaderUse(shader)) {
-            shader.setVec3("material.ambient", material.getAmbient());
-            shader.setVec3("material.diffuse", material.getDiffuse());
-            shader.setVec3("material.specular", material.getSpecular());
-            shader.setFloat("material.shininess", material.getShininess());
+            // The material itself is already in the MaterialBuffer
+            shader.setInt("materialIndex", material.getBufferIndex());
+            shader.setBoolean("receivesShadows", receivesShadows());
+            shader.setInt("lightMask", lightMask);
 
 
             //            shader.setInt("material.diffuse", 0);
@@ -163,13 +169,11 @@ public class Mesh extends Model {
 
             if (material.getDiffuseTextures().size() > 0) {
                 TextureFromFile texture = material.getDiffuseTextures().get(0);
-                shader.setInt("material.diffuseTexture", GL_TEXTURE0);
                 glActiveTexture(GL_TEXTURE0);
                 glBindTexture(GL_TEXTURE_2D, texture.getTextureId());
             }
             if (material.getSpecularTextures().size() > 0) {
                 TextureFromFile texture = material.getSpecularTextures().get(0);
-                shader.setInt("material.specularTexture", GL_TEXTURE1);
                 glActiveTexture(GL_TEXTURE1);
                 glBindTexture(GL_TEXTURE_2D, texture.getTextureId());
             }
@@ -193,6 +197,29 @@ public class Mesh extends Model {
         }
     }
 
+    @Override
+    void drawDepth(Shader shader) {
+        shader.setMatrix("modelMatrix", getModelMatrix());
+        // The index buffer isn't part of the VAO
+        GL15.glBindBuffer(GL15.GL_ELEMENT_ARRAY_BUFFER, vboIndicesId);
+        GL11.glDrawElements(GL11.GL_TRIANGLES, indicesToDraw, GL11.GL_UNSIGNED_INT, 0);
+    }
+
+    @Override
+    int getVaoId() {
+        return vaoId;
+    }
+
+    @Override
+    BoundingBox getLocalBounds() {
+        return localBounds;
+    }
+
+    @Override
+    SoftwareOcclusionBuffer.Occluder getOccluder() {
+        return occluder;
+    }
+
     public void setIndicesToDraw(int indicesToDraw) {
         this.indicesToDraw = indicesToDraw;
     }
@@ -200,4 +227,12 @@ public class Mesh extends Model {
     public int getIndicesToDraw() {
         return indicesToDraw;
     }
+
+    public MeshData getData() {
+        return data;
+    }
+
+    public Material getMaterial() {
+        return material;
+    }
 }
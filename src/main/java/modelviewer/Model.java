@@ -1,5 +1,6 @@
 package modelviewer;
 
+import BasicModels.BoundingBox;
 import enterthematrix.Matrix4x4;
 import enterthematrix.Vector4;
 
@@ -16,6 +17,13 @@ abstract public class Model {
 
     private Vector4 pos;
     private Optional<Matrix4x4> scale, rotate;
+    // Whether the model is drawn into the shadow maps, and whether shadows fall on it in the main pass
+    private boolean castsShadows = true, receivesShadows = true;
+    // Where this is in the scene's SceneBounds, -1 if it's not culled (debug geometry)
+    int boundsIndex = -1;
+    // Bit i is set if point light i reaches this model, so it's only shaded with those.  Set every frame for models in
+    // SceneBounds, the rest get every light.
+    int lightMask = ~0;
 
     public Model(Vector4 pos, Optional<Matrix4x4> scale, Optional<Matrix4x4> rotate) {
         this.pos = pos;
@@ -24,6 +32,40 @@ abstract public class Model {
     }
 
     abstract public void draw(Matrix4x4 projectionMatrix, Matrix4x4 cameraTranslate, Shader shader);
+
+    // For the shadow passes.  The caller has the depth shader in use and has already bound getVaoId() with only the
+    // position attribute enabled, so this just sets the model matrix and draws.
+    abstract void drawDepth(Shader shader);
+    abstract int getVaoId();
+
+    // In model space, before the model matrix
+    abstract BoundingBox getLocalBounds();
+
+    BoundingBox getWorldBounds() {
+        return getLocalBounds().transform(getModelMatrix());
+    }
+
+    // Model space triangles to hide other models with in the SoftwareOcclusionBuffer, or null if this shouldn't be used
+    SoftwareOcclusionBuffer.Occluder getOccluder() {
+        return null;
+    }
+
+    public boolean castsShadows() {
+        return castsShadows;
+    }
+
+    public void setCastsShadows(boolean castsShadows) {
+        this.castsShadows = castsShadows;
+    }
+
+    public boolean receivesShadows() {
+        return receivesShadows;
+    }
+
+    public void setReceivesShadows(boolean receivesShadows) {
+        this.receivesShadows = receivesShadows;
+    }
+
     protected Matrix4x4 getModelMatrix() {
         return ModelUtils.getModelMatrix(pos, scale, rotate);
     }
@@ -1,11 +1,13 @@
 package modelviewer;
 
+import BasicModels.BoundingBox;
 import enterthematrix.Matrix4x4;
 import enterthematrix.Vector3;
 import enterthematrix.Vector4;
 
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
 import java.util.List;
 import java.util.Optional;
 
@@ -17,7 +19,27 @@ public class ModelLighting implements BlipHandler{
     final PointLight[] points;
     public static final int MAX_POINT_LIGHTS = 4;
     private final Shader lampShader;
+    private final LightBuffer lightBuffer = new LightBuffer();
+    // Where the lights' shadow maps live, depending on the mode.  Neither is allocated until it's drawn into.
+    final ShadowAtlas shadowAtlas = new ShadowAtlas();
+    final LayeredShadowMaps layeredShadowMaps = new LayeredShadowMaps();
+    // The directional light's cascades, whose maps are tiles of the shadowAtlas
+    final ShadowCascades shadowCascades = new ShadowCascades();
+    // Clustered shading, see ClusteredLights, which is only created if the GPU supports it.  With it on the enabled
+    // point lights are drawn through the clusters rather than the LightBuffer, without shadows, along with any extra
+    // lights scattered through the scene for debugging and stress testing.
+    final Optional<ClusteredLights> clusteredLights = GpuFeatures.fragmentShaderStorage()
+            ? Optional.of(new ClusteredLights())
+            : Optional.empty();
+    private volatile boolean clusteredShading = Persister.getOrElse("clustered_shading", false);
+    private volatile int scatteredLightCount = Persister.getOrElse("clustered_light_count", 0);
+    private volatile float scatteredLightRadius = Persister.getOrElse("clustered_light_radius", 0.5f);
+    private List<ClusteredLights.Light> scatteredLights = Collections.emptyList();
+    private BoundingBox scatteredLightsRegion = null;
+    private float scatteredLightsRadius = 0;
     BlipHandler app;
+    // Run on the UI thread after it changes anything about the point lights, see SceneUpdater
+    private final Runnable pointLightsChanged;
 //    private final float defaultConstant = 1.0f;
 //    private final float defaultLinear = 0.7f;
 //    private final float defaultQuadratic = 1.8f;
@@ -25,8 +47,9 @@ public class ModelLighting implements BlipHandler{
     private final float defaultLinear = Persister.getOrElse("point_linear", 0.4f);
     private final float defaultQuadratic = Persister.getOrElse("point_quadratic", 0.5f);
 
-    ModelLighting(BlipHandler app, ShaderStore shaders) {
+    ModelLighting(BlipHandler app, ShaderStore shaders, Runnable pointLightsChanged) {
         this.app = app;
+        this.pointLightsChanged = pointLightsChanged;
         lampShader = shaders.basicFlatShader;
         Matrix4x4 standardLight = Matrix4x4.scale(0.01f);
 //        lampShader =  Shader.create("../shaders/basic_lighting2_vertex.glsl", "../shaders/lighting_materials_lamp_fragment.glsl");
@@ -91,15 +114,37 @@ public class ModelLighting implements BlipHandler{
 //        else if (key == GLFW_KEY_4) points[3].setEnabled(!points[3].isEnabled());
     }
 
-    void setupShader(Shader shader) {
-        try (ShaderUse su = new ShaderUse(shader)) {
-            directional.setupShader(su.shader);
+    // Once a frame, rather than once per pass
+    void upload() {
+        lightBuffer.update(directional, points, shadowCascades);
+        // The shadow maps can't go in the uniform buffer, so they're bound to fixed texture units instead
+        shadowAtlas.bind(ShaderStore.SHADOW_ATLAS_UNIT);
+        layeredShadowMaps.bind(ShaderStore.SHADOW_MAP_ARRAY_UNIT);
+        layeredShadowMaps.bindCubes(ShaderStore.SHADOW_CUBE_ARRAY_UNIT);
+    }
 
-            for (int i = 0; i < points.length; i ++) {
-                Light light = points[i];
-                light.setupShader(su.shader);
-            }
+    // Whether the point lights are drawn with clustered shading
+    boolean useClusteredShading() {
+        return clusteredLights.isPresent() && clusteredShading;
+    }
+
+    // Once a frame, after upload, if useClusteredShading.  Uploads the enabled point lights, then the scattered ones,
+    // which are spread through region and only scattered again if it or their settings change.
+    void uploadClustered(BoundingBox region, Matrix4x4 view, Matrix4x4 projection, float near, float far,
+                         int widthPixels, int heightPixels) {
+        int count = Math.min(scatteredLightCount, ClusteredLights.MAX_LIGHTS - points.length);
+        float radius = scatteredLightRadius;
+        if (scatteredLights.size() != count || !region.equals(scatteredLightsRegion) || radius != scatteredLightsRadius) {
+            scatteredLights = ClusteredLights.Light.scatter(count, region, radius);
+            scatteredLightsRegion = region;
+            scatteredLightsRadius = radius;
+        }
+        List<ClusteredLights.Light> lights = new ArrayList<>();
+        for (PointLight point : points) {
+            if (point.isEnabled()) lights.add(ClusteredLights.Light.of(point));
         }
+        lights.addAll(scatteredLights);
+        clusteredLights.get().update(lights, view, projection, near, far, widthPixels, heightPixels);
     }
 
     void draw(Matrix4x4 projectionMatrix, Matrix4x4 cameraTranslate, Shader shader, ICamera camera) {
@@ -129,6 +174,7 @@ public class ModelLighting implements BlipHandler{
                 final int x = i;
                 elements1.add(BlipUICheckbox.create("Point " + i, points[i].isEnabled(), (v) -> {
                     points[x].setEnabled(v);
+                    pointLightsChanged.run();
                     Persister.put("point_" + x + "_enabled", v);
                 }, Optional.of(GLFW_KEY_1 + i)));
             }
@@ -166,6 +212,7 @@ public class ModelLighting implements BlipHandler{
                 try { value = Float.valueOf(v); } catch(Exception e) {}
                 final float x = value;
                 Arrays.stream(points).forEach(p -> p.ambient = Vector3.fill(x));
+                pointLightsChanged.run();
                 Persister.put("point_ambient", value);
             }));
             
@@ -174,6 +221,7 @@ public class ModelLighting implements BlipHandler{
                 try { value = Float.valueOf(v); } catch(Exception e) {}
                 final float x = value;
                 Arrays.stream(points).forEach(p -> p.diffuse = Vector3.fill(x));
+                pointLightsChanged.run();
                 Persister.put("point_diffuse", value);
             }));
             
@@ -182,6 +230,7 @@ public class ModelLighting implements BlipHandler{
                 try { value = Float.valueOf(v); } catch(Exception e) {}
                 final float x = value;
                 Arrays.stream(points).forEach(p -> p.specular = Vector3.fill(x));
+                pointLightsChanged.run();
                 Persister.put("point_specular", value);
             }));
 
@@ -190,6 +239,7 @@ public class ModelLighting implements BlipHandler{
                 try { value = Float.valueOf(v); } catch(Exception e) {}
                 final float x = value;
                 Arrays.stream(points).forEach(p -> p.setConstant(x));
+                pointLightsChanged.run();
                 Persister.put("point_constant", value);
             }));
             elements2.add(BlipUITextField.create(Optional.of("Point Linear"), String.valueOf(defaultLinear), (v) -> {
@@ -197,6 +247,7 @@ public class ModelLighting implements BlipHandler{
                 try { value = Float.valueOf(v); } catch(Exception e) {}
                 final float x = value;
                 Arrays.stream(points).forEach(p -> p.setLinear(x));
+                pointLightsChanged.run();
                 Persister.put("point_linear", value);
             }));
             elements2.add(BlipUITextField.create(Optional.of("Point Quadratic"), String.valueOf(defaultQuadratic), (v) -> {
@@ -204,13 +255,33 @@ public class ModelLighting implements BlipHandler{
                 try { value = Float.valueOf(v); } catch(Exception e) {}
                 final float x = value;
                 Arrays.stream(points).forEach(p -> p.setQuadratic(x));
+                pointLightsChanged.run();
                 Persister.put("point_quadratic", value);
             }));
 
+            List<BlipUI> elementsClustered = new ArrayList<>();
+            elementsClustered.add(BlipUICheckbox.create("Clustered Shading", clusteredShading, (v) -> {
+                clusteredShading = v;
+                Persister.put("clustered_shading", v);
+            }, Optional.empty()));
+            elementsClustered.add(BlipUITextField.create(Optional.of("Debug Scattered Lights"), String.valueOf(scatteredLightCount), (v) -> {
+                int value = scatteredLightCount;
+                try { value = Integer.valueOf(v); } catch(Exception e) {}
+                scatteredLightCount = Math.max(0, Math.min(value, ClusteredLights.MAX_LIGHTS - MAX_POINT_LIGHTS));
+                Persister.put("clustered_light_count", scatteredLightCount);
+            }));
+            elementsClustered.add(BlipUITextField.create(Optional.of("Debug Scattered Radius"), String.valueOf(scatteredLightRadius), (v) -> {
+                float value = scatteredLightRadius;
+                try { value = Float.valueOf(v); } catch(Exception e) {}
+                if (value > 0) scatteredLightRadius = value;
+                Persister.put("clustered_light_radius", scatteredLightRadius);
+            }));
+
             sections.add(BlipUIHStack.create(elements1));
             sections.add(BlipUIHStack.create(elementsDir));
             sections.add(BlipUIHStack.create(elementsPoint));
             sections.add(BlipUIHStack.create(elements2));
+            if (clusteredLights.isPresent()) sections.add(BlipUIHStack.create(elementsClustered));
             BlipUIVStack done = BlipUIVStack.create(sections);
 
             app.handle(BlipUITitledSection.create("Lighting", done));
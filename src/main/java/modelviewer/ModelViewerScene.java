@@ -13,6 +13,9 @@ import java.io.IOException;
 import java.net.URISyntaxException;
 import java.net.URL;
 import java.util.*;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.Consumer;
+import java.util.function.Predicate;
 
 import static org.lwjgl.assimp.Assimp.aiProcess_FixInfacingNormals;
 import static org.lwjgl.assimp.Assimp.aiProcess_JoinIdenticalVertices;
@@ -21,8 +24,14 @@ import static org.lwjgl.glfw.GLFW.*;
 import static org.lwjgl.opengl.GL11.*;
 import static org.lwjgl.opengl.GL13.GL_TEXTURE5;
 import static org.lwjgl.opengl.GL13.glActiveTexture;
+import static org.lwjgl.opengl.GL15.GL_ELEMENT_ARRAY_BUFFER;
+import static org.lwjgl.opengl.GL15.glBindBuffer;
+import static org.lwjgl.opengl.GL20.glDisableVertexAttribArray;
+import static org.lwjgl.opengl.GL20.glEnableVertexAttribArray;
 import static org.lwjgl.opengl.GL30.GL_FRAMEBUFFER;
+import static org.lwjgl.opengl.GL30.GL_TEXTURE_2D_ARRAY;
 import static org.lwjgl.opengl.GL30.glBindFramebuffer;
+import static org.lwjgl.opengl.GL30.glBindVertexArray;
 
 interface BlipBasicModelScene extends Blip {
     void handle(ModelViewerScene scene);
@@ -59,39 +68,51 @@ class ModelViewerScene implements Scene {
     private final ArrayList<FancyQuad> quadModels = new ArrayList<>();
     private final ArrayList<FancyCube> axisMarkers = new ArrayList<>();
     //    private final Shader standardShader;
-    private CameraRotatingAroundOrigin camera;
+    // Where this frame is drawn from, from the FrameSnapshot
+    private ICamera camera;
+    // Owns the real camera, and culls for it on another thread.  Holds the settings the culling depends on, which the
+    // UI changes there rather than in fields here.
+    private final SceneUpdater updater;
+    // The updater's inputs as of the start of this frame, so a frame is drawn with the same settings throughout
+    private FrameSnapshot.Inputs settings;
     private final ModelLighting lighting;
     //    private final Shader shadowGenShader;
     private final ShaderStore shaders = new ShaderStore();
+    // The variants of the standard shader matching the current settings, picked each frame
+    private Shader mainShader;
+    // What mainShader was compiled with
+    private ShaderPermutation permutation;
+    private Optional<Shader> multiDrawMainShader = Optional.empty();
+    // With deferred shading the main shaders above only fill the G-buffer, and this lights it
+    private Optional<Shader> deferredLightingShader = Optional.empty();
+    private final MaterialBuffer materialBuffer = new MaterialBuffer();
+    // Materials of the cubes, floor etc., which stay in the MaterialBuffer whatever model is loaded
+    private final List<Material> sceneMaterials = new ArrayList<>();
     private Mesh[] meshes;
-
-
-    private boolean drawAxisMarkers = Persister.getOrElse("drawAxisMarkers", false);
-    private boolean renderToDepth = true;
-    private boolean renderDepthFramebuffer = Persister.getOrElse("renderDepthFramebuffer", false);
-    private boolean drawFloor = Persister.getOrElse("drawFloor", false);
-    private boolean drawModel = Persister.getOrElse("drawModel", true);
-    private boolean drawCubes = Persister.getOrElse("drawCubes", true);
-    private boolean renderLightsEnabled = Persister.getOrElse("renderLightsEnabled", false);
-    private boolean shadowsEnabled = Persister.getOrElse("shadowsEnabled", true);
-    private boolean shadowsHighQuality = Persister.getOrElse("shadowsHighQuality", true);
-    private float shadowsBiasMulti = Persister.getOrElse("shadowsBiasMulti", 0.05f);
-    private boolean drawTextures = Persister.getOrElse("drawTextures", true);
-    private boolean doLighting = Persister.getOrElse("doLighting", true);
-    private float shadowsBiasMax = Persister.getOrElse("shadowsBiasMax", 0.00005f);
-    private float floorYOffset = Persister.getOrElse("floorYOffset", -0.2f);
-    private float clearColourRed = Persister.getOrElse("clearColourRed", 0f);
-    private float clearColourGreen = Persister.getOrElse("clearColourGreen", 0f);
-    private float clearColourBlue = Persister.getOrElse("clearColourBlue", 0f);
-    private float projectionFar = Persister.getOrElse("projectionFar", 1000f);
-    private float projectionNear = Persister.getOrElse("projectionNear", 0.001f);
-    private float projectionFov = Persister.getOrElse("projectionFov", 90f);
-    private float orthoTop = Persister.getOrElse("orthoTop", 1f);
-    private float orthoBottom = Persister.getOrElse("orthoBottom", -1f);
-    private float orthoLeft = Persister.getOrElse("orthoLeft", -1f);
-    private float orthoRight = Persister.getOrElse("orthoRight", 1f);
-    private float orthoNear = Persister.getOrElse("orthoNear", 0.001f);
-    private float orthoFar = Persister.getOrElse("orthoNear", 1.5f);
+    // The same meshes packed for glMultiDrawElementsIndirect, if the GPU supports it
+    private Optional<MultiDrawModel> multiDrawModel = Optional.empty();
+    // Bumped whenever anything drawn into the shadow maps changes, so they know to redraw.  UI callbacks come in on
+    // another thread, hence volatile.
+    private volatile int geometryVersion = 0;
+    // Bounds of the floor, cubes and meshes, refreshed each frame.  The scene's spatial index, for culling and
+    // lighting queries.
+    private final SceneBounds sceneBounds = new SceneBounds();
+    // A copy of it for SceneUpdater, replaced rather than updated when anything changes
+    private SceneBounds cullingBounds = null;
+    private final OcclusionCulling occlusionQueries = new OcclusionCulling(shaders.shadowGenShader);
+    private final SoftwareOcclusionBuffer softwareOcclusion = new SoftwareOcclusionBuffer();
+    private final Optional<GpuCulling> gpuCulling = shaders.multiDrawSupported ? Optional.of(new GpuCulling()) : Optional.empty();
+    private final DeferredRenderer deferredRenderer = new DeferredRenderer();
+    private final GpuTimer depthPrePassTimer = new GpuTimer(), mainPassTimer = new GpuTimer();
+    private int framesSinceTimings = 0;
+    // Set once the multi-drawn meshes have been culled on the GPU this frame, so the main pass reuses the pre-pass's
+    private boolean gpuCulledThisFrame = false;
+
+
+    // Written by the UI's callbacks on the JavaFX thread with changeSettings, and taken by the GL thread once a frame
+    // into renderSettings, which is all draw() and everything it calls reads
+    private final AtomicReference<RenderSettings> publishedSettings = new AtomicReference<>(RenderSettings.load());
+    private RenderSettings renderSettings = publishedSettings.get();
 
     private List<BlipUI> modelUI = new ArrayList<BlipUI>();
     private final List<BlipUI> basicUi = new ArrayList<BlipUI>();
@@ -130,13 +151,43 @@ class ModelViewerScene implements Scene {
     }
     
     public void loadModel(File file) throws URISyntaxException, IOException {
-        meshes = LoaderUtils.loadModel(file);    
+        setMeshes(LoaderUtils.loadModel(file));
+    }
+
+    private void setMeshes(Mesh[] meshes) {
+        this.meshes = meshes;
+        geometryVersion++;
+        uploadMaterials();
+        multiDrawModel.ifPresent(MultiDrawModel::delete);
+        occlusionQueries.clear();
+        if (meshes != null && shaders.multiDrawSupported) {
+            multiDrawModel = Optional.of(new MultiDrawModel(meshes));
+        }
+        else {
+            multiDrawModel = Optional.empty();
+        }
+        RenderOnDemand.shared.request();
     }
 
 
+    private void uploadMaterials() {
+        materialBuffer.clear();
+        sceneMaterials.forEach(materialBuffer::add);
+        if (meshes != null) {
+            for (Mesh mesh : meshes) {
+                materialBuffer.add(mesh.getMaterial());
+            }
+        }
+        materialBuffer.upload();
+    }
+
     ModelViewerScene(BlipHandler app) throws URISyntaxException, IOException {
         this.app = app;
-        lighting = new ModelLighting(app, shaders);
+        lighting = new ModelLighting(app, shaders, this::pointLightsChanged);
+        updater = new SceneUpdater(new FrameSnapshot.Inputs(Persister.getOrElse("frustumCulling", true),
+                Persister.getOrElse("drawFloor", false), Persister.getOrElse("drawCubes", true),
+                Persister.getOrElse("drawModel", true)).withLights(lighting.points));
+        settings = updater.getInputs();
 
         File initialDir = new File(System.getProperty("user.dir") + "/src/main/resources/models");
 
@@ -146,161 +197,251 @@ class ModelViewerScene implements Scene {
             queued.add(new BlipBasicModelSceneLoadModel(file));
         }, Optional.of(GLFW_KEY_O), Optional.of(initialDir)));
 
-        basicUi.add(BlipUICheckbox.create("Model", drawModel, (v) -> {
-            drawModel = v;
+        basicUi.add(BlipUICheckbox.create("Model", updater.getInputs().drawModel, (v) -> {
+            updater.updateInputs(inputs -> inputs.withDrawModel(v));
+            geometryVersion++;
             Persister.put("drawModel", v);
         }, Optional.empty()));
-        basicUi.add(BlipUICheckbox.create("Textures", drawTextures, (v) -> {
-            drawTextures = v;
+        basicUi.add(BlipUICheckbox.create("Textures", renderSettings.drawTextures, (v) -> {
+            changeSettings(s -> s.drawTextures = v);
             Persister.put("drawTextures", v);
         }, Optional.empty()));
-        basicUi.add(BlipUICheckbox.create("Lighting", doLighting, (v) -> {
-            doLighting = v;
+        basicUi.add(BlipUICheckbox.create("Lighting", renderSettings.doLighting, (v) -> {
+            changeSettings(s -> s.doLighting = v);
             Persister.put("doLighting", v);
         }, Optional.empty()));
-        basicUi.add(BlipUICheckbox.create("Cubes", drawCubes, (v) -> {
-            drawCubes = v;
+        if (shaders.multiDrawSupported) {
+            basicUi.add(BlipUICheckbox.create("Multi-draw", renderSettings.multiDrawEnabled, (v) -> {
+                changeSettings(s -> s.multiDrawEnabled = v);
+                Persister.put("multiDrawEnabled", v);
+            }, Optional.empty()));
+            basicUi.add(BlipUICheckbox.create("GPU Culling", renderSettings.gpuCullingEnabled, (v) -> {
+                changeSettings(s -> s.gpuCullingEnabled = v);
+                Persister.put("gpuCullingEnabled", v);
+            }, Optional.empty()));
+            basicUi.add(BlipUICheckbox.create("GPU Hi-Z", renderSettings.gpuHiZ, (v) -> {
+                changeSettings(s -> s.gpuHiZ = v);
+                Persister.put("gpuHiZ", v);
+            }, Optional.empty()));
+        }
+        basicUi.add(BlipUICheckbox.create("Frustum Culling", updater.getInputs().frustumCulling, (v) -> {
+            updater.updateInputs(inputs -> inputs.withFrustumCulling(v));
+            Persister.put("frustumCulling", v);
+        }, Optional.empty()));
+        basicUi.add(BlipUICheckbox.create("Occlusion Culling", renderSettings.occlusionCulling, (v) -> {
+            changeSettings(s -> s.occlusionCulling = v);
+            Persister.put("occlusionCulling", v);
+        }, Optional.empty()));
+        basicUi.add(BlipUICheckbox.create("CPU Occlusion Culling", renderSettings.softwareOcclusionCulling, (v) -> {
+            changeSettings(s -> s.softwareOcclusionCulling = v);
+            Persister.put("softwareOcclusionCulling", v);
+        }, Optional.empty()));
+        basicUi.add(BlipUICheckbox.create("Depth Pre-pass", renderSettings.depthPrePass, (v) -> {
+            changeSettings(s -> s.depthPrePass = v);
+            Persister.put("depthPrePass", v);
+        }, Optional.empty()));
+        basicUi.add(BlipUICheckbox.create("Deferred Shading", renderSettings.deferredShading, (v) -> {
+            changeSettings(s -> s.deferredShading = v);
+            Persister.put("deferredShading", v);
+        }, Optional.empty()));
+        basicUi.add(BlipUICheckbox.create("Render On Demand", RenderOnDemand.shared.isEnabled(),
+                (v) -> RenderOnDemand.shared.setEnabled(v), Optional.empty()));
+        basicUi.add(BlipUICheckbox.create("VSync", FrameClock.shared.isVsync(),
+                (v) -> FrameClock.shared.setVsync(v), Optional.empty()));
+        // 0 for no cap
+        basicUi.add(BlipUITextField.create(Optional.of("Frame Cap fps"), Float.toString(FrameClock.shared.getFrameCapFps()), (v) -> {
+            float value = FrameClock.shared.getFrameCapFps();
+            try { value = Float.parseFloat(v); } catch (RuntimeException e) {}
+            FrameClock.shared.setFrameCapFps(value);
+        }));
+        basicUi.add(BlipUICheckbox.create("Frame Stats", FrameClock.shared.isPrintingStats(),
+                (v) -> FrameClock.shared.setPrintingStats(v), Optional.empty()));
+        basicUi.add(BlipUICheckbox.create("GPU Timers", renderSettings.gpuTimers, (v) -> {
+            changeSettings(s -> s.gpuTimers = v);
+            Persister.put("gpuTimers", v);
+        }, Optional.empty()));
+        basicUi.add(BlipUICheckbox.create("Cubes", updater.getInputs().drawCubes, (v) -> {
+            updater.updateInputs(inputs -> inputs.withDrawCubes(v));
+            geometryVersion++;
             Persister.put("drawCubes", v);
         }, Optional.empty()));
-        basicUi.add(BlipUICheckbox.create("Axis markers", drawAxisMarkers, (v) -> {
-            drawAxisMarkers = v;
+        basicUi.add(BlipUICheckbox.create("Axis markers", renderSettings.drawAxisMarkers, (v) -> {
+            changeSettings(s -> s.drawAxisMarkers = v);
+            geometryVersion++;
             Persister.put("drawAxisMarkers", v);
         }, Optional.empty()));
-        shadowsUI.add(BlipUICheckbox.create("Frame buffer", renderDepthFramebuffer, (v) -> {
-            renderDepthFramebuffer = v;
+        shadowsUI.add(BlipUICheckbox.create("Frame buffer", renderSettings.renderDepthFramebuffer, (v) -> {
+            changeSettings(s -> s.renderDepthFramebuffer = v);
             Persister.put("renderDepthFramebuffer", v);
         }, Optional.empty()));
-        floorUI.add(BlipUICheckbox.create("Floor", drawFloor, (v) -> {
-            drawFloor = v;
+        shadowsUI.add(BlipUITextField.create(Optional.of("Frame buffer layer"), Integer.toString(renderSettings.renderDepthLayer), (v) -> {
+            RenderSettings changed = changeSettings(s -> {
+                try { s.renderDepthLayer = Math.max(0, Math.min(Integer.parseInt(v), LayeredShadowMaps.LAYERS - 1)); } catch (RuntimeException e) {}
+            });
+            Persister.put("renderDepthLayer", changed.renderDepthLayer);
+        }));
+        floorUI.add(BlipUICheckbox.create("Floor", updater.getInputs().drawFloor, (v) -> {
+            updater.updateInputs(inputs -> inputs.withDrawFloor(v));
+            geometryVersion++;
             Persister.put("drawFloor", v);
         }, Optional.of(GLFW_KEY_KP_6)));
-        shadowsUI.add(BlipUICheckbox.create("Shadows", shadowsEnabled, (v) -> {
-            shadowsEnabled = v;
+        shadowsUI.add(BlipUICheckbox.create("Shadows", renderSettings.shadowsEnabled, (v) -> {
+            changeSettings(s -> s.shadowsEnabled = v);
             Persister.put("shadowsEnabled", v);
         }, Optional.of(GLFW_KEY_KP_5)));
-        shadowsUI.add(BlipUICheckbox.create("Shadows Quality", shadowsHighQuality, (v) -> {
-            shadowsHighQuality = v;
-            Persister.put("shadowsHighQuality", v);
+        List<ComboBoxItem> shadowFilters = new ArrayList<>();
+        for (ShadowFilter filter : ShadowFilter.values()) {
+            shadowFilters.add(ComboBoxItem.create(filter.label, () -> {
+                changeSettings(s -> s.shadowFilter = filter);
+                Persister.put("shadowFilter", filter.name());
+            }, Optional.empty()));
+        }
+        shadowsUI.add(BlipUIComboBox.create(Optional.of("Shadows Quality"), shadowFilters));
+        shadowsUI.add(BlipUICheckbox.create("Single Pass Shadows", renderSettings.layeredShadows, (v) -> {
+            changeSettings(s -> s.layeredShadows = v);
+            Persister.put("layeredShadows", v);
+        }, Optional.empty()));
+        shadowsUI.add(BlipUICheckbox.create("Spread Shadow Updates", renderSettings.amortizeShadows, (v) -> {
+            changeSettings(s -> s.amortizeShadows = v);
+            Persister.put("amortizeShadows", v);
         }, Optional.empty()));
-        shadowsUI.add(BlipUITextField.create(Optional.of("Bias Max"), Float.toString(shadowsBiasMax), (v) -> {
-            float value = shadowsBiasMax;
+        shadowsUI.add(BlipUITextField.create(Optional.of("Frame Budget ms"), Float.toString(FrameClock.shared.getDeferredBudgetMs()), (v) -> {
+            float value = FrameClock.shared.getDeferredBudgetMs();
             try { value = Float.parseFloat(v); } catch (RuntimeException e) {}
-            shadowsBiasMax = value;
-            Persister.put("shadowsBiasMax", value);
+            FrameClock.shared.setDeferredBudgetMs(value);
         }));
-        shadowsUI.add(BlipUITextField.create(Optional.of("Bias Multi"), Float.toString(shadowsBiasMulti), (v) -> {
-            float value = shadowsBiasMulti;
-            try { value = Float.parseFloat(v); } catch (RuntimeException e) {}
-            shadowsBiasMulti = value;
-            Persister.put("shadowsBiasMulti", value);
+        shadowsUI.add(BlipUICheckbox.create("Cascaded Shadows", renderSettings.cascadedShadows, (v) -> {
+            changeSettings(s -> s.cascadedShadows = v);
+            Persister.put("cascadedShadows", v);
+        }, Optional.empty()));
+        shadowsUI.add(BlipUITextField.create(Optional.of("Cascades"), Integer.toString(renderSettings.cascadeCount), (v) -> {
+            RenderSettings changed = changeSettings(s -> {
+                try { s.cascadeCount = Math.max(1, Math.min(Integer.parseInt(v), ShadowCascades.MAX_CASCADES)); } catch (RuntimeException e) {}
+            });
+            Persister.put("cascadeCount", changed.cascadeCount);
+        }));
+        shadowsUI.add(BlipUITextField.create(Optional.of("Cascade Size"), Integer.toString(renderSettings.cascadeResolution), (v) -> {
+            RenderSettings changed = changeSettings(s -> {
+                try { s.cascadeResolution = Integer.parseInt(v); } catch (RuntimeException e) {}
+            });
+            Persister.put("cascadeResolution", changed.cascadeResolution);
+        }));
+        shadowsUI.add(BlipUITextField.create(Optional.of("Shadow Distance"), Float.toString(renderSettings.shadowDistance), (v) -> {
+            RenderSettings changed = changeSettings(s -> {
+                try { s.shadowDistance = Float.parseFloat(v); } catch (RuntimeException e) {}
+            });
+            Persister.put("shadowDistance", changed.shadowDistance);
         }));
-        basicUi.add(BlipUICheckbox.create("Lights", renderLightsEnabled, (v) -> {
-            renderLightsEnabled = v;
+        shadowsUI.add(BlipUICheckbox.create("16-bit Shadow Depth", renderSettings.shadowDepth16, (v) -> {
+            changeSettings(s -> s.shadowDepth16 = v);
+            Persister.put("shadowDepth16", v);
+        }, Optional.empty()));
+        shadowsUI.add(BlipUITextField.create(Optional.of("Shadow VRAM MB"), Integer.toString(renderSettings.shadowBudgetMegabytes), (v) -> {
+            RenderSettings changed = changeSettings(s -> {
+                try { s.shadowBudgetMegabytes = Integer.parseInt(v); } catch (RuntimeException e) {}
+            });
+            Persister.put("shadowBudgetMegabytes", changed.shadowBudgetMegabytes);
+        }));
+        shadowsUI.add(BlipUITextField.create(Optional.of("Bias Max"), Float.toString(renderSettings.shadowsBiasMax), (v) -> {
+            RenderSettings changed = changeSettings(s -> {
+                try { s.shadowsBiasMax = Float.parseFloat(v); } catch (RuntimeException e) {}
+            });
+            Persister.put("shadowsBiasMax", changed.shadowsBiasMax);
+        }));
+        shadowsUI.add(BlipUITextField.create(Optional.of("Bias Multi"), Float.toString(renderSettings.shadowsBiasMulti), (v) -> {
+            RenderSettings changed = changeSettings(s -> {
+                try { s.shadowsBiasMulti = Float.parseFloat(v); } catch (RuntimeException e) {}
+            });
+            Persister.put("shadowsBiasMulti", changed.shadowsBiasMulti);
+        }));
+        basicUi.add(BlipUICheckbox.create("Lights", renderSettings.renderLightsEnabled, (v) -> {
+            changeSettings(s -> s.renderLightsEnabled = v);
+            geometryVersion++;
             Persister.put("renderLightsEnabled", v);
         }, Optional.empty()));
-        floorUI.add(BlipUITextField.create(Optional.of("Floor YOffset"), Float.toString(floorYOffset), (v) -> {
-            float value = floorYOffset;
-            try { value = Float.parseFloat(v); } catch (RuntimeException e) {}
-            floorYOffset = value;
-            Persister.put("floorYOffset", value);
+        floorUI.add(BlipUITextField.create(Optional.of("Floor YOffset"), Float.toString(renderSettings.floorYOffset), (v) -> {
+            RenderSettings changed = changeSettings(s -> {
+                try { s.floorYOffset = Float.parseFloat(v); } catch (RuntimeException e) {}
+            });
+            geometryVersion++;
+            Persister.put("floorYOffset", changed.floorYOffset);
         }));
-        clearUI.add(BlipUITextField.create(Optional.of("Red"), Float.toString(clearColourRed), (v) -> {
-            float value = clearColourRed;
-            try { value = Float.parseFloat(v); } catch (RuntimeException e) {}
-            clearColourRed = value;
-            Persister.put("clearColourRed", value);
+        clearUI.add(BlipUITextField.create(Optional.of("Red"), Float.toString(renderSettings.clearColourRed), (v) -> {
+            RenderSettings changed = changeSettings(s -> {
+                try { s.clearColourRed = Float.parseFloat(v); } catch (RuntimeException e) {}
+            });
+            Persister.put("clearColourRed", changed.clearColourRed);
         }));
-        clearUI.add(BlipUITextField.create(Optional.of("Green"), Float.toString(clearColourGreen), (v) -> {
-            float value = clearColourGreen;
-            try { value = Float.parseFloat(v); } catch (RuntimeException e) {}
-            clearColourGreen = value;
-            Persister.put("clearColourGreen", value);
+        clearUI.add(BlipUITextField.create(Optional.of("Green"), Float.toString(renderSettings.clearColourGreen), (v) -> {
+            RenderSettings changed = changeSettings(s -> {
+                try { s.clearColourGreen = Float.parseFloat(v); } catch (RuntimeException e) {}
+            });
+            Persister.put("clearColourGreen", changed.clearColourGreen);
         }));
-        clearUI.add(BlipUITextField.create(Optional.of("Blue"), Float.toString(clearColourBlue), (v) -> {
-            float value = clearColourBlue;
-            try { value = Float.parseFloat(v); } catch (RuntimeException e) {}
-            clearColourBlue = value;
-            Persister.put("clearColourBlue", value);
+        clearUI.add(BlipUITextField.create(Optional.of("Blue"), Float.toString(renderSettings.clearColourBlue), (v) -> {
+            RenderSettings changed = changeSettings(s -> {
+                try { s.clearColourBlue = Float.parseFloat(v); } catch (RuntimeException e) {}
+            });
+            Persister.put("clearColourBlue", changed.clearColourBlue);
         }));
         
-        projectionUI.add(BlipUITextField.create(Optional.of("Near"), Float.toString(projectionNear), (v) -> {
-            float value = projectionNear;
-            try { value = Float.parseFloat(v); } catch (RuntimeException e) {}
-            projectionNear = value;
-            Persister.put("projectionNear", value);
+        projectionUI.add(BlipUITextField.create(Optional.of("Near"), Float.toString(renderSettings.projectionNear), (v) -> {
+            RenderSettings changed = changeSettings(s -> {
+                try { s.projectionNear = Float.parseFloat(v); } catch (RuntimeException e) {}
+            });
+            Persister.put("projectionNear", changed.projectionNear);
         }));
-        projectionUI.add(BlipUITextField.create(Optional.of("Far"), Float.toString(projectionFar), (v) -> {
-            float value = projectionFar;
-            try { value = Float.parseFloat(v); } catch (RuntimeException e) {}
-            projectionFar = value;
-            Persister.put("projectionFar", value);
+        projectionUI.add(BlipUITextField.create(Optional.of("Far"), Float.toString(renderSettings.projectionFar), (v) -> {
+            RenderSettings changed = changeSettings(s -> {
+                try { s.projectionFar = Float.parseFloat(v); } catch (RuntimeException e) {}
+            });
+            Persister.put("projectionFar", changed.projectionFar);
         }));
-        projectionUI.add(BlipUITextField.create(Optional.of("FOV"), Float.toString(projectionFov), (v) -> {
-            float value = projectionFov;
-            try { value = Float.parseFloat(v); } catch (RuntimeException e) {}
-            projectionFov = value;
-            Persister.put("projectionFov", value);
+        projectionUI.add(BlipUITextField.create(Optional.of("FOV"), Float.toString(renderSettings.projectionFov), (v) -> {
+            RenderSettings changed = changeSettings(s -> {
+                try { s.projectionFov = Float.parseFloat(v); } catch (RuntimeException e) {}
+            });
+            Persister.put("projectionFov", changed.projectionFov);
         }));
 
-        orthoUI.add(BlipUITextField.create(Optional.of("Near"), Float.toString(orthoNear), (v) -> {
-            float value = orthoNear;
-            try { value = Float.parseFloat(v); } catch (RuntimeException e) {}
-            orthoNear = value;
-            Persister.put("orthoNear", value);
+        orthoUI.add(BlipUITextField.create(Optional.of("Near"), Float.toString(renderSettings.orthoNear), (v) -> {
+            RenderSettings changed = changeSettings(s -> {
+                try { s.orthoNear = Float.parseFloat(v); } catch (RuntimeException e) {}
+            });
+            Persister.put("orthoNear", changed.orthoNear);
         }));
-        orthoUI.add(BlipUITextField.create(Optional.of("Far"), Float.toString(orthoFar), (v) -> {
-            float value = orthoFar;
-            try { value = Float.parseFloat(v); } catch (RuntimeException e) {}
-            orthoFar = value;
-            Persister.put("orthoFar", value);
+        orthoUI.add(BlipUITextField.create(Optional.of("Far"), Float.toString(renderSettings.orthoFar), (v) -> {
+            RenderSettings changed = changeSettings(s -> {
+                try { s.orthoFar = Float.parseFloat(v); } catch (RuntimeException e) {}
+            });
+            Persister.put("orthoFar", changed.orthoFar);
         }));
-        orthoUI.add(BlipUITextField.create(Optional.of("Left"), Float.toString(orthoLeft), (v) -> {
-            float value = orthoLeft;
-            try { value = Float.parseFloat(v); } catch (RuntimeException e) {}
-            orthoLeft = value;
-            Persister.put("orthoLeft", value);
+        orthoUI.add(BlipUITextField.create(Optional.of("Left"), Float.toString(renderSettings.orthoLeft), (v) -> {
+            RenderSettings changed = changeSettings(s -> {
+                try { s.orthoLeft = Float.parseFloat(v); } catch (RuntimeException e) {}
+            });
+            Persister.put("orthoLeft", changed.orthoLeft);
         }));
-        orthoUI.add(BlipUITextField.create(Optional.of("Right"), Float.toString(orthoRight), (v) -> {
-            float value = orthoRight;
-            try { value = Float.parseFloat(v); } catch (RuntimeException e) {}
-            orthoRight = value;
-            Persister.put("orthoRight", value);
+        orthoUI.add(BlipUITextField.create(Optional.of("Right"), Float.toString(renderSettings.orthoRight), (v) -> {
+            RenderSettings changed = changeSettings(s -> {
+                try { s.orthoRight = Float.parseFloat(v); } catch (RuntimeException e) {}
+            });
+            Persister.put("orthoRight", changed.orthoRight);
         }));
-        orthoUI.add(BlipUITextField.create(Optional.of("Top"), Float.toString(orthoTop), (v) -> {
-            float value = orthoTop;
-            try { value = Float.parseFloat(v); } catch (RuntimeException e) {}
-            orthoTop = value;
-            Persister.put("orthoTop", value);
+        orthoUI.add(BlipUITextField.create(Optional.of("Top"), Float.toString(renderSettings.orthoTop), (v) -> {
+            RenderSettings changed = changeSettings(s -> {
+                try { s.orthoTop = Float.parseFloat(v); } catch (RuntimeException e) {}
+            });
+            Persister.put("orthoTop", changed.orthoTop);
         }));
-        orthoUI.add(BlipUITextField.create(Optional.of("Bottom"), Float.toString(orthoBottom), (v) -> {
-            float value = orthoBottom;
-            try { value = Float.parseFloat(v); } catch (RuntimeException e) {}
-            orthoBottom = value;
-            Persister.put("orthoBottom", value);
+        orthoUI.add(BlipUITextField.create(Optional.of("Bottom"), Float.toString(renderSettings.orthoBottom), (v) -> {
+            RenderSettings changed = changeSettings(s -> {
+                try { s.orthoBottom = Float.parseFloat(v); } catch (RuntimeException e) {}
+            });
+            Persister.put("orthoBottom", changed.orthoBottom);
         }));
 
 
-        if (drawModel) {
-            String lastModel = Persister.get("last_model");
-            if (lastModel != null) {
-                try {
-                    loadModel(new File(lastModel));
-                }
-                catch (IOException e) {
-                    Platform.runLater(() -> {
-                        Alert alert = new Alert(Alert.AlertType.ERROR);
-                        alert.setTitle("File cannot be loaded");
-                        alert.setContentText("The importer could not load this file, with error message: " + e.getLocalizedMessage());
-
-
-                        alert.showAndWait();
-                    });
-                }
-            } else {
-                loadModel(AppWrapper.class.getResource("/models/audi/r8_gt_3ds.3ds"));
-            }
-        }
-
 //        loadModel(AppWrapper.class.getResource("/models/audi/r8_gt_3ds.3ds").toURI());
 //        loadModel(AppWrapper.class.getResource("/models/Baymax_White_BigHero6/Bigmax_White_OBJ.obj").toURI());
 
@@ -315,6 +456,7 @@ class ModelViewerScene implements Scene {
             int numCubesX = 10;
             int numCubesZ = 10;
             Material cubeMaterial = new Material("axis", Vector3.fill(1), Vector3.fill(1), Vector3.fill(1), 10);
+            sceneMaterials.add(cubeMaterial);
 
             // Cubes!
             for (int x = 0; x < numCubesX; x++)
@@ -330,12 +472,15 @@ class ModelViewerScene implements Scene {
                     Matrix4x4 scale = Matrix4x4.scale(0.1f); // to 0.05 box, taking up 25% of space
                     FancyCube cube = new FancyCube(pos, Optional.of(scale), Optional.empty(), cubeMaterial, texture,
                             specularMap);
+                    // Debug geometry, not worth a place in the shadow maps
+                    cube.setCastsShadows(false);
                     cubeModels.add(cube);
                 }
         }
 
         {
             Material axisMaterial = new Material("axis", Vector3.fill(1), Vector3.fill(1), Vector3.fill(1), 10);
+            sceneMaterials.add(axisMaterial);
             Matrix4x4 scale = Matrix4x4.scale(0.01f);
             // axis
             axisMarkers.add(new FancyCube(new Vector4(0, 0, 0, 1), Optional.of(scale), Optional.empty(),
@@ -377,13 +522,41 @@ class ModelViewerScene implements Scene {
             Optional<Matrix4x4> rotate = Optional.of(Matrix4x4.rotateAroundXAxis(90));
             // Want it -2 to 2
             Optional<Matrix4x4> scale = Optional.of(Matrix4x4.scale(4));
-            Vector4 pos = new Vector4(0, floorYOffset, 0, 1);
+            Vector4 pos = new Vector4(0, renderSettings.floorYOffset, 0, 1);
             Material material = new Material("dull", Vector3.fill(1), Vector3.fill(1), Vector3.fill(1), 16);
+            sceneMaterials.add(material);
             FancyQuad floor = new FancyQuad(pos, scale, rotate, material, floorTexture, floorTexture, 10);
+            // Nothing is below the floor for it to shadow, but shadows should fall on it
+            floor.setCastsShadows(false);
             quadModels.add(floor);
         }
 
-        camera = new CameraRotatingAroundOrigin();
+        uploadMaterials();
+
+        // Submit the shader variants for the current settings now, so the driver can compile them while the model loads
+        selectShaders();
+
+        // After the scene materials are known, so loading the model can add its materials after them
+        if (settings.drawModel) {
+            String lastModel = Persister.get("last_model");
+            if (lastModel != null) {
+                try {
+                    loadModel(new File(lastModel));
+                }
+                catch (IOException e) {
+                    Platform.runLater(() -> {
+                        Alert alert = new Alert(Alert.AlertType.ERROR);
+                        alert.setTitle("File cannot be loaded");
+                        alert.setContentText("The importer could not load this file, with error message: " + e.getLocalizedMessage());
+
+
+                        alert.showAndWait();
+                    });
+                }
+            } else {
+                loadModel(AppWrapper.class.getResource("/models/audi/r8_gt_3ds.3ds"));
+            }
+        }
 
     }
 
@@ -393,31 +566,77 @@ class ModelViewerScene implements Scene {
         float rotationDelta = 1.0f;
         float posDelta = 0.05f;
 
-        if (key == GLFW_KEY_UP) camera.rotateUp(rotationDelta);
-        else if (key == GLFW_KEY_DOWN) camera.rotateDown(rotationDelta);
-        else if (key == GLFW_KEY_LEFT) camera.rotateLeft(rotationDelta);
-        else if (key == GLFW_KEY_RIGHT) camera.rotateRight(rotationDelta);
-        else if (key == GLFW_KEY_W) camera.moveForward(posDelta);
-        else if (key == GLFW_KEY_S) camera.moveBackward(posDelta);
-        else if (key == GLFW_KEY_R) camera.moveUp(posDelta);
-        else if (key == GLFW_KEY_F) camera.moveDown(posDelta);
-        else if (key == GLFW_KEY_A) camera.moveLeft(posDelta);
-        else if (key == GLFW_KEY_D) camera.moveRight(posDelta);
+        // The camera belongs to the updater's thread, so moves are handed over
+        Consumer<CameraRotatingAroundOrigin> move = null;
+        if (key == GLFW_KEY_UP) move = orbit -> orbit.rotateUp(rotationDelta);
+        else if (key == GLFW_KEY_DOWN) move = orbit -> orbit.rotateDown(rotationDelta);
+        else if (key == GLFW_KEY_LEFT) move = orbit -> orbit.rotateLeft(rotationDelta);
+        else if (key == GLFW_KEY_RIGHT) move = orbit -> orbit.rotateRight(rotationDelta);
+        else if (key == GLFW_KEY_W) move = orbit -> orbit.moveForward(posDelta);
+        else if (key == GLFW_KEY_S) move = orbit -> orbit.moveBackward(posDelta);
+        else if (key == GLFW_KEY_R) move = orbit -> orbit.moveUp(posDelta);
+        else if (key == GLFW_KEY_F) move = orbit -> orbit.moveDown(posDelta);
+        else if (key == GLFW_KEY_A) move = orbit -> orbit.moveLeft(posDelta);
+        else if (key == GLFW_KEY_D) move = orbit -> orbit.moveRight(posDelta);
+        if (move != null) updater.input(move);
     }
 
     private Shader getMainShader() {
 //        if (debugShader) return shaders.debugShader;
-        return shaders.standardShader;
+        return mainShader;
+    }
+
+    // Picks the shader variants matching the current settings.  Each is compiled the first time it's needed.
+    private void selectShaders() {
+        // With clustered shading the point lights are drawn through the clusters instead
+        boolean clustered = lighting.useClusteredShading();
+        int pointLightMask = 0;
+        for (int i = 0; i < lighting.points.length; i++) {
+            if (lighting.points[i].isEnabled() && !clustered) pointLightMask |= 1 << i;
+        }
+        permutation = new ShaderPermutation(renderSettings.doLighting, lighting.directional.isEnabled(), pointLightMask,
+                renderSettings.shadowsEnabled, renderSettings.shadowFilter, renderSettings.layeredShadows,
+                shaders.cubeShadowsSupported, renderSettings.cascadedShadows, renderSettings.drawTextures, clustered,
+                false);
+        ShaderPermutation modelPermutation = renderSettings.deferredShading ? permutation.withStage(ShaderStage.GBUFFER) : permutation;
+        mainShader = shaders.standardShader(modelPermutation);
+        multiDrawMainShader = useMultiDraw()
+                ? Optional.of(shaders.standardShader(modelPermutation.withMultiDraw(true)))
+                : Optional.empty();
+        deferredLightingShader = renderSettings.deferredShading
+                ? Optional.of(shaders.standardShader(permutation.withStage(ShaderStage.DEFERRED_LIGHTING)))
+                : Optional.empty();
+    }
+
+    // The main shader plus its multi-draw and deferred lighting variants, which need the same per-frame uniforms
+    private List<Shader> getMainShaders() {
+        List<Shader> out = new ArrayList<>();
+        out.add(getMainShader());
+        multiDrawMainShader.ifPresent(out::add);
+        deferredLightingShader.ifPresent(out::add);
+        return out;
+    }
+
+    // Called from the UI's callbacks.  The GL thread sees the change from the next frame.
+    private RenderSettings changeSettings(Consumer<RenderSettings.Builder> change) {
+        return publishedSettings.updateAndGet(settings -> settings.with(change));
+    }
+
+    private boolean useMultiDraw() {
+        return renderSettings.multiDrawEnabled && multiDrawModel.isPresent();
     }
 
     @Override
     public void draw(AppParams params) {
+        renderSettings = publishedSettings.get();
+        shaders.finishReadyShaders();
         shaders.reset();
 
-        Vector4 floorPos = new Vector4(0, floorYOffset, 0, 1);
+        Vector4 floorPos = new Vector4(0, renderSettings.floorYOffset, 0, 1);
         quadModels.get(0).setPos(floorPos);
 
-        glClearColor(clearColourRed, clearColourGreen, clearColourBlue, 1.0f);
+        glClearColor(renderSettings.clearColourRed, renderSettings.clearColourGreen, renderSettings.clearColourBlue,
+                1.0f);
         glClear(GL_COLOR_BUFFER_BIT | GL_DEPTH_BUFFER_BIT);
 
         queued.forEach(blip -> {
@@ -425,130 +644,634 @@ class ModelViewerScene implements Scene {
         });
         queued.clear();
 
-        try (ShaderUse wrap = new ShaderUse(getMainShader())) {
-            wrap.shader.setBoolean("shadowsEnabled", shadowsEnabled);
-            wrap.shader.setBoolean("shadowsHighQuality", shadowsHighQuality);
-            wrap.shader.setFloat("shadowBiasMax", shadowsBiasMax);
-            wrap.shader.setFloat("shadowBiasMulti", shadowsBiasMulti);
-            wrap.shader.setBoolean("drawTextures", drawTextures);
-            wrap.shader.setBoolean("doLighting", doLighting);
+        selectShaders();
+
+        List<Model> cullable = new ArrayList<>(quadModels);
+        cullable.addAll(cubeModels);
+        if (meshes != null) cullable.addAll(Arrays.asList(meshes));
+        // The updater gets a copy, which stays as it is while it's being read
+        if (sceneBounds.update(cullable) || cullingBounds == null) {
+            cullingBounds = new SceneBounds();
+            cullingBounds.update(cullable);
         }
 
-        Matrix4x4 projectionMatrix = SceneUtils.createPerspectiveProjectionMatrix(params, projectionFar, projectionNear, projectionFov);
-        Matrix4x4 lightProjection = SceneUtils.createOrthoProjectionMatrix(orthoLeft, orthoRight, orthoTop, orthoBottom, orthoNear, orthoFar);
+        for (Shader mainShader : getMainShaders()) {
+            try (ShaderUse wrap = new ShaderUse(mainShader)) {
+                wrap.shader.setFloat("shadowBiasMax", renderSettings.shadowsBiasMax);
+                wrap.shader.setFloat("shadowBiasMulti", renderSettings.shadowsBiasMulti);
+            }
+        }
 
-        int textureToRender = lighting.directional.shadowTexture;
+        Matrix4x4 projectionMatrix = SceneUtils.createPerspectiveProjectionMatrix(params, renderSettings.projectionFar,
+                renderSettings.projectionNear, renderSettings.projectionFov);
+        // Draws the newest snapshot, culled again if it's from older inputs.  Any newer one the updater makes from these
+        // asks for another frame.
+        settings = updater.updateInputs(inputs -> inputs.withScene(cullingBounds, projectionMatrix));
+        FrameSnapshot frame = updater.snapshotFor(settings);
+        camera = frame.cameraAt(System.nanoTime());
+        // Frames between ticks show the camera somewhere new
+        if (frame.isCameraMoving()) RenderOnDemand.shared.request();
+        // Needed before the shadow passes, to skip the maps of lights that can't reach anything visible
+        boolean[] visible = frame.getVisible();
+        applyLightCulling(frame);
+        Matrix4x4 lightProjection = SceneUtils.createOrthoProjectionMatrix(renderSettings.orthoLeft,
+                renderSettings.orthoRight, renderSettings.orthoTop, renderSettings.orthoBottom, renderSettings.orthoNear,
+                renderSettings.orthoFar);
+
+        // In layer order, as in LayeredShadowMaps: the directional light then the point lights.  Null if disabled.
+        Matrix4x4[] lightSpaceMatrices = new Matrix4x4[LayeredShadowMaps.LAYERS];
         if (lighting.directional.isEnabled()) {
             Vector4 posToRenderFrom = (lighting.directional.direction.$times(-1)).toVector4();
-            renderSceneFromPosition(posToRenderFrom, lightProjection, "lightSpaceMatrixDir", lighting.directional
-                    .shadowMap);
+            lightSpaceMatrices[0] = lightSpaceMatrix(posToRenderFrom, lightProjection);
+            setMainShadersMatrix("lightSpaceMatrixDir", lightSpaceMatrices[0]);
         } else {
-            try (ShaderUse wrap = new ShaderUse(getMainShader())) {
-                wrap.shader.setMatrix("lightSpaceMatrixDir", Matrix4x4.identity());
-            }
+            setMainShadersMatrix("lightSpaceMatrixDir", Matrix4x4.identity());
         }
 
         for (int i = 0; i < lighting.points.length; i++) {
             PointLight light = lighting.points[i];
-            if (light.isEnabled()) {
+            // Lights drawn through the clusters have no shadows
+            if (light.isEnabled() && light.shadowMapInUse && !permutation.clusteredLights) {
                 Vector4 posToRenderFrom = light.pos.toVector4();
-                renderSceneFromPosition(posToRenderFrom, lightProjection, "lightSpaceMatrixes[" + i + "]", light
-                        .shadowMap);
+                lightSpaceMatrices[1 + i] = lightSpaceMatrix(posToRenderFrom, lightProjection);
+                setMainShadersMatrix("lightSpaceMatrixes[" + i + "]", lightSpaceMatrices[1 + i]);
             }
         }
 
+        // The main pass only reads the shadow maps if shadows are on, otherwise the graph culls the shadow passes
+        RenderGraph graph = new RenderGraph();
+        List<String> shadowMapsRead = new ArrayList<>();
+        int version = geometryVersion;
+        // Every shadow pass this frame, including any deferred to the FrameScheduler, multi-draws the same casters
+        if (useMultiDraw()) multiDrawModel.get().setShadowCasters(Model::castsShadows);
+
+        if (renderSettings.layeredShadows) {
+            lighting.layeredShadowMaps.configure(renderSettings.shadowBudgetMegabytes, renderSettings.shadowDepth16,
+                    permutation.cubeShadows);
+            if (permutation.cubeShadows) {
+                // The point lights get cubes instead, so the array only holds the directional light
+                Matrix4x4[] directionalOnly = new Matrix4x4[LayeredShadowMaps.LAYERS];
+                directionalOnly[0] = lightSpaceMatrices[0];
+                addLayeredShadowPass(graph, directionalOnly, version);
+                addCubeShadowPass(graph, version);
+                shadowMapsRead.add("shadowMapCubes");
+            }
+            else {
+                addLayeredShadowPass(graph, lightSpaceMatrices, version);
+            }
+            shadowMapsRead.add("shadowMapLayered");
+        }
+        else {
+            ShadowAtlas atlas = lighting.shadowAtlas;
+            atlas.configure(renderSettings.shadowBudgetMegabytes, renderSettings.shadowDepth16);
+
+            // The cascades replace the directional light's single map
+            ShadowCascades cascades = lighting.shadowCascades;
+            boolean cascaded = renderSettings.cascadedShadows && lightSpaceMatrices[0] != null;
+            List<ShadowMap> cascadeMaps = new ArrayList<>();
+            if (cascaded) {
+                cascades.update(lighting.directional.direction, camera.getMatrix(), camera.getPosition().toVector3(),
+                        renderSettings.projectionFov, (float) params.widthPixels / params.heightPixels,
+                        renderSettings.projectionNear, renderSettings.shadowDistance, renderSettings.cascadeCount,
+                        renderSettings.cascadeResolution);
+                cascadeMaps.addAll(Arrays.asList(cascades.maps).subList(0, cascades.getCount()));
+            }
+            else {
+                cascades.clear();
+            }
+
+            // Share the rest of the atlas out between the lights that need a shadow map this frame
+            List<Integer> layers = new ArrayList<>();
+            for (int layer = cascaded ? 1 : 0; layer < lightSpaceMatrices.length; layer++) {
+                if (lightSpaceMatrices[layer] != null) layers.add(layer);
+            }
+            List<ShadowMap> maps = new ArrayList<>();
+            float[] importances = new float[layers.size()];
+            for (int j = 0; j < layers.size(); j++) {
+                Light light = lightForLayer(layers.get(j));
+                maps.add(light.shadowMap);
+                importances[j] = shadowImportance(light);
+            }
+            atlas.assignTiles(cascadeMaps, renderSettings.cascadeResolution, maps, importances);
+
+            // The cascades follow the camera, so they're redrawn whenever it moves, straight away
+            for (int i = 0; i < cascadeMaps.size(); i++) {
+                String resource = "shadowMapCascade" + i;
+                addShadowPass(graph, resource, cascadeMaps.get(i), cascades.lightSpaceMatrices[i], version);
+                shadowMapsRead.add(resource);
+            }
+            for (int j = 0; j < layers.size(); j++) {
+                int layer = layers.get(j);
+                String resource = layer == 0 ? "shadowMapDir" : "shadowMapPoint" + (layer - 1);
+                String uniform = layer == 0 ? "lightSpaceMatrixDir" : "lightSpaceMatrixes[" + (layer - 1) + "]";
+                addAmortizedShadowPass(graph, params, resource, lightForLayer(layer).shadowMap,
+                        lightSpaceMatrices[layer], importances[j], shown -> setMainShadersMatrix(uniform, shown), version);
+                shadowMapsRead.add(resource);
+            }
+        }
+
+        RenderGraph.Pass mainPass = graph.addPass("main", () -> renderMainPass(params, projectionMatrix, visible))
+                .writes(RenderGraph.SCREEN);
+        if (renderSettings.shadowsEnabled) {
+            shadowMapsRead.forEach(mainPass::reads);
+        }
+
+        if (renderSettings.renderDepthFramebuffer) {
+            RenderGraph.Pass debugPass = graph.addPass("depth map debug", this::renderDepthMapQuad)
+                    .reads(RenderGraph.SCREEN)
+                    .writes(RenderGraph.SCREEN);
+            shadowMapsRead.forEach(debugPass::reads);
+        }
+
+        graph.execute(RenderGraph.SCREEN);
+    }
+
+    // visible is from visibleFrom the camera
+    private void renderMainPass(AppParams params, Matrix4x4 projectionMatrix, boolean[] visible) {
         // 2. then setup scene as normal with shadow mapping (using depth map)
+        lighting.upload();
+        if (permutation.clusteredLights) {
+            lighting.uploadClustered(sceneBounds.union(), camera.getMatrix(), projectionMatrix,
+                    renderSettings.projectionNear, renderSettings.projectionFar, params.widthPixels, params.heightPixels);
+        }
+
         glViewport(0, 0, params.widthPixels, params.heightPixels);
         glClear(GL_COLOR_BUFFER_BIT | GL_DEPTH_BUFFER_BIT);
 
-        {
-            Shader shader = getMainShader();
-            Matrix4x4 cameraTranslate = camera.getMatrix();
+        Shader shader = getMainShader();
+        Matrix4x4 cameraTranslate = camera.getMatrix();
 
-            try (ShaderUse wrap = new ShaderUse(shaders.basicFlatShader)) {
+        try (ShaderUse wrap = new ShaderUse(shaders.basicFlatShader)) {
+            wrap.shader.setMatrix("projectionMatrix", projectionMatrix);
+            wrap.shader.setMatrix("viewMatrix", cameraTranslate);
+        }
+
+
+        multiDrawMainShader.ifPresent(multiDrawShader -> {
+            try (ShaderUse wrap = new ShaderUse(multiDrawShader)) {
                 wrap.shader.setMatrix("projectionMatrix", projectionMatrix);
                 wrap.shader.setMatrix("viewMatrix", cameraTranslate);
+                wrap.shader.setVec3("viewPos", camera.getPosition().toVector3());
             }
+        });
 
+        Matrix4x4 projectionView = projectionMatrix.$times(cameraTranslate);
+        if (renderSettings.softwareOcclusionCulling) {
+            softwareOcclusion.render(sceneBounds, visible, settings::isDrawn, projectionView,
+                    camera.getPosition().toVector3(), (float) params.widthPixels / params.heightPixels);
+            visible = softwareOcclusion.cull(sceneBounds, visible, projectionView);
+        }
+
+        gpuCulledThisFrame = false;
+        // The UI thread can change it, and each timer's begin and end have to pair up
+        boolean timing = renderSettings.gpuTimers;
+        boolean deferred = deferredLightingShader.isPresent();
+        if (deferred) {
+            deferredRenderer.beginGBuffer(params.widthPixels, params.heightPixels);
+        }
+        if (renderSettings.depthPrePass) {
+            if (timing) depthPrePassTimer.begin();
+            renderDepthPrePass(projectionMatrix, cameraTranslate, visible);
+            if (timing) depthPrePassTimer.end();
+        }
 
-            try (ShaderUse wrap = new ShaderUse(shader)) {
+        if (timing) mainPassTimer.begin();
+        // Deferred shading draws them after lighting, as they'd otherwise go in the G-buffer
+        if (!deferred) renderMarkers();
+        try (ShaderUse wrap = new ShaderUse(shader)) {
+            wrap.shader.setMatrix("projectionMatrix", projectionMatrix);
+            wrap.shader.setMatrix("viewMatrix", cameraTranslate);
+
+            if (renderSettings.occlusionCulling) {
+                renderSceneOcclusionCulled(shader, multiDrawMainShader, visible, projectionView);
+            }
+            else {
+                renderScene(shader, multiDrawMainShader, visible, projectionView);
+            }
+
+        }
+        if (deferred) {
+            deferredRenderer.endGBuffer();
+            Shader lightingShader = deferredLightingShader.get();
+            try (ShaderUse wrap = new ShaderUse(lightingShader)) {
                 wrap.shader.setMatrix("projectionMatrix", projectionMatrix);
                 wrap.shader.setMatrix("viewMatrix", cameraTranslate);
+                wrap.shader.setVec3("viewPos", camera.getPosition().toVector3());
+                wrap.shader.setMatrix("inverseProjectionView", projectionView.inverse());
+            }
+            deferredRenderer.light(lightingShader);
+            deferredRenderer.copyDepthToScreen();
+            renderMarkers();
+        }
+        if (timing) {
+            mainPassTimer.end();
+            reportGpuTimings();
+        }
+
+        if (useGpuCulling() && renderSettings.gpuHiZ) {
+            gpuCulling.get().buildHiZ(params.widthPixels, params.heightPixels, projectionView);
+        }
+        else {
+            gpuCulling.ifPresent(GpuCulling::clearHiZ);
+        }
+    }
+
+    private static final int FRAMES_BETWEEN_TIMINGS = 300;
+
+    private void reportGpuTimings() {
+        if (++framesSinceTimings < FRAMES_BETWEEN_TIMINGS) return;
+        framesSinceTimings = 0;
+        System.out.println(String.format("GPU: depth pre-pass %.2fms, main pass %.2fms%s%s",
+                renderSettings.depthPrePass ? depthPrePassTimer.getAverageMs() : 0, mainPassTimer.getAverageMs(),
+                renderSettings.depthPrePass ? "" : " (pre-pass off)",
+                renderSettings.deferredShading ? " (deferred, G-buffer and lighting)" : ""));
+    }
 
-                renderScene(shader);
+    // Just depth, with the same depth-only drawing as the shadow passes, for the same models the main pass will draw
+    private void renderDepthPrePass(Matrix4x4 projectionMatrix, Matrix4x4 cameraTranslate, boolean[] visible) {
+        for (Shader prePassShader : new Shader[] { shaders.depthPrePassShader, shaders.depthPrePassMultiDrawShader.orElse(null) }) {
+            if (prePassShader == null) continue;
+            try (ShaderUse wrap = new ShaderUse(prePassShader)) {
+                wrap.shader.setMatrix("projectionMatrix", projectionMatrix);
+                wrap.shader.setMatrix("viewMatrix", cameraTranslate);
             }
         }
+        boolean gpuCulled = useGpuCulling() && useMultiDraw() && settings.drawModel;
+        if (gpuCulled) {
+            multiDrawModel.get().cullOnGpu(gpuCulling.get(), projectionMatrix.$times(cameraTranslate), renderSettings.gpuHiZ);
+            gpuCulledThisFrame = true;
+        }
+        glColorMask(false, false, false, false);
+        renderDepthOnly(shaders.depthPrePassShader, shaders.depthPrePassMultiDrawShader,
+                model -> isVisible(model, visible), multiDrawShader -> {
+                    MultiDrawModel model = multiDrawModel.get();
+                    if (gpuCulled) {
+                        model.drawDepthGpuCulled(multiDrawShader);
+                    }
+                    else {
+                        model.setVisible(mesh -> isVisible(mesh, visible));
+                        model.drawDepth(multiDrawShader);
+                    }
+                });
+        glColorMask(true, true, true, true);
+    }
 
-        if (renderDepthFramebuffer) {
-            // No need for depth as we're just drawing a quad
-            glDisable(GL_DEPTH_TEST);
-            try (ShaderUse su = new ShaderUse(shaders.renderDepthMapShader)) {
-//                int depthMapLocation = GL20.glGetUniformLocation(standardShader.getShaderId(), "depthMap");
-//                GL20.glUniformMatrix4fv(depthMapLocation, false, MatrixLwjgl.convertMatrixToBuffer(lightSpaceMatrix));
-                Texture texture = new TextureFromExisting(textureToRender);
+    // After a depth pre-pass, the floor, cubes and meshes are only shaded where they're exactly the nearest surface.
+    // Anything not in the pre-pass, like the light markers, has to be drawn outside this.
+    private void shadeAgainstPrePass(boolean enable) {
+        if (!renderSettings.depthPrePass) return;
+        glDepthFunc(enable ? GL_EQUAL : GL_LESS);
+        glDepthMask(!enable);
+    }
 
-                su.shader.setInt("depthMap", 5);
+    private boolean useGpuCulling() {
+        return renderSettings.gpuCullingEnabled && gpuCulling.isPresent();
+    }
+
+    // The multi-drawn meshes in the main pass.  With GPU culling visible is ignored, and the CPU does nothing per mesh.
+    private void drawMultiDrawModel(Shader multiDrawShader, Predicate<Mesh> visible, Matrix4x4 projectionView) {
+        MultiDrawModel model = multiDrawModel.get();
+        if (useGpuCulling()) {
+            if (!gpuCulledThisFrame) model.cullOnGpu(gpuCulling.get(), projectionView, renderSettings.gpuHiZ);
+            model.drawGpuCulled(multiDrawShader);
+        }
+        else {
+            model.setVisible(visible);
+            model.draw(multiDrawShader);
+        }
+    }
 
-                glActiveTexture(GL_TEXTURE5);
-                glBindTexture(GL_TEXTURE_2D, texture.getTextureId());
+    // Shows the whole shadow atlas, or with layeredShadows the renderDepthLayer layer of the array
+    private void renderDepthMapQuad() {
+        // No need for depth as we're just drawing a quad
+        glDisable(GL_DEPTH_TEST);
+        Shader shader = renderSettings.layeredShadows ? shaders.renderDepthMapLayeredShader : shaders.renderDepthMapShader;
+        try (ShaderUse su = new ShaderUse(shader)) {
+            su.shader.setInt("depthMap", 5);
+
+            glActiveTexture(GL_TEXTURE5);
+            if (renderSettings.layeredShadows) {
+                su.shader.setInt("layer", renderSettings.renderDepthLayer);
+                glBindTexture(GL_TEXTURE_2D_ARRAY, lighting.layeredShadowMaps.getTextureId());
+            }
+            else {
+                glBindTexture(GL_TEXTURE_2D, lighting.shadowAtlas.getTextureId());
+            }
 
-                FancyQuad quad = new FancyQuad(new Vector4(0, 0, 0, 1), Optional.empty(), Optional.empty(), null,
-                        texture, texture, 1.0f);
+            // The shader only reads depthMap, so the quad has no textures of its own
+            Texture none = new TextureFromExisting(0);
+            FancyQuad quad = new FancyQuad(new Vector4(0, 0, 0, 1), Optional.empty(), Optional.empty(), null,
+                    none, none, 1.0f);
 
-                quad.draw(null, null, su.shader);
+            quad.draw(null, null, su.shader);
+        }
+        glEnable(GL_DEPTH_TEST);
+    }
+
+    private void setMainShadersMatrix(String name, Matrix4x4 matrix) {
+        for (Shader mainShader : getMainShaders()) {
+            try (ShaderUse wrap = new ShaderUse(mainShader)) {
+                wrap.shader.setMatrix(name, matrix);
             }
-            glEnable(GL_DEPTH_TEST);
         }
+    }
+
+    // One entry per model in sceneBounds, true for those at least partly inside the view of projectionView
+    private boolean[] visibleFrom(Matrix4x4 projectionView) {
+        return settings.frustumCulling ? sceneBounds.cull(new Frustum(projectionView)) : sceneBounds.all();
+    }
+
+    // From the UI thread, which has just changed the lights
+    private void pointLightsChanged() {
+        updater.updateInputs(inputs -> inputs.withLights(lighting.points));
+    }
+
+    // Which point lights reach which models, worked out by the updater from each light's sphere of influence against
+    // the models' boxes, so each model is only shaded with the lights that reach it.  A light that can't reach anything
+    // visible doesn't get a shadow map this frame.
+    private void applyLightCulling(FrameSnapshot frame) {
+        for (int i = 0; i < sceneBounds.size(); i++) {
+            sceneBounds.get(i).lightMask = frame.getLightMask(i);
+        }
+        for (int i = 0; i < lighting.points.length; i++) {
+            lighting.points[i].shadowMapInUse = frame.isShadowMapInUse(i);
+        }
+        multiDrawModel.ifPresent(MultiDrawModel::updateLightMasks);
+    }
 
+    // Models that aren't in sceneBounds, like the axis markers, are always drawn
+    private static boolean isVisible(Model model, boolean[] visible) {
+        return model.boundsIndex < 0 || visible[model.boundsIndex];
+    }
 
+    // The light and axis markers, drawn with their own flat shader
+    private void renderMarkers() {
+        if (renderSettings.renderLightsEnabled) {
+            lighting.draw(null, null, null, camera);
+        }
+        if (renderSettings.drawAxisMarkers) {
+            axisMarkers.forEach(model -> model.draw(null, null, shaders.basicFlatShader));
+        }
     }
 
-    private void renderScene(Shader shader) {
+    // multiDrawShader is the variant of shader to use if the model can be drawn with multi-draw.  visible is from
+    // visibleFrom(projectionView).
+    private void renderScene(Shader shader, Optional<Shader> multiDrawShader, boolean[] visible, Matrix4x4 projectionView) {
         Matrix4x4 projectionMatrix = null;
         Matrix4x4 cameraTranslate = null;
         try (ShaderUse wrap = new ShaderUse(shader)) {
             wrap.shader.setVec3("viewPos", camera.getPosition().toVector3());
-            lighting.setupShader(wrap.shader);
 
-            if (renderLightsEnabled) {
-                lighting.draw(projectionMatrix, cameraTranslate, null, camera);
+            shadeAgainstPrePass(true);
+            if (settings.drawFloor) {
+                quadModels.stream().filter(model -> isVisible(model, visible))
+                        .forEach(model -> model.draw(projectionMatrix, cameraTranslate, wrap.shader));
             }
+            if (settings.drawCubes) {
+                cubeModels.stream().filter(model -> isVisible(model, visible))
+                        .forEach(model -> model.draw(projectionMatrix, cameraTranslate, wrap.shader));
+            }
+            if (settings.drawModel) {
+                if (useMultiDraw() && multiDrawShader.isPresent()) {
+                    drawMultiDrawModel(multiDrawShader.get(), mesh -> isVisible(mesh, visible), projectionView);
+                }
+                else if (meshes != null) {
+                    for (int i = 0; i < meshes.length; i++) {
+                        if (isVisible(meshes[i], visible)) {
+                            meshes[i].draw(projectionMatrix, cameraTranslate, wrap.shader);
+                        }
+                    }
+                }
+            }
+            shadeAgainstPrePass(false);
+        }
+    }
 
-            if (drawAxisMarkers) {
-                axisMarkers.forEach(model -> model.draw(projectionMatrix, cameraTranslate, shaders.basicFlatShader));
+    // As renderScene, but also skipping models hidden behind others.  Models that were visible last frame go first, so
+    // the depth buffer is mostly complete before the ones that were hidden are tested against it.  See OcclusionCulling.
+    private void renderSceneOcclusionCulled(Shader shader, Optional<Shader> multiDrawShader, boolean[] visible,
+                                            Matrix4x4 projectionView) {
+        Matrix4x4 projectionMatrix = null;
+        Matrix4x4 cameraTranslate = null;
+        Vector3 eye = camera.getPosition().toVector3();
+        occlusionQueries.beginFrame();
+
+        List<Model> candidates = new ArrayList<>();
+        if (settings.drawFloor) candidates.addAll(quadModels);
+        if (settings.drawCubes) candidates.addAll(cubeModels);
+        boolean multiDraw = settings.drawModel && useMultiDraw() && multiDrawShader.isPresent();
+        if (settings.drawModel && !multiDraw && meshes != null) candidates.addAll(Arrays.asList(meshes));
+        candidates.removeIf(model -> !isVisible(model, visible));
+
+        try (ShaderUse wrap = new ShaderUse(shader)) {
+            wrap.shader.setVec3("viewPos", eye);
+            shadeAgainstPrePass(true);
+
+            List<Model> hidden = new ArrayList<>();
+            for (Model model : candidates) {
+                if (occlusionQueries.wasOccluded(model)) hidden.add(model);
+                else occlusionQueries.drawWithQuery(model, () -> model.draw(projectionMatrix, cameraTranslate, wrap.shader));
             }
-            if (drawFloor) {
-                quadModels.forEach(model -> model.draw(projectionMatrix, cameraTranslate, wrap.shader));
+            if (multiDraw) {
+                drawMultiDrawModel(multiDrawShader.get(),
+                        mesh -> isVisible(mesh, visible) && !occlusionQueries.wasOccluded(mesh), projectionView);
             }
-            if (drawCubes) {
-                cubeModels.forEach(model -> model.draw(projectionMatrix, cameraTranslate, wrap.shader));
+
+            for (Model model : hidden) {
+                occlusionQueries.drawIfBoxVisible(model, projectionView, eye, renderSettings.depthPrePass,
+                        () -> model.draw(projectionMatrix, cameraTranslate, wrap.shader));
             }
-            if (drawModel) {
-                if (meshes != null) {
-                    for (int i = 0; i < meshes.length; i++) {
-                        meshes[i].draw(projectionMatrix, cameraTranslate, wrap.shader);
-                    }
+            // Multi-drawn meshes are decided a frame late, from their boxes against this frame's depth
+            if (multiDraw && !useGpuCulling()) {
+                for (Mesh mesh : meshes) {
+                    if (isVisible(mesh, visible)) occlusionQueries.queryBox(mesh, projectionView, eye, renderSettings.depthPrePass);
+                }
+            }
+            shadeAgainstPrePass(false);
+        }
+    }
+
+    // The shadow passes only need depth, so unlike renderScene this skips the lights, debug geometry, materials and
+    // textures, and anything that doesn't cast shadows.  visible is from visibleFrom the light.  The multi-drawn meshes
+    // aren't culled per light, but drawn from the casters set once for the frame, so the passes don't each re-upload
+    // the indirect commands.
+    private void renderShadowCasters(Shader shader, Optional<Shader> multiDrawShader, boolean[] visible) {
+        renderDepthOnly(shader, multiDrawShader, model -> model.castsShadows() && isVisible(model, visible),
+                multiDraw -> multiDrawModel.get().drawShadowCasters(multiDraw));
+    }
+
+    // Draws the floor, cubes and meshes that pass include with a depth-only shader.  Draws are sorted by VAO so each is
+    // bound once, with just the position attribute enabled.  The multi-drawn meshes are left to drawMultiDraw, given
+    // the multi-draw shader, which decides which of them to draw.
+    private void renderDepthOnly(Shader shader, Optional<Shader> multiDrawShader, Predicate<Model> include,
+                                 Consumer<Shader> drawMultiDraw) {
+        List<Model> casters = new ArrayList<>();
+        if (settings.drawFloor) casters.addAll(quadModels);
+        if (settings.drawCubes) casters.addAll(cubeModels);
+        if (settings.drawModel) {
+            if (useMultiDraw() && multiDrawShader.isPresent()) {
+                drawMultiDraw.accept(multiDrawShader.get());
+            }
+            else if (meshes != null) {
+                casters.addAll(Arrays.asList(meshes));
+            }
+        }
+        casters.removeIf(include.negate());
+        casters.sort(Comparator.comparingInt(Model::getVaoId));
+
+        try (ShaderUse wrap = new ShaderUse(shader)) {
+            int boundVao = -1;
+            for (Model model : casters) {
+                if (model.getVaoId() != boundVao) {
+                    boundVao = model.getVaoId();
+                    glBindVertexArray(boundVao);
+                    glEnableVertexAttribArray(0);
                 }
+                model.drawDepth(wrap.shader);
             }
+            glBindBuffer(GL_ELEMENT_ARRAY_BUFFER, 0);
+            glDisableVertexAttribArray(0);
+            glBindVertexArray(0);
+        }
+    }
+
+    private Light lightForLayer(int layer) {
+        return layer == 0 ? lighting.directional : lighting.points[layer - 1];
+    }
+
+    // Roughly the fraction of the screen the light affects, for sharing out the shadow atlas.  The directional light
+    // reaches everything, a point light only the sphere it can noticeably light.
+    private static final float MIN_SHADOW_IMPORTANCE = 1.0f / 64;
+
+    private float shadowImportance(Light light) {
+        if (!(light instanceof PointLight)) return 1.0f;
+        PointLight point = (PointLight) light;
+        float radius = point.influenceRadius();
+        // Nothing within reach to cast a shadow, so the smallest tile will do
+        if (sceneBounds.within(point.getPosition(), radius).stream().noneMatch(Model::castsShadows)) {
+            return MIN_SHADOW_IMPORTANCE;
         }
+        double distance = point.getPosition().$minus(camera.getPosition().toVector3()).length();
+        if (distance <= radius) return 1.0f;
+        double projected = radius / (distance * Math.tan(Math.toRadians(renderSettings.projectionFov / 2)));
+        return (float) Math.max(MIN_SHADOW_IMPORTANCE, Math.min(1.0, projected * projected));
     }
 
-    private void renderSceneFromPosition(Vector4 position, Matrix4x4 lightProjection, String shaderPosName, ShadowMap
-            shadowMap) {
+    private static Matrix4x4 lightSpaceMatrix(Vector4 position, Matrix4x4 lightProjection) {
 
         Matrix4x4 lightView = Matrix4x4.lookAt(position, new Vector4(0, 0, 0, 1), new Vector4(0, 1, 0, 1));
 
-        Matrix4x4 lightSpaceMatrix = lightProjection.$times(lightView);
+        return lightProjection.$times(lightView);
+    }
 
-        try (ShaderUse su = new ShaderUse(shaders.shadowGenShader)) {
-            shadowMap.setup(su.shader, lightSpaceMatrix);
+    // Culled if the map is unused or still up to date
+    private void addShadowPass(RenderGraph graph, String resource, ShadowMap shadowMap, Matrix4x4 lightSpaceMatrix,
+                               int version) {
+        ShadowAtlas atlas = lighting.shadowAtlas;
+        graph.addPass(resource, () -> renderShadowMap(shadowMap, lightSpaceMatrix, version))
+                .writes(resource)
+                .skipIf(() -> shadowMap.isUpToDate(lightSpaceMatrix, version, atlas));
+    }
 
-            renderScene(su.shader);
+    // As addShadowPass, but if the map is out of date and still holds an older rendering, and amortizeShadows is on,
+    // the redraw is left to the FrameScheduler, most important first, and the main pass is given the older matrix
+    // through showWith so it matches what's in the map until then.  Only for lights whose view doesn't depend on the
+    // camera, as their older renderings are only out of date where the scene has changed.
+    private void addAmortizedShadowPass(RenderGraph graph, AppParams params, String resource, ShadowMap shadowMap,
+                                        Matrix4x4 lightSpaceMatrix, float priority, Consumer<Matrix4x4> showWith,
+                                        int version) {
+        ShadowAtlas atlas = lighting.shadowAtlas;
+        graph.addPass(resource, () -> {
+            if (renderSettings.amortizeShadows && shadowMap.hasContents(atlas)) {
+                FrameScheduler.shared.submit(resource, priority, () -> {
+                    renderShadowMap(shadowMap, lightSpaceMatrix, version);
+                    // It runs after the frame has been drawn, so puts back the whole window's viewport for whatever
+                    // comes next
+                    glViewport(0, 0, params.widthPixels, params.heightPixels);
+                });
+                showWith.accept(shadowMap.getRenderedLightSpaceMatrix());
+            }
+            else {
+                renderShadowMap(shadowMap, lightSpaceMatrix, version);
+            }
+        })
+                .writes(resource)
+                .skipIf(() -> shadowMap.isUpToDate(lightSpaceMatrix, version, atlas));
+    }
+
+    // One pass filling every enabled light's layer
+    private void addLayeredShadowPass(RenderGraph graph, Matrix4x4[] lightSpaceMatrices, int version) {
+        LayeredShadowMaps maps = lighting.layeredShadowMaps;
+        graph.addPass("shadowMapLayered", () -> {
+            List<Shader> layeredShaders = new ArrayList<>();
+            layeredShaders.add(shaders.shadowGenLayeredShader);
+            shaders.shadowGenLayeredMultiDrawShader.ifPresent(layeredShaders::add);
+            maps.setup(lightSpaceMatrices, layeredShaders.toArray(new Shader[0]));
+
+            // Anything any of the lights can see
+            boolean[] visible = new boolean[sceneBounds.size()];
+            for (Matrix4x4 lightSpaceMatrix : lightSpaceMatrices) {
+                if (lightSpaceMatrix == null) continue;
+                boolean[] visibleToLight = visibleFrom(lightSpaceMatrix);
+                for (int i = 0; i < visible.length; i++) visible[i] |= visibleToLight[i];
+            }
+            renderShadowCasters(shaders.shadowGenLayeredShader, shaders.shadowGenLayeredMultiDrawShader, visible);
+            maps.markRendered(lightSpaceMatrices, version);
+
+            // Back to default framebugger (screen)
+            glBindFramebuffer(GL_FRAMEBUFFER, 0);
+        })
+                .writes("shadowMapLayered")
+                .skipIf(() -> maps.isUpToDate(lightSpaceMatrices, version));
+    }
+
+    // One pass filling the cube of every point light that needs a shadow this frame
+    private void addCubeShadowPass(RenderGraph graph, int version) {
+        LayeredShadowMaps maps = lighting.layeredShadowMaps;
+        // Null for the lights without one
+        Vector3[] positions = new Vector3[LayeredShadowMaps.CUBES];
+        float[] farPlanes = new float[LayeredShadowMaps.CUBES];
+        int cubeMask = 0;
+        for (int i = 0; i < lighting.points.length; i++) {
+            PointLight light = lighting.points[i];
+            if (light.isEnabled() && light.shadowMapInUse) {
+                positions[i] = light.pos;
+                farPlanes[i] = light.shadowFarPlane();
+                cubeMask |= 1 << i;
+            }
         }
+        int drawnMask = cubeMask;
+        graph.addPass("shadowMapCubes", () -> {
+            List<Shader> cubeShaders = new ArrayList<>();
+            shaders.shadowGenCubeShader.ifPresent(cubeShaders::add);
+            shaders.shadowGenCubeMultiDrawShader.ifPresent(cubeShaders::add);
+            maps.setupCubes(positions, farPlanes, cubeShaders.toArray(new Shader[0]));
+
+            // Anything in reach of the lights, in any direction, whether or not the camera can see it
+            boolean[] inReach = new boolean[sceneBounds.size()];
+            for (int i = 0; i < inReach.length; i++) inReach[i] = (sceneBounds.get(i).lightMask & drawnMask) != 0;
+            renderShadowCasters(shaders.shadowGenCubeShader.get(), shaders.shadowGenCubeMultiDrawShader, inReach);
+            maps.markCubesRendered(positions, farPlanes, version);
+
+            glBindFramebuffer(GL_FRAMEBUFFER, 0);
+        })
+                .writes("shadowMapCubes")
+                .skipIf(() -> maps.areCubesUpToDate(positions, farPlanes, version));
+    }
+
+    private void renderShadowMap(ShadowMap shadowMap, Matrix4x4 lightSpaceMatrix, int version) {
+        try (ShaderUse su = new ShaderUse(shaders.shadowGenShader)) {
+            shadowMap.setup(su.shader, lightSpaceMatrix, lighting.shadowAtlas);
 
-        try (ShaderUse wrap = new ShaderUse(getMainShader())) {
-            wrap.shader.setMatrix(shaderPosName, lightSpaceMatrix);
+            shaders.shadowGenMultiDrawShader.ifPresent(multiDrawShader -> {
+                try (ShaderUse wrap = new ShaderUse(multiDrawShader)) {
+                    wrap.shader.setMatrix("lightSpaceMatrix", lightSpaceMatrix);
+                }
+            });
+
+            renderShadowCasters(su.shader, shaders.shadowGenMultiDrawShader, visibleFrom(lightSpaceMatrix));
         }
+        shadowMap.markRendered(lightSpaceMatrix, version, lighting.shadowAtlas);
 
         // Back to default framebugger (screen)
         glBindFramebuffer(GL_FRAMEBUFFER, 0);
@@ -556,7 +1279,7 @@ class ModelViewerScene implements Scene {
 
 
     public void changeData(Mesh[] meshes, List<BlipUI> modelUi) {
-        this.meshes = meshes;
+        setMeshes(meshes);
         this.modelUI = modelUi;
     }
 }
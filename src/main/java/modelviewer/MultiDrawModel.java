@@ -0,0 +1,398 @@
+package modelviewer;
+
+import BasicModels.BoundingBox;
+import enterthematrix.Matrix4x4;
+import matrixlwjgl.MatrixLwjgl;
+import org.lwjgl.BufferUtils;
+
+import java.nio.ByteBuffer;
+import java.nio.FloatBuffer;
+import java.nio.IntBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Optional;
+import java.util.function.Predicate;
+
+import static org.lwjgl.opengl.GL11.*;
+import static org.lwjgl.opengl.GL13.GL_TEXTURE0;
+import static org.lwjgl.opengl.GL13.GL_TEXTURE1;
+import static org.lwjgl.opengl.GL13.glActiveTexture;
+import static org.lwjgl.opengl.GL15.*;
+import static org.lwjgl.opengl.GL20.glEnableVertexAttribArray;
+import static org.lwjgl.opengl.GL20.glVertexAttribPointer;
+import static org.lwjgl.opengl.GL30.*;
+import static org.lwjgl.opengl.GL40.GL_DRAW_INDIRECT_BUFFER;
+import static org.lwjgl.opengl.GL43.GL_SHADER_STORAGE_BUFFER;
+import static org.lwjgl.opengl.GL43.glClearBufferData;
+import static org.lwjgl.opengl.GL43.glMultiDrawElementsIndirect;
+import static org.lwjgl.opengl.ARBIndirectParameters.GL_PARAMETER_BUFFER_ARB;
+import static org.lwjgl.opengl.ARBIndirectParameters.glMultiDrawElementsIndirectCountARB;
+
+// All the meshes of a loaded model packed into one set of shared vertex and index buffers, so the whole model can be
+// submitted with glMultiDrawElementsIndirect instead of a glDrawElements plus uniform uploads per mesh.
+// The per-draw data (model matrix and MaterialBuffer index) lives in an SSBO that model_vertex.glsl indexes with each
+// command's baseInstance, so the materials must have been added to the MaterialBuffer first.
+// The draws can be culled on the CPU with setVisible, or on the GPU with cullOnGpu.  The shadow passes draw from a
+// command set of their own, see setShadowCasters.
+// Only usable when GpuFeatures.multiDrawIndirect(), otherwise the meshes are drawn one at a time as before.
+class MultiDrawModel {
+    // Must match the binding in the MULTI_DRAW sections of the shaders
+    static final int DRAW_DATA_BINDING = 0;
+
+    // std430 layout of DrawData: mat4 modelMatrix, int materialIndex, int lightMask, padded out to a multiple of 16
+    // bytes
+    private static final int DRAW_DATA_BYTES = 80, LIGHT_MASK_OFFSET = 68;
+    // DrawElementsIndirectCommand: count, instanceCount, firstIndex, baseVertex, baseInstance
+    private static final int COMMAND_BYTES = 5 * 4;
+    // std430 layout of CullInput in gpu_cull.comp: vec4 boundsMin, vec4 boundsMax, ivec4 command, ivec4 group
+    private static final int CULL_INPUT_BYTES = 64;
+
+    private final int VBO_INDEX_VERTICES = 0;
+    private final int VBO_INDEX_NORMALS = 1;
+    private final int VBO_INDEX_TEXTURE = 2;
+
+    private final int vaoId, vboVertices, vboNormals, vboTexCoords, vboIndices;
+    private final int drawDataBuffer;
+    private final int commandCount;
+    // The mesh behind each command
+    private final Mesh[] drawOrder;
+    // The main pass's commands, culled to the camera, and the shadow passes' commands, which draw every caster
+    private final CommandSet mainCommands, shadowCommands;
+    // The draw data as last uploaded, for updateLightMasks
+    private final ByteBuffer drawData;
+    private final List<DrawGroup> groups = new ArrayList<>();
+    // For cullOnGpu, created on first use: each draw's bounds and unculled command, the compacted commands, and the
+    // number of them in each group
+    private int cullInputBuffer = 0, culledCommandBuffer = 0, countBuffer = 0;
+
+    // An indirect buffer, and its commands as last uploaded.  Culled draws get an instance count of 0.
+    private static class CommandSet {
+        final IntBuffer commands;
+        final int buffer;
+
+        CommandSet(IntBuffer commands) {
+            this.commands = commands;
+            buffer = glGenBuffers();
+            glBindBuffer(GL_DRAW_INDIRECT_BUFFER, buffer);
+            glBufferData(GL_DRAW_INDIRECT_BUFFER, commands, GL_DYNAMIC_DRAW);
+            glBindBuffer(GL_DRAW_INDIRECT_BUFFER, 0);
+        }
+
+        // Only re-uploads if something changed since the last call
+        void setVisible(Mesh[] drawOrder, Predicate<Mesh> visible) {
+            boolean changed = false;
+            for (int i = 0; i < drawOrder.length; i++) {
+                int instanceCount = visible.test(drawOrder[i]) ? 1 : 0;
+                int index = i * COMMAND_BYTES / 4 + 1;
+                if (commands.get(index) != instanceCount) {
+                    commands.put(index, instanceCount);
+                    changed = true;
+                }
+            }
+            if (changed) {
+                glBindBuffer(GL_DRAW_INDIRECT_BUFFER, buffer);
+                glBufferSubData(GL_DRAW_INDIRECT_BUFFER, 0, commands);
+                glBindBuffer(GL_DRAW_INDIRECT_BUFFER, 0);
+            }
+        }
+    }
+
+    // A run of draws that share the same textures.  Textures can't change inside a multi-draw, so the main pass does
+    // one glMultiDrawElementsIndirect per group.  Untextured models end up as a single group.
+    private static class DrawGroup {
+        final int firstCommand;
+        int commandCount;
+        final Optional<TextureFromFile> diffuseTexture, specularTexture;
+
+        DrawGroup(int firstCommand, Optional<TextureFromFile> diffuseTexture, Optional<TextureFromFile> specularTexture) {
+            this.firstCommand = firstCommand;
+            this.diffuseTexture = diffuseTexture;
+            this.specularTexture = specularTexture;
+        }
+
+        boolean sharesTextures(Material material) {
+            return diffuseTexture.equals(firstTexture(material.getDiffuseTextures()))
+                    && specularTexture.equals(firstTexture(material.getSpecularTextures()));
+        }
+    }
+
+    MultiDrawModel(Mesh[] meshes) {
+        // Order the draws so meshes that share textures are next to each other
+        Mesh[] sorted = Arrays.copyOf(meshes, meshes.length);
+        Arrays.sort(sorted, Comparator
+                .comparingInt((Mesh m) -> textureId(m.getMaterial().getDiffuseTextures()))
+                .thenComparingInt(m -> textureId(m.getMaterial().getSpecularTextures())));
+        commandCount = sorted.length;
+        drawOrder = sorted;
+
+        int totalVertices = 0, totalIndices = 0;
+        for (Mesh mesh : sorted) {
+            totalVertices += mesh.getData().vertices.length / 3;
+            totalIndices += mesh.getData().indicesCount;
+        }
+
+        FloatBuffer vertices = BufferUtils.createFloatBuffer(totalVertices * 3);
+        FloatBuffer normals = BufferUtils.createFloatBuffer(totalVertices * 3);
+        FloatBuffer texCoords = BufferUtils.createFloatBuffer(totalVertices * 2);
+        IntBuffer indices = BufferUtils.createIntBuffer(totalIndices);
+        IntBuffer commands = BufferUtils.createIntBuffer(commandCount * COMMAND_BYTES / 4);
+        drawData = BufferUtils.createByteBuffer(commandCount * DRAW_DATA_BYTES);
+
+        int baseVertex = 0, firstIndex = 0;
+        for (int i = 0; i < sorted.length; i++) {
+            Mesh mesh = sorted[i];
+            MeshData data = mesh.getData();
+            int vertexCount = data.vertices.length / 3;
+
+            vertices.put(data.vertices);
+            // Every mesh has to fill its slice of each stream, even if it has no normals or tex coords of its own
+            if (data.normals != null) normals.put(data.normals);
+            else normals.position(normals.position() + vertexCount * 3);
+            if (data.texCoords != null) texCoords.put(data.texCoords);
+            else texCoords.position(texCoords.position() + vertexCount * 2);
+            // Indices stay relative to their mesh, baseVertex does the offsetting
+            indices.put(data.indices);
+
+            commands.put(mesh.getIndicesToDraw()).put(1).put(firstIndex).put(baseVertex).put(i);
+
+            Material material = mesh.getMaterial();
+            drawData.asFloatBuffer().put(MatrixLwjgl.convertMatrixToBuffer(mesh.getModelMatrix()));
+            drawData.position(drawData.position() + 16 * 4);
+            drawData.putInt(material.getBufferIndex()).putInt(mesh.lightMask).putInt(0).putInt(0);
+
+            if (groups.isEmpty() || !groups.get(groups.size() - 1).sharesTextures(material)) {
+                groups.add(new DrawGroup(i, firstTexture(material.getDiffuseTextures()), firstTexture(material.getSpecularTextures())));
+            }
+            groups.get(groups.size() - 1).commandCount++;
+
+            baseVertex += vertexCount;
+            firstIndex += data.indicesCount;
+        }
+
+        vertices.flip();
+        normals.flip();
+        texCoords.flip();
+        indices.flip();
+        commands.flip();
+        drawData.flip();
+
+        vaoId = glGenVertexArrays();
+        glBindVertexArray(vaoId);
+
+        vboVertices = createVertexStream(VBO_INDEX_VERTICES, vertices, 3);
+        vboNormals = createVertexStream(VBO_INDEX_NORMALS, normals, 3);
+        vboTexCoords = createVertexStream(VBO_INDEX_TEXTURE, texCoords, 2);
+
+        // Unlike Mesh, the index buffer is recorded in the VAO
+        vboIndices = glGenBuffers();
+        glBindBuffer(GL_ELEMENT_ARRAY_BUFFER, vboIndices);
+        glBufferData(GL_ELEMENT_ARRAY_BUFFER, indices, GL_STATIC_DRAW);
+
+        glBindVertexArray(0);
+        glBindBuffer(GL_ARRAY_BUFFER, 0);
+        glBindBuffer(GL_ELEMENT_ARRAY_BUFFER, 0);
+
+        IntBuffer shadowCasterCommands = BufferUtils.createIntBuffer(commands.capacity());
+        shadowCasterCommands.put(commands).flip();
+        commands.rewind();
+        mainCommands = new CommandSet(commands);
+        shadowCommands = new CommandSet(shadowCasterCommands);
+
+        drawDataBuffer = glGenBuffers();
+        glBindBuffer(GL_SHADER_STORAGE_BUFFER, drawDataBuffer);
+        glBufferData(GL_SHADER_STORAGE_BUFFER, drawData, GL_STATIC_DRAW);
+        glBindBuffer(GL_SHADER_STORAGE_BUFFER, 0);
+    }
+
+    private static int createVertexStream(int attribute, FloatBuffer data, int components) {
+        int vbo = glGenBuffers();
+        glBindBuffer(GL_ARRAY_BUFFER, vbo);
+        glBufferData(GL_ARRAY_BUFFER, data, GL_STATIC_DRAW);
+        glEnableVertexAttribArray(attribute);
+        glVertexAttribPointer(attribute, components, GL_FLOAT, false, 0, 0);
+        return vbo;
+    }
+
+    private static Optional<TextureFromFile> firstTexture(List<TextureFromFile> textures) {
+        return textures.isEmpty() ? Optional.empty() : Optional.of(textures.get(0));
+    }
+
+    private static int textureId(List<TextureFromFile> textures) {
+        return textures.isEmpty() ? -1 : textures.get(0).getTextureId();
+    }
+
+    private void bind(CommandSet commandSet) {
+        glBindVertexArray(vaoId);
+        glBindBuffer(GL_DRAW_INDIRECT_BUFFER, commandSet.buffer);
+        glBindBufferBase(GL_SHADER_STORAGE_BUFFER, DRAW_DATA_BINDING, drawDataBuffer);
+    }
+
+    private void unbind() {
+        glBindBuffer(GL_DRAW_INDIRECT_BUFFER, 0);
+        glBindVertexArray(0);
+    }
+
+    // Culled meshes get an instance count of 0, so the multi-draws skip them without the draw ranges changing.  The
+    // commands are only re-uploaded if something changed since the last call.
+    public void setVisible(Predicate<Mesh> visible) {
+        mainCommands.setVisible(drawOrder, visible);
+    }
+
+    // As setVisible, for drawShadowCasters.  Set once a frame rather than per light or cascade, so the shadow passes
+    // never re-upload commands between them, and as which meshes cast shadows rarely changes, usually not at all.
+    // Each light's depth test and clipping throw away what it can't see.
+    public void setShadowCasters(Predicate<Mesh> casts) {
+        shadowCommands.setVisible(drawOrder, casts);
+    }
+
+    // Copies each mesh's lightMask into its draw data.  Only the range of draws that changed is re-uploaded, which is
+    // usually nothing, as the masks only change when lights or meshes move.
+    void updateLightMasks() {
+        int first = -1, last = -1;
+        for (int i = 0; i < commandCount; i++) {
+            int offset = i * DRAW_DATA_BYTES + LIGHT_MASK_OFFSET;
+            if (drawData.getInt(offset) != drawOrder[i].lightMask) {
+                drawData.putInt(offset, drawOrder[i].lightMask);
+                if (first < 0) first = i;
+                last = i;
+            }
+        }
+        if (first < 0) return;
+        drawData.limit((last + 1) * DRAW_DATA_BYTES).position(first * DRAW_DATA_BYTES);
+        glBindBuffer(GL_SHADER_STORAGE_BUFFER, drawDataBuffer);
+        glBufferSubData(GL_SHADER_STORAGE_BUFFER, first * DRAW_DATA_BYTES, drawData);
+        glBindBuffer(GL_SHADER_STORAGE_BUFFER, 0);
+        drawData.clear();
+    }
+
+    // Draws with the MULTI_DRAW variant of the standard shader: one multi-draw per texture group
+    public void draw(Shader shader) {
+        drawGroups(shader, false, true);
+    }
+
+    // As draw, but just the draws that passed the last cullOnGpu
+    public void drawGpuCulled(Shader shader) {
+        drawGroups(shader, true, true);
+    }
+
+    private void drawGroups(Shader shader, boolean gpuCulled, boolean textures) {
+        try (ShaderUse wrap = new ShaderUse(shader)) {
+            bind(mainCommands);
+            if (gpuCulled) {
+                glBindBuffer(GL_DRAW_INDIRECT_BUFFER, culledCommandBuffer);
+                if (GpuFeatures.indirectCount()) glBindBuffer(GL_PARAMETER_BUFFER_ARB, countBuffer);
+            }
+
+            for (int g = 0; g < groups.size(); g++) {
+                DrawGroup group = groups.get(g);
+                if (textures && group.diffuseTexture.isPresent()) {
+                    glActiveTexture(GL_TEXTURE0);
+                    glBindTexture(GL_TEXTURE_2D, group.diffuseTexture.get().getTextureId());
+                }
+                if (textures && group.specularTexture.isPresent()) {
+                    glActiveTexture(GL_TEXTURE1);
+                    glBindTexture(GL_TEXTURE_2D, group.specularTexture.get().getTextureId());
+                }
+                long offset = (long) group.firstCommand * COMMAND_BYTES;
+                if (gpuCulled && GpuFeatures.indirectCount()) {
+                    glMultiDrawElementsIndirectCountARB(GL_TRIANGLES, GL_UNSIGNED_INT, offset, g * 4L, group.commandCount, 0);
+                }
+                else {
+                    // Without the count, the group's whole range is drawn.  The compacted commands are followed by
+                    // zeroed ones, which draw nothing.
+                    glMultiDrawElementsIndirect(GL_TRIANGLES, GL_UNSIGNED_INT, offset, group.commandCount, 0);
+                }
+            }
+            if (gpuCulled && GpuFeatures.indirectCount()) glBindBuffer(GL_PARAMETER_BUFFER_ARB, 0);
+            unbind();
+        }
+    }
+
+    // Draws with a MULTI_DRAW depth-only shader.  Textures don't matter for depth, so it's one call.
+    public void drawDepth(Shader shader) {
+        drawDepth(shader, mainCommands);
+    }
+
+    // As drawDepth, but the draws from the last setShadowCasters
+    public void drawShadowCasters(Shader shader) {
+        drawDepth(shader, shadowCommands);
+    }
+
+    private void drawDepth(Shader shader, CommandSet commandSet) {
+        try (ShaderUse wrap = new ShaderUse(shader)) {
+            bind(commandSet);
+            glMultiDrawElementsIndirect(GL_TRIANGLES, GL_UNSIGNED_INT, 0, commandCount, 0);
+            unbind();
+        }
+    }
+
+    // As drawDepth, but just the draws that passed the last cullOnGpu.  They're packed per group, so it's still a call
+    // per group.
+    public void drawDepthGpuCulled(Shader shader) {
+        drawGroups(shader, true, false);
+    }
+
+    // Replaces the compacted commands with those of the draws that pass culling's tests.  Nothing is read back, the
+    // results go straight to drawGpuCulled.
+    public void cullOnGpu(GpuCulling culling, Matrix4x4 projectionView, boolean hiZ) {
+        if (cullInputBuffer == 0) createCullingBuffers();
+
+        // Each group's draws are appended from its start
+        IntBuffer zero = BufferUtils.createIntBuffer(1);
+        glBindBuffer(GL_SHADER_STORAGE_BUFFER, countBuffer);
+        glClearBufferData(GL_SHADER_STORAGE_BUFFER, GL_R32UI, GL_RED_INTEGER, GL_UNSIGNED_INT, zero);
+        if (!GpuFeatures.indirectCount()) {
+            glBindBuffer(GL_SHADER_STORAGE_BUFFER, culledCommandBuffer);
+            glClearBufferData(GL_SHADER_STORAGE_BUFFER, GL_R32UI, GL_RED_INTEGER, GL_UNSIGNED_INT, zero);
+        }
+        glBindBuffer(GL_SHADER_STORAGE_BUFFER, 0);
+
+        glBindBufferBase(GL_SHADER_STORAGE_BUFFER, GpuCulling.CULL_INPUT_BINDING, cullInputBuffer);
+        glBindBufferBase(GL_SHADER_STORAGE_BUFFER, GpuCulling.COMMAND_BINDING, culledCommandBuffer);
+        glBindBufferBase(GL_SHADER_STORAGE_BUFFER, GpuCulling.COUNT_BINDING, countBuffer);
+        culling.cull(commandCount, projectionView, hiZ);
+    }
+
+    private void createCullingBuffers() {
+        ByteBuffer input = BufferUtils.createByteBuffer(commandCount * CULL_INPUT_BYTES);
+        for (int g = 0; g < groups.size(); g++) {
+            DrawGroup group = groups.get(g);
+            for (int i = group.firstCommand; i < group.firstCommand + group.commandCount; i++) {
+                BoundingBox box = drawOrder[i].getWorldBounds();
+                input.putFloat(box.minX()).putFloat(box.minY()).putFloat(box.minZ()).putFloat(0);
+                input.putFloat(box.maxX()).putFloat(box.maxY()).putFloat(box.maxZ()).putFloat(0);
+                IntBuffer commands = mainCommands.commands;
+                int command = i * COMMAND_BYTES / 4;
+                input.putInt(commands.get(command)).putInt(commands.get(command + 2)).putInt(commands.get(command + 3)).putInt(i);
+                input.putInt(g).putInt(group.firstCommand).putInt(0).putInt(0);
+            }
+        }
+        input.flip();
+
+        cullInputBuffer = glGenBuffers();
+        glBindBuffer(GL_SHADER_STORAGE_BUFFER, cullInputBuffer);
+        glBufferData(GL_SHADER_STORAGE_BUFFER, input, GL_STATIC_DRAW);
+        culledCommandBuffer = glGenBuffers();
+        glBindBuffer(GL_SHADER_STORAGE_BUFFER, culledCommandBuffer);
+        glBufferData(GL_SHADER_STORAGE_BUFFER, (long) commandCount * COMMAND_BYTES, GL_DYNAMIC_COPY);
+        countBuffer = glGenBuffers();
+        glBindBuffer(GL_SHADER_STORAGE_BUFFER, countBuffer);
+        glBufferData(GL_SHADER_STORAGE_BUFFER, (long) groups.size() * 4, GL_DYNAMIC_COPY);
+        glBindBuffer(GL_SHADER_STORAGE_BUFFER, 0);
+    }
+
+    public void delete() {
+        glDeleteVertexArrays(vaoId);
+        for (int buffer : new int[] { vboVertices, vboNormals, vboTexCoords, vboIndices, drawDataBuffer, mainCommands.buffer,
+                shadowCommands.buffer }) {
+            glDeleteBuffers(buffer);
+        }
+        if (cullInputBuffer != 0) {
+            for (int buffer : new int[] { cullInputBuffer, culledCommandBuffer, countBuffer }) {
+                glDeleteBuffers(buffer);
+            }
+        }
+    }
+}
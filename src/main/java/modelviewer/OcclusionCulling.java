@@ -0,0 +1,193 @@
+package modelviewer;
+
+import BasicModels.BoundingBox;
+import enterthematrix.Matrix4x4;
+import enterthematrix.Vector3;
+import org.lwjgl.BufferUtils;
+
+import java.nio.FloatBuffer;
+import java.nio.IntBuffer;
+import java.util.IdentityHashMap;
+import java.util.Map;
+
+import static org.lwjgl.opengl.GL11.*;
+import static org.lwjgl.opengl.GL15.*;
+import static org.lwjgl.opengl.GL20.glEnableVertexAttribArray;
+import static org.lwjgl.opengl.GL20.glVertexAttribPointer;
+import static org.lwjgl.opengl.GL30.*;
+import static org.lwjgl.opengl.GL33.GL_ANY_SAMPLES_PASSED;
+import static org.lwjgl.opengl.GL43.GL_ANY_SAMPLES_PASSED_CONSERVATIVE;
+
+// Skips drawing models in the main pass that are hidden behind others, using GPU occlusion queries.
+// A model that was visible last frame is drawn as normal, inside a query that says whether any of it survived the depth
+// test.  A model that was hidden is drawn after everything else: first its bounding box is drawn inside a query, without
+// writing colour or depth, and then the model is drawn with conditional rendering, which the GPU skips if no part of the
+// box passed.  So hidden models cost a box rather than the full lighting shader, and nothing waits on the CPU.
+// Multi-drawn meshes can't be queried or conditionally drawn one at a time, so they just have their boxes queried after
+// the pass, and the results decide what's multi-drawn next frame.
+// The queries aren't free, so each model tracks how often it's actually hidden and stops being tested for a while if it
+// rarely is, like the floor.
+class OcclusionCulling {
+    // Results per model before deciding whether its queries are worth it
+    private static final int WINDOW = 32;
+    // Hidden less often than this, and queries are switched off for the model...
+    private static final float MIN_OCCLUDED_RATE = 0.1f;
+    // ...for this many frames
+    private static final int BACKOFF_FRAMES = 240;
+    // The boxes are grown a little, so a box face lying exactly on the model's surface doesn't fail the depth test
+    private static final float BOX_MARGIN = 0.01f;
+
+    private static class State {
+        final int query = glGenQueries();
+        // Issued and not read back yet.  A query can't be reissued until it's been read.
+        boolean pending = false;
+        boolean occluded = false;
+        int tests = 0, occludedCount = 0;
+        int disabledFrames = 0;
+    }
+
+    // Conservative queries can stop early, as soon as any sample passes, but need GL 4.3 or ARB_ES3_compatibility
+    private final int queryTarget = GpuFeatures.conservativeOcclusionQueries()
+            ? GL_ANY_SAMPLES_PASSED_CONSERVATIVE : GL_ANY_SAMPLES_PASSED;
+    private final Map<Model, State> states = new IdentityHashMap<>();
+    private final Shader boxShader;
+    private final int boxVao, boxVertices, boxIndices;
+
+    // boxShader just needs to transform positions by lightSpaceMatrix * modelMatrix, like the shadow shader
+    OcclusionCulling(Shader boxShader) {
+        this.boxShader = boxShader;
+
+        FloatBuffer vertices = BufferUtils.createFloatBuffer(8 * 3);
+        for (int i = 0; i < 8; i++) {
+            vertices.put((i & 1) == 0 ? -0.5f : 0.5f).put((i & 2) == 0 ? -0.5f : 0.5f).put((i & 4) == 0 ? -0.5f : 0.5f);
+        }
+        vertices.flip();
+        IntBuffer indices = BufferUtils.createIntBuffer(36);
+        indices.put(new int[] {
+                0, 2, 1, 1, 2, 3,   4, 5, 6, 5, 7, 6,
+                0, 1, 4, 1, 5, 4,   2, 6, 3, 3, 6, 7,
+                0, 4, 2, 2, 4, 6,   1, 3, 5, 3, 7, 5 });
+        indices.flip();
+
+        boxVao = glGenVertexArrays();
+        glBindVertexArray(boxVao);
+        boxVertices = glGenBuffers();
+        glBindBuffer(GL_ARRAY_BUFFER, boxVertices);
+        glBufferData(GL_ARRAY_BUFFER, vertices, GL_STATIC_DRAW);
+        glEnableVertexAttribArray(0);
+        glVertexAttribPointer(0, 3, GL_FLOAT, false, 0, 0);
+        boxIndices = glGenBuffers();
+        glBindBuffer(GL_ELEMENT_ARRAY_BUFFER, boxIndices);
+        glBufferData(GL_ELEMENT_ARRAY_BUFFER, indices, GL_STATIC_DRAW);
+        glBindVertexArray(0);
+        glBindBuffer(GL_ARRAY_BUFFER, 0);
+        glBindBuffer(GL_ELEMENT_ARRAY_BUFFER, 0);
+    }
+
+    // Once a frame before the main pass.  Picks up whichever results are ready, without waiting for the rest.
+    void beginFrame() {
+        for (State state : states.values()) {
+            if (state.pending && glGetQueryObjecti(state.query, GL_QUERY_RESULT_AVAILABLE) == GL_TRUE) {
+                state.pending = false;
+                state.occluded = glGetQueryObjecti(state.query, GL_QUERY_RESULT) == 0;
+                state.tests++;
+                if (state.occluded) state.occludedCount++;
+                if (state.tests >= WINDOW) {
+                    if (state.occludedCount < state.tests * MIN_OCCLUDED_RATE) {
+                        state.disabledFrames = BACKOFF_FRAMES;
+                        state.occluded = false;
+                    }
+                    state.tests = 0;
+                    state.occludedCount = 0;
+                }
+            }
+            if (state.disabledFrames > 0) state.disabledFrames--;
+        }
+    }
+
+    // Frees the queries, e.g. when the model they were for is gone
+    void clear() {
+        states.values().forEach(state -> glDeleteQueries(state.query));
+        states.clear();
+    }
+
+    private State state(Model model) {
+        return states.computeIfAbsent(model, m -> new State());
+    }
+
+    boolean wasOccluded(Model model) {
+        State state = state(model);
+        return state.disabledFrames == 0 && state.occluded;
+    }
+
+    // For models that were visible last frame
+    void drawWithQuery(Model model, Runnable draw) {
+        State state = state(model);
+        if (state.disabledFrames > 0 || state.pending) {
+            draw.run();
+            return;
+        }
+        glBeginQuery(queryTarget, state.query);
+        draw.run();
+        glEndQuery(queryTarget);
+        state.pending = true;
+    }
+
+    // For models that were hidden last frame.  Only draws if the box passes the depth test.
+    void drawIfBoxVisible(Model model, Matrix4x4 projectionView, Vector3 eye, boolean afterPrePass, Runnable draw) {
+        State state = state(model);
+        if (!queryBox(model, projectionView, eye, afterPrePass)) {
+            draw.run();
+            return;
+        }
+        glBeginConditionalRender(state.query, GL_QUERY_WAIT);
+        draw.run();
+        glEndConditionalRender();
+    }
+
+    // Issues a query for the model's bounding box, against what's in the depth buffer now.  Returns false if it
+    // couldn't, and the model should be treated as visible: its query is still in flight, or the camera is inside the
+    // box, where the box's faces would be clipped away.
+    // afterPrePass is whether the pass is shading against a depth pre-pass, so has GL_EQUAL and depth writes off, which
+    // the box has to change and put back.  It's passed in rather than read back from GL, which would stall the pass.
+    boolean queryBox(Model model, Matrix4x4 projectionView, Vector3 eye, boolean afterPrePass) {
+        State state = state(model);
+        if (state.disabledFrames > 0 || state.pending) return false;
+
+        BoundingBox box = model.getWorldBounds();
+        float marginX = box.getWidth() * BOX_MARGIN + 0.0001f;
+        float marginY = box.getHeight() * BOX_MARGIN + 0.0001f;
+        float marginZ = box.getDepth() * BOX_MARGIN + 0.0001f;
+        if (eye.x() >= box.minX() - marginX && eye.x() <= box.maxX() + marginX
+                && eye.y() >= box.minY() - marginY && eye.y() <= box.maxY() + marginY
+                && eye.z() >= box.minZ() - marginZ && eye.z() <= box.maxZ() + marginZ) {
+            state.occluded = false;
+            return false;
+        }
+        Vector3 center = box.center();
+        Matrix4x4 boxMatrix = new Matrix4x4(
+                box.getWidth() + 2 * marginX, 0, 0, center.x(),
+                0, box.getHeight() + 2 * marginY, 0, center.y(),
+                0, 0, box.getDepth() + 2 * marginZ, center.z(),
+                0, 0, 0, 1);
+
+        // After a depth pre-pass the main pass tests for equal depths, which a box would never pass
+        try (ShaderUse su = new ShaderUse(boxShader)) {
+            su.shader.setMatrix("lightSpaceMatrix", projectionView);
+            su.shader.setMatrix("modelMatrix", boxMatrix);
+            glColorMask(false, false, false, false);
+            glDepthMask(false);
+            glDepthFunc(GL_LESS);
+            glBindVertexArray(boxVao);
+            glBeginQuery(queryTarget, state.query);
+            glDrawElements(GL_TRIANGLES, 36, GL_UNSIGNED_INT, 0);
+            glEndQuery(queryTarget);
+            glBindVertexArray(0);
+            glDepthFunc(afterPrePass ? GL_EQUAL : GL_LESS);
+            glDepthMask(!afterPrePass);
+            glColorMask(true, true, true, true);
+        }
+        state.pending = true;
+        return true;
+    }
+}
@@ -4,15 +4,17 @@ import enterthematrix.Matrix4x4;
 import enterthematrix.Vector3;
 import enterthematrix.Vector4;
 
-import static org.lwjgl.opengl.GL11.GL_TEXTURE_2D;
-import static org.lwjgl.opengl.GL11.glBindTexture;
-import static org.lwjgl.opengl.GL13.GL_TEXTURE21;
-import static org.lwjgl.opengl.GL13.glActiveTexture;
+import java.nio.ByteBuffer;
 
 class PointLight extends Light {
     private final CubeWithNormals cube;
     private final int index;
     Vector3 pos;
+    // Cleared for a frame when nothing visible is in reach, so the light's shadow map isn't drawn or read
+    boolean shadowMapInUse = true;
+    // A light that never fades would otherwise spread its cube's depth range over infinity
+    private static final float MAX_SHADOW_FAR_PLANE = 1000f;
+    private static final float MIN_SHADOW_FAR_PLANE = 0.01f;
 
     public float getConstant() {
         return constant;
@@ -56,35 +58,33 @@ class PointLight extends Light {
     }
 
     @Override
-    public void setupShader(Shader shader) {
-        assert (shader.isInUse());
-        String lightText = "pointLights[" + index + "]";
-        super.setupShaderImpl(shader, lightText);
-//        if (isEnabled()) {
-        shader.setVec3(lightText + ".position", pos);
-//            shader.setFloat(lightText + ".constant", 1.0f);
-//            shader.setFloat(lightText + ".linear", 0.05f);
-//            shader.setFloat(lightText + ".quadratic", 0.2f);
-        shader.setVec3(lightText + ".ambient", ambient);
-        shader.setVec3(lightText + ".diffuse", diffuse);
-        shader.setVec3(lightText + ".specular", specular);
-
-        shader.setFloat(lightText + ".constant", constant);
-        shader.setFloat(lightText + ".linear", linear);
-        shader.setFloat(lightText + ".quadratic", quadratic);
-        shader.setBoolean(lightText + ".shadowsEnabled", shadowsEnabled);
-
-//            if (shadowsEnabled) {
-        // Hardcoded constant is clumsy attempt to avoid stepping on the regular textures
-        shader.setInt(lightText + ".shadowMap", GL_TEXTURE21 + index);
-        glActiveTexture(GL_TEXTURE21 + index);
-
-//        shader.setInt(lightText +".shadowMap", index + 21);
-//        glActiveTexture(GL_TEXTURE6 + index);
-
-        glBindTexture(GL_TEXTURE_2D, shadowTexture);
-//            }
-//        }
+    void writeUniformData(ByteBuffer buffer) {
+        LightBuffer.putVec3(buffer, pos).putFloat(constant);
+        LightBuffer.putVec3(buffer, ambient).putFloat(linear);
+        LightBuffer.putVec3(buffer, diffuse).putFloat(quadratic);
+        LightBuffer.putBoolean(LightBuffer.putVec3(buffer, specular), isEnabled());
+        LightBuffer.putBoolean(buffer, shadowsEnabled && shadowMapInUse).putFloat(shadowFarPlane()).putInt(0).putInt(0);
+        shadowMap.writeAtlasRect(buffer);
+    }
+
+    // How far the light reaches before the most it can add to any colour channel drops below one 8-bit step.  At
+    // full strength that's where attenuation drops below 1/256, dimmer lights stop mattering sooner.
+    float influenceRadius() {
+        float brightest = Math.max(ambient.x() + diffuse.x() + specular.x(),
+                Math.max(ambient.y() + diffuse.y() + specular.y(), ambient.z() + diffuse.z() + specular.z()));
+        return influenceRadius(constant, linear, quadratic, 256 * brightest);
+    }
+
+    // How far the light's cube in the LayeredShadowMaps reaches.  Nothing further away is lit by it anyway.
+    float shadowFarPlane() {
+        return Math.max(MIN_SHADOW_FAR_PLANE, Math.min(influenceRadius(), MAX_SHADOW_FAR_PLANE));
+    }
+
+    // Where attenuation drops below 1 / threshold, solving constant + linear * d + quadratic * d^2 = threshold
+    static float influenceRadius(float constant, float linear, float quadratic, float threshold) {
+        if (threshold <= constant) return 0;
+        if (quadratic == 0) return linear == 0 ? Float.MAX_VALUE : (threshold - constant) / linear;
+        return (float) ((-linear + Math.sqrt(linear * linear - 4 * quadratic * (constant - threshold))) / (2 * quadratic));
     }
 
     @Override
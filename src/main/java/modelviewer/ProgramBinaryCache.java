@@ -0,0 +1,105 @@
+package modelviewer;
+
+import org.lwjgl.BufferUtils;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.IntBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Optional;
+
+import static org.lwjgl.opengl.GL11.*;
+import static org.lwjgl.opengl.GL20.*;
+import static org.lwjgl.opengl.GL41.*;
+
+// Linked programs saved to disk with glGetProgramBinary, so later launches can skip compiling the GLSL.  A binary is
+// only good for the driver that produced it, so the key is a hash of the sources plus the vendor, renderer and version.
+// Drivers can still reject a binary (e.g. after an update) in which case the caller compiles from source as normal.
+class ProgramBinaryCache {
+    private static final File CACHE_DIR = new File("shader_cache");
+    private static String driver;
+
+    static boolean isSupported() {
+        return GpuFeatures.programBinary();
+    }
+
+    static String key(String... sources) {
+        if (driver == null) {
+            driver = glGetString(GL_VENDOR) + "|" + glGetString(GL_RENDERER) + "|" + glGetString(GL_VERSION);
+        }
+        try {
+            MessageDigest digest = MessageDigest.getInstance("SHA-256");
+            digest.update(driver.getBytes(StandardCharsets.UTF_8));
+            for (String source : sources) {
+                digest.update((byte) 0);
+                digest.update(source.getBytes(StandardCharsets.UTF_8));
+            }
+            StringBuilder sb = new StringBuilder();
+            for (byte b : digest.digest()) {
+                sb.append(String.format("%02x", b));
+            }
+            return sb.toString();
+        } catch (NoSuchAlgorithmException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    // Returns a linked program if there's a binary for this key that the driver accepts
+    static Optional<Integer> load(String key) {
+        File file = new File(CACHE_DIR, key + ".bin");
+        if (!file.exists()) return Optional.empty();
+
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+            int format = in.readInt();
+            byte[] bytes = new byte[(int) file.length() - 4];
+            in.readFully(bytes);
+            ByteBuffer binary = BufferUtils.createByteBuffer(bytes.length);
+            binary.put(bytes).flip();
+
+            int program = glCreateProgram();
+            glProgramBinary(program, format, binary);
+            if (glGetProgrami(program, GL_LINK_STATUS) == 0) {
+                glDeleteProgram(program);
+                file.delete();
+                return Optional.empty();
+            }
+            return Optional.of(program);
+        } catch (IOException e) {
+            System.err.println("Could not read shader cache file " + file + ": " + e.getLocalizedMessage());
+            return Optional.empty();
+        }
+    }
+
+    // The program must have been linked with GL_PROGRAM_BINARY_RETRIEVABLE_HINT set
+    static void save(int program, String key) {
+        int length = glGetProgrami(program, GL_PROGRAM_BINARY_LENGTH);
+        if (length <= 0) return;
+
+        IntBuffer format = BufferUtils.createIntBuffer(1);
+        ByteBuffer binary = BufferUtils.createByteBuffer(length);
+        glGetProgramBinary(program, (IntBuffer) null, format, binary);
+        byte[] bytes = new byte[binary.remaining()];
+        binary.get(bytes);
+
+        CACHE_DIR.mkdirs();
+        File file = new File(CACHE_DIR, key + ".bin");
+        // Written to a temporary file first, so a crash can't leave a truncated binary behind
+        File temp = new File(CACHE_DIR, key + ".tmp");
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(temp)))) {
+            out.writeInt(format.get(0));
+            out.write(bytes);
+        } catch (IOException e) {
+            System.err.println("Could not write shader cache file " + file + ": " + e.getLocalizedMessage());
+            return;
+        }
+        try {
+            Files.move(temp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        } catch (IOException e) {
+            System.err.println("Could not write shader cache file " + file + ": " + e.getLocalizedMessage());
+        }
+    }
+}
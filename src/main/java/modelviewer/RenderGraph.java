@@ -0,0 +1,74 @@
+package modelviewer;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.function.BooleanSupplier;
+
+// The frame as a list of passes, each declaring the resources (shadow maps, the screen) it reads and writes.
+// Before anything runs, passes are culled if nothing wanted depends on what they write, or if what they wrote on an
+// earlier frame is still valid.  It's rebuilt every frame, since which passes exist depends on the current settings.
+class RenderGraph {
+    static final String SCREEN = "screen";
+
+    static class Pass {
+        final String name;
+        private final Runnable execute;
+        private final Set<String> reads = new HashSet<>();
+        private final Set<String> writes = new HashSet<>();
+        private BooleanSupplier upToDate = () -> false;
+
+        private Pass(String name, Runnable execute) {
+            this.name = name;
+            this.execute = execute;
+        }
+
+        Pass reads(String resource) {
+            reads.add(resource);
+            return this;
+        }
+
+        Pass writes(String resource) {
+            writes.add(resource);
+            return this;
+        }
+
+        // For passes whose output survives between frames, like shadow maps
+        Pass skipIf(BooleanSupplier upToDate) {
+            this.upToDate = upToDate;
+            return this;
+        }
+    }
+
+    private final List<Pass> passes = new ArrayList<>();
+
+    // Passes run in the order they're added, so add producers before consumers
+    Pass addPass(String name, Runnable execute) {
+        Pass pass = new Pass(name, execute);
+        passes.add(pass);
+        return pass;
+    }
+
+    // Runs the passes that contribute to any of outputs
+    void execute(String... outputs) {
+        // Walk backwards from the outputs, so a pass is live if a later live pass reads what it writes
+        Set<String> needed = new HashSet<>(Arrays.asList(outputs));
+        boolean[] live = new boolean[passes.size()];
+        for (int i = passes.size() - 1; i >= 0; i--) {
+            Pass pass = passes.get(i);
+            if (pass.writes.stream().anyMatch(needed::contains)) {
+                live[i] = true;
+                needed.addAll(pass.reads);
+            }
+        }
+
+        for (int i = 0; i < passes.size(); i++) {
+            Pass pass = passes.get(i);
+            if (live[i] && !pass.upToDate.getAsBoolean()) {
+                pass.execute.run();
+            }
+        }
+    }
+}
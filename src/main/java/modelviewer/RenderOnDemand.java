@@ -0,0 +1,61 @@
+package modelviewer;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+
+import static org.lwjgl.glfw.GLFW.glfwPostEmptyEvent;
+
+// Rather than redrawing the scene at vsync rate forever, the AppWrapper loop can draw only when something has marked
+// it dirty, and otherwise sleep in glfwWaitEvents, so an idle viewer uses next to no CPU or GPU.  Camera input,
+// settings changed through the UI, a finished model load and window resizes all mark it dirty.
+// Requests come from the GL thread, the GLFW callbacks and the UI thread, so this is thread safe.
+class RenderOnDemand {
+    static final RenderOnDemand shared = new RenderOnDemand();
+
+    // A request draws a couple of frames, as occlusion culling, Hi-Z and the GPU timers use the previous frame's
+    // results and would otherwise be left a frame behind
+    private static final int FRAMES_PER_REQUEST = 2;
+
+    private volatile boolean enabled = Persister.getOrElse("renderOnDemand", false);
+    // The first frames are always drawn
+    private final AtomicInteger framesWanted = new AtomicInteger(FRAMES_PER_REQUEST);
+
+    boolean isEnabled() {
+        return enabled;
+    }
+
+    void setEnabled(boolean enabled) {
+        this.enabled = enabled;
+        Persister.put("renderOnDemand", enabled);
+    }
+
+    void request() {
+        framesWanted.set(FRAMES_PER_REQUEST);
+        // Wakes the loop if it's waiting
+        glfwPostEmptyEvent();
+    }
+
+    // Whether the loop should draw a frame now, counting it off if so
+    boolean takeFrame() {
+        return framesWanted.getAndUpdate(frames -> Math.max(0, frames - 1)) > 0;
+    }
+
+    boolean isDirty() {
+        return framesWanted.get() > 0;
+    }
+
+    // For the UI's callbacks, which all change something that's drawn
+    Runnable after(Runnable callback) {
+        return () -> {
+            callback.run();
+            request();
+        };
+    }
+
+    <T> Consumer<T> after(Consumer<T> callback) {
+        return value -> {
+            callback.accept(value);
+            request();
+        };
+    }
+}
@@ -0,0 +1,247 @@
+package modelviewer;
+
+import java.util.function.Consumer;
+
+// The scene's render settings as one immutable value.  The UI makes a changed copy with with() and publishes it, see
+// ModelViewerScene.changeSettings, and the GL thread takes the newest once at the start of each frame, so a frame is
+// drawn with one consistent set of settings and the two threads never share anything mutable.
+// The settings the culling depends on are in FrameSnapshot.Inputs instead, and the lights' in ModelLighting.
+final class RenderSettings {
+    final boolean drawAxisMarkers;
+    final boolean renderDepthFramebuffer;
+    // Which of the LayeredShadowMaps renderDepthFramebuffer shows, as it can only show one at a time
+    final int renderDepthLayer;
+    final boolean renderLightsEnabled;
+    final boolean shadowsEnabled;
+    final ShadowFilter shadowFilter;
+    // All the shadow maps in one texture array drawn in a single pass, rather than a pass per light
+    final boolean layeredShadows;
+    // Total VRAM for the shadow maps, shared out between the lights.  64MB is a 4096x4096 atlas at 32 bits.
+    final int shadowBudgetMegabytes;
+    final boolean shadowDepth16;
+    // Out of date shadow maps that still hold an older rendering are redrawn by the FrameScheduler, a few per frame.
+    // Not the cascades, which follow the camera and are always redrawn straight away.
+    final boolean amortizeShadows;
+    // The directional light's shadow split along the camera's view, rather than one ortho box from the Camera Ortho
+    // settings.  Not available with layeredShadows.
+    final boolean cascadedShadows;
+    final int cascadeCount;
+    // Each cascade's atlas tile, in texels
+    final int cascadeResolution;
+    // How far from the camera the cascades reach
+    final float shadowDistance;
+    final float shadowsBiasMulti;
+    final float shadowsBiasMax;
+    final boolean drawTextures;
+    final boolean doLighting;
+    final boolean multiDrawEnabled;
+    // Skips models hidden behind others in the main pass, with GPU occlusion queries
+    final boolean occlusionCulling;
+    // The same but rasterizing the largest models on the CPU, so no GPU queries.  Can be used with occlusionCulling.
+    final boolean softwareOcclusionCulling;
+    // The multi-drawn meshes are culled by a compute shader instead of on the CPU, optionally against a Hi-Z pyramid of
+    // the last frame's depth
+    final boolean gpuCullingEnabled;
+    final boolean gpuHiZ;
+    // Lays down depth first, so the expensive lighting in the main pass only runs for the nearest fragment of each pixel
+    final boolean depthPrePass;
+    // Draws the models into a G-buffer and lights it in one full-screen pass, instead of lighting as they're drawn.  See
+    // DeferredRenderer.
+    final boolean deferredShading;
+    // Prints how long the GPU spends on the depth pre-pass and main pass every few seconds
+    final boolean gpuTimers;
+    final float floorYOffset;
+    final float clearColourRed;
+    final float clearColourGreen;
+    final float clearColourBlue;
+    final float projectionFar;
+    final float projectionNear;
+    final float projectionFov;
+    final float orthoTop;
+    final float orthoBottom;
+    final float orthoLeft;
+    final float orthoRight;
+    final float orthoNear;
+    final float orthoFar;
+
+    // A copy to change, from with()
+    static final class Builder {
+        boolean drawAxisMarkers;
+        boolean renderDepthFramebuffer;
+        int renderDepthLayer;
+        boolean renderLightsEnabled;
+        boolean shadowsEnabled;
+        ShadowFilter shadowFilter;
+        boolean layeredShadows;
+        int shadowBudgetMegabytes;
+        boolean shadowDepth16;
+        boolean amortizeShadows;
+        boolean cascadedShadows;
+        int cascadeCount;
+        int cascadeResolution;
+        float shadowDistance;
+        float shadowsBiasMulti;
+        float shadowsBiasMax;
+        boolean drawTextures;
+        boolean doLighting;
+        boolean multiDrawEnabled;
+        boolean occlusionCulling;
+        boolean softwareOcclusionCulling;
+        boolean gpuCullingEnabled;
+        boolean gpuHiZ;
+        boolean depthPrePass;
+        boolean deferredShading;
+        boolean gpuTimers;
+        float floorYOffset;
+        float clearColourRed;
+        float clearColourGreen;
+        float clearColourBlue;
+        float projectionFar;
+        float projectionNear;
+        float projectionFov;
+        float orthoTop;
+        float orthoBottom;
+        float orthoLeft;
+        float orthoRight;
+        float orthoNear;
+        float orthoFar;
+
+        private Builder() {
+        }
+
+        private Builder(RenderSettings from) {
+            drawAxisMarkers = from.drawAxisMarkers;
+            renderDepthFramebuffer = from.renderDepthFramebuffer;
+            renderDepthLayer = from.renderDepthLayer;
+            renderLightsEnabled = from.renderLightsEnabled;
+            shadowsEnabled = from.shadowsEnabled;
+            shadowFilter = from.shadowFilter;
+            layeredShadows = from.layeredShadows;
+            shadowBudgetMegabytes = from.shadowBudgetMegabytes;
+            shadowDepth16 = from.shadowDepth16;
+            amortizeShadows = from.amortizeShadows;
+            cascadedShadows = from.cascadedShadows;
+            cascadeCount = from.cascadeCount;
+            cascadeResolution = from.cascadeResolution;
+            shadowDistance = from.shadowDistance;
+            shadowsBiasMulti = from.shadowsBiasMulti;
+            shadowsBiasMax = from.shadowsBiasMax;
+            drawTextures = from.drawTextures;
+            doLighting = from.doLighting;
+            multiDrawEnabled = from.multiDrawEnabled;
+            occlusionCulling = from.occlusionCulling;
+            softwareOcclusionCulling = from.softwareOcclusionCulling;
+            gpuCullingEnabled = from.gpuCullingEnabled;
+            gpuHiZ = from.gpuHiZ;
+            depthPrePass = from.depthPrePass;
+            deferredShading = from.deferredShading;
+            gpuTimers = from.gpuTimers;
+            floorYOffset = from.floorYOffset;
+            clearColourRed = from.clearColourRed;
+            clearColourGreen = from.clearColourGreen;
+            clearColourBlue = from.clearColourBlue;
+            projectionFar = from.projectionFar;
+            projectionNear = from.projectionNear;
+            projectionFov = from.projectionFov;
+            orthoTop = from.orthoTop;
+            orthoBottom = from.orthoBottom;
+            orthoLeft = from.orthoLeft;
+            orthoRight = from.orthoRight;
+            orthoNear = from.orthoNear;
+            orthoFar = from.orthoFar;
+        }
+    }
+
+    private RenderSettings(Builder from) {
+        drawAxisMarkers = from.drawAxisMarkers;
+        renderDepthFramebuffer = from.renderDepthFramebuffer;
+        renderDepthLayer = from.renderDepthLayer;
+        renderLightsEnabled = from.renderLightsEnabled;
+        shadowsEnabled = from.shadowsEnabled;
+        shadowFilter = from.shadowFilter;
+        layeredShadows = from.layeredShadows;
+        shadowBudgetMegabytes = from.shadowBudgetMegabytes;
+        shadowDepth16 = from.shadowDepth16;
+        amortizeShadows = from.amortizeShadows;
+        cascadedShadows = from.cascadedShadows;
+        cascadeCount = from.cascadeCount;
+        cascadeResolution = from.cascadeResolution;
+        shadowDistance = from.shadowDistance;
+        shadowsBiasMulti = from.shadowsBiasMulti;
+        shadowsBiasMax = from.shadowsBiasMax;
+        drawTextures = from.drawTextures;
+        doLighting = from.doLighting;
+        multiDrawEnabled = from.multiDrawEnabled;
+        occlusionCulling = from.occlusionCulling;
+        softwareOcclusionCulling = from.softwareOcclusionCulling;
+        gpuCullingEnabled = from.gpuCullingEnabled;
+        gpuHiZ = from.gpuHiZ;
+        depthPrePass = from.depthPrePass;
+        deferredShading = from.deferredShading;
+        gpuTimers = from.gpuTimers;
+        floorYOffset = from.floorYOffset;
+        clearColourRed = from.clearColourRed;
+        clearColourGreen = from.clearColourGreen;
+        clearColourBlue = from.clearColourBlue;
+        projectionFar = from.projectionFar;
+        projectionNear = from.projectionNear;
+        projectionFov = from.projectionFov;
+        orthoTop = from.orthoTop;
+        orthoBottom = from.orthoBottom;
+        orthoLeft = from.orthoLeft;
+        orthoRight = from.orthoRight;
+        orthoNear = from.orthoNear;
+        orthoFar = from.orthoFar;
+    }
+
+    // As saved by the UI, or the defaults
+    static RenderSettings load() {
+        Builder builder = new Builder();
+        builder.drawAxisMarkers = Persister.getOrElse("drawAxisMarkers", false);
+        builder.renderDepthFramebuffer = Persister.getOrElse("renderDepthFramebuffer", false);
+        builder.renderDepthLayer = Persister.getOrElse("renderDepthLayer", 0);
+        builder.renderLightsEnabled = Persister.getOrElse("renderLightsEnabled", false);
+        builder.shadowsEnabled = Persister.getOrElse("shadowsEnabled", true);
+        builder.shadowFilter = ShadowFilter.valueOf(Persister.getOrElse("shadowFilter", ShadowFilter.PCF4.name()));
+        builder.layeredShadows = Persister.getOrElse("layeredShadows", false);
+        builder.shadowBudgetMegabytes = Persister.getOrElse("shadowBudgetMegabytes", 64);
+        builder.shadowDepth16 = Persister.getOrElse("shadowDepth16", false);
+        builder.amortizeShadows = Persister.getOrElse("amortizeShadows", true);
+        builder.cascadedShadows = Persister.getOrElse("cascadedShadows", true);
+        builder.cascadeCount = Persister.getOrElse("cascadeCount", 3);
+        builder.cascadeResolution = Persister.getOrElse("cascadeResolution", 1024);
+        builder.shadowDistance = Persister.getOrElse("shadowDistance", 10f);
+        builder.shadowsBiasMulti = Persister.getOrElse("shadowsBiasMulti", 0.05f);
+        builder.shadowsBiasMax = Persister.getOrElse("shadowsBiasMax", 0.00005f);
+        builder.drawTextures = Persister.getOrElse("drawTextures", true);
+        builder.doLighting = Persister.getOrElse("doLighting", true);
+        builder.multiDrawEnabled = Persister.getOrElse("multiDrawEnabled", true);
+        builder.occlusionCulling = Persister.getOrElse("occlusionCulling", true);
+        builder.softwareOcclusionCulling = Persister.getOrElse("softwareOcclusionCulling", false);
+        builder.gpuCullingEnabled = Persister.getOrElse("gpuCullingEnabled", false);
+        builder.gpuHiZ = Persister.getOrElse("gpuHiZ", false);
+        builder.depthPrePass = Persister.getOrElse("depthPrePass", false);
+        builder.deferredShading = Persister.getOrElse("deferredShading", false);
+        builder.gpuTimers = Persister.getOrElse("gpuTimers", false);
+        builder.floorYOffset = Persister.getOrElse("floorYOffset", -0.2f);
+        builder.clearColourRed = Persister.getOrElse("clearColourRed", 0f);
+        builder.clearColourGreen = Persister.getOrElse("clearColourGreen", 0f);
+        builder.clearColourBlue = Persister.getOrElse("clearColourBlue", 0f);
+        builder.projectionFar = Persister.getOrElse("projectionFar", 1000f);
+        builder.projectionNear = Persister.getOrElse("projectionNear", 0.001f);
+        builder.projectionFov = Persister.getOrElse("projectionFov", 90f);
+        builder.orthoTop = Persister.getOrElse("orthoTop", 1f);
+        builder.orthoBottom = Persister.getOrElse("orthoBottom", -1f);
+        builder.orthoLeft = Persister.getOrElse("orthoLeft", -1f);
+        builder.orthoRight = Persister.getOrElse("orthoRight", 1f);
+        builder.orthoNear = Persister.getOrElse("orthoNear", 0.001f);
+        builder.orthoFar = Persister.getOrElse("orthoFar", 1.5f);
+        return new RenderSettings(builder);
+    }
+
+    RenderSettings with(Consumer<Builder> change) {
+        Builder builder = new Builder(this);
+        change.accept(builder);
+        return new RenderSettings(builder);
+    }
+}
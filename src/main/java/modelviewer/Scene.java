@@ -17,8 +17,6 @@ interface Scene extends BlipHandler {
 
     abstract void keyPressedImpl(long window, int key, int scancode, int action, int mods);
     abstract public void draw(AppParams params);
-    default public void doOneTick(boolean automatic) {
-    }
 }
 
 class SceneUtils {
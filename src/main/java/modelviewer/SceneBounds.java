@@ -0,0 +1,226 @@
+package modelviewer;
+
+import BasicModels.BoundingBox;
+import enterthematrix.Vector3;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Optional;
+import java.util.function.IntConsumer;
+
+// World space bounding boxes and spheres of everything that can be culled, kept as structure-of-arrays so the tests
+// run down flat float arrays rather than chasing through Model objects, with a BoundingVolumeHierarchy over them so
+// queries skip whole regions of the scene at once.  The culling, lighting and (eventually) picking code all query
+// this rather than looping over models themselves.
+// Updated every frame: moved models just refit the hierarchy, it's only rebuilt when models are added or removed.
+class SceneBounds {
+    // Below this, splitting the tests across threads costs more than it saves
+    static final int PARALLEL_THRESHOLD = 4096;
+
+    private final List<Model> models = new ArrayList<>();
+    // Read directly by the hierarchy
+    float[] minX = new float[0], minY = new float[0], minZ = new float[0];
+    float[] maxX = new float[0], maxY = new float[0], maxZ = new float[0];
+    float[] centerX = new float[0], centerY = new float[0], centerZ = new float[0], radius = new float[0];
+    private final BoundingVolumeHierarchy hierarchy = new BoundingVolumeHierarchy(this);
+
+    // Each model's index here is stored in it, so its visibility can be looked up while drawing.  Returns whether
+    // anything was added, removed or moved.
+    boolean update(List<? extends Model> drawable) {
+        boolean sameModels = drawable.size() == models.size();
+        for (int i = 0; sameModels && i < drawable.size(); i++) {
+            sameModels = drawable.get(i) == models.get(i);
+        }
+        models.clear();
+        models.addAll(drawable);
+        int count = models.size();
+        if (minX.length < count) {
+            int capacity = Math.max(count, minX.length * 2);
+            minX = Arrays.copyOf(minX, capacity);
+            minY = Arrays.copyOf(minY, capacity);
+            minZ = Arrays.copyOf(minZ, capacity);
+            maxX = Arrays.copyOf(maxX, capacity);
+            maxY = Arrays.copyOf(maxY, capacity);
+            maxZ = Arrays.copyOf(maxZ, capacity);
+            centerX = Arrays.copyOf(centerX, capacity);
+            centerY = Arrays.copyOf(centerY, capacity);
+            centerZ = Arrays.copyOf(centerZ, capacity);
+            radius = Arrays.copyOf(radius, capacity);
+        }
+        List<Integer> moved = new ArrayList<>();
+        for (int i = 0; i < count; i++) {
+            Model model = models.get(i);
+            model.boundsIndex = i;
+            BoundingBox box = model.getWorldBounds();
+            if (box.minX() != minX[i] || box.minY() != minY[i] || box.minZ() != minZ[i]
+                    || box.maxX() != maxX[i] || box.maxY() != maxY[i] || box.maxZ() != maxZ[i]) {
+                moved.add(i);
+            }
+            minX[i] = box.minX();
+            minY[i] = box.minY();
+            minZ[i] = box.minZ();
+            maxX[i] = box.maxX();
+            maxY[i] = box.maxY();
+            maxZ[i] = box.maxZ();
+            centerX[i] = (box.minX() + box.maxX()) / 2;
+            centerY[i] = (box.minY() + box.maxY()) / 2;
+            centerZ[i] = (box.minZ() + box.maxZ()) / 2;
+            radius[i] = box.radius();
+        }
+
+        if (!sameModels) hierarchy.build();
+        else if (!moved.isEmpty()) hierarchy.refit(moved);
+        return !sameModels || !moved.isEmpty();
+    }
+
+    int size() {
+        return models.size();
+    }
+
+    Model get(int index) {
+        return models.get(index);
+    }
+
+    // One entry per model, true if it's at least partly inside the frustum.  With lots of models the top few levels
+    // of the hierarchy are shared out between threads.
+    boolean[] cull(Frustum frustum) {
+        boolean[] visible = new boolean[size()];
+        BoundingVolumeHierarchy.NodeTest nodeTest = (lx, ly, lz, hx, hy, hz) -> classify(frustum.planes, lx, ly, lz, hx, hy, hz);
+        if (visible.length >= PARALLEL_THRESHOLD) {
+            hierarchy.subtrees(4).parallelStream().forEach(subtree ->
+                    hierarchy.query(subtree, nodeTest, i -> isInside(frustum.planes, i), i -> visible[i] = true));
+        }
+        else {
+            hierarchy.query(nodeTest, i -> isInside(frustum.planes, i), i -> visible[i] = true);
+        }
+        return visible;
+    }
+
+    // Models whose boxes overlap box
+    List<Model> overlapping(BoundingBox box) {
+        List<Model> out = new ArrayList<>();
+        hierarchy.query((lx, ly, lz, hx, hy, hz) -> overlaps(box, lx, ly, lz, hx, hy, hz)
+                        ? BoundingVolumeHierarchy.INTERSECTS : BoundingVolumeHierarchy.OUTSIDE,
+                i -> overlaps(box, minX[i], minY[i], minZ[i], maxX[i], maxY[i], maxZ[i]),
+                i -> out.add(models.get(i)));
+        return out;
+    }
+
+    // Models whose boxes are at least partly within radius of center, e.g. what a point light can reach
+    List<Model> within(Vector3 center, float radius) {
+        List<Model> out = new ArrayList<>();
+        forEachWithin(center, radius, i -> out.add(models.get(i)));
+        return out;
+    }
+
+    // As within, but by index here, for when the models' own boundsIndex might belong to another SceneBounds
+    void forEachWithin(Vector3 center, float radius, IntConsumer found) {
+        hierarchy.query((lx, ly, lz, hx, hy, hz) -> distanceSquared(center, lx, ly, lz, hx, hy, hz) <= radius * radius
+                        ? BoundingVolumeHierarchy.INTERSECTS : BoundingVolumeHierarchy.OUTSIDE,
+                i -> distanceSquared(center, minX[i], minY[i], minZ[i], maxX[i], maxY[i], maxZ[i]) <= radius * radius,
+                found);
+    }
+
+    // The model whose box the ray from origin along direction enters first, for picking
+    Optional<Model> raycast(Vector3 origin, Vector3 direction) {
+        float[] nearest = { Float.MAX_VALUE };
+        int[] hit = { -1 };
+        hierarchy.query((lx, ly, lz, hx, hy, hz) -> rayEntry(origin, direction, lx, ly, lz, hx, hy, hz) < nearest[0]
+                        ? BoundingVolumeHierarchy.INTERSECTS : BoundingVolumeHierarchy.OUTSIDE,
+                i -> rayEntry(origin, direction, minX[i], minY[i], minZ[i], maxX[i], maxY[i], maxZ[i]) < nearest[0],
+                i -> {
+                    nearest[0] = rayEntry(origin, direction, minX[i], minY[i], minZ[i], maxX[i], maxY[i], maxZ[i]);
+                    hit[0] = i;
+                });
+        return hit[0] < 0 ? Optional.empty() : Optional.of(models.get(hit[0]));
+    }
+
+    // The box around everything, or an empty box at the origin if there's nothing
+    BoundingBox union() {
+        if (size() == 0) return new BoundingBox(0, 0, 0, 0, 0, 0);
+        float lx = Float.MAX_VALUE, ly = Float.MAX_VALUE, lz = Float.MAX_VALUE;
+        float hx = -Float.MAX_VALUE, hy = -Float.MAX_VALUE, hz = -Float.MAX_VALUE;
+        for (int i = 0; i < size(); i++) {
+            lx = Math.min(lx, minX[i]);
+            ly = Math.min(ly, minY[i]);
+            lz = Math.min(lz, minZ[i]);
+            hx = Math.max(hx, maxX[i]);
+            hy = Math.max(hy, maxY[i]);
+            hz = Math.max(hz, maxZ[i]);
+        }
+        return new BoundingBox(lx, hx, ly, hy, lz, hz);
+    }
+
+    // Everything visible, for when culling is off
+    boolean[] all() {
+        boolean[] visible = new boolean[size()];
+        Arrays.fill(visible, true);
+        return visible;
+    }
+
+    // For a box: whether it's outside one of the planes, inside all of them, or neither
+    private static int classify(float[] planes, float lx, float ly, float lz, float hx, float hy, float hz) {
+        int result = BoundingVolumeHierarchy.INSIDE;
+        for (int p = 0; p < planes.length; p += 4) {
+            float a = planes[p], b = planes[p + 1], c = planes[p + 2], d = planes[p + 3];
+            // The corners furthest along and against the plane's normal
+            float far = a * (a >= 0 ? hx : lx) + b * (b >= 0 ? hy : ly) + c * (c >= 0 ? hz : lz) + d;
+            if (far < 0) return BoundingVolumeHierarchy.OUTSIDE;
+            float near = a * (a >= 0 ? lx : hx) + b * (b >= 0 ? ly : hy) + c * (c >= 0 ? lz : hz) + d;
+            if (near < 0) result = BoundingVolumeHierarchy.INTERSECTS;
+        }
+        return result;
+    }
+
+    private static boolean overlaps(BoundingBox box, float lx, float ly, float lz, float hx, float hy, float hz) {
+        return lx <= box.maxX() && hx >= box.minX() && ly <= box.maxY() && hy >= box.minY()
+                && lz <= box.maxZ() && hz >= box.minZ();
+    }
+
+    private static float distanceSquared(Vector3 p, float lx, float ly, float lz, float hx, float hy, float hz) {
+        float dx = Math.max(Math.max(lx - p.x(), 0), p.x() - hx);
+        float dy = Math.max(Math.max(ly - p.y(), 0), p.y() - hy);
+        float dz = Math.max(Math.max(lz - p.z(), 0), p.z() - hz);
+        return dx * dx + dy * dy + dz * dz;
+    }
+
+    // Distance along the ray to where it enters the box (0 if it starts inside), Float.MAX_VALUE if it misses.
+    // The slab method: the ray is inside the box where it's between all three pairs of planes.
+    private static float rayEntry(Vector3 origin, Vector3 direction, float lx, float ly, float lz, float hx, float hy,
+                                  float hz) {
+        float[] o = { origin.x(), origin.y(), origin.z() };
+        float[] d = { direction.x(), direction.y(), direction.z() };
+        float[] lo = { lx, ly, lz };
+        float[] hi = { hx, hy, hz };
+        float enter = 0, exit = Float.MAX_VALUE;
+        for (int axis = 0; axis < 3; axis++) {
+            if (d[axis] == 0) {
+                if (o[axis] < lo[axis] || o[axis] > hi[axis]) return Float.MAX_VALUE;
+                continue;
+            }
+            float t1 = (lo[axis] - o[axis]) / d[axis];
+            float t2 = (hi[axis] - o[axis]) / d[axis];
+            enter = Math.max(enter, Math.min(t1, t2));
+            exit = Math.min(exit, Math.max(t1, t2));
+        }
+        return enter <= exit ? enter : Float.MAX_VALUE;
+    }
+
+    // The sphere test settles most objects.  Only ones straddling a plane need the tighter box test, which checks the
+    // box corner furthest along the plane's normal.
+    private boolean isInside(float[] planes, int i) {
+        for (int p = 0; p < planes.length; p += 4) {
+            float a = planes[p], b = planes[p + 1], c = planes[p + 2], d = planes[p + 3];
+            float distance = a * centerX[i] + b * centerY[i] + c * centerZ[i] + d;
+            if (distance < -radius[i]) return false;
+            if (distance < radius[i]) {
+                float x = a >= 0 ? maxX[i] : minX[i];
+                float y = b >= 0 ? maxY[i] : minY[i];
+                float z = c >= 0 ? maxZ[i] : minZ[i];
+                if (a * x + b * y + c * z + d < 0) return false;
+            }
+        }
+        return true;
+    }
+}
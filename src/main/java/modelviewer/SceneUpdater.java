@@ -0,0 +1,100 @@
+package modelviewer;
+
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.Consumer;
+import java.util.function.UnaryOperator;
+
+// Runs the camera and the CPU culling on a thread of their own, and hands the GL thread immutable FrameSnapshots, so
+// working out the next frame overlaps with the GL thread submitting the current one.  What the snapshots depend on is
+// changed with updateInputs, by the GL thread for the geometry and projection and by the UI for settings and lights,
+// and the GL thread draws from the newest snapshot with snapshotFor.  Each way is a single slot, an AtomicReference,
+// where a newer value replaces one that hasn't been picked up yet, so no thread ever waits for another.
+// Camera moves are queued with input and applied here.  This is the only place the simulation ticks: the camera ticks
+// at FrameClock's fixed rate while it's moving, and once it's settled and nothing has changed the thread sleeps, so
+// render on demand stays idle.
+class SceneUpdater {
+    private final CameraRotatingAroundOrigin camera = new CameraRotatingAroundOrigin();
+    // For snapshots made before this thread has made any
+    private final float[] initialCamera = camera.getState();
+    private final Queue<Consumer<CameraRotatingAroundOrigin>> moves = new ConcurrentLinkedQueue<>();
+    private final AtomicReference<FrameSnapshot.Inputs> inputs;
+    private final AtomicReference<FrameSnapshot> latest = new AtomicReference<>();
+    private final Thread thread = new Thread(this::run, "Scene update");
+
+    SceneUpdater(FrameSnapshot.Inputs initialInputs) {
+        inputs = new AtomicReference<>(initialInputs);
+        // Doesn't hold up exiting
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    // From any thread
+    void input(Consumer<CameraRotatingAroundOrigin> move) {
+        moves.add(move);
+        LockSupport.unpark(thread);
+    }
+
+    // From any thread.  Only wakes this thread if something has changed.  Returns the new inputs.
+    FrameSnapshot.Inputs updateInputs(UnaryOperator<FrameSnapshot.Inputs> change) {
+        FrameSnapshot.Inputs before, after;
+        do {
+            before = inputs.get();
+            after = change.apply(before);
+        } while (!inputs.compareAndSet(before, after));
+        if (!after.equals(before)) LockSupport.unpark(thread);
+        return after;
+    }
+
+    // The settings as they are now, from any thread
+    FrameSnapshot.Inputs getInputs() {
+        return inputs.get();
+    }
+
+    // The newest snapshot, for the GL thread to draw.  If it was made from different inputs, which happens for a frame
+    // after anything changes, its camera is culled again here against forInputs, so nothing stale is drawn.
+    FrameSnapshot snapshotFor(FrameSnapshot.Inputs forInputs) {
+        FrameSnapshot newest = latest.get();
+        if (newest != null && newest.inputs.equals(forInputs)) return newest;
+        if (newest != null) return newest.withInputs(forInputs);
+        return FrameSnapshot.build(forInputs, initialCamera, initialCamera, System.nanoTime());
+    }
+
+    private void run() {
+        FrameClock.Ticks ticks = new FrameClock.Ticks();
+        long lastNanos = System.nanoTime(), lastTickNanos = lastNanos;
+        boolean settled = true;
+        while (true) {
+            Consumer<CameraRotatingAroundOrigin> move;
+            while ((move = moves.poll()) != null) {
+                move.accept(camera);
+            }
+
+            long now = System.nanoTime();
+            if (camera.isMoving()) {
+                // Starts ticking straight away when a move comes in after the camera has settled
+                if (settled) ticks.reset();
+                int due = ticks.advance(settled ? FrameClock.TICK_NANOS : now - lastNanos);
+                for (int i = 0; i < due; i++) {
+                    camera.tick(FrameClock.TICK_SECONDS);
+                }
+                if (due > 0) lastTickNanos = now - ticks.getRemainderNanos();
+            }
+            lastNanos = now;
+            settled = !camera.isMoving();
+
+            FrameSnapshot.Inputs current = inputs.get();
+            FrameSnapshot newest = latest.get();
+            float[] previousState = camera.getPreviousState(), state = camera.getState();
+            if (current.bounds != null && (newest == null || !newest.inputs.equals(current) || !newest.sameCamera(previousState, state))) {
+                latest.set(FrameSnapshot.build(current, previousState, state, lastTickNanos));
+                RenderOnDemand.shared.request();
+            }
+
+            if (camera.isMoving()) LockSupport.parkNanos(this, lastTickNanos + FrameClock.TICK_NANOS - System.nanoTime());
+            else LockSupport.park(this);
+        }
+    }
+}
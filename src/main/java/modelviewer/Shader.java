@@ -4,8 +4,17 @@ import Useful.ShaderUtils;
 import enterthematrix.Matrix4x4;
 import enterthematrix.Vector3;
 import matrixlwjgl.MatrixLwjgl;
+import org.lwjgl.opengl.ARBParallelShaderCompile;
+import org.lwjgl.opengl.GL;
+import org.lwjgl.opengl.GL11;
 import org.lwjgl.opengl.GL20;
+import org.lwjgl.opengl.GL31;
+import org.lwjgl.opengl.GL41;
+import org.lwjgl.opengl.GLCapabilities;
+import org.lwjgl.opengl.KHRParallelShaderCompile;
 import org.lwjgl.opengl.GL32;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
 import java.util.*;
 
@@ -144,11 +153,24 @@ class ShaderVariableUse {
 }
 
 public class Shader {
+    private static final Logger log = LoggerFactory.getLogger(Shader.class);
+
     public int getShaderId() {
+        finish();
         return shaderProgram;
     }
 
     private final int shaderProgram;
+    // Until the program is finished these are the shader objects still being compiled, if it was built from source
+    private int vertexShader, fragmentShader, geometryShader;
+    private final String cacheKey;
+    // Time spent submitting the compile and link or loading the binary, and then waiting for the results.  Not the
+    // time in between, when the driver may be compiling in the background while we get on with other work.
+    private long workNanos;
+    private final boolean fromCache;
+    private boolean finished = false;
+    private final List<Runnable> onReady = new ArrayList<>();
+    private static Boolean parallelCompile;
     private boolean inUse = false;
     private final String vtxFilename;
     private final String fragFilename;
@@ -168,21 +190,74 @@ public class Shader {
         return new Shader(vertexResourceFilename, fragmentResourceFilename, geometryResourceFilename, ignoreUnknownVariables, logErrors);
     }
 
+    // A variant of the shader compiled with a different GLSL version and some extra #defines, for optional features
+    // that need a newer GL than the 3.3 baseline
+    public static Shader createVariant(String vertexResourceFilename, String fragmentResourceFilename, boolean ignoreUnknownVariables, String glslVersion, String... defines) {
+        return new Shader(vertexResourceFilename, fragmentResourceFilename, Optional.empty(), ignoreUnknownVariables, false, glslVersion, Arrays.asList(defines));
+    }
+
+    public static Shader createVariant(String vertexResourceFilename, String fragmentResourceFilename, Optional<String> geometryResourceFilename, boolean ignoreUnknownVariables, String glslVersion, String... defines) {
+        return new Shader(vertexResourceFilename, fragmentResourceFilename, geometryResourceFilename, ignoreUnknownVariables, false, glslVersion, Arrays.asList(defines));
+    }
+
     public Shader(String vertexResourceFilename, String fragmentResourceFilename, Optional<String> geometryResourceFilename, boolean ignoreUnknownVariables, boolean logErrors) {
+        this(vertexResourceFilename, fragmentResourceFilename, geometryResourceFilename, ignoreUnknownVariables, logErrors, null, Collections.emptyList());
+    }
+
+    public Shader(String vertexResourceFilename, String fragmentResourceFilename, Optional<String> geometryResourceFilename, boolean ignoreUnknownVariables, boolean logErrors, String glslVersion, List<String> defines) {
         this.vtxFilename = vertexResourceFilename;
         this.fragFilename = fragmentResourceFilename;
 //        this.ignoreUnknownVariables = ignoreUnknownVariables;
         variables = new ShaderVariableUse(vtxFilename, fragFilename, geometryResourceFilename, ignoreUnknownVariables, logErrors);
-        // Load the vertex shader
-        int vertexShader = ShaderUtils.loadShader(AppWrapper.class.getResource(vertexResourceFilename), GL20.GL_VERTEX_SHADER);
-        // Load the fragment shader
-        int fragmentShader = ShaderUtils.loadShader(AppWrapper.class.getResource(fragmentResourceFilename), GL20.GL_FRAGMENT_SHADER);
+        enableParallelCompile();
+        String vertexSource = ShaderUtils.readShaderSource(AppWrapper.class.getResource(vertexResourceFilename), glslVersion, defines);
+        String fragmentSource = ShaderUtils.readShaderSource(AppWrapper.class.getResource(fragmentResourceFilename), glslVersion, defines);
+        String geometrySource = geometryResourceFilename
+                .map(filename -> ShaderUtils.readShaderSource(AppWrapper.class.getResource(filename), glslVersion, defines))
+                .orElse("");
+
+        long startNanos = System.nanoTime();
+        // Try the binary cache first, as that skips compiling and linking entirely
+        cacheKey = ProgramBinaryCache.isSupported() ? ProgramBinaryCache.key(vertexSource, fragmentSource, geometrySource) : null;
+        Optional<Integer> cached = cacheKey != null ? ProgramBinaryCache.load(cacheKey) : Optional.empty();
+        fromCache = cached.isPresent();
+        if (fromCache) {
+            shaderProgram = cached.get();
+        }
+        else {
+            // Only submits the compile and link.  The results aren't checked until finish(), so the driver can work on
+            // several programs at once.
+            vertexShader = ShaderUtils.submitShader(vertexSource, GL20.GL_VERTEX_SHADER);
+            fragmentShader = ShaderUtils.submitShader(fragmentSource, GL20.GL_FRAGMENT_SHADER);
+            geometryShader = geometryResourceFilename.isPresent() ? ShaderUtils.submitShader(geometrySource, GL32.GL_GEOMETRY_SHADER) : 0;
+            shaderProgram = submitLink(vertexShader, fragmentShader, geometryShader, cacheKey != null);
+        }
+        workNanos = System.nanoTime() - startNanos;
+    }
 
+    // With KHR_parallel_shader_compile the driver compiles on its own threads, and we can ask whether it's done
+    // without blocking.  Without it, compiles still get queued up but finish() will just wait.
+    private static void enableParallelCompile() {
+        if (parallelCompile == null) {
+            GLCapabilities caps = GL.getCapabilities();
+            parallelCompile = caps.GL_KHR_parallel_shader_compile || caps.GL_ARB_parallel_shader_compile;
+            if (caps.GL_KHR_parallel_shader_compile) {
+                KHRParallelShaderCompile.glMaxShaderCompilerThreadsKHR(0xFFFFFFFF);
+            }
+            else if (caps.GL_ARB_parallel_shader_compile) {
+                ARBParallelShaderCompile.glMaxShaderCompilerThreadsARB(0xFFFFFFFF);
+            }
+        }
+    }
 
+    private static int submitLink(int vertexShader, int fragmentShader, int geometryShader, boolean retrievable) {
         // Final steps to use the shaders
-        shaderProgram = glCreateProgram();
+        int shaderProgram = glCreateProgram();
         glAttachShader(shaderProgram, vertexShader);
             glAttachShader(shaderProgram, fragmentShader);
+        if (geometryShader != 0) {
+            glAttachShader(shaderProgram, geometryShader);
+        }
 
         // Position information will be attribute 0
         GL20.glBindAttribLocation(shaderProgram, 0, "aPos");
@@ -196,17 +271,70 @@ public class Shader {
 //            glAttachShader(shaderProgram, geometryShader);
 //        }
 
+        if (retrievable) {
+            // Tells the driver we'll want the binary for the ProgramBinaryCache
+            GL41.glProgramParameteri(shaderProgram, GL41.GL_PROGRAM_BINARY_RETRIEVABLE_HINT, GL11.GL_TRUE);
+        }
+
         glLinkProgram(shaderProgram);
-        GL20.glValidateProgram(shaderProgram);
+        return shaderProgram;
+    }
 
-        if (glGetProgrami(shaderProgram, GL_LINK_STATUS) == 0) {
-            String error = glGetProgramInfoLog(shaderProgram);
-            System.err.println("Failed to link shader: " + error);
+    // True if finish() won't block
+    public boolean isReady() {
+        if (finished || fromCache || !parallelCompile) return true;
+        return glGetProgrami(shaderProgram, KHRParallelShaderCompile.GL_COMPLETION_STATUS_KHR) == GL11.GL_TRUE;
+    }
+
+    // Checks the compile and link results, which blocks if the driver is still working on them, then runs anything
+    // that was waiting for the program.  Called automatically before the program is used.
+    public void finish() {
+        if (finished) return;
+        finished = true;
+
+        if (!fromCache) {
+            long startNanos = System.nanoTime();
+            ShaderUtils.checkShaderStatus(vertexShader);
+            ShaderUtils.checkShaderStatus(fragmentShader);
+            if (geometryShader != 0) ShaderUtils.checkShaderStatus(geometryShader);
+            GL20.glValidateProgram(shaderProgram);
+            boolean linked = glGetProgrami(shaderProgram, GL_LINK_STATUS) != 0;
+            workNanos += System.nanoTime() - startNanos;
+
+            if (!linked) {
+                String error = glGetProgramInfoLog(shaderProgram);
+                System.err.println("Failed to link shader: " + error);
+            }
+            else if (cacheKey != null) {
+                ProgramBinaryCache.save(shaderProgram, cacheKey);
+            }
+
+            // Cleanup
+            glDeleteShader(vertexShader);
+            glDeleteShader(fragmentShader);
+            if (geometryShader != 0) glDeleteShader(geometryShader);
         }
 
-        // Cleanup
-        glDeleteShader(vertexShader);
-        glDeleteShader(fragmentShader);
+        log.info("{} shader ({}, {}) in {}ms", fromCache ? "Loaded cached" : "Compiled", vtxFilename, fragFilename,
+                workNanos / 1000000);
+
+        onReady.forEach(Runnable::run);
+        onReady.clear();
+    }
+
+    // For setup that needs the linked program, like looking up uniforms.  Runs straight away if it's already finished.
+    public void whenReady(Runnable r) {
+        if (finished) r.run();
+        else onReady.add(r);
+    }
+
+    // Points a uniform block in this program at a binding point.  Programs that don't have the block are left alone.
+    public void bindUniformBlock(String blockName, int binding) {
+        finish();
+        int index = GL31.glGetUniformBlockIndex(shaderProgram, blockName);
+        if (index != GL31.GL_INVALID_INDEX) {
+            GL31.glUniformBlockBinding(shaderProgram, index, binding);
+        }
     }
 
     public void addVariable(ShaderVariable v) {
@@ -269,6 +397,7 @@ public class Shader {
     }
 
     public void use() {
+        finish();
         glUseProgram(shaderProgram);
         inUse = true;
     }
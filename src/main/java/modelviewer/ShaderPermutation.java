@@ -0,0 +1,108 @@
+package modelviewer;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Objects;
+
+// The features a variant of the standard shader is compiled with.  Each one becomes a #define, so model_vertex.glsl
+// and model_fragment.glsl only contain code for what's actually switched on, rather than branching on uniforms every
+// fragment.  ShaderStore keeps the compiled variants keyed by this.
+final class ShaderPermutation {
+    final boolean lighting, dirLight, shadows, layeredShadows, cascadedShadows, textures, multiDraw;
+    // With layeredShadows, the point lights' shadows are cubes, see LayeredShadowMaps.  Needs GLSL 4.00.
+    final boolean cubeShadows;
+    // The point lights drawn through ClusteredLights, which then aren't in pointLightMask
+    final boolean clusteredLights;
+    final ShadowFilter shadowFilter;
+    final ShaderStage stage;
+    // Bit i is set if point light i is enabled
+    final int pointLightMask;
+
+    ShaderPermutation(boolean lighting, boolean dirLight, int pointLightMask, boolean shadows, ShadowFilter shadowFilter,
+                      boolean layeredShadows, boolean cubeShadows, boolean cascadedShadows, boolean textures,
+                      boolean clusteredLights, boolean multiDraw) {
+        this(lighting, dirLight, pointLightMask, shadows, shadowFilter, layeredShadows, cubeShadows, cascadedShadows,
+                textures, clusteredLights, multiDraw, ShaderStage.FORWARD);
+    }
+
+    private ShaderPermutation(boolean lighting, boolean dirLight, int pointLightMask, boolean shadows,
+                              ShadowFilter shadowFilter, boolean layeredShadows, boolean cubeShadows,
+                              boolean cascadedShadows, boolean textures, boolean clusteredLights, boolean multiDraw,
+                              ShaderStage stage) {
+        // Settings that can't make a difference are cleared, so they don't cause extra variants to be compiled.  The
+        // G-buffer pass doesn't light anything, and the deferred lighting pass has the textures already applied and
+        // draws no models.
+        boolean lit = lighting && stage != ShaderStage.GBUFFER;
+        this.stage = stage;
+        this.lighting = lighting;
+        this.dirLight = lit && dirLight;
+        this.pointLightMask = lit ? pointLightMask : 0;
+        this.shadows = lighting && shadows && (this.dirLight || this.pointLightMask != 0);
+        this.shadowFilter = this.shadows ? shadowFilter : ShadowFilter.HARD;
+        this.layeredShadows = this.shadows && layeredShadows;
+        this.cubeShadows = this.layeredShadows && this.pointLightMask != 0 && cubeShadows;
+        // Cascades are tiles of the shadow atlas, so don't exist in layered mode
+        this.cascadedShadows = this.shadows && this.dirLight && !this.layeredShadows && cascadedShadows;
+        // Unlit drawing always shows the diffuse texture
+        this.textures = lighting && textures && stage != ShaderStage.DEFERRED_LIGHTING;
+        this.clusteredLights = lit && clusteredLights;
+        this.multiDraw = multiDraw && stage != ShaderStage.DEFERRED_LIGHTING;
+    }
+
+    ShaderPermutation withMultiDraw(boolean multiDraw) {
+        return new ShaderPermutation(lighting, dirLight, pointLightMask, shadows, shadowFilter, layeredShadows,
+                cubeShadows, cascadedShadows, textures, clusteredLights, multiDraw, stage);
+    }
+
+    ShaderPermutation withStage(ShaderStage stage) {
+        return new ShaderPermutation(lighting, dirLight, pointLightMask, shadows, shadowFilter, layeredShadows,
+                cubeShadows, cascadedShadows, textures, clusteredLights, multiDraw, stage);
+    }
+
+    int pointLightCount() {
+        return Integer.bitCount(pointLightMask);
+    }
+
+    List<String> defines() {
+        List<String> out = new ArrayList<>();
+        if (lighting) out.add("LIGHTING");
+        if (dirLight) out.add("DIR_LIGHT");
+        for (int i = 0; i < ModelLighting.MAX_POINT_LIGHTS; i++) {
+            if ((pointLightMask & (1 << i)) != 0) out.add("POINT_LIGHT_" + i);
+        }
+        if (shadows) out.add("SHADOWS");
+        shadowFilter.define.ifPresent(out::add);
+        if (layeredShadows) out.add("LAYERED_SHADOWS");
+        if (cubeShadows) out.add("CUBE_SHADOWS");
+        if (cascadedShadows) out.add("CASCADED_SHADOWS");
+        if (textures) out.add("TEXTURES");
+        if (clusteredLights) out.add("CLUSTERED_LIGHTS");
+        if (multiDraw) out.add("MULTI_DRAW");
+        stage.define.ifPresent(out::add);
+        return out;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) return true;
+        if (!(o instanceof ShaderPermutation)) return false;
+        ShaderPermutation that = (ShaderPermutation) o;
+        return lighting == that.lighting && dirLight == that.dirLight && shadows == that.shadows
+                && shadowFilter == that.shadowFilter && layeredShadows == that.layeredShadows
+                && cubeShadows == that.cubeShadows
+                && cascadedShadows == that.cascadedShadows
+                && textures == that.textures && clusteredLights == that.clusteredLights
+                && multiDraw == that.multiDraw && pointLightMask == that.pointLightMask && stage == that.stage;
+    }
+
+    @Override
+    public int hashCode() {
+        return Objects.hash(lighting, dirLight, shadows, shadowFilter, layeredShadows, cubeShadows, cascadedShadows, textures,
+                clusteredLights, multiDraw, pointLightMask, stage);
+    }
+
+    @Override
+    public String toString() {
+        return defines().toString();
+    }
+}
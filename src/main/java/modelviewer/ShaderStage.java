@@ -0,0 +1,20 @@
+package modelviewer;
+
+import java.util.Optional;
+
+// Which pass of which renderer a variant of the standard shader is for, see ShaderPermutation
+enum ShaderStage {
+    // Draws and lights each model in one go
+    FORWARD(Optional.empty()),
+    // Writes each model's surface into DeferredRenderer's G-buffer, unlit
+    GBUFFER(Optional.of("GBUFFER")),
+    // Lights every pixel of the G-buffer at once, as a full-screen triangle
+    DEFERRED_LIGHTING(Optional.of("DEFERRED_LIGHTING"));
+
+    // Compiled into the standard shader
+    final Optional<String> define;
+
+    ShaderStage(Optional<String> define) {
+        this.define = define;
+    }
+}
@@ -2,17 +2,74 @@ package modelviewer;
 
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
 import java.util.Optional;
 
 public class ShaderStore {
+    // Fixed texture units for the standard shader's samplers.  The shadow maps are kept well clear of the material
+    // textures.
+    static final int DIFFUSE_TEXTURE_UNIT = 0;
+    static final int SPECULAR_TEXTURE_UNIT = 1;
+    static final int SHADOW_ATLAS_UNIT = 20;
+    static final int SHADOW_MAP_ARRAY_UNIT = 21;
+    // Only used by GpuCulling's compute shaders, but kept apart so they don't disturb the main pass's bindings
+    static final int HI_Z_UNIT = 22;
+    // DeferredRenderer's G-buffer, read by the deferred lighting pass
+    static final int G_NORMAL_UNIT = 23;
+    static final int G_DIFFUSE_UNIT = 24;
+    static final int G_SPECULAR_UNIT = 25;
+    static final int G_AMBIENT_UNIT = 26;
+    static final int G_DEPTH_UNIT = 27;
+    // The point lights' cubes, with LayeredShadowMaps' cube shadows
+    static final int SHADOW_CUBE_ARRAY_UNIT = 28;
+
     public final Shader basicFlatShader = Shader.create("/shaders/basic_lighting2_vertex.glsl", "/shaders/lighting_materials_lamp_fragment.glsl", Optional.empty(),true, false);
-    public final Shader standardShader = Shader.create("../shaders/model_vertex.glsl", "../shaders/model_fragment.glsl", Optional.empty(), false, false);
 //    public final Shader debugShader = Shader.create("/shaders/debug_normals_vertex.glsl", "/shaders/debug_normals_fragment.glsl", Optional.of("../shaders/debug_normals_geometry.glsl"), false, true);
     public final Shader shadowGenShader = Shader.create("/shaders/shadow_mapping.vtx", "/shaders/empty.frag", true);
     public final Shader passthroughShader = Shader.create("/shaders/passthrough_vertex.glsl", "/shaders/passthrough_fragment.glsl", true);
     public final Shader renderDepthMapShader = Shader.create("/shaders/passthrough_vertex.glsl", "/shaders/render_depth_map_fragment.glsl", true);
+    // Shows a layer of the LayeredShadowMaps array instead
+    public final Shader renderDepthMapLayeredShader = Shader.createVariant("/shaders/passthrough_vertex.glsl", "/shaders/render_depth_map_fragment.glsl", true, null, "LAYERED");
+
+    // Variants that take their per-draw data from an SSBO, for drawing a whole model with glMultiDrawElementsIndirect.
+    // Only compiled if the GPU supports it.
+    public final boolean multiDrawSupported = GpuFeatures.multiDrawIndirect();
+    public final Optional<Shader> shadowGenMultiDrawShader = multiDrawSupported
+            ? Optional.of(Shader.createVariant("/shaders/shadow_mapping.vtx", "/shaders/empty.frag", true, "430 core", "MULTI_DRAW"))
+            : Optional.empty();
+
+    // Draw every light's shadow map in one pass, see LayeredShadowMaps
+    public final Shader shadowGenLayeredShader = Shader.createVariant("/shaders/shadow_mapping.vtx", "/shaders/empty.frag",
+            Optional.of("/shaders/shadow_mapping_layered.geom"), true, null, "LAYERED");
+    public final Optional<Shader> shadowGenLayeredMultiDrawShader = multiDrawSupported
+            ? Optional.of(Shader.createVariant("/shaders/shadow_mapping.vtx", "/shaders/empty.frag",
+                    Optional.of("/shaders/shadow_mapping_layered.geom"), true, "430 core", "LAYERED", "MULTI_DRAW"))
+            : Optional.empty();
+
+    // The point lights' cubes for the layered shadows, on GPUs with cube map arrays.  The multi-draw variant's GL 4.3
+    // covers them.
+    public final boolean cubeShadowsSupported = GpuFeatures.cubeMapArrays();
+    public final Optional<Shader> shadowGenCubeShader = cubeShadowsSupported
+            ? Optional.of(Shader.createVariant("/shaders/shadow_mapping.vtx", "/shaders/shadow_mapping_cube.frag",
+                    Optional.of("/shaders/shadow_mapping_layered.geom"), true, null, "LAYERED", "CUBE"))
+            : Optional.empty();
+    public final Optional<Shader> shadowGenCubeMultiDrawShader = cubeShadowsSupported && multiDrawSupported
+            ? Optional.of(Shader.createVariant("/shaders/shadow_mapping.vtx", "/shaders/shadow_mapping_cube.frag",
+                    Optional.of("/shaders/shadow_mapping_layered.geom"), true, "430 core", "LAYERED", "CUBE", "MULTI_DRAW"))
+            : Optional.empty();
+
+    // Depth only from the camera, for the depth pre-pass
+    public final Shader depthPrePassShader = Shader.createVariant("/shaders/shadow_mapping.vtx", "/shaders/empty.frag", true, null, "DEPTH_PREPASS");
+    public final Optional<Shader> depthPrePassMultiDrawShader = multiDrawSupported
+            ? Optional.of(Shader.createVariant("/shaders/shadow_mapping.vtx", "/shaders/empty.frag", true, "430 core", "DEPTH_PREPASS", "MULTI_DRAW"))
+            : Optional.empty();
 
-    private final ArrayList<Shader> shaders = new ArrayList<>(Arrays.asList(basicFlatShader, standardShader, shadowGenShader, passthroughShader, renderDepthMapShader));
+    // The standard shader is compiled on demand for each set of features that gets used, see ShaderPermutation
+    private final Map<ShaderPermutation, Shader> standardShaders = new HashMap<>();
+
+    private final ArrayList<Shader> shaders = new ArrayList<>(Arrays.asList(basicFlatShader, shadowGenShader, shadowGenLayeredShader, depthPrePassShader, passthroughShader, renderDepthMapShader, renderDepthMapLayeredShader));
 
     public ShaderStore() {
         // Attempt to provide some safety by runtime checks that all expected variables have been provided
@@ -21,46 +78,147 @@ public class ShaderStore {
         basicFlatShader.addVariable(ShaderVariable.changesEveryRun("modelMatrix"));
         basicFlatShader.addVariable(ShaderVariable.changesEveryRun("lamp_Color"));
 
-//        for (Shader shader: new Shader[] { standardShader, debugShader }){
-        for (Shader shader: new Shader[] { standardShader }){
+        // Only set when a shadow map actually needs redrawing
+        shadowGenShader.addVariable(ShaderVariable.changesInfrequently("lightSpaceMatrix"));
+        shadowGenShader.addVariable(ShaderVariable.changesEveryRun("modelMatrix"));
+        shadowGenMultiDrawShader.ifPresent(shader -> {
+            shader.addVariable(ShaderVariable.changesInfrequently("lightSpaceMatrix"));
+            shaders.add(shader);
+        });
+        addLayeredShadowVariables(shadowGenLayeredShader);
+        shadowGenLayeredShader.addVariable(ShaderVariable.changesEveryRun("modelMatrix"));
+        shadowGenLayeredMultiDrawShader.ifPresent(shader -> {
+            addLayeredShadowVariables(shader);
+            shaders.add(shader);
+        });
+        shadowGenCubeShader.ifPresent(shader -> {
+            addCubeShadowVariables(shader);
+            shader.addVariable(ShaderVariable.changesEveryRun("modelMatrix"));
+            shaders.add(shader);
+        });
+        shadowGenCubeMultiDrawShader.ifPresent(shader -> {
+            addCubeShadowVariables(shader);
+            shaders.add(shader);
+        });
+
+        depthPrePassShader.addVariable(ShaderVariable.changesEveryRun("projectionMatrix"));
+        depthPrePassShader.addVariable(ShaderVariable.changesEveryRun("viewMatrix"));
+        depthPrePassShader.addVariable(ShaderVariable.changesEveryRun("modelMatrix"));
+        depthPrePassMultiDrawShader.ifPresent(shader -> {
             shader.addVariable(ShaderVariable.changesEveryRun("projectionMatrix"));
             shader.addVariable(ShaderVariable.changesEveryRun("viewMatrix"));
+            shaders.add(shader);
+        });
+
+        renderDepthMapShader.addVariable(ShaderVariable.changesEveryRun("depthMap"));
+        renderDepthMapLayeredShader.addVariable(ShaderVariable.changesEveryRun("depthMap"));
+        renderDepthMapLayeredShader.addVariable(ShaderVariable.changesEveryRun("layer"));
+
+        // The field initializers above only submitted the compiles, so anything needing the linked program waits
+        shaders.forEach(shader -> shader.whenReady(() -> bindUniformBlocks(shader)));
+
+    }
+
+    public Shader standardShader(ShaderPermutation permutation) {
+        return standardShaders.computeIfAbsent(permutation, this::createStandardShader);
+    }
+
+    private Shader createStandardShader(ShaderPermutation permutation) {
+        // The multi-draw and clustered variants need a newer GLSL for SSBOs, and the cube shadows one for
+        // samplerCubeArrayShadow.  The rest keep the version in the file.
+        String version = permutation.multiDraw || permutation.clusteredLights ? "430 core"
+                : permutation.cubeShadows ? "400 core" : null;
+        List<String> defines = permutation.defines();
+        // The deferred lighting pass draws a single triangle over the screen rather than models
+        boolean deferredLighting = permutation.stage == ShaderStage.DEFERRED_LIGHTING;
+        String vertex = deferredLighting ? "../shaders/fullscreen_vertex.glsl" : "../shaders/model_vertex.glsl";
+        Shader shader = Shader.createVariant(vertex, "../shaders/model_fragment.glsl", false, version, defines.toArray(new String[0]));
+
+        addStandardVariables(shader);
+        if (deferredLighting) {
+            shader.addVariable(ShaderVariable.changesEveryRun("inverseProjectionView"));
+        }
+        // The multi-draw variant gets the model matrix, material index and light mask from an SSBO
+        else if (!permutation.multiDraw) {
             shader.addVariable(ShaderVariable.changesEveryRun("modelMatrix"));
-            shader.addVariable(ShaderVariable.changesEveryRun("lightSpaceMatrixDir"));
-            shader.addVariable(ShaderVariable.changesInfrequently("dirLight.enabled"));
-            shader.addVariable(ShaderVariable.changesInfrequently("dirLight.direction"));
-            shader.addVariable(ShaderVariable.changesInfrequently("dirLight.ambient"));
-            shader.addVariable(ShaderVariable.changesInfrequently("dirLight.diffuse"));
-            shader.addVariable(ShaderVariable.changesInfrequently("dirLight.specular"));
-            shader.addVariable(ShaderVariable.changesInfrequently("dirLight.shadowsEnabled"));
-            shader.addVariable(ShaderVariable.changesInfrequently("dirLight.shadowMap"));
-            for (int i = 0; i < ModelLighting.MAX_POINT_LIGHTS; i++) {
-                shader.addVariable(ShaderVariable.changesEveryRun("lightSpaceMatrixes[" + i + "]"));
-
-                shader.addVariable(ShaderVariable.changesInfrequently("pointLights[" + i + "].enabled"));
-                shader.addVariable(ShaderVariable.changesInfrequently("pointLights[" + i + "].position"));
-                shader.addVariable(ShaderVariable.changesInfrequently("pointLights[" + i + "].constant"));
-                shader.addVariable(ShaderVariable.changesInfrequently("pointLights[" + i + "].linear"));
-                shader.addVariable(ShaderVariable.changesInfrequently("pointLights[" + i + "].quadratic"));
-                shader.addVariable(ShaderVariable.changesInfrequently("pointLights[" + i + "].ambient"));
-                shader.addVariable(ShaderVariable.changesInfrequently("pointLights[" + i + "].diffuse"));
-                shader.addVariable(ShaderVariable.changesInfrequently("pointLights[" + i + "].specular"));
-                shader.addVariable(ShaderVariable.changesInfrequently("pointLights[" + i + "].shadowsEnabled"));
-                shader.addVariable(ShaderVariable.changesInfrequently("pointLights[" + i + "].shadowMap"));
+            shader.addVariable(ShaderVariable.changesEveryRun("materialIndex"));
+            shader.addVariable(ShaderVariable.changesEveryRun("receivesShadows"));
+            shader.addVariable(ShaderVariable.changesEveryRun("lightMask"));
+        }
+        shader.whenReady(() -> {
+            bindUniformBlocks(shader);
+            setSamplerUnits(shader);
+        });
+        shaders.add(shader);
+        return shader;
+    }
+
+    // Like lightSpaceMatrix, only set when the shadow maps actually need redrawing
+    private static void addLayeredShadowVariables(Shader shader) {
+        for (int i = 0; i < LayeredShadowMaps.LAYERS; i++) {
+            shader.addVariable(ShaderVariable.changesInfrequently("lightSpaceMatrices[" + i + "]"));
+        }
+        shader.addVariable(ShaderVariable.changesInfrequently("layerMask"));
+    }
+
+    private static void addCubeShadowVariables(Shader shader) {
+        for (int i = 0; i < LayeredShadowMaps.CUBES; i++) {
+            for (int face = 0; face < 6; face++) {
+                shader.addVariable(ShaderVariable.changesInfrequently("cubeFaceMatrices[" + (i * 6 + face) + "]"));
             }
-            shader.addVariable(ShaderVariable.changesEveryRun("viewPos"));
-            shader.addVariable(ShaderVariable.changesEveryRun("material.texture"));
-            shader.addVariable(ShaderVariable.changesEveryRun("material.diffuse"));
-            shader.addVariable(ShaderVariable.changesEveryRun("material.specular"));
-            shader.addVariable(ShaderVariable.changesEveryRun("material.shininess"));
-            shader.addVariable(ShaderVariable.changesInfrequently("shadowsEnabled"));
+            shader.addVariable(ShaderVariable.changesInfrequently("cubeLightPositions[" + i + "]"));
+            shader.addVariable(ShaderVariable.changesInfrequently("cubeFarPlanes[" + i + "]"));
         }
+        shader.addVariable(ShaderVariable.changesInfrequently("cubeMask"));
+    }
 
-        shadowGenShader.addVariable(ShaderVariable.changesEveryRun("lightSpaceMatrix"));
-        shadowGenShader.addVariable(ShaderVariable.changesEveryRun("modelMatrix"));
+    private static void bindUniformBlocks(Shader shader) {
+        shader.bindUniformBlock(MaterialBuffer.BLOCK_NAME, MaterialBuffer.BINDING);
+        shader.bindUniformBlock(LightBuffer.BLOCK_NAME, LightBuffer.BINDING);
+    }
 
-        renderDepthMapShader.addVariable(ShaderVariable.changesEveryRun("depthMap"));
+    // In unit order from G_NORMAL_UNIT, and the same order as DeferredRenderer's textures
+    static final String[] G_BUFFER_SAMPLERS = {"gNormal", "gDiffuse", "gSpecular", "gAmbient", "gDepth"};
+
+    // Everything the standard shader variants have in common
+    private static void addStandardVariables(Shader shader) {
+        shader.addVariable(ShaderVariable.changesEveryRun("projectionMatrix"));
+        shader.addVariable(ShaderVariable.changesEveryRun("viewMatrix"));
+        shader.addVariable(ShaderVariable.changesEveryRun("lightSpaceMatrixDir"));
+        shader.addVariable(ShaderVariable.changesInfrequently("diffuseTexture"));
+        shader.addVariable(ShaderVariable.changesInfrequently("specularTexture"));
+        shader.addVariable(ShaderVariable.changesInfrequently("shadowAtlas"));
+        shader.addVariable(ShaderVariable.changesInfrequently("shadowMapArray"));
+        shader.addVariable(ShaderVariable.changesInfrequently("shadowCubeArray"));
+        for (String gBuffer : G_BUFFER_SAMPLERS) {
+            shader.addVariable(ShaderVariable.changesInfrequently(gBuffer));
+        }
+        for (int i = 0; i < ModelLighting.MAX_POINT_LIGHTS; i++) {
+            shader.addVariable(ShaderVariable.changesEveryRun("lightSpaceMatrixes[" + i + "]"));
+        }
+        shader.addVariable(ShaderVariable.changesEveryRun("viewPos"));
+    }
+
+    // Samplers can't go in uniform blocks, but their units never change so only need setting once
+    private static void setSamplerUnits(Shader shader) {
+        try (ShaderUse wrap = new ShaderUse(shader)) {
+            wrap.shader.setInt("diffuseTexture", DIFFUSE_TEXTURE_UNIT);
+            wrap.shader.setInt("specularTexture", SPECULAR_TEXTURE_UNIT);
+            wrap.shader.setInt("shadowAtlas", SHADOW_ATLAS_UNIT);
+            wrap.shader.setInt("shadowMapArray", SHADOW_MAP_ARRAY_UNIT);
+            wrap.shader.setInt("shadowCubeArray", SHADOW_CUBE_ARRAY_UNIT);
+            for (int i = 0; i < G_BUFFER_SAMPLERS.length; i++) {
+                wrap.shader.setInt(G_BUFFER_SAMPLERS[i], G_NORMAL_UNIT + i);
+            }
+        }
+    }
 
+    // Finishes any programs the driver has compiled in the background, without blocking on the rest.  Programs still
+    // get finished, blocking if need be, when they're first used.
+    public void finishReadyShaders() {
+        shaders.forEach(shader -> {
+            if (shader.isReady()) shader.finish();
+        });
     }
 
     public void reset() {
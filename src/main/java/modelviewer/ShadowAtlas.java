@@ -0,0 +1,210 @@
+package modelviewer;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
+import static org.lwjgl.opengl.GL11.*;
+import static org.lwjgl.opengl.GL13.GL_CLAMP_TO_BORDER;
+import static org.lwjgl.opengl.GL13.GL_TEXTURE0;
+import static org.lwjgl.opengl.GL13.glActiveTexture;
+import static org.lwjgl.opengl.GL14.GL_DEPTH_COMPONENT16;
+import static org.lwjgl.opengl.GL14.GL_DEPTH_COMPONENT24;
+import static org.lwjgl.opengl.GL14.GL_TEXTURE_COMPARE_FUNC;
+import static org.lwjgl.opengl.GL14.GL_TEXTURE_COMPARE_MODE;
+import static org.lwjgl.opengl.GL30.*;
+import static org.lwjgl.opengl.GL33.*;
+
+// One depth texture holding every light's ShadowMap as a square tile, rather than a fixed 2048x2048 texture per light.
+// The atlas is sized to a VRAM budget, and each frame the lights that need shadows share it out: each gets a
+// power-of-two tile sized by its importance, roughly how much of the screen it lights.  Disabled lights get nothing.
+class ShadowAtlas {
+    static final int MIN_TILE_SIZE = 128;
+
+    // Allocated on first use
+    private int depthMapFBO = 0;
+    private int textureId = 0;
+    private int size = 0;
+    private boolean depth16 = false;
+    private int budgetMegabytes = -1;
+    // Bumped on every allocation, so ShadowMaps know their old contents are gone
+    private int generation = 0;
+
+    int getGeneration() {
+        return generation;
+    }
+
+    int getSize() {
+        return size;
+    }
+
+    int getTextureId() {
+        return textureId;
+    }
+
+    // The atlas is the largest power-of-two square that fits the budget.  Changing either setting throws away the
+    // texture, so everything gets redrawn.
+    void configure(int budgetMegabytes, boolean depth16) {
+        configure(budgetMegabytes, depth16, glGetInteger(GL_MAX_TEXTURE_SIZE));
+    }
+
+    // As above, with the GPU's largest texture size given
+    void configure(int budgetMegabytes, boolean depth16, int maxTextureSize) {
+        if (budgetMegabytes == this.budgetMegabytes && depth16 == this.depth16) return;
+        this.budgetMegabytes = budgetMegabytes;
+        int bytesPerTexel = depth16 ? 2 : 4;
+        long budgetTexels = Math.max(budgetMegabytes, 1) * 1024L * 1024L / bytesPerTexel;
+        int newSize = Integer.highestOneBit((int) Math.sqrt(budgetTexels));
+        newSize = Math.max(MIN_TILE_SIZE, Math.min(newSize, maxTextureSize));
+
+        if (newSize != size || depth16 != this.depth16) {
+            delete();
+            size = newSize;
+            this.depth16 = depth16;
+            generation++;
+        }
+    }
+
+    private void allocate() {
+        generation++;
+        textureId = glGenTextures();
+        glBindTexture(GL_TEXTURE_2D, textureId);
+        glTexImage2D(GL_TEXTURE_2D, 0, depth16 ? GL_DEPTH_COMPONENT16 : GL_DEPTH_COMPONENT24, size, size, 0, GL_DEPTH_COMPONENT, GL_FLOAT, (ByteBuffer) null);
+        glTexParameteri(GL_TEXTURE_2D, GL_TEXTURE_MIN_FILTER, GL_NEAREST);
+        glTexParameteri(GL_TEXTURE_2D, GL_TEXTURE_MAG_FILTER, GL_NEAREST);
+        // The shader keeps lookups inside each tile, so this only matters for debugging
+        glTexParameteri(GL_TEXTURE_2D, GL_TEXTURE_WRAP_S, GL_CLAMP_TO_BORDER);
+        glTexParameteri(GL_TEXTURE_2D, GL_TEXTURE_WRAP_T, GL_CLAMP_TO_BORDER);
+        float borderColor[] = { 1.0f, 1.0f, 1.0f, 1.0f };
+        glTexParameterfv(GL_TEXTURE_2D, GL_TEXTURE_BORDER_COLOR, borderColor);
+
+        depthMapFBO = glGenFramebuffers();
+        glBindFramebuffer(GL_FRAMEBUFFER, depthMapFBO);
+        glFramebufferTexture2D(GL_FRAMEBUFFER, GL_DEPTH_ATTACHMENT, GL_TEXTURE_2D, textureId, 0);
+        // Not rendering colour data
+        glDrawBuffer(GL_NONE);
+        glReadBuffer(GL_NONE);
+
+        if(glCheckFramebufferStatus(GL_FRAMEBUFFER) != GL_FRAMEBUFFER_COMPLETE) {
+            System.err.println("Failed to create shadow atlas framebuffer");
+        }
+    }
+
+    private void delete() {
+        if (depthMapFBO != 0) {
+            glDeleteFramebuffers(depthMapFBO);
+            glDeleteTextures(textureId);
+            depthMapFBO = 0;
+            textureId = 0;
+        }
+    }
+
+    // Gives each map a tile, with importances[i] for maps.get(i).  The tiles cover the atlas in proportion to
+    // importance, rounded down to powers of two so they always pack and don't change with every small camera move.
+    void assignTiles(List<ShadowMap> maps, float[] importances) {
+        assignTiles(Collections.emptyList(), 0, maps, importances);
+    }
+
+    // As above, but fixedMaps (the shadow cascades) each get a fixedTileSize tile first, halved if they'd take more
+    // than three quarters of the atlas.  maps share out whatever is left.
+    void assignTiles(List<ShadowMap> fixedMaps, int fixedTileSize, List<ShadowMap> maps, float[] importances) {
+        float total = 0;
+        for (float importance : importances) total += importance;
+
+        List<ShadowMap> all = new ArrayList<>(fixedMaps);
+        all.addAll(maps);
+        List<Integer> order = new ArrayList<>();
+        int[] tileSizes = new int[all.size()];
+        long area = 0;
+
+        int fixedSize = Math.max(MIN_TILE_SIZE, Math.min(Integer.highestOneBit(Math.max(fixedTileSize, 1)), size));
+        while (fixedSize > MIN_TILE_SIZE && (long) fixedMaps.size() * fixedSize * fixedSize > (long) size * size * 3 / 4) {
+            fixedSize /= 2;
+        }
+        for (int i = 0; i < fixedMaps.size(); i++) {
+            tileSizes[i] = fixedSize;
+            area += (long) fixedSize * fixedSize;
+            order.add(i);
+        }
+
+        long remaining = Math.max((long) size * size - area, (long) MIN_TILE_SIZE * MIN_TILE_SIZE);
+        for (int j = 0; j < maps.size(); j++) {
+            int i = fixedMaps.size() + j;
+            double share = Math.sqrt(remaining * importances[j] / total);
+            tileSizes[i] = Math.max(MIN_TILE_SIZE, Integer.highestOneBit((int) share));
+            area += (long) tileSizes[i] * tileSizes[i];
+            order.add(i);
+        }
+        // Only possible with lots of minimum-size tiles in a tiny atlas.  Halving the largest tile each time is fairest.
+        while (area > (long) size * size) {
+            int largest = 0;
+            for (int i = 1; i < tileSizes.length; i++) {
+                if (tileSizes[i] > tileSizes[largest]) largest = i;
+            }
+            area -= (long) tileSizes[largest] * tileSizes[largest] * 3 / 4;
+            tileSizes[largest] /= 2;
+        }
+        order.sort(Comparator.comparingInt((Integer i) -> -tileSizes[i]));
+
+        // Largest first into a quadtree of free squares, which can't fail once the area fits
+        List<int[]> free = new ArrayList<>();
+        free.add(new int[] { 0, 0, size });
+        for (int i : order) {
+            int tileSize = tileSizes[i];
+            int best = -1;
+            for (int f = 0; f < free.size(); f++) {
+                if (free.get(f)[2] >= tileSize && (best == -1 || free.get(f)[2] < free.get(best)[2])) best = f;
+            }
+            int[] square = free.remove(best);
+            while (square[2] > tileSize) {
+                int half = square[2] / 2;
+                free.add(new int[] { square[0] + half, square[1], half });
+                free.add(new int[] { square[0], square[1] + half, half });
+                free.add(new int[] { square[0] + half, square[1] + half, half });
+                square = new int[] { square[0], square[1], half };
+            }
+            all.get(i).setTile(square[0], square[1], tileSize, size);
+        }
+    }
+
+    // Binds the atlas for drawing into one tile, clearing just that tile
+    void bindTile(ShadowMap map) {
+        if (depthMapFBO == 0) allocate();
+
+        glBindFramebuffer(GL_FRAMEBUFFER, depthMapFBO);
+        glViewport(map.tileX, map.tileY, map.tileSize, map.tileSize);
+        glEnable(GL_DEPTH_TEST);
+        glEnable(GL_SCISSOR_TEST);
+        glScissor(map.tileX, map.tileY, map.tileSize, map.tileSize);
+        glClear(GL_DEPTH_BUFFER_BIT);
+        glDisable(GL_SCISSOR_TEST);
+    }
+
+    void bind(int textureUnit) {
+        glActiveTexture(GL_TEXTURE0 + textureUnit);
+        glBindTexture(GL_TEXTURE_2D, textureId);
+        bindComparisonSampler(textureUnit);
+    }
+
+    // The standard shader reads the shadow maps through sampler2DShadow, so the hardware does the depth compare and
+    // filters the results.  It's a sampler object rather than texture state so the depth map debug view can still read
+    // raw depths from the same texture.  Shared with LayeredShadowMaps.
+    private static int comparisonSampler = 0;
+
+    static void bindComparisonSampler(int textureUnit) {
+        if (comparisonSampler == 0) {
+            comparisonSampler = glGenSamplers();
+            glSamplerParameteri(comparisonSampler, GL_TEXTURE_COMPARE_MODE, GL_COMPARE_REF_TO_TEXTURE);
+            glSamplerParameteri(comparisonSampler, GL_TEXTURE_COMPARE_FUNC, GL_LEQUAL);
+            glSamplerParameteri(comparisonSampler, GL_TEXTURE_MIN_FILTER, GL_LINEAR);
+            glSamplerParameteri(comparisonSampler, GL_TEXTURE_MAG_FILTER, GL_LINEAR);
+            glSamplerParameteri(comparisonSampler, GL_TEXTURE_WRAP_S, GL_CLAMP_TO_BORDER);
+            glSamplerParameteri(comparisonSampler, GL_TEXTURE_WRAP_T, GL_CLAMP_TO_BORDER);
+            // Past the edge counts as fully lit
+            glSamplerParameterfv(comparisonSampler, GL_TEXTURE_BORDER_COLOR, new float[] { 1.0f, 1.0f, 1.0f, 1.0f });
+        }
+        glBindSampler(textureUnit, comparisonSampler);
+    }
+}
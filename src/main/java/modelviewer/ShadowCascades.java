@@ -0,0 +1,134 @@
+package modelviewer;
+
+import enterthematrix.Matrix4x4;
+import enterthematrix.Vector3;
+import enterthematrix.Vector4;
+import matrixlwjgl.MatrixLwjgl;
+
+import java.nio.ByteBuffer;
+
+// Cascaded shadow maps for the directional light.  Rather than one ortho box covering the whole scene, the camera's
+// view out to the shadow distance is cut into slices, short ones near the camera and longer ones further away, and each
+// slice gets its own ShadowMap fitted around it.  So texels are spent where they're seen up close, and large models get
+// sharp shadows without a huge texture.  Refitted every frame from the camera.
+class ShadowCascades {
+    static final int MAX_CASCADES = 4;
+    // std140 size of the cascade fields at the end of LightBlock in model_fragment.glsl
+    static final int UNIFORM_BYTES = MAX_CASCADES * 64 + MAX_CASCADES * 16 + 16 + 16;
+    // Blend between logarithmic splits (best texel spread) and even ones (stops the first cascade being tiny)
+    private static final float SPLIT_LAMBDA = 0.75f;
+
+    final ShadowMap[] maps = new ShadowMap[MAX_CASCADES];
+    final Matrix4x4[] lightSpaceMatrices = new Matrix4x4[MAX_CASCADES];
+    // Distance from the camera, along its view direction, at which each cascade ends
+    private final float[] splitDistances = new float[MAX_CASCADES];
+    private int count = 0;
+
+    ShadowCascades() {
+        for (int i = 0; i < MAX_CASCADES; i++) {
+            maps[i] = new ShadowMap();
+        }
+    }
+
+    int getCount() {
+        return count;
+    }
+
+    float getSplitDistance(int cascade) {
+        return splitDistances[cascade];
+    }
+
+    // No cascades are used this frame, the shader falls back to no directional shadows
+    void clear() {
+        count = 0;
+    }
+
+    // view is the camera's view matrix, fovDegrees its vertical field of view.  Each cascade is fitted with a sphere
+    // rather than a tight box, so its size doesn't change as the camera turns, and its position is snapped to whole
+    // texels, so the shadow edges don't shimmer as the camera moves.
+    void update(Vector3 lightDirection, Matrix4x4 view, Vector3 cameraPos, float fovDegrees, float aspect, float near,
+                float shadowDistance, int cascadeCount, int resolution) {
+        count = Math.max(1, Math.min(cascadeCount, MAX_CASCADES));
+        float far = Math.max(shadowDistance, near * 2);
+
+        // lookAt puts the camera's right, up and backwards directions in the rows of the view matrix
+        Vector3 right = new Vector3(view.get(0, 0), view.get(0, 1), view.get(0, 2));
+        Vector3 up = new Vector3(view.get(1, 0), view.get(1, 1), view.get(1, 2));
+        Vector3 forward = new Vector3(-view.get(2, 0), -view.get(2, 1), -view.get(2, 2));
+        float tanHalfFov = (float) Math.tan(Math.toRadians(fovDegrees / 2));
+
+        // Only the light's orientation matters, the ortho projection does the positioning
+        Vector3 direction = lightDirection.normalize();
+        Vector3 lightUp = Math.abs(direction.y()) > 0.99f ? new Vector3(0, 0, 1) : new Vector3(0, 1, 0);
+        Matrix4x4 lightView = Matrix4x4.lookAt(direction.$times(-1), new Vector3(0, 0, 0), lightUp);
+
+        float sliceStart = near;
+        for (int i = 0; i < count; i++) {
+            float fraction = (float) (i + 1) / count;
+            float logSplit = (float) (near * Math.pow(far / near, fraction));
+            float evenSplit = near + (far - near) * fraction;
+            float sliceEnd = SPLIT_LAMBDA * logSplit + (1 - SPLIT_LAMBDA) * evenSplit;
+            splitDistances[i] = sliceEnd;
+
+            // Bounding sphere of the slice's 8 corners
+            Vector3[] corners = new Vector3[8];
+            Vector3 center = new Vector3(0, 0, 0);
+            int c = 0;
+            for (float distance : new float[] { sliceStart, sliceEnd }) {
+                float halfHeight = distance * tanHalfFov;
+                float halfWidth = halfHeight * aspect;
+                Vector3 middle = cameraPos.$plus(forward.$times(distance));
+                for (int sx = -1; sx <= 1; sx += 2) {
+                    for (int sy = -1; sy <= 1; sy += 2) {
+                        corners[c] = middle.$plus(right.$times(sx * halfWidth)).$plus(up.$times(sy * halfHeight));
+                        center = center.$plus(corners[c]);
+                        c++;
+                    }
+                }
+            }
+            center = center.$times(1.0f / 8);
+            double radius = 0;
+            for (Vector3 corner : corners) {
+                radius = Math.max(radius, corner.$minus(center).length());
+            }
+            // Rounded up so float noise doesn't change the projection
+            float r = (float) Math.ceil(radius * 16) / 16;
+
+            Vector4 lightSpaceCenter = lightView.$times(new Vector4(center.x(), center.y(), center.z(), 1));
+            float texel = 2 * r / resolution;
+            float cx = (float) Math.floor(lightSpaceCenter.x() / texel) * texel;
+            float cy = (float) Math.floor(lightSpaceCenter.y() / texel) * texel;
+            // The light looks down -z.  The box reaches back towards the light by the shadow distance too, so casters
+            // outside the slice still shadow it.
+            float zNear = -lightSpaceCenter.z() - r - far;
+            float zFar = -lightSpaceCenter.z() + r;
+
+            lightSpaceMatrices[i] = ortho(cx - r, cx + r, cy - r, cy + r, zNear, zFar).$times(lightView);
+            sliceStart = sliceEnd;
+        }
+    }
+
+    private static Matrix4x4 ortho(float left, float right, float bottom, float top, float near, float far) {
+        return new Matrix4x4(
+                2 / (right - left), 0, 0, -(right + left) / (right - left),
+                0, 2 / (top - bottom), 0, -(top + bottom) / (top - bottom),
+                0, 0, -2 / (far - near), -(far + near) / (far - near),
+                0, 0, 0, 1);
+    }
+
+    // mat4 cascadeMatrices[MAX_CASCADES], vec4 cascadeAtlasRects[MAX_CASCADES], vec4 cascadeSplits, int cascadeCount
+    void writeUniformData(ByteBuffer buffer) {
+        for (int i = 0; i < MAX_CASCADES; i++) {
+            Matrix4x4 matrix = i < count ? lightSpaceMatrices[i] : Matrix4x4.identity();
+            buffer.asFloatBuffer().put(MatrixLwjgl.convertMatrixToBuffer(matrix));
+            buffer.position(buffer.position() + 16 * 4);
+        }
+        for (int i = 0; i < MAX_CASCADES; i++) {
+            maps[i].writeAtlasRect(buffer);
+        }
+        for (int i = 0; i < MAX_CASCADES; i++) {
+            buffer.putFloat(i < count ? splitDistances[i] : 0);
+        }
+        buffer.putInt(count).putInt(0).putInt(0).putInt(0);
+    }
+}
@@ -0,0 +1,21 @@
+package modelviewer;
+
+import java.util.Optional;
+
+// How the shadow maps are filtered.  Every tap is a hardware depth comparison with bilinear filtering, so even one tap
+// blends the 4 nearest texels.
+enum ShadowFilter {
+    HARD("1 Tap", Optional.empty()),
+    // Four taps offset by half a texel cover the same 3x3 texels as the old 9 tap PCF
+    PCF4("4 Tap", Optional.of("SHADOW_FILTER_PCF4")),
+    POISSON("Poisson Disc", Optional.of("SHADOW_FILTER_POISSON"));
+
+    final String label;
+    // Compiled into the standard shader, see ShaderPermutation
+    final Optional<String> define;
+
+    ShadowFilter(String label, Optional<String> define) {
+        this.label = label;
+        this.define = define;
+    }
+}
@@ -1,89 +1,70 @@
 package modelviewer;
 
 import enterthematrix.Matrix4x4;
-import matrixlwjgl.MatrixLwjgl;
-import org.lwjgl.opengl.GL20;
 
-import static org.lwjgl.opengl.GL11.*;
-import static org.lwjgl.opengl.GL13.GL_CLAMP_TO_BORDER;
-import static org.lwjgl.opengl.GL30.*;
+import java.nio.ByteBuffer;
 
 // Shadow mapping: render the scene from the light's viewpoint, but instead of rendering it normally, render the depth
 // values onto a texture.  When the scene is rendered normally, can test this texture to see if that pixel is in shadow.
+// Each light's map is a tile of the ShadowAtlas, which decides the tile's position and size every frame.
 public class ShadowMap {
-    int depthMapFBO = glGenFramebuffers();
-    final int SHADOW_WIDTH = 2048, SHADOW_HEIGHT = SHADOW_WIDTH;
-
-    // Create a texture which the framebuffer will setup too
-    int textureId = glGenTextures();
-
-    ShadowMap() {
-        glBindTexture(GL_TEXTURE_2D, textureId);
-//        if (renderToDepth) {
-            glTexImage2D(GL_TEXTURE_2D, 0, GL_DEPTH_COMPONENT, SHADOW_WIDTH, SHADOW_HEIGHT, 0, GL_DEPTH_COMPONENT, GL_FLOAT, (double[]) null);
-            glTexParameteri(GL_TEXTURE_2D, GL_TEXTURE_MIN_FILTER, GL_NEAREST);
-            glTexParameteri(GL_TEXTURE_2D, GL_TEXTURE_MAG_FILTER, GL_NEAREST);
-
-
-        // Prevent over-sampling
-        glTexParameteri(GL_TEXTURE_2D, GL_TEXTURE_WRAP_S, GL_CLAMP_TO_BORDER);
-        glTexParameteri(GL_TEXTURE_2D, GL_TEXTURE_WRAP_T, GL_CLAMP_TO_BORDER);
-        float borderColor[] = { 1.0f, 1.0f, 1.0f, 1.0f };
-        glTexParameterfv(GL_TEXTURE_2D, GL_TEXTURE_BORDER_COLOR, borderColor);
-
-//        }
-//        else {
-//            glTexImage2D(GL_TEXTURE_2D, 0, GL_RGB, SHADOW_WIDTH, SHADOW_HEIGHT, 0, GL_RGB, GL_UNSIGNED_BYTE, (double[]) null);
-//            glTexParameteri(GL_TEXTURE_2D, GL_TEXTURE_MIN_FILTER, GL_LINEAR);
-//            glTexParameteri(GL_TEXTURE_2D, GL_TEXTURE_MAG_FILTER, GL_LINEAR);
-//        }
-//        glTexParameteri(GL_TEXTURE_2D, GL_TEXTURE_WRAP_S, GL_REPEAT);
-//        glTexParameteri(GL_TEXTURE_2D, GL_TEXTURE_WRAP_T, GL_REPEAT);
-
-        if(glCheckFramebufferStatus(GL_FRAMEBUFFER) != GL_FRAMEBUFFER_COMPLETE) {
-            System.err.println("Failed to create framebuffer");
-        }
-
+    // In texels.  tileSize is 0 until the atlas assigns a tile.
+    int tileX, tileY, tileSize = 0;
+    private int atlasSize = 1;
+
+    // What the tile currently holds.  In a model viewer the lights and model are nearly always still, so most
+    // frames the map can be reused rather than redrawn.
+    private Matrix4x4 renderedLightSpaceMatrix = null;
+    private int renderedGeometryVersion = -1;
+    private int renderedAtlasGeneration = -1;
+    private int renderedTileX, renderedTileY, renderedTileSize;
+
+    void setTile(int x, int y, int size, int atlasSize) {
+        tileX = x;
+        tileY = y;
+        tileSize = size;
+        this.atlasSize = atlasSize;
     }
 
-    public void setup(Shader shadowGenShader, Matrix4x4 lightSpaceMatrix) {
-        glBindFramebuffer(GL_FRAMEBUFFER, depthMapFBO);
-//        if (renderToDepth) {
-            glFramebufferTexture2D(GL_FRAMEBUFFER, GL_DEPTH_ATTACHMENT, GL_TEXTURE_2D, textureId, 0);
-            // Not rendering colour data
-            glDrawBuffer(GL_NONE);
-            glReadBuffer(GL_NONE);
-//        }
-//        else {
-//            glFramebufferTexture2D(GL_FRAMEBUFFER, GL_COLOR_ATTACHMENT0, GL_TEXTURE_2D, textureId, 0);
-//
-//        }
-
-        // Back to default framebugger (screen)
-//        glBindFramebuffer(GL_FRAMEBUFFER, 0);
+    // lightSpaceMatrix covers the light's position or direction and the projection.  geometryVersion should change
+    // whenever anything that casts shadows does.
+    public boolean isUpToDate(Matrix4x4 lightSpaceMatrix, int geometryVersion, ShadowAtlas atlas) {
+        return lightSpaceMatrix.equals(renderedLightSpaceMatrix) && geometryVersion == renderedGeometryVersion
+                && atlas.getGeneration() == renderedAtlasGeneration
+                && tileX == renderedTileX && tileY == renderedTileY && tileSize == renderedTileSize;
+    }
 
-        // first setup to depth map
-        glViewport(0, 0, SHADOW_WIDTH, SHADOW_HEIGHT);
-        glBindFramebuffer(GL_FRAMEBUFFER, depthMapFBO);
-        glEnable(GL_DEPTH_TEST);
-        glClear(GL_DEPTH_BUFFER_BIT);
+    // Whether the tile still holds a rendering, if an out of date one.  Showing that with the matrix it was rendered
+    // with is still correct for everything that hasn't moved, so the redraw can be deferred.
+    public boolean hasContents(ShadowAtlas atlas) {
+        return renderedLightSpaceMatrix != null && atlas.getGeneration() == renderedAtlasGeneration
+                && tileX == renderedTileX && tileY == renderedTileY && tileSize == renderedTileSize;
+    }
 
-        Shader shader;
-//        if (renderToDepth) {
-        shader = shadowGenShader;
+    public Matrix4x4 getRenderedLightSpaceMatrix() {
+        return renderedLightSpaceMatrix;
+    }
 
-        try (ShaderUse su = new ShaderUse(shader)) {
-//            int lightSpaceMatrixLocation = GL20.glGetUniformLocation(shadowGenShader.getShaderId(), "lightSpaceMatrix");
-//            GL20.glUniformMatrix4fv(lightSpaceMatrixLocation, false, MatrixLwjgl.convertMatrixToBuffer(lightSpaceMatrix));
-            shader.setMatrix("lightSpaceMatrix", lightSpaceMatrix);
+    public void markRendered(Matrix4x4 lightSpaceMatrix, int geometryVersion, ShadowAtlas atlas) {
+        renderedLightSpaceMatrix = lightSpaceMatrix;
+        renderedGeometryVersion = geometryVersion;
+        renderedAtlasGeneration = atlas.getGeneration();
+        renderedTileX = tileX;
+        renderedTileY = tileY;
+        renderedTileSize = tileSize;
+    }
 
-            glViewport(0, 0, SHADOW_WIDTH, SHADOW_HEIGHT);
-            glBindFramebuffer(GL_FRAMEBUFFER, depthMapFBO);
-            glClear(GL_DEPTH_BUFFER_BIT);
+    public void setup(Shader shadowGenShader, Matrix4x4 lightSpaceMatrix, ShadowAtlas atlas) {
+        atlas.bindTile(this);
 
-            // renderScene(shader);
+        try (ShaderUse su = new ShaderUse(shadowGenShader)) {
+            su.shader.setMatrix("lightSpaceMatrix", lightSpaceMatrix);
         }
+    }
 
-
+    // The tile as a vec4 in atlas texture coordinates: xy the corner, zw the size
+    void writeAtlasRect(ByteBuffer buffer) {
+        float scale = 1.0f / atlasSize;
+        buffer.putFloat(tileX * scale).putFloat(tileY * scale).putFloat(tileSize * scale).putFloat(tileSize * scale);
     }
 }
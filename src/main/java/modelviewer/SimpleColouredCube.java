@@ -1,5 +1,6 @@
 package modelviewer;
 
+import BasicModels.BoundingBox;
 import enterthematrix.Matrix4x4;
 import enterthematrix.Vector4;
 import org.lwjgl.BufferUtils;
@@ -132,4 +133,23 @@ class SimpleColouredCube extends Model {
             GL30.glBindVertexArray(0);
         }
     }
+
+    @Override
+    void drawDepth(Shader shader) {
+        shader.setMatrix("modelMatrix", getModelMatrix());
+        GL11.glDrawArrays(GL11.GL_TRIANGLES, 0, 36);
+    }
+
+    @Override
+    int getVaoId() {
+        return vaoId;
+    }
+
+    // The unit cube the vertices describe
+    private static final BoundingBox LOCAL_BOUNDS = new BoundingBox(-0.5f, 0.5f, -0.5f, 0.5f, -0.5f, 0.5f);
+
+    @Override
+    BoundingBox getLocalBounds() {
+        return LOCAL_BOUNDS;
+    }
 }
@@ -0,0 +1,283 @@
+package modelviewer;
+
+import BasicModels.BoundingBox;
+import enterthematrix.Matrix4x4;
+import enterthematrix.Vector3;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.function.Predicate;
+import java.util.stream.IntStream;
+
+// Occlusion culling without the GPU: the biggest models in view are rasterized into a small depth buffer on the CPU,
+// and then every other model's bounding box is tested against it.  Unlike OcclusionCulling it has no frame of latency
+// and never waits on or adds work for the GPU, which matters on software GL like llvmpipe where queries are slow.
+// Rasterizing is split into tiles, each filled by its own thread from the triangles binned to it, so no locking is
+// needed.  The inner loops work on flat float arrays with no dependencies between pixels, so the JIT can vectorise them.
+// Depths are NDC z, which is linear in screen space so can be interpolated directly.  Occluders are only drawn where
+// they cover a pixel's centre, and a box is only hidden if every pixel it could touch is nearer, so mistakes err towards
+// drawing.
+class SoftwareOcclusionBuffer {
+    static final int WIDTH = 256;
+    private static final int TILE_WIDTH = 64, TILE_HEIGHT = 32;
+    // Most models picked as occluders each frame
+    private static final int MAX_OCCLUDERS = 16;
+    // Models smaller on screen than this, as a fraction of the view, hide too little to be worth rasterizing
+    private static final float MIN_OCCLUDER_SIZE = 0.05f;
+    // Meshes with more triangles than this aren't used as occluders, as we have no simplified versions of them
+    static final int MAX_OCCLUDER_TRIANGLES = 4096;
+    // Float error allowed when a box is tested against its own model's depths
+    private static final float DEPTH_BIAS = 0.00001f;
+
+    // Triangles for rasterizing, in model space
+    static final class Occluder {
+        final float[] positions;
+        final int[] indices;
+
+        Occluder(float[] positions, int[] indices) {
+            this.positions = positions;
+            this.indices = indices;
+        }
+
+        // For models that fill their box, like the cubes
+        static Occluder box(BoundingBox box) {
+            float[] positions = new float[8 * 3];
+            for (int i = 0; i < 8; i++) {
+                positions[i * 3] = (i & 1) == 0 ? box.minX() : box.maxX();
+                positions[i * 3 + 1] = (i & 2) == 0 ? box.minY() : box.maxY();
+                positions[i * 3 + 2] = (i & 4) == 0 ? box.minZ() : box.maxZ();
+            }
+            return new Occluder(positions, new int[] {
+                    0, 2, 1, 1, 2, 3,   4, 5, 6, 5, 7, 6,
+                    0, 1, 4, 1, 5, 4,   2, 6, 3, 3, 6, 7,
+                    0, 4, 2, 2, 4, 6,   1, 3, 5, 3, 7, 5 });
+        }
+    }
+
+    private int height = 0, tilesX = 0, tilesY = 0;
+    private float[] depth = new float[0];
+    // Furthest depth in each tile, so boxes can be tested a tile at a time where the tile is all nearer
+    private float[] tileMaxDepth = new float[0];
+    // Screen space triangles: x, y, z of each of the 3 corners
+    private float[] triangles = new float[0];
+    private int triangleCount = 0;
+    // Triangle indexes overlapping each tile
+    private int[][] bins = new int[0][];
+    private int[] binCounts = new int[0];
+
+    // Clears the buffer and rasterizes the largest of the visible models that have an occluder, visible being from
+    // SceneBounds.cull.  drawn excludes models in bounds that aren't being drawn, which mustn't hide anything.
+    void render(SceneBounds bounds, boolean[] visible, Predicate<Model> drawn, Matrix4x4 projectionView, Vector3 eye,
+                float aspect) {
+        resize(aspect);
+        Arrays.fill(depth, 1);
+        triangleCount = 0;
+
+        List<Integer> occluders = new ArrayList<>();
+        float[] size = new float[bounds.size()];
+        for (int i = 0; i < bounds.size(); i++) {
+            if (!visible[i] || bounds.get(i).getOccluder() == null || !drawn.test(bounds.get(i))) continue;
+            float dx = bounds.centerX[i] - eye.x(), dy = bounds.centerY[i] - eye.y(), dz = bounds.centerZ[i] - eye.z();
+            float distance = (float) Math.sqrt(dx * dx + dy * dy + dz * dz);
+            size[i] = bounds.radius[i] / Math.max(distance, 0.0001f);
+            if (size[i] >= MIN_OCCLUDER_SIZE) occluders.add(i);
+        }
+        occluders.sort(Comparator.comparingDouble(i -> -size[i]));
+        for (int i = 0; i < Math.min(occluders.size(), MAX_OCCLUDERS); i++) {
+            Model model = bounds.get(occluders.get(i));
+            addTriangles(model.getOccluder(), matrixArray(projectionView.$times(model.getModelMatrix())));
+        }
+
+        bin();
+        IntStream.range(0, tilesX * tilesY).parallel().forEach(this::rasterizeTile);
+    }
+
+    // visible with the models whose boxes are completely hidden in the buffer set false
+    boolean[] cull(SceneBounds bounds, boolean[] visible, Matrix4x4 projectionView) {
+        float[] m = matrixArray(projectionView);
+        boolean[] out = Arrays.copyOf(visible, visible.length);
+        IntStream range = IntStream.range(0, bounds.size());
+        if (bounds.size() >= SceneBounds.PARALLEL_THRESHOLD) range = range.parallel();
+        range.filter(i -> visible[i] && isHidden(bounds, i, m)).forEach(i -> out[i] = false);
+        return out;
+    }
+
+    private void resize(float aspect) {
+        int newHeight = Math.max(TILE_HEIGHT, Math.round(WIDTH / aspect / TILE_HEIGHT) * TILE_HEIGHT);
+        if (newHeight == height) return;
+        height = newHeight;
+        tilesX = WIDTH / TILE_WIDTH;
+        tilesY = height / TILE_HEIGHT;
+        depth = new float[WIDTH * height];
+        tileMaxDepth = new float[tilesX * tilesY];
+        bins = new int[tilesX * tilesY][16];
+        binCounts = new int[tilesX * tilesY];
+    }
+
+    private static float[] matrixArray(Matrix4x4 matrix) {
+        float[] out = new float[16];
+        for (int row = 0; row < 4; row++) {
+            for (int col = 0; col < 4; col++) {
+                out[row * 4 + col] = matrix.get(row, col);
+            }
+        }
+        return out;
+    }
+
+    // Projects the occluder to screen space.  Triangles that cross the near plane are dropped rather than clipped, which
+    // just means they hide nothing.
+    private void addTriangles(Occluder occluder, float[] m) {
+        int vertices = occluder.positions.length / 3;
+        float[] screen = new float[vertices * 3];
+        boolean[] inFront = new boolean[vertices];
+        for (int v = 0; v < vertices; v++) {
+            float x = occluder.positions[v * 3], y = occluder.positions[v * 3 + 1], z = occluder.positions[v * 3 + 2];
+            float cx = m[0] * x + m[1] * y + m[2] * z + m[3];
+            float cy = m[4] * x + m[5] * y + m[6] * z + m[7];
+            float cz = m[8] * x + m[9] * y + m[10] * z + m[11];
+            float cw = m[12] * x + m[13] * y + m[14] * z + m[15];
+            inFront[v] = cw > 0 && cz >= -cw;
+            screen[v * 3] = (cx / cw * 0.5f + 0.5f) * WIDTH;
+            screen[v * 3 + 1] = (cy / cw * 0.5f + 0.5f) * height;
+            screen[v * 3 + 2] = cz / cw;
+        }
+
+        int[] indices = occluder.indices;
+        if (triangles.length < (triangleCount + indices.length / 3) * 9) {
+            triangles = Arrays.copyOf(triangles, Math.max((triangleCount + indices.length / 3) * 9, triangles.length * 2));
+        }
+        for (int i = 0; i + 2 < indices.length; i += 3) {
+            int a = indices[i], b = indices[i + 1], c = indices[i + 2];
+            if (!inFront[a] || !inFront[b] || !inFront[c]) continue;
+            int t = triangleCount * 9;
+            for (int corner : new int[] { a, b, c }) {
+                triangles[t++] = screen[corner * 3];
+                triangles[t++] = screen[corner * 3 + 1];
+                triangles[t++] = screen[corner * 3 + 2];
+            }
+            triangleCount++;
+        }
+    }
+
+    private void bin() {
+        Arrays.fill(binCounts, 0);
+        for (int t = 0; t < triangleCount; t++) {
+            int base = t * 9;
+            float minX = Math.min(triangles[base], Math.min(triangles[base + 3], triangles[base + 6]));
+            float maxX = Math.max(triangles[base], Math.max(triangles[base + 3], triangles[base + 6]));
+            float minY = Math.min(triangles[base + 1], Math.min(triangles[base + 4], triangles[base + 7]));
+            float maxY = Math.max(triangles[base + 1], Math.max(triangles[base + 4], triangles[base + 7]));
+            int fromX = Math.max(0, (int) Math.floor(minX) / TILE_WIDTH);
+            int toX = Math.min(tilesX - 1, (int) Math.floor(maxX) / TILE_WIDTH);
+            int fromY = Math.max(0, (int) Math.floor(minY) / TILE_HEIGHT);
+            int toY = Math.min(tilesY - 1, (int) Math.floor(maxY) / TILE_HEIGHT);
+            for (int ty = fromY; ty <= toY; ty++) {
+                for (int tx = fromX; tx <= toX; tx++) {
+                    int tile = ty * tilesX + tx;
+                    if (binCounts[tile] == bins[tile].length) bins[tile] = Arrays.copyOf(bins[tile], bins[tile].length * 2);
+                    bins[tile][binCounts[tile]++] = t;
+                }
+            }
+        }
+    }
+
+    private void rasterizeTile(int tile) {
+        int tileX0 = (tile % tilesX) * TILE_WIDTH, tileY0 = (tile / tilesX) * TILE_HEIGHT;
+        for (int b = 0; b < binCounts[tile]; b++) {
+            int base = bins[tile][b] * 9;
+            float x0 = triangles[base], y0 = triangles[base + 1], z0 = triangles[base + 2];
+            float x1 = triangles[base + 3], y1 = triangles[base + 4], z1 = triangles[base + 5];
+            float x2 = triangles[base + 6], y2 = triangles[base + 7], z2 = triangles[base + 8];
+            float area = (x1 - x0) * (y2 - y0) - (x2 - x0) * (y1 - y0);
+            if (Math.abs(area) < 0.0001f) continue;
+            // Either winding, so models don't need consistent ones.  Swapping two corners flips the sign.
+            if (area < 0) {
+                float sx = x1, sy = y1, sz = z1;
+                x1 = x2; y1 = y2; z1 = z2;
+                x2 = sx; y2 = sy; z2 = sz;
+                area = -area;
+            }
+
+            int fromX = Math.max(tileX0, (int) Math.floor(Math.min(x0, Math.min(x1, x2))));
+            int toX = Math.min(tileX0 + TILE_WIDTH - 1, (int) Math.ceil(Math.max(x0, Math.max(x1, x2))));
+            int fromY = Math.max(tileY0, (int) Math.floor(Math.min(y0, Math.min(y1, y2))));
+            int toY = Math.min(tileY0 + TILE_HEIGHT - 1, (int) Math.ceil(Math.max(y0, Math.max(y1, y2))));
+
+            // Edge functions, each positive on the inside of the edge opposite one corner: w = a * px + b * py + c
+            float a0 = y1 - y2, b0 = x2 - x1, c0 = x1 * y2 - x2 * y1;
+            float a1 = y2 - y0, b1 = x0 - x2, c1 = x2 * y0 - x0 * y2;
+            float a2 = y0 - y1, b2 = x1 - x0, c2 = x0 * y1 - x1 * y0;
+            float invArea = 1 / area;
+            // Depth as a plane over the screen, so each pixel's is independent of the last
+            float dzdx = (a0 * z0 + a1 * z1 + a2 * z2) * invArea;
+            float dzdy = (b0 * z0 + b1 * z1 + b2 * z2) * invArea;
+            float dz0 = (c0 * z0 + c1 * z1 + c2 * z2) * invArea;
+
+            for (int py = fromY; py <= toY; py++) {
+                float cy = py + 0.5f;
+                float row0 = b0 * cy + c0, row1 = b1 * cy + c1, row2 = b2 * cy + c2;
+                float rowZ = dzdy * cy + dz0;
+                int rowStart = py * WIDTH;
+                for (int px = fromX; px <= toX; px++) {
+                    float cx = px + 0.5f;
+                    float w0 = a0 * cx + row0, w1 = a1 * cx + row1, w2 = a2 * cx + row2;
+                    float z = dzdx * cx + rowZ;
+                    float old = depth[rowStart + px];
+                    depth[rowStart + px] = (w0 >= 0 & w1 >= 0 & w2 >= 0 & z < old) ? z : old;
+                }
+            }
+        }
+
+        float max = -1;
+        for (int py = tileY0; py < tileY0 + TILE_HEIGHT; py++) {
+            for (int px = tileX0; px < tileX0 + TILE_WIDTH; px++) {
+                max = Math.max(max, depth[py * WIDTH + px]);
+            }
+        }
+        tileMaxDepth[tile] = max;
+    }
+
+    private boolean isHidden(SceneBounds bounds, int index, float[] m) {
+        float minSx = Float.MAX_VALUE, minSy = Float.MAX_VALUE, maxSx = -Float.MAX_VALUE, maxSy = -Float.MAX_VALUE;
+        float nearest = Float.MAX_VALUE;
+        for (int corner = 0; corner < 8; corner++) {
+            float x = (corner & 1) == 0 ? bounds.minX[index] : bounds.maxX[index];
+            float y = (corner & 2) == 0 ? bounds.minY[index] : bounds.maxY[index];
+            float z = (corner & 4) == 0 ? bounds.minZ[index] : bounds.maxZ[index];
+            float cx = m[0] * x + m[1] * y + m[2] * z + m[3];
+            float cy = m[4] * x + m[5] * y + m[6] * z + m[7];
+            float cz = m[8] * x + m[9] * y + m[10] * z + m[11];
+            float cw = m[12] * x + m[13] * y + m[14] * z + m[15];
+            // Reaches behind the near plane, so it's right in front of the camera
+            if (cw <= 0 || cz < -cw) return false;
+            minSx = Math.min(minSx, (cx / cw * 0.5f + 0.5f) * WIDTH);
+            maxSx = Math.max(maxSx, (cx / cw * 0.5f + 0.5f) * WIDTH);
+            minSy = Math.min(minSy, (cy / cw * 0.5f + 0.5f) * height);
+            maxSy = Math.max(maxSy, (cy / cw * 0.5f + 0.5f) * height);
+            nearest = Math.min(nearest, cz / cw);
+        }
+        // Every pixel whose centre the box could cover
+        int fromX = Math.max(0, (int) Math.floor(minSx));
+        int toX = Math.min(WIDTH - 1, (int) Math.ceil(maxSx));
+        int fromY = Math.max(0, (int) Math.floor(minSy));
+        int toY = Math.min(height - 1, (int) Math.ceil(maxSy));
+        if (fromX > toX || fromY > toY) return false;
+        float limit = nearest - DEPTH_BIAS;
+
+        for (int ty = fromY / TILE_HEIGHT; ty <= toY / TILE_HEIGHT; ty++) {
+            for (int tx = fromX / TILE_WIDTH; tx <= toX / TILE_WIDTH; tx++) {
+                if (tileMaxDepth[ty * tilesX + tx] < limit) continue;
+                int y0 = Math.max(fromY, ty * TILE_HEIGHT), y1 = Math.min(toY, ty * TILE_HEIGHT + TILE_HEIGHT - 1);
+                int x0 = Math.max(fromX, tx * TILE_WIDTH), x1 = Math.min(toX, tx * TILE_WIDTH + TILE_WIDTH - 1);
+                for (int py = y0; py <= y1; py++) {
+                    for (int px = x0; px <= x1; px++) {
+                        if (depth[py * WIDTH + px] >= limit) return false;
+                    }
+                }
+            }
+        }
+        return true;
+    }
+}
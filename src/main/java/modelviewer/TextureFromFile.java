@@ -41,6 +41,8 @@ class TextureFromFile implements Texture {
     }
 
     final private int textureId;
+    // Below the most visible shadow maps, see FrameScheduler
+    private static final float MIPMAP_PRIORITY = 0.5f;
 
     public TextureFromFile(URL resource) throws IOException {
         this(resource, AiTextureMapMode.WRAP, AiTextureMapMode.WRAP);
@@ -104,7 +106,13 @@ class TextureFromFile implements Texture {
             } else {
                 assert (false);
             }
-            GL30.glGenerateMipmap(GL11.GL_TEXTURE_2D);
+            // Generating mipmaps for a big texture is slow, and a model can load dozens, so it's done over the next few
+            // frames.  Until then the texture is sampled without them.
+            FrameScheduler.shared.submit("mipmaps" + textureId, MIPMAP_PRIORITY, () -> {
+                GL11.glBindTexture(GL11.GL_TEXTURE_2D, textureId);
+                GL30.glGenerateMipmap(GL11.GL_TEXTURE_2D);
+                GL11.glTexParameteri(GL11.GL_TEXTURE_2D, GL11.GL_TEXTURE_MIN_FILTER, GL11.GL_LINEAR_MIPMAP_LINEAR);
+            });
 
             // Setup the ST coordinate system
             switch (mapModeS) {
@@ -131,7 +139,8 @@ class TextureFromFile implements Texture {
 
             // Setup what to do when the texture has to be scaled
             GL11.glTexParameteri(GL11.GL_TEXTURE_2D, GL11.GL_TEXTURE_MAG_FILTER, GL11.GL_NEAREST);
-            GL11.glTexParameteri(GL11.GL_TEXTURE_2D, GL11.GL_TEXTURE_MIN_FILTER, GL11.GL_LINEAR_MIPMAP_LINEAR);
+            // Mipmapped once they've been generated
+            GL11.glTexParameteri(GL11.GL_TEXTURE_2D, GL11.GL_TEXTURE_MIN_FILTER, GL11.GL_LINEAR);
 //            GL11.glTexParameteri(GL11.GL_TEXTURE_2D, GL11.GL_TEXTURE_MIN_FILTER, GL11.GL_NEAREST);
 //        GL11.glTexParameteri(GL11.GL_TEXTURE_2D, GL11.GL_TEXTURE_MIN_FILTER, GL11.GL_LINEAR);
 
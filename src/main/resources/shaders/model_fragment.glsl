@@ -1,67 +1,215 @@
 #version 330 core
 
-
+// Features are compiled in or out with #defines rather than branched on at runtime, see ShaderPermutation:
+// LIGHTING, DIR_LIGHT, POINT_LIGHT_0..3 for each enabled point light, SHADOWS, SHADOW_FILTER_PCF4 or
+// SHADOW_FILTER_POISSON, LAYERED_SHADOWS, CUBE_SHADOWS, CASCADED_SHADOWS, TEXTURES, CLUSTERED_LIGHTS.
+// The deferred renderer uses it twice, see DeferredRenderer: with GBUFFER it writes the unlit surface to the G-buffer,
+// with DEFERRED_LIGHTING it reads that back and lights it.
+
+// Light and material data come from uniform blocks shared by every program, written once per frame (lights) or once
+// per model load (materials) by LightBuffer and MaterialBuffer.  The std140 layouts must match what they write.
 struct DirLight {
-    bool enabled;
     vec3 direction;
-
-    vec3 ambientMin;
+    float ambientMin;
     vec3 ambient;
+    bool enabled;
     vec3 diffuse;
-    vec3 specular;
-
     bool shadowsEnabled;
-    sampler2D shadowMap;
+    vec3 specular;
+    // The light's tile of the shadow atlas, see SHADOW_MAP below
+    vec4 shadowAtlasRect;
 };
 
 struct PointLight {
-    bool enabled;
     vec3 position;
-
     float constant;
+    vec3 ambient;
     float linear;
+    vec3 diffuse;
     float quadratic;
+    vec3 specular;
+    bool enabled;
+    bool shadowsEnabled;
+    // Where the light's cube ends, see PointLight.shadowFarPlane.  Only used with CUBE_SHADOWS.
+    float shadowFarPlane;
+    vec4 shadowAtlasRect;
+};
 
+struct MaterialData {
     vec3 ambient;
     vec3 diffuse;
     vec3 specular;
+    float shininess;
+};
 
-    bool shadowsEnabled;
-    sampler2D shadowMap;
+#define NR_POINT_LIGHTS 4
+#define MAX_CASCADES 4
+layout (std140) uniform LightBlock {
+    DirLight dirLight;
+    PointLight pointLights[NR_POINT_LIGHTS];
+    // The directional light's cascades, see ShadowCascades.  Only used with CASCADED_SHADOWS.
+    mat4 cascadeMatrices[MAX_CASCADES];
+    vec4 cascadeAtlasRects[MAX_CASCADES];
+    // Distance from the camera at which each cascade ends
+    vec4 cascadeSplits;
+    int cascadeCount;
 };
 
-struct Material {
-    vec3 ambient;
+#ifdef CLUSTERED_LIGHTS
+// Any number of unshadowed point lights, binned by ClusteredLights into clusters of screen tile and depth slice.
+// Each fragment only loops over its own cluster's lights.  The std430 layouts must match what it writes.
+struct ClusterLight {
+    vec3 position;
+    // Where the attenuation has dropped below 1/256
+    float radius;
     vec3 diffuse;
+    float constant;
     vec3 specular;
-    float shininess;
+    float linear;
+    float quadratic;
+};
+layout (std430, binding = 4) readonly buffer ClusterLightBlock {
+    ClusterLight clusterLights[];
+};
+layout (std430, binding = 5) readonly buffer ClusterBlock {
+    // xy take a pixel to its tile, zw take log(view depth) to its slice
+    vec4 clusterScale;
+    // Tiles across and down, and slices
+    ivec4 clusterCounts;
+    // For each cluster, the offset of its list in clusterLightIndices and its length
+    uvec2 clusters[];
+};
+layout (std430, binding = 6) readonly buffer ClusterIndexBlock {
+    uint clusterLightIndices[];
+};
+#endif
 
-    sampler2D diffuseTexture;
-    sampler2D specularTexture;
+#define MAX_MATERIALS 256
+layout (std140) uniform MaterialBlock {
+    MaterialData materials[MAX_MATERIALS];
 };
 
-#define NR_POINT_LIGHTS 4
-uniform PointLight pointLights[NR_POINT_LIGHTS];
-uniform DirLight dirLight;
-uniform Material material;
+// Samplers can't live in uniform blocks.  The texture units are fixed, see ShaderStore.
+#ifdef LAYERED_SHADOWS
+// Every light's shadow map is a layer of one array, see LayeredShadowMaps, so a shadow map is identified by its layer
+uniform sampler2DArrayShadow shadowMapArray;
+#define SHADOW_MAP int
+#define DIR_LIGHT_SHADOW_MAP 0
+#ifdef CUBE_SHADOWS
+// The point lights have a cube each instead, in a cube map array, and are identified by their cube.  Needs GLSL 4.00.
+uniform samplerCubeArrayShadow shadowCubeArray;
+#define POINT_LIGHT_SHADOW_MAP(i) i
+#else
+#define POINT_LIGHT_SHADOW_MAP(i) (1 + i)
+#endif
+#define SHADOW_COMPARE(shadowMap, uv, depth) texture(shadowMapArray, vec4(uv, shadowMap, depth))
+#define SHADOW_TEXTURE_SIZE(shadowMap) textureSize(shadowMapArray, 0).xy
+#else
+// Every light's shadow map is a tile of one atlas, see ShadowAtlas, so a shadow map is identified by its tile: xy is
+// the corner and zw the size, in atlas texture coordinates.  Each tap is clamped half a texel inside the tile, as the
+// comparison filters over the 2x2 texels around it, so however far PCF spreads its taps none reads a neighbour.
+uniform sampler2DShadow shadowAtlas;
+#define SHADOW_MAP vec4
+#define DIR_LIGHT_SHADOW_MAP dirLight.shadowAtlasRect
+#define POINT_LIGHT_SHADOW_MAP(i) pointLights[i].shadowAtlasRect
+#define SHADOW_TEXTURE_SIZE(shadowMap) (vec2(textureSize(shadowAtlas, 0)) * shadowMap.zw)
+#define SHADOW_TILE_INSET(shadowMap) (0.5 / SHADOW_TEXTURE_SIZE(shadowMap))
+#define SHADOW_COMPARE(shadowMap, uv, depth) texture(shadowAtlas, vec3(shadowMap.xy + clamp(uv, SHADOW_TILE_INSET(shadowMap), 1.0 - SHADOW_TILE_INSET(shadowMap)) * shadowMap.zw, depth))
+#endif
+uniform sampler2D diffuseTexture;
+uniform sampler2D specularTexture;
+
+#ifdef DEFERRED_LIGHTING
+// The surface comes from the G-buffer rather than from the vertex shader and the material, see loadSurface.  It's
+// put in the same names, so the lighting code is shared with the forward renderer.
+uniform sampler2D gNormal;
+uniform sampler2D gDiffuse;
+uniform sampler2D gSpecular;
+uniform sampler2D gAmbient;
+uniform sampler2D gDepth;
+uniform mat4 inverseProjectionView;
+uniform mat4 viewMatrix;
+uniform mat4 lightSpaceMatrixDir;
+uniform mat4 lightSpaceMatrixes[NR_POINT_LIGHTS];
+MaterialData surface;
+#define MATERIAL surface
+int surfaceLightMask;
+#define LIGHT_MASK surfaceLightMask
+bool receivesShadows;
+#define SURFACE_IN
+#else
+#define SURFACE_IN in
+
+// In the MULTI_DRAW variant the material index comes from the per-draw data, otherwise it's set per draw
+#ifdef MULTI_DRAW
+flat in int MaterialIndex;
+#define MATERIAL materials[MaterialIndex]
+#else
+uniform int materialIndex;
+#define MATERIAL materials[materialIndex]
+#endif
+// Bit i is set if point light i reaches what's being drawn, see Model.lightMask
+#ifdef MULTI_DRAW
+flat in int LightMask;
+#define LIGHT_MASK LightMask
+#else
+uniform int lightMask;
+#define LIGHT_MASK lightMask
+#endif
+// Per-object opt out of shadows.  The multi-draw path only draws model meshes, which always receive them.
+#ifdef MULTI_DRAW
+const bool receivesShadows = true;
+#else
+uniform bool receivesShadows;
+#endif
+#endif
 uniform vec3 viewPos;
-uniform bool shadowsEnabled;
-uniform bool shadowsHighQuality;
 uniform float shadowBiasMulti;
 uniform float shadowBiasMax;
-uniform bool drawTextures;
-uniform bool doLighting;
 
+#ifdef GBUFFER
+// See DeferredRenderer for what goes where
+layout (location = 0) out vec4 GNormal;
+layout (location = 1) out vec4 GDiffuse;
+layout (location = 2) out vec4 GSpecular;
+layout (location = 3) out vec4 GAmbient;
+#else
 out vec4 FragColor;
-
-in vec2 TexCoords;
-in vec3 Normal;
-in vec3 FragPos;
-in vec4 FragPosLightSpaceDir;
-in vec4 FragPosLightSpacePoint[NR_POINT_LIGHTS];
-
-
-float ShadowCalculation(vec4 fragPosLightSpace, sampler2D shadowMap, vec3 normal, vec3 lightDir)
+#endif
+
+SURFACE_IN vec2 TexCoords;
+SURFACE_IN vec3 Normal;
+SURFACE_IN vec3 FragPos;
+#if defined(CLUSTERED_LIGHTS) || (defined(SHADOWS) && defined(CASCADED_SHADOWS))
+#define VIEW_DEPTH
+SURFACE_IN float ViewDepth;
+#endif
+#ifdef SHADOWS
+#if defined(DIR_LIGHT) && !defined(CASCADED_SHADOWS)
+SURFACE_IN vec4 FragPosLightSpaceDir;
+#endif
+#ifdef POINT_LIGHT_0
+SURFACE_IN vec4 FragPosLightSpacePoint0;
+#endif
+#ifdef POINT_LIGHT_1
+SURFACE_IN vec4 FragPosLightSpacePoint1;
+#endif
+#ifdef POINT_LIGHT_2
+SURFACE_IN vec4 FragPosLightSpacePoint2;
+#endif
+#ifdef POINT_LIGHT_3
+SURFACE_IN vec4 FragPosLightSpacePoint3;
+#endif
+#endif
+
+
+#ifdef SHADOW_FILTER_POISSON
+const vec2 poissonDisk[8] = vec2[](
+    vec2(-0.613392, 0.617481), vec2(0.170019, -0.040254), vec2(-0.299417, 0.791925), vec2(0.645680, 0.493210),
+    vec2(-0.651784, 0.717887), vec2(0.421003, 0.027070), vec2(-0.817194, -0.271096), vec2(-0.705374, -0.668203));
+#endif
+
+float ShadowCalculation(vec4 fragPosLightSpace, SHADOW_MAP shadowMap, vec3 normal, vec3 lightDir)
 {
     // perform perspective divide
     vec3 projCoords = fragPosLightSpace.xyz / fragPosLightSpace.w;
@@ -73,81 +221,149 @@ float ShadowCalculation(vec4 fragPosLightSpace, sampler2D shadowMap, vec3 normal
     // transform to [0,1] range
     projCoords = projCoords * 0.5 + 0.5;
 
-
-    // get closest depth value from light's perspective (using [0,1] range fragPosLight as coords)
-    float closestDepth = texture(shadowMap, projCoords.xy).r;
-    // get depth of current fragment from light's perspective
-    float currentDepth = projCoords.z;
+    // Outside the light's view.  The texture border used to take care of this, but atlas tiles have neighbours.
+    if (projCoords.x < 0.0 || projCoords.x > 1.0 || projCoords.y < 0.0 || projCoords.y > 1.0)
+        return 0.0;
 
     // Bias gets rid of weird moire pattern
 //    float bias = 0.005;
 //    float bias = max(0.05 * (1.0 - dot(normal, lightDir)), 0.00005);
     float bias = max(shadowBiasMulti * (1.0 - dot(normal, lightDir)), shadowBiasMax);
 
-    // check whether current frag pos is in shadow
-    float shadow = 0;
+    // depth of current fragment from light's perspective, compared against the map by the sampler
+    float compareDepth = projCoords.z - bias;
 
+    // Each tap returns how lit the point is, already filtered over the 4 nearest texels
+    float lit;
+#if defined(SHADOW_FILTER_POISSON)
+    vec2 texelSize = 1.0 / SHADOW_TEXTURE_SIZE(shadowMap);
+    lit = 0.0;
+    for (int i = 0; i < 8; i++) {
+        lit += SHADOW_COMPARE(shadowMap, projCoords.xy + poissonDisk[i] * 1.5 * texelSize, compareDepth);
+    }
+    lit /= 8.0;
+#elif defined(SHADOW_FILTER_PCF4)
+    vec2 texelSize = 1.0 / SHADOW_TEXTURE_SIZE(shadowMap);
+    lit = SHADOW_COMPARE(shadowMap, projCoords.xy + vec2(-0.5, -0.5) * texelSize, compareDepth)
+        + SHADOW_COMPARE(shadowMap, projCoords.xy + vec2( 0.5, -0.5) * texelSize, compareDepth)
+        + SHADOW_COMPARE(shadowMap, projCoords.xy + vec2(-0.5,  0.5) * texelSize, compareDepth)
+        + SHADOW_COMPARE(shadowMap, projCoords.xy + vec2( 0.5,  0.5) * texelSize, compareDepth);
+    lit *= 0.25;
+#else
+    lit = SHADOW_COMPARE(shadowMap, projCoords.xy, compareDepth);
+#endif
+
+    return 1.0 - lit;
+}
 
-    if (shadowsHighQuality) {
-//    if (true) {
-        vec2 texelSize = 1.0 / textureSize(shadowMap, 0);
-        for(int x = -1; x <= 1; ++x)
-        {
-            for(int y = -1; y <= 1; ++y)
-            {
-                float pcfDepth = texture(shadowMap, projCoords.xy + vec2(x, y) * texelSize).r;
-                shadow += currentDepth - bias > pcfDepth ? 1.0 : 0.0;
-            }
-        }
-        shadow /= 9.0;
+#ifdef CUBE_SHADOWS
+// As ShadowCalculation, for a point light's cube, which holds distance from the light over its shadowFarPlane.  The
+// bias is in world units rather than the depth units of shadowBiasMulti and shadowBiasMax: a texel's width where the
+// fragment is, more on surfaces facing away from the light.  The filters spread their taps across the face.
+float CubeShadowCalculation(int cube, PointLight light, vec3 fragPos, vec3 normal, vec3 lightDir)
+{
+    vec3 toFrag = fragPos - light.position;
+    float distance = length(toFrag);
+    if (distance >= light.shadowFarPlane)
+        return 0.0;
 
+    // A face is 2 units across at 1 unit from the light
+    float texel = 2.0 * distance / float(textureSize(shadowCubeArray, 0).x);
+    float bias = texel * (1.0 + 2.0 * (1.0 - max(dot(normal, lightDir), 0.0)));
+    float compareDepth = (distance - bias) / light.shadowFarPlane;
+
+    float lit;
+#if defined(SHADOW_FILTER_POISSON) || defined(SHADOW_FILTER_PCF4)
+    vec3 dir = toFrag / distance;
+    vec3 side = normalize(cross(dir, abs(dir.y) < 0.99 ? vec3(0.0, 1.0, 0.0) : vec3(1.0, 0.0, 0.0)));
+    vec3 up = cross(dir, side);
+#endif
+#if defined(SHADOW_FILTER_POISSON)
+    lit = 0.0;
+    for (int i = 0; i < 8; i++) {
+        vec2 offset = poissonDisk[i] * 1.5 * texel;
+        lit += texture(shadowCubeArray, vec4(toFrag + side * offset.x + up * offset.y, cube), compareDepth);
     }
-    else {
-        shadow = currentDepth - bias > closestDepth  ? 1.0 : 0.0;
-    }
+    lit /= 8.0;
+#elif defined(SHADOW_FILTER_PCF4)
+    vec3 a = (side + up) * 0.5 * texel;
+    vec3 b = (side - up) * 0.5 * texel;
+    lit = texture(shadowCubeArray, vec4(toFrag + a, cube), compareDepth)
+        + texture(shadowCubeArray, vec4(toFrag - a, cube), compareDepth)
+        + texture(shadowCubeArray, vec4(toFrag + b, cube), compareDepth)
+        + texture(shadowCubeArray, vec4(toFrag - b, cube), compareDepth);
+    lit *= 0.25;
+#else
+    lit = texture(shadowCubeArray, vec4(toFrag, cube), compareDepth);
+#endif
+
+    return 1.0 - lit;
+}
+#endif
 
-    //return 1.0f;
-    return shadow;
-//    return closestDepth;
+#ifdef CASCADED_SHADOWS
+// The first cascade reaching this far from the camera has the sharpest map covering the fragment.  Past the last
+// cascade nothing is shadowed.
+float CascadedShadowCalculation(vec3 normal, vec3 lightDir)
+{
+    for (int i = 0; i < cascadeCount; i++) {
+        if (ViewDepth < cascadeSplits[i]) {
+            return ShadowCalculation(cascadeMatrices[i] * vec4(FragPos, 1.0), cascadeAtlasRects[i], normal, lightDir);
+        }
+    }
+    return 0.0;
 }
+#endif
 
+#ifdef DIR_LIGHT
 vec3 CalcDirLight(DirLight light, vec3 normal, vec3 viewDir) {
       vec3 lightDir = normalize(-light.direction);
       // diffuse shading
       float diff = max(dot(normal, lightDir), 0.0);
       // specular shading
       vec3 reflectDir = reflect(-lightDir, normal);
-      float spec = pow(max(dot(viewDir, reflectDir), 0.0), material.shininess);
+      float spec = pow(max(dot(viewDir, reflectDir), 0.0), MATERIAL.shininess);
       // combine results
 //      vec3 ambient  = light.ambient  * vec3(texture(material.ambient, TexCoords));
 //      vec3 diffuse  = light.diffuse  * diff * vec3(texture(material.diffuse, TexCoords));
 //      vec3 specular = light.specular * spec * vec3(texture(material.specular, TexCoords));
-      vec3 ambient  = vec3(light.ambientMin) + (light.ambient * material.ambient);
-//      vec3 diffuse  = (light.diffuse * material.diffuse) + (light.ambient * material.diffuse *  vec3(texture(material.diffuseTexture, TexCoords)));
-//      vec3 diffuse  = (light.diffuse * material.diffuse *  vec3(texture(material.diffuseTexture, TexCoords)));
+      vec3 ambient  = vec3(light.ambientMin) + (light.ambient * MATERIAL.ambient);
+//      vec3 diffuse  = (light.diffuse * material.diffuse) + (light.ambient * material.diffuse *  vec3(texture(diffuseTexture, TexCoords)));
+//      vec3 diffuse  = (light.diffuse * material.diffuse *  vec3(texture(diffuseTexture, TexCoords)));
         vec3 texDiffuse = vec3(1.0f);
         vec3 texSpecular = vec3(1.0f);
-        if (drawTextures) {
+#ifdef TEXTURES
 //            tex = texture2D(material.diffuseTexture, TexCoords).xyz;
-            texDiffuse = vec3(texture(material.diffuseTexture, TexCoords));
-            texSpecular = vec3(texture(material.specularTexture, TexCoords));
-        }
-      vec3 diffuse  = (light.diffuse * material.diffuse * texDiffuse);
+            texDiffuse = vec3(texture(diffuseTexture, TexCoords));
+            texSpecular = vec3(texture(specularTexture, TexCoords));
+#endif
+      vec3 diffuse  = (light.diffuse * MATERIAL.diffuse * texDiffuse);
 //      vec3 diffuse  = tex;
-//      vec3 diffuse  = (light.ambient * vec3(texture(material.diffuseTexture, TexCoords)));
-//      vec3 diffuse  = vec3(texture(material.diffuseTexture, TexCoords));
-      vec3 specular = light.specular * spec * material.specular * texSpecular;
+//      vec3 diffuse  = (light.ambient * vec3(texture(diffuseTexture, TexCoords)));
+//      vec3 diffuse  = vec3(texture(diffuseTexture, TexCoords));
+      vec3 specular = light.specular * spec * MATERIAL.specular * texSpecular;
 //       return (ambient + diffuse + specular);
 
       float shadow = 0;
-      if (shadowsEnabled) {
-        shadow = ShadowCalculation(FragPosLightSpaceDir, light.shadowMap, normal, lightDir);
+#ifdef SHADOWS
+      if (light.shadowsEnabled && receivesShadows) {
+#ifdef CASCADED_SHADOWS
+        shadow = CascadedShadowCalculation(normal, lightDir);
+#else
+        shadow = ShadowCalculation(FragPosLightSpaceDir, DIR_LIGHT_SHADOW_MAP, normal, lightDir);
+#endif
       }
+#endif
 
        return ((1.0 - shadow) * (ambient + diffuse + specular));
 }
+#endif
 
-vec3 CalcPointLight(PointLight light, vec3 normal, vec3 fragPos, vec3 viewDir, vec4 fragPosLightSpace)
+#ifdef SHADOWS
+vec3 CalcPointLight(PointLight light, SHADOW_MAP shadowMap, vec3 normal, vec3 fragPos, vec3 viewDir, vec4 fragPosLightSpace)
+#else
+vec3 CalcPointLight(PointLight light, vec3 normal, vec3 fragPos, vec3 viewDir)
+#endif
 {
 
     vec3 lightDir = normalize(light.position - fragPos);
@@ -155,31 +371,37 @@ vec3 CalcPointLight(PointLight light, vec3 normal, vec3 fragPos, vec3 viewDir, v
     float diff = max(dot(normal, lightDir), 0.0);
     // specular shading
     vec3 reflectDir = reflect(-lightDir, normal);
-    float spec = pow(max(dot(viewDir, reflectDir), 0.0), material.shininess);
+    float spec = pow(max(dot(viewDir, reflectDir), 0.0), MATERIAL.shininess);
     // attenuation
     float distance    = length(light.position - fragPos);
     float attenuation = 1.0 / (light.constant + light.linear * distance + light.quadratic * (distance * distance));
     // combine results
 
     float shadow = 0;
-    if (shadowsEnabled && light.shadowsEnabled) {
-        shadow = ShadowCalculation(fragPosLightSpace, light.shadowMap, normal, lightDir);
+#ifdef SHADOWS
+    if (light.shadowsEnabled && receivesShadows) {
+#ifdef CUBE_SHADOWS
+        shadow = CubeShadowCalculation(shadowMap, light, fragPos, normal, lightDir);
+#else
+        shadow = ShadowCalculation(fragPosLightSpace, shadowMap, normal, lightDir);
+#endif
     }
+#endif
 
 //    vec3 ambient  = light.ambient  * vec3(texture(material.ambient, TexCoords));
 //    vec3 diffuse  = light.diffuse * diff * vec3(texture(material.diffuse, TexCoords));
 //    vec3 specular = light.specular * spec * vec3(texture(material.specular, TexCoords));
-    vec3 ambient  = light.ambient  * material.ambient;
+    vec3 ambient  = light.ambient  * MATERIAL.ambient;
         vec3 tex = vec3(1.0f);
         vec3 texSpecular = vec3(1.0f);
-        if (drawTextures) {
+#ifdef TEXTURES
 //            tex = texture2D(material.diffuseTexture, TexCoords).xyz;
-            tex = vec3(texture(material.diffuseTexture, TexCoords));
-            texSpecular = vec3(texture(material.specularTexture, TexCoords));
-        }
+            tex = vec3(texture(diffuseTexture, TexCoords));
+            texSpecular = vec3(texture(specularTexture, TexCoords));
+#endif
 
-      vec3 diffuse  = (light.diffuse * material.diffuse * tex);
-    vec3 specular = light.specular * spec * material.specular * texSpecular;
+      vec3 diffuse  = (light.diffuse * MATERIAL.diffuse * tex);
+    vec3 specular = light.specular * spec * MATERIAL.specular * texSpecular;
 
     ambient  *= attenuation;
     diffuse  *= attenuation;
@@ -188,28 +410,147 @@ vec3 CalcPointLight(PointLight light, vec3 normal, vec3 fragPos, vec3 viewDir, v
     return ((1.0 - shadow) * (ambient + diffuse + specular));
 }
 
+#ifdef CLUSTERED_LIGHTS
+// As CalcPointLight, without the shadows, or the ambient term, which would add up over hundreds of lights
+vec3 CalcClusterLight(ClusterLight light, vec3 normal, vec3 fragPos, vec3 viewDir)
+{
+    float distance = length(light.position - fragPos);
+    if (distance > light.radius) return vec3(0.0);
+    vec3 lightDir = (light.position - fragPos) / distance;
+    float diff = max(dot(normal, lightDir), 0.0);
+    vec3 reflectDir = reflect(-lightDir, normal);
+    float spec = pow(max(dot(viewDir, reflectDir), 0.0), MATERIAL.shininess);
+    float attenuation = 1.0 / (light.constant + light.linear * distance + light.quadratic * (distance * distance));
+
+    vec3 tex = vec3(1.0f);
+    vec3 texSpecular = vec3(1.0f);
+#ifdef TEXTURES
+    tex = vec3(texture(diffuseTexture, TexCoords));
+    texSpecular = vec3(texture(specularTexture, TexCoords));
+#endif
+    vec3 diffuse = light.diffuse * diff * MATERIAL.diffuse * tex;
+    vec3 specular = light.specular * spec * MATERIAL.specular * texSpecular;
+    return attenuation * (diffuse + specular);
+}
+#endif
+
+#ifdef DEFERRED_LIGHTING
+// Fills in the surface of the pixel from the G-buffer, and works out everything the vertex shader would have.  False
+// where nothing was drawn.
+bool loadSurface() {
+    ivec2 p = ivec2(gl_FragCoord.xy);
+    float depth = texelFetch(gDepth, p, 0).r;
+    if (depth == 1.0) return false;
+    vec4 world = inverseProjectionView * vec4(gl_FragCoord.xy / vec2(textureSize(gDepth, 0)) * 2.0 - 1.0, depth * 2.0 - 1.0, 1.0);
+    FragPos = world.xyz / world.w;
+
+    vec4 normal = texelFetch(gNormal, p, 0);
+    Normal = normal.xyz;
+    surface.shininess = normal.w;
+    vec4 diffuse = texelFetch(gDiffuse, p, 0);
+    surface.diffuse = diffuse.rgb;
+    receivesShadows = diffuse.a > 0.5;
+    vec4 specular = texelFetch(gSpecular, p, 0);
+    surface.specular = specular.rgb;
+    surfaceLightMask = int(specular.a * 15.0 + 0.5);
+    surface.ambient = texelFetch(gAmbient, p, 0).rgb;
+
+#ifdef VIEW_DEPTH
+    ViewDepth = -(viewMatrix * vec4(FragPos, 1.0)).z;
+#endif
+#ifdef SHADOWS
+#if defined(DIR_LIGHT) && !defined(CASCADED_SHADOWS)
+    FragPosLightSpaceDir = lightSpaceMatrixDir * vec4(FragPos, 1.0);
+#endif
+#ifdef POINT_LIGHT_0
+    FragPosLightSpacePoint0 = lightSpaceMatrixes[0] * vec4(FragPos, 1.0);
+#endif
+#ifdef POINT_LIGHT_1
+    FragPosLightSpacePoint1 = lightSpaceMatrixes[1] * vec4(FragPos, 1.0);
+#endif
+#ifdef POINT_LIGHT_2
+    FragPosLightSpacePoint2 = lightSpaceMatrixes[2] * vec4(FragPos, 1.0);
+#endif
+#ifdef POINT_LIGHT_3
+    FragPosLightSpacePoint3 = lightSpaceMatrixes[3] * vec4(FragPos, 1.0);
+#endif
+#endif
+    return true;
+}
+#define UNLIT_COLOUR surface.diffuse
+#else
+#define UNLIT_COLOUR texture(diffuseTexture, TexCoords).xyz
+#endif
 
+#ifdef GBUFFER
+// The surface, unlit.  The light mask only has room for the 4 point lights in the LightBuffer.
 void main(void) {
+#ifdef LIGHTING
+    vec3 texDiffuse = vec3(1.0f);
+    vec3 texSpecular = vec3(1.0f);
+#ifdef TEXTURES
+    texDiffuse = vec3(texture(diffuseTexture, TexCoords));
+    texSpecular = vec3(texture(specularTexture, TexCoords));
+#endif
+    GNormal = vec4(normalize(Normal), MATERIAL.shininess);
+    GDiffuse = vec4(MATERIAL.diffuse * texDiffuse, receivesShadows ? 1.0 : 0.0);
+    GSpecular = vec4(MATERIAL.specular * texSpecular, float(LIGHT_MASK & 15) / 15.0);
+    GAmbient = vec4(MATERIAL.ambient, 1.0);
+#else
+    GNormal = vec4(0.0);
+    GDiffuse = vec4(UNLIT_COLOUR, 0.0);
+    GSpecular = vec4(0.0);
+    GAmbient = vec4(0.0);
+#endif
+}
+#else
+void main(void) {
+#ifdef DEFERRED_LIGHTING
+    if (!loadSurface()) discard;
+#endif
+#ifdef LIGHTING
     // properties
     vec3 norm = normalize(Normal);
     vec3 viewDir = normalize(viewPos - FragPos);
 
-if (doLighting) {
     // phase 1: Directional lighting
     vec3 result = vec3(0,0,0);
-    if (dirLight.enabled) {
-        result += CalcDirLight(dirLight, norm, viewDir);
-    }
-    // phase 2: Point lights
-    for(int i = 0; i < NR_POINT_LIGHTS; i++) {
-        if (pointLights[i].enabled) {
-            result += CalcPointLight(pointLights[i], norm, FragPos, viewDir, FragPosLightSpacePoint[i]);
-        }
+#ifdef DIR_LIGHT
+    result += CalcDirLight(dirLight, norm, viewDir);
+#endif
+    // phase 2: Point lights.  Only the enabled ones are compiled in, which also keeps the sampler array indexes
+    // constant, as GLSL 3.30 requires.  Of those, only the ones that reach this draw are evaluated.
+#ifdef SHADOWS
+#define POINT_LIGHT(i, fragPosLightSpace) if ((LIGHT_MASK & (1 << i)) != 0) result += CalcPointLight(pointLights[i], POINT_LIGHT_SHADOW_MAP(i), norm, FragPos, viewDir, fragPosLightSpace);
+#else
+#define POINT_LIGHT(i, fragPosLightSpace) if ((LIGHT_MASK & (1 << i)) != 0) result += CalcPointLight(pointLights[i], norm, FragPos, viewDir);
+#endif
+#ifdef POINT_LIGHT_0
+    POINT_LIGHT(0, FragPosLightSpacePoint0)
+#endif
+#ifdef POINT_LIGHT_1
+    POINT_LIGHT(1, FragPosLightSpacePoint1)
+#endif
+#ifdef POINT_LIGHT_2
+    POINT_LIGHT(2, FragPosLightSpacePoint2)
+#endif
+#ifdef POINT_LIGHT_3
+    POINT_LIGHT(3, FragPosLightSpacePoint3)
+#endif
+    // phase 3: Clustered lights, just the ones whose reach overlaps this fragment's cluster
+#ifdef CLUSTERED_LIGHTS
+    ivec3 cluster = ivec3(ivec2(gl_FragCoord.xy * clusterScale.xy), int(floor(log(max(ViewDepth, 1e-6)) * clusterScale.z + clusterScale.w)));
+    cluster = clamp(cluster, ivec3(0), clusterCounts.xyz - 1);
+    uvec2 lightList = clusters[(cluster.z * clusterCounts.y + cluster.y) * clusterCounts.x + cluster.x];
+    for (uint i = 0u; i < lightList.y; i++) {
+        ClusterLight light = clusterLights[clusterLightIndices[lightList.x + i]];
+        result += CalcClusterLight(light, norm, FragPos, viewDir);
     }
+#endif
 
     FragColor = vec4(result, 1.0);
-    }
-    else {
-        FragColor = vec4(texture(material.diffuseTexture, TexCoords).xyz, 1.0);
-    }
-}
\ No newline at end of file
+#else
+    FragColor = vec4(UNLIT_COLOUR, 1.0);
+#endif
+}
+#endif
@@ -1,5 +1,11 @@
 #version 330 core
 
+// MULTI_DRAW is defined for the GL 4.3 variant used by MultiDrawModel: the model matrix comes from a per-draw SSBO
+// indexed by the draw command's baseInstance rather than from a uniform
+#ifdef MULTI_DRAW
+#extension GL_ARB_shader_draw_parameters : require
+#endif
+
 layout (location = 0) in vec3 aPos;
 layout (location = 1) in vec3 aNormal;
 layout (location = 2) in vec2 aTexCoords;
@@ -10,29 +16,92 @@ layout (location = 2) in vec2 aTexCoords;
 out vec3 FragPos;
 out vec3 Normal;
 out vec2 TexCoords;
+// The fragment shader picks the directional light's cascade, and the clustered lights' depth slice, by distance from
+// the camera
+#if defined(CLUSTERED_LIGHTS) || (defined(SHADOWS) && defined(CASCADED_SHADOWS))
+#define VIEW_DEPTH
+out float ViewDepth;
+#endif
+// Light space positions are only needed for the lights that are compiled in with shadows, see model_fragment.glsl
+#ifdef SHADOWS
+#if defined(DIR_LIGHT) && !defined(CASCADED_SHADOWS)
 out vec4 FragPosLightSpaceDir;
-out vec4 FragPosLightSpacePoint[NR_POINT_LIGHTS];
+#endif
+#ifdef POINT_LIGHT_0
+out vec4 FragPosLightSpacePoint0;
+#endif
+#ifdef POINT_LIGHT_1
+out vec4 FragPosLightSpacePoint1;
+#endif
+#ifdef POINT_LIGHT_2
+out vec4 FragPosLightSpacePoint2;
+#endif
+#ifdef POINT_LIGHT_3
+out vec4 FragPosLightSpacePoint3;
+#endif
+#endif
 //} vs_out;
 
 uniform mat4 projectionMatrix;
 uniform mat4 viewMatrix;
+#ifdef MULTI_DRAW
+struct DrawData {
+    mat4 modelMatrix;
+    int materialIndex;
+    // Which point lights reach the draw, see Model.lightMask
+    int lightMask;
+};
+layout (std430, binding = 0) buffer DrawDataBlock {
+    DrawData draws[];
+};
+// Indexed by each command's baseInstance rather than gl_DrawID, which restarts at 0 with each multi-draw call and
+// changes when GpuCulling compacts the commands
+flat out int MaterialIndex;
+flat out int LightMask;
+#define MODEL_MATRIX draws[gl_BaseInstanceARB].modelMatrix
+#else
 uniform mat4 modelMatrix;
+#define MODEL_MATRIX modelMatrix
+#endif
 //uniform mat4 lightSpaceMatrix;
 
 uniform mat4 lightSpaceMatrixDir;
 uniform mat4 lightSpaceMatrixes[NR_POINT_LIGHTS];
 
+// Must match the depth pre-pass in shadow_mapping.vtx exactly
+invariant gl_Position;
+
 void main()
 {
-    FragPos = vec3(modelMatrix * vec4(aPos, 1.0));
+#ifdef MULTI_DRAW
+    MaterialIndex = draws[gl_BaseInstanceARB].materialIndex;
+    LightMask = draws[gl_BaseInstanceARB].lightMask;
+#endif
+    FragPos = vec3(MODEL_MATRIX * vec4(aPos, 1.0));
     //Normal = mat3(transpose(inverse(modelMatrix))) * aNormal;
 //    Normal = transpose(inverse(mat3(modelMatrix))) * aNormal;
-    Normal = transpose(inverse(mat3(modelMatrix))) * aNormal;
+    Normal = transpose(inverse(mat3(MODEL_MATRIX))) * aNormal;
     TexCoords = aTexCoords;
+#ifdef VIEW_DEPTH
+    ViewDepth = -(viewMatrix * vec4(FragPos, 1.0)).z;
+#endif
+#ifdef SHADOWS
+#if defined(DIR_LIGHT) && !defined(CASCADED_SHADOWS)
     FragPosLightSpaceDir = lightSpaceMatrixDir * vec4(FragPos, 1.0);
+#endif
 //    FragPosLightSpaceDir = vec4(FragPos, 1.0);
-    for (int i = 0; i < NR_POINT_LIGHTS; i ++) {
-        FragPosLightSpacePoint[i] = lightSpaceMatrixes[i] * vec4(FragPos, 1.0);
-    }
-    gl_Position = projectionMatrix * viewMatrix * modelMatrix * vec4(aPos, 1.0);
+#ifdef POINT_LIGHT_0
+    FragPosLightSpacePoint0 = lightSpaceMatrixes[0] * vec4(FragPos, 1.0);
+#endif
+#ifdef POINT_LIGHT_1
+    FragPosLightSpacePoint1 = lightSpaceMatrixes[1] * vec4(FragPos, 1.0);
+#endif
+#ifdef POINT_LIGHT_2
+    FragPosLightSpacePoint2 = lightSpaceMatrixes[2] * vec4(FragPos, 1.0);
+#endif
+#ifdef POINT_LIGHT_3
+    FragPosLightSpacePoint3 = lightSpaceMatrixes[3] * vec4(FragPos, 1.0);
+#endif
+#endif
+    gl_Position = projectionMatrix * viewMatrix * MODEL_MATRIX * vec4(aPos, 1.0);
 }
@@ -4,10 +4,20 @@ out vec4 FragColor;
 
 in vec2 TexCoords;
 
+#ifdef LAYERED
+// One layer of LayeredShadowMaps
+uniform sampler2DArray depthMap;
+uniform int layer;
+#else
 uniform sampler2D depthMap;
+#endif
 
 void main()
 {
+#ifdef LAYERED
+    float depthValue = texture(depthMap, vec3(TexCoords, layer)).r;
+#else
     float depthValue = texture(depthMap, TexCoords).r;
+#endif
     FragColor = vec4(vec3(depthValue), 1.0);
 }
@@ -0,0 +1,15 @@
+#version 330 core
+// Depth for the point lights' cubes in LayeredShadowMaps: the distance from the light over its far plane, rather than
+// the projection's depth, so model_fragment.glsl only needs the direction and distance to the light to compare against
+// it.
+#define NR_CUBES 4
+in vec3 FragPos;
+flat in int Cube;
+
+uniform vec3 cubeLightPositions[NR_CUBES];
+uniform float cubeFarPlanes[NR_CUBES];
+
+void main()
+{
+    gl_FragDepth = length(FragPos - cubeLightPositions[Cube]) / cubeFarPlanes[Cube];
+}
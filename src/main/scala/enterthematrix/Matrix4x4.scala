@@ -103,6 +103,30 @@ case class Matrix4x4(r0c0: Float, r0c1: Float, r0c2: Float, r0c3: Float,
       r3c0 * v.x + r3c1 * v.y + r3c2 * v.z + r3c3 * v.w)
   }
 
+  // Gauss-Jordan elimination with partial pivoting, in doubles, as perspective projections with a near plane close to
+  // the camera are badly conditioned.  A singular matrix gives NaNs.
+  def inverse: Matrix4x4 = {
+    val a = Array.tabulate(4, 8)((row, col) => if (col < 4) get(row, col).toDouble else if (col - 4 == row) 1.0 else 0.0)
+    for (col <- 0 until 4) {
+      val pivot = (col until 4).maxBy(row => Math.abs(a(row)(col)))
+      val swap = a(col)
+      a(col) = a(pivot)
+      a(pivot) = swap
+      val scale = a(col)(col)
+      for (c <- 0 until 8) a(col)(c) /= scale
+      for (row <- 0 until 4 if row != col) {
+        val factor = a(row)(col)
+        for (c <- 0 until 8) a(row)(c) -= factor * a(col)(c)
+      }
+    }
+    def at(row: Int, col: Int) = a(row)(col + 4).toFloat
+    Matrix4x4(
+      at(0, 0), at(0, 1), at(0, 2), at(0, 3),
+      at(1, 0), at(1, 1), at(1, 2), at(1, 3),
+      at(2, 0), at(2, 1), at(2, 2), at(2, 3),
+      at(3, 0), at(3, 1), at(3, 2), at(3, 3))
+  }
+
   override def toString: String = {
     s"""$r0c0 $r0c1 $r0c2 $r0c3
        |$r1c0 $r1c1 $r1c2 $r1c3
@@ -0,0 +1,39 @@
+import BasicModels.BoundingBox
+import enterthematrix.{Matrix4x4, Vector4}
+import org.scalactic.TolerantNumerics
+import org.scalatest.FunSuite
+
+class BoundingBoxSpec extends FunSuite {
+  val epsilon = 1e-4f
+
+  implicit val floatEq = TolerantNumerics.tolerantFloatEquality(epsilon)
+
+  test("fromPositions") {
+    val box = BoundingBox.fromPositions(Array(1f, 2f, 3f, -1f, 5f, 0f), 3)
+    assert (box == BoundingBox(-1, 1, 2, 5, 0, 3))
+  }
+
+  test("fromPositions skips interleaved data") {
+    val box = BoundingBox.fromPositions(Array(1f, 2f, 3f, 100f, -1f, 5f, 0f, 100f), 4)
+    assert (box == BoundingBox(-1, 1, 2, 5, 0, 3))
+  }
+
+  test("transform translate and scale") {
+    val box = BoundingBox(-0.5f, 0.5f, -0.5f, 0.5f, -0.5f, 0.5f)
+      .transform(Matrix4x4.translate(Vector4(1, 2, 3, 1)) * Matrix4x4.scale(2))
+    assert (box.minX === 0f)
+    assert (box.maxX === 2f)
+    assert (box.minY === 1f)
+    assert (box.maxZ === 4f)
+  }
+
+  test("transform rotate") {
+    val box = BoundingBox(0, 0, -1, 1, -2, 2).transform(Matrix4x4.rotateAroundXAxis(90))
+    assert (box.getHeight === 4f)
+    assert (box.getDepth === 2f)
+  }
+
+  test("radius") {
+    assert (BoundingBox(0, 2, 0, 2, 0, 1).radius === 1.5f)
+  }
+}
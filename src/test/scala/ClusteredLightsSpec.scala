@@ -0,0 +1,95 @@
+package modelviewer
+
+import BasicModels.BoundingBox
+import enterthematrix.{Matrix4x4, Vector3}
+import org.scalatest.FunSuite
+
+import scala.collection.JavaConverters._
+import scala.util.Random
+
+class ClusteredLightsSpec extends FunSuite {
+  import ClusteredLights._
+
+  val near = 0.1f
+  val far = 100f
+  // 90 degree vertical field of view at 16:9.  Only the x and y scales are used for binning.
+  val projection = Matrix4x4(
+    9f / 16, 0, 0, 0,
+    0, 1, 0, 0,
+    0, 0, -(far + near) / (far - near), -2 * far * near / (far - near),
+    0, 0, -1, 0)
+  val view = Matrix4x4.lookAt(Vector3(0, 2, 10), Vector3(0, 0, 0), Vector3(0, 1, 0))
+
+  def light(position: Vector3, radius: Float): Light =
+    new Light(position, Vector3(0.5f, 0.5f, 0.5f), Vector3(0.5f, 0.5f, 0.5f), 1, 0, 255 / (radius * radius))
+
+  def bin(lights: Seq[Light]): Bins = {
+    val bins = new Bins()
+    bins.bin(lights.asJava, lights.size, view, projection, near, far)
+    bins
+  }
+
+  def lightsIn(bins: Bins, cluster: Int): Seq[Int] =
+    (bins.offsets(cluster) until bins.offsets(cluster) + bins.counts(cluster)).map(bins.indices(_))
+
+  // As model_fragment.glsl finds a fragment's cluster, or -1 if it isn't on screen
+  def clusterOf(bins: Bins, world: Vector3): Int = {
+    val x = view.get(0, 0) * world.x + view.get(0, 1) * world.y + view.get(0, 2) * world.z + view.get(0, 3)
+    val y = view.get(1, 0) * world.x + view.get(1, 1) * world.y + view.get(1, 2) * world.z + view.get(1, 3)
+    val depth = -(view.get(2, 0) * world.x + view.get(2, 1) * world.y + view.get(2, 2) * world.z + view.get(2, 3))
+    val ndcX = x / depth * projection.get(0, 0)
+    val ndcY = y / depth * projection.get(1, 1)
+    if (depth < near || depth > far || Math.abs(ndcX) >= 1 || Math.abs(ndcY) >= 1) return -1
+    val tileX = Math.floor((ndcX * 0.5 + 0.5) * TILES_X).toInt
+    val tileY = Math.floor((ndcY * 0.5 + 0.5) * TILES_Y).toInt
+    val slice = Math.max(0, Math.min(SLICES - 1, Math.floor(Math.log(depth) * bins.sliceScale + bins.sliceBias).toInt))
+    (slice * TILES_Y + tileY) * TILES_X + tileX
+  }
+
+  test("the light lists are packed in cluster order") {
+    val lights = Light.scatter(200, BoundingBox(-20, 20, -5, 5, -20, 8), 3).asScala
+    val bins = bin(lights)
+    assert (bins.total == bins.counts.sum)
+    assert (bins.total > 0)
+    for (c <- 0 until CLUSTERS) {
+      assert (bins.offsets(c) == bins.counts.take(c).sum)
+      val in = lightsIn(bins, c)
+      assert (in == in.sorted)
+      assert (in.forall(i => i >= 0 && i < lights.size))
+    }
+  }
+
+  test("every point a light reaches is in a cluster that lists it") {
+    val lights = Light.scatter(100, BoundingBox(-20, 20, -5, 5, -20, 8), 3).asScala
+    val bins = bin(lights)
+    val random = new Random(1)
+    for ((light, index) <- lights.zipWithIndex; _ <- 0 until 200) {
+      // Somewhere inside the sphere of influence
+      val r = light.influenceRadius * Math.cbrt(random.nextDouble()).toFloat
+      val direction = Vector3(random.nextFloat() - 0.5f, random.nextFloat() - 0.5f, random.nextFloat() - 0.5f).normalize
+      val cluster = clusterOf(bins, light.position + direction * r)
+      if (cluster != -1) assert (lightsIn(bins, cluster).contains(index))
+    }
+  }
+
+  test("lights behind the camera or off screen are in no clusters") {
+    val bins = bin(Seq(
+      light(Vector3(0, 2, 20), 3),
+      light(Vector3(200, 0, 0), 3),
+      light(Vector3(0, -200, 0), 3)))
+    assert (bins.total == 0)
+  }
+
+  test("a light reaching past the near plane is in every tile of its slices") {
+    val bins = bin(Seq(light(Vector3(0, 2, 10), 1)))
+    for (tileY <- 0 until TILES_Y; tileX <- 0 until TILES_X) {
+      assert (lightsIn(bins, tileY * TILES_X + tileX) == Seq(0))
+    }
+  }
+
+  test("a small light in the middle of the screen covers a few clusters") {
+    val bins = bin(Seq(light(Vector3(0, 0, 0), 0.5f)))
+    assert (bins.total > 0)
+    assert (bins.total < 20)
+  }
+}
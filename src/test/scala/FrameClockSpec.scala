@@ -0,0 +1,45 @@
+package modelviewer
+
+import org.scalatest.FunSuite
+
+class FrameClockSpec extends FunSuite {
+  val tick = FrameClock.TICK_NANOS
+
+  test("time is counted out in whole ticks, keeping the remainder") {
+    val ticks = new FrameClock.Ticks()
+    assert (ticks.advance(tick / 2) == 0)
+    assert (ticks.getRemainderNanos == tick / 2)
+    assert (ticks.advance(tick / 2) == 1)
+    assert (ticks.getRemainderNanos == 0)
+    assert (ticks.advance(tick * 2 + 10) == 2)
+    assert (ticks.getRemainderNanos == 10)
+  }
+
+  test("uneven frames add up to the same number of ticks") {
+    val ticks = new FrameClock.Ticks()
+    val frames = Seq(3, 17, 9, 31, 12, 5, 23).map(_ * tick / 10)
+    assert (frames.map(ticks.advance).sum == frames.sum / tick)
+    assert (ticks.getRemainderNanos == frames.sum % tick)
+  }
+
+  test("up to MAX_TICKS_PER_FRAME are caught up without losing time") {
+    val ticks = new FrameClock.Ticks()
+    assert (ticks.advance(tick * FrameClock.MAX_TICKS_PER_FRAME + 10) == FrameClock.MAX_TICKS_PER_FRAME)
+    assert (ticks.getRemainderNanos == 10)
+  }
+
+  test("after a long stall the ticks are clamped and the rest of the time dropped") {
+    val ticks = new FrameClock.Ticks()
+    assert (ticks.advance(tick * 100 + 10) == FrameClock.MAX_TICKS_PER_FRAME)
+    assert (ticks.getRemainderNanos == 10)
+    assert (ticks.advance(tick - 10) == 1)
+  }
+
+  test("reset drops the remainder") {
+    val ticks = new FrameClock.Ticks()
+    ticks.advance(tick - 1)
+    ticks.reset()
+    assert (ticks.getRemainderNanos == 0)
+    assert (ticks.advance(1) == 0)
+  }
+}
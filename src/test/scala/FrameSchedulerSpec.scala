@@ -0,0 +1,66 @@
+package modelviewer
+
+import org.scalatest.FunSuite
+
+import scala.collection.mutable.ArrayBuffer
+
+class FrameSchedulerSpec extends FunSuite {
+  val budgetMs = 1f
+
+  // Takes longer than the budget, so each runDeferred runs exactly one
+  def slowJob(ran: ArrayBuffer[String], name: String): Runnable = () => {
+    ran += name
+    Thread.sleep(budgetMs.toLong + 1)
+  }
+
+  test("cheap jobs all run in one frame") {
+    val scheduler = new FrameScheduler()
+    val ran = ArrayBuffer[String]()
+    Seq("a", "b", "c").foreach(name => scheduler.submit(name, 1, () => ran += name))
+    scheduler.runDeferred(budgetMs)
+    assert (ran.toSet == Set("a", "b", "c"))
+    assert (!scheduler.hasPending)
+  }
+
+  test("at least one job runs a frame, highest priority first") {
+    val scheduler = new FrameScheduler()
+    val ran = ArrayBuffer[String]()
+    scheduler.submit("low", 1, slowJob(ran, "low"))
+    scheduler.submit("high", 3, slowJob(ran, "high"))
+    scheduler.submit("middle", 2, slowJob(ran, "middle"))
+    for (frame <- 1 to 3) {
+      scheduler.runDeferred(budgetMs)
+      assert (ran.size == frame)
+    }
+    assert (ran == Seq("high", "middle", "low"))
+  }
+
+  test("waiting jobs age until they beat newer higher priority ones") {
+    val scheduler = new FrameScheduler()
+    val ran = ArrayBuffer[String]()
+    scheduler.submit("low", 1, slowJob(ran, "low"))
+    // A fresh high priority job every frame would starve low without aging.  At 1 * (1 + 2) it ties with 3 on the
+    // third frame, and wins as it was queued first.
+    for (frame <- 1 to 3) {
+      scheduler.submit("high" + frame, 3, slowJob(ran, "high" + frame))
+      scheduler.runDeferred(budgetMs)
+    }
+    assert (ran == Seq("high1", "high2", "low"))
+  }
+
+  test("resubmitting replaces the work but keeps its age") {
+    val scheduler = new FrameScheduler()
+    val ran = ArrayBuffer[String]()
+    scheduler.submit("map", 1, slowJob(ran, "old"))
+    scheduler.submit("other", 2.5f, slowJob(ran, "other"))
+    scheduler.runDeferred(budgetMs)
+    // Waited a frame, so 1 * 2 against a new 1.5
+    scheduler.submit("map", 1, slowJob(ran, "new"))
+    scheduler.submit("fresh", 1.5f, slowJob(ran, "fresh"))
+    assert (scheduler.isPending("map"))
+    scheduler.runDeferred(budgetMs)
+    scheduler.runDeferred(budgetMs)
+    assert (ran == Seq("other", "new", "fresh"))
+    assert (!scheduler.hasPending)
+  }
+}
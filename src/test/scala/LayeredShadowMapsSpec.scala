@@ -0,0 +1,45 @@
+package modelviewer
+
+import enterthematrix.{Vector3, Vector4}
+import org.scalatest.FunSuite
+
+class LayeredShadowMapsSpec extends FunSuite {
+  val light = Vector3(1.5f, -0.5f, 2)
+  val far = 20f
+
+  // Where a cube map lookup in direction r reads, from the GL spec's face selection table: the face, and the face's
+  // coordinates in -1 to 1
+  def lookup(r: Vector3): (Int, Float, Float) = {
+    val (ax, ay, az) = (Math.abs(r.x), Math.abs(r.y), Math.abs(r.z))
+    if (ax >= ay && ax >= az) {
+      if (r.x > 0) (0, -r.z / ax, -r.y / ax) else (1, r.z / ax, -r.y / ax)
+    }
+    else if (ay >= az) {
+      if (r.y > 0) (2, r.x / ay, r.z / ay) else (3, r.x / ay, -r.z / ay)
+    }
+    else {
+      if (r.z > 0) (4, r.x / az, -r.y / az) else (5, -r.x / az, -r.y / az)
+    }
+  }
+
+  test("each face draws a direction where a cube map lookup reads it") {
+    val faces = LayeredShadowMaps.cubeFaceMatrices(light, far)
+    val random = new scala.util.Random(7)
+    for (_ <- 0 until 500) {
+      val direction = Vector3(random.nextFloat() * 2 - 1, random.nextFloat() * 2 - 1, random.nextFloat() * 2 - 1)
+      val distance = 0.1f + random.nextFloat() * (far - 1)
+      val point = light + direction.normalize * distance
+      val (face, s, t) = lookup(direction)
+      val clip = faces(face) * Vector4(point.x, point.y, point.z, 1)
+      assert (Math.abs(clip.x / clip.w - s) < 0.001f, s"face $face")
+      assert (Math.abs(clip.y / clip.w - t) < 0.001f, s"face $face")
+      assert (clip.z / clip.w > -1 && clip.z / clip.w < 1)
+    }
+  }
+
+  test("points past the far plane are clipped") {
+    val faces = LayeredShadowMaps.cubeFaceMatrices(light, far)
+    val clip = faces(2) * Vector4(light.x, light.y + far * 1.01f, light.z, 1)
+    assert (clip.z > clip.w)
+  }
+}
@@ -105,6 +105,20 @@ class Matrix4x4Spec extends FunSuite with PrivateMethodTester {
     ))
   }
 
+  test("inverse") {
+    val m1 = Matrix4x4.translate(1, 2, 3) * Matrix4x4.rotateAroundZAxis(30) * Matrix4x4.scale(2)
+    val m2 = m1 * m1.inverse
+    for (row <- 0 until 4; col <- 0 until 4) {
+      assert (m2.get(row, col).toDouble === (if (row == col) 1.0 else 0.0))
+    }
+  }
+
+  test("inverse undoes a transform") {
+    val m1 = Matrix4x4.translate(1, 2, 3) * Matrix4x4.scale(2)
+    val v = Vector4(5, 10, 15, 1)
+    assert (m1.inverse * (m1 * v) == v)
+  }
+
   ignore("rotate x axis") {
     val m1 = Matrix4x4.rotateAroundXAxis(90)
     assert (m1.get(0,0) === 1)
@@ -0,0 +1,36 @@
+package modelviewer
+
+import org.scalatest.FunSuite
+
+class PointLightSpec extends FunSuite {
+  def attenuation(constant: Float, linear: Float, quadratic: Float, d: Float): Float =
+    1 / (constant + linear * d + quadratic * d * d)
+
+  test("attenuation at the radius is 1 / threshold") {
+    for ((constant, linear, quadratic) <- Seq((1f, 0.09f, 0.032f), (1f, 0.7f, 1.8f), (1f, 0.014f, 0.0007f), (0.5f, 0.2f, 0.01f))) {
+      val radius = PointLight.influenceRadius(constant, linear, quadratic, 256)
+      assert (radius > 0)
+      assert (Math.abs(attenuation(constant, linear, quadratic, radius) * 256 - 1) < 1e-3f)
+      // Dimmer than the threshold only past the radius
+      assert (attenuation(constant, linear, quadratic, radius * 0.99f) > 1f / 256)
+      assert (attenuation(constant, linear, quadratic, radius * 1.01f) < 1f / 256)
+    }
+  }
+
+  test("a higher threshold reaches further") {
+    assert (PointLight.influenceRadius(1, 0.09f, 0.032f, 512) > PointLight.influenceRadius(1, 0.09f, 0.032f, 256))
+  }
+
+  test("linear only falloff") {
+    assert (PointLight.influenceRadius(1, 0.5f, 0, 256) == 255 / 0.5f)
+  }
+
+  test("no falloff reaches everywhere") {
+    assert (PointLight.influenceRadius(1, 0, 0, 256) == Float.MaxValue)
+  }
+
+  test("a light never bright enough to pass the threshold reaches nowhere") {
+    assert (PointLight.influenceRadius(300, 0.09f, 0.032f, 256) == 0)
+    assert (PointLight.influenceRadius(256, 0.09f, 0.032f, 256) == 0)
+  }
+}
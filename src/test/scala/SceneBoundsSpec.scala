@@ -0,0 +1,200 @@
+package modelviewer
+
+import java.util.Optional
+
+import BasicModels.BoundingBox
+import enterthematrix.{Matrix4x4, Vector3, Vector4}
+import org.scalatest.FunSuite
+
+import scala.collection.JavaConverters._
+import scala.util.Random
+
+class SceneBoundsSpec extends FunSuite {
+  // Just a box, at the origin so its world bounds are its local bounds
+  class BoxModel(var box: BoundingBox) extends Model(Vector4(0, 0, 0, 1), Optional.empty(), Optional.empty()) {
+    override def draw(projectionMatrix: Matrix4x4, cameraTranslate: Matrix4x4, shader: Shader): Unit = {}
+    override private[modelviewer] def drawDepth(shader: Shader): Unit = {}
+    override private[modelviewer] def getVaoId: Int = 0
+    override private[modelviewer] def getLocalBounds: BoundingBox = box
+  }
+
+  def randomBox(random: Random): BoundingBox = {
+    val x = random.nextFloat() * 100 - 50
+    val y = random.nextFloat() * 100 - 50
+    val z = random.nextFloat() * 100 - 50
+    val size = random.nextFloat() * 4
+    BoundingBox(x, x + size, y, y + size, z, z + size)
+  }
+
+  def scene(count: Int, seed: Int): (SceneBounds, Seq[BoxModel]) = {
+    val random = new Random(seed)
+    val models = Seq.fill(count)(new BoxModel(randomBox(random)))
+    val bounds = new SceneBounds()
+    bounds.update(models.asJava)
+    (bounds, models)
+  }
+
+  def distanceSquared(p: Vector3, b: BoundingBox): Float = {
+    val dx = Math.max(Math.max(b.minX - p.x, 0), p.x - b.maxX)
+    val dy = Math.max(Math.max(b.minY - p.y, 0), p.y - b.maxY)
+    val dz = Math.max(Math.max(b.minZ - p.z, 0), p.z - b.maxZ)
+    dx * dx + dy * dy + dz * dz
+  }
+
+  def overlaps(a: BoundingBox, b: BoundingBox): Boolean =
+    a.minX <= b.maxX && a.maxX >= b.minX && a.minY <= b.maxY && a.maxY >= b.minY && a.minZ <= b.maxZ && a.maxZ >= b.minZ
+
+  // Inside unless the corner furthest along some plane's normal is behind it
+  def inFrustum(frustum: Frustum, b: BoundingBox): Boolean =
+    frustum.planes.grouped(4).forall { case Array(a, bb, c, d) =>
+      a * (if (a >= 0) b.maxX else b.minX) + bb * (if (bb >= 0) b.maxY else b.minY) + c * (if (c >= 0) b.maxZ else b.minZ) + d >= 0
+    }
+
+  // Where the ray enters the box, 0 if it starts inside, None if it misses
+  def rayEntry(origin: Vector3, direction: Vector3, b: BoundingBox): Option[Float] = {
+    val o = Seq(origin.x, origin.y, origin.z)
+    val d = Seq(direction.x, direction.y, direction.z)
+    val lo = Seq(b.minX, b.minY, b.minZ)
+    val hi = Seq(b.maxX, b.maxY, b.maxZ)
+    var enter = 0f
+    var exit = Float.MaxValue
+    for (axis <- 0 to 2) {
+      if (d(axis) == 0) {
+        if (o(axis) < lo(axis) || o(axis) > hi(axis)) return None
+      }
+      else {
+        val t1 = (lo(axis) - o(axis)) / d(axis)
+        val t2 = (hi(axis) - o(axis)) / d(axis)
+        enter = Math.max(enter, Math.min(t1, t2))
+        exit = Math.min(exit, Math.max(t1, t2))
+      }
+    }
+    if (enter <= exit) Some(enter) else None
+  }
+
+  def within(bounds: SceneBounds, center: Vector3, radius: Float): Set[Int] = {
+    var found = Set[Int]()
+    bounds.forEachWithin(center, radius, i => found += i)
+    found
+  }
+
+  // 90 degree field of view, square, looking down -z from the origin, near 1 and far 11
+  val perspective = Matrix4x4(
+    1, 0, 0, 0,
+    0, 1, 0, 0,
+    0, 0, -12f / 10, -22f / 10,
+    0, 0, -1, 0)
+
+  val queries = {
+    val random = new Random(7)
+    Seq.fill(20)((Vector3(random.nextFloat() * 100 - 50, random.nextFloat() * 100 - 50, random.nextFloat() * 100 - 50),
+      random.nextFloat() * 20))
+  }
+
+  def checkQueries(bounds: SceneBounds, models: Seq[BoxModel]): Unit = {
+    queries.foreach { case (center, radius) =>
+      val expected = models.indices.filter(i => distanceSquared(center, models(i).box) <= radius * radius).toSet
+      assert (within(bounds, center, radius) == expected)
+
+      val box = BoundingBox(center.x - radius, center.x + radius, center.y - radius, center.y + radius, center.z - radius, center.z + radius)
+      assert (bounds.overlapping(box).asScala.toSet == models.filter(m => overlaps(m.box, box)).toSet)
+    }
+  }
+
+  test("within and overlapping match a brute force scan") {
+    val (bounds, models) = scene(500, 1)
+    checkQueries(bounds, models)
+  }
+
+  test("within and overlapping match a brute force scan after a refit") {
+    val (bounds, models) = scene(500, 2)
+    val random = new Random(3)
+    models.indices.filter(_ % 3 == 0).foreach(i => models(i).box = randomBox(random))
+    assert (bounds.update(models.asJava))
+    checkQueries(bounds, models)
+  }
+
+  test("raycast finds the nearest box a brute force slab test hits") {
+    val (bounds, models) = scene(500, 8)
+    val random = new Random(9)
+    var hits = 0
+    for (_ <- 0 until 200) {
+      val origin = Vector3(random.nextFloat() * 120 - 60, random.nextFloat() * 120 - 60, random.nextFloat() * 120 - 60)
+      // Some along an axis, to cover the rays parallel to a pair of slabs
+      val direction =
+        if (random.nextInt(4) == 0) Seq(Vector3(1, 0, 0), Vector3(0, -1, 0), Vector3(0, 0, 1))(random.nextInt(3))
+        else Vector3(random.nextFloat() - 0.5f, random.nextFloat() - 0.5f, random.nextFloat() - 0.5f).normalize
+      val entries = models.flatMap(m => rayEntry(origin, direction, m.box))
+      val hit = bounds.raycast(origin, direction)
+      if (entries.isEmpty) {
+        assert (!hit.isPresent)
+      }
+      else {
+        hits += 1
+        // Compared by distance, as two boxes could be entered at the same point
+        assert (hit.isPresent)
+        assert (rayEntry(origin, direction, hit.get.asInstanceOf[BoxModel].box).contains(entries.min))
+      }
+    }
+    assert (hits > 0)
+  }
+
+  test("raycast misses an empty scene and rays pointing away") {
+    val bounds = new SceneBounds()
+    bounds.update(Seq(new BoxModel(BoundingBox(-1, 1, -1, 1, -1, 1))).asJava)
+    assert (bounds.raycast(Vector3(0, 0, 5), Vector3(0, 0, -1)).isPresent)
+    assert (bounds.raycast(Vector3(0, 0, 0), Vector3(0, 1, 0)).isPresent)
+    assert (!bounds.raycast(Vector3(0, 0, 5), Vector3(0, 0, 1)).isPresent)
+    assert (!bounds.raycast(Vector3(0, 3, 5), Vector3(0, 0, -1)).isPresent)
+    assert (!new SceneBounds().raycast(Vector3(0, 0, 5), Vector3(0, 0, -1)).isPresent)
+  }
+
+  test("update reports whether anything changed") {
+    val (bounds, models) = scene(50, 4)
+    assert (!bounds.update(models.asJava))
+    assert (bounds.update(models.take(49).asJava))
+  }
+
+  test("cull matches a brute force scan") {
+    val (bounds, models) = scene(500, 5)
+    val projectionView = perspective * Matrix4x4.lookAt(Vector4(0, 0, 0, 1), Vector4(10, 5, -20, 1), Vector4(0, 1, 0, 1))
+    val frustum = new Frustum(projectionView)
+    val visible = bounds.cull(frustum)
+    assert (visible.indices.forall(i => visible(i) == inFrustum(frustum, models(i).box)))
+    assert (visible.contains(true))
+    assert (visible.contains(false))
+  }
+
+  test("cull matches a brute force scan when split between threads") {
+    val (bounds, models) = scene(SceneBounds.PARALLEL_THRESHOLD + 100, 6)
+    val frustum = new Frustum(perspective)
+    val visible = bounds.cull(frustum)
+    assert (visible.indices.forall(i => visible(i) == inFrustum(frustum, models(i).box)))
+  }
+
+  test("frustum planes of the identity are the clip cube") {
+    val planes = new Frustum(Matrix4x4.identity).planes.grouped(4).map(_.toSeq).toSet
+    assert (planes == Set(Seq(1f, 0f, 0f, 1f), Seq(-1f, 0f, 0f, 1f), Seq(0f, 1f, 0f, 1f), Seq(0f, -1f, 0f, 1f),
+      Seq(0f, 0f, 1f, 1f), Seq(0f, 0f, -1f, 1f)))
+  }
+
+  test("frustum against known boxes") {
+    val boxes = Seq(
+      // In front
+      BoundingBox(-0.5f, 0.5f, -0.5f, 0.5f, -5.5f, -4.5f) -> true,
+      // Straddling the near plane
+      BoundingBox(-0.5f, 0.5f, -0.5f, 0.5f, -1.5f, 0.5f) -> true,
+      // Behind the camera
+      BoundingBox(-0.5f, 0.5f, -0.5f, 0.5f, 4.5f, 5.5f) -> false,
+      // Past the far plane
+      BoundingBox(-0.5f, 0.5f, -0.5f, 0.5f, -20.5f, -19.5f) -> false,
+      // Off to the side, outside the 90 degree field of view
+      BoundingBox(9.5f, 10.5f, -0.5f, 0.5f, -5.5f, -4.5f) -> false,
+      BoundingBox(-0.5f, 0.5f, 9.5f, 10.5f, -5.5f, -4.5f) -> false,
+      // Just reaching into the view at the side
+      BoundingBox(4.5f, 5.5f, -0.5f, 0.5f, -5.5f, -4.5f) -> true)
+    val bounds = new SceneBounds()
+    bounds.update(boxes.map(b => new BoxModel(b._1)).asJava)
+    assert (bounds.cull(new Frustum(perspective)).toSeq == boxes.map(_._2))
+  }
+}
@@ -0,0 +1,94 @@
+package modelviewer
+
+import org.scalatest.FunSuite
+
+import scala.collection.JavaConverters._
+import scala.util.Random
+
+class ShadowAtlasSpec extends FunSuite {
+  def atlas(budgetMegabytes: Int, maxTextureSize: Int = 16384): ShadowAtlas = {
+    val atlas = new ShadowAtlas()
+    atlas.configure(budgetMegabytes, false, maxTextureSize)
+    atlas
+  }
+
+  def isPowerOfTwo(i: Int): Boolean = i > 0 && (i & (i - 1)) == 0
+
+  def overlaps(a: ShadowMap, b: ShadowMap): Boolean =
+    a.tileX < b.tileX + b.tileSize && b.tileX < a.tileX + a.tileSize &&
+      a.tileY < b.tileY + b.tileSize && b.tileY < a.tileY + a.tileSize
+
+  // Tiles only go below the minimum size when there are too many to fit at it
+  def checkPacking(atlas: ShadowAtlas, maps: Seq[ShadowMap]): Unit = {
+    val crowded = maps.size.toLong * ShadowAtlas.MIN_TILE_SIZE * ShadowAtlas.MIN_TILE_SIZE > atlas.getSize.toLong * atlas.getSize
+    maps.foreach { map =>
+      assert (isPowerOfTwo(map.tileSize))
+      assert (crowded || map.tileSize >= ShadowAtlas.MIN_TILE_SIZE)
+      assert (map.tileX >= 0 && map.tileY >= 0)
+      assert (map.tileX + map.tileSize <= atlas.getSize && map.tileY + map.tileSize <= atlas.getSize)
+    }
+    for (i <- maps.indices; j <- maps.indices if i < j) {
+      assert (!overlaps(maps(i), maps(j)))
+    }
+  }
+
+  test("configure picks the largest power of two that fits the budget") {
+    // 64MB of 4 byte texels is 4096x4096
+    assert (atlas(64).getSize == 4096)
+    assert (atlas(63).getSize == 2048)
+    assert (atlas(64, maxTextureSize = 2048).getSize == 2048)
+    val depth16 = new ShadowAtlas()
+    depth16.configure(32, true, 16384)
+    assert (depth16.getSize == 4096)
+  }
+
+  test("tiles are in proportion to importance") {
+    val a = atlas(64)
+    val maps = Seq.fill(4)(new ShadowMap())
+    a.assignTiles(maps.asJava, Array(4f, 1f, 1f, 0.01f))
+    checkPacking(a, maps)
+    assert (maps(0).tileSize == 2048)
+    assert (maps(1).tileSize == 1024)
+    assert (maps(2).tileSize == 1024)
+    assert (maps(3).tileSize == ShadowAtlas.MIN_TILE_SIZE)
+  }
+
+  test("random importances pack without overlapping") {
+    val random = new Random(1)
+    for (count <- 1 to 40) {
+      val a = atlas(1 << random.nextInt(7))
+      val maps = Seq.fill(count)(new ShadowMap())
+      a.assignTiles(maps.asJava, Array.fill(count)(random.nextFloat() * 10 + 0.001f))
+      checkPacking(a, maps)
+    }
+  }
+
+  test("cascades get their fixed size first, and the rest share what's left") {
+    val a = atlas(64)
+    val cascades = Seq.fill(4)(new ShadowMap())
+    val maps = Seq.fill(6)(new ShadowMap())
+    a.assignTiles(cascades.asJava, 1024, maps.asJava, Array.fill(6)(1f))
+    checkPacking(a, cascades ++ maps)
+    assert (cascades.forall(_.tileSize == 1024))
+  }
+
+  test("cascades are halved rather than take more than three quarters of the atlas") {
+    val a = atlas(4)
+    val cascades = Seq.fill(4)(new ShadowMap())
+    val maps = Seq.fill(3)(new ShadowMap())
+    a.assignTiles(cascades.asJava, 4096, maps.asJava, Array.fill(3)(1f))
+    checkPacking(a, cascades ++ maps)
+    assert (a.getSize == 1024)
+    assert (cascades.forall(_.tileSize == 256))
+  }
+
+  test("too many minimum size tiles for the atlas are halved until they fit") {
+    val a = atlas(0)
+    val cascades = Seq.fill(4)(new ShadowMap())
+    val maps = Seq.fill(16)(new ShadowMap())
+    a.assignTiles(cascades.asJava, 2048, maps.asJava, Array.fill(16)(1f))
+    assert (a.getSize == 512)
+    checkPacking(a, cascades ++ maps)
+    assert ((cascades ++ maps).exists(_.tileSize < ShadowAtlas.MIN_TILE_SIZE))
+  }
+}
@@ -0,0 +1,88 @@
+package modelviewer
+
+import enterthematrix.{Matrix4x4, Vector3}
+import org.scalatest.FunSuite
+
+class ShadowCascadesSpec extends FunSuite {
+  val lightDirection = Vector3(-0.3f, -1, -0.2f)
+  val lightView = Matrix4x4.lookAt(lightDirection.normalize * -1, Vector3(0, 0, 0), Vector3(0, 1, 0))
+  val resolution = 1024
+
+  def cascades(cameraPos: Vector3, target: Vector3, count: Int = ShadowCascades.MAX_CASCADES,
+               near: Float = 0.1f, shadowDistance: Float = 100): ShadowCascades = {
+    val cascades = new ShadowCascades()
+    val view = Matrix4x4.lookAt(cameraPos, target, Vector3(0, 1, 0))
+    cascades.update(lightDirection, view, cameraPos, 45, 16f / 9, near, shadowDistance, count, resolution)
+    cascades
+  }
+
+  // Row 0 of the matrix is the ortho x scale times the light view's row 0, plus the ortho x offset.  So the ortho's
+  // scale is 1 / radius, and its centre is -offset / scale.  Likewise row 1 for y.
+  def scale(matrix: Matrix4x4, row: Int): Float =
+    Math.sqrt((0 to 2).map(col => matrix.get(row, col) * matrix.get(row, col)).sum).toFloat
+
+  def center(matrix: Matrix4x4, row: Int): Float = {
+    val s = scale(matrix, row)
+    -(matrix.get(row, 3) - s * lightView.get(row, 3)) / s
+  }
+
+  test("splits increase and end at the shadow distance") {
+    for (count <- 1 to ShadowCascades.MAX_CASCADES) {
+      val c = cascades(Vector3(0, 5, 20), Vector3(0, 0, 0), count)
+      assert (c.getCount == count)
+      val splits = (0 until count).map(c.getSplitDistance)
+      assert (splits.head > 0.1f)
+      assert (splits.zip(splits.tail).forall { case (a, b) => a < b })
+      assert (Math.abs(splits.last - 100) < 0.001f)
+    }
+  }
+
+  test("splits are between logarithmic and even ones") {
+    val c = cascades(Vector3(0, 5, 20), Vector3(0, 0, 0))
+    for (i <- 0 until ShadowCascades.MAX_CASCADES - 1) {
+      val fraction = (i + 1).toFloat / ShadowCascades.MAX_CASCADES
+      val log = 0.1f * Math.pow(100 / 0.1f, fraction).toFloat
+      val even = 0.1f + (100 - 0.1f) * fraction
+      assert (c.getSplitDistance(i) > log && c.getSplitDistance(i) < even)
+    }
+  }
+
+  test("the cascade count is clamped") {
+    assert (cascades(Vector3(0, 5, 20), Vector3(0, 0, 0), 0).getCount == 1)
+    assert (cascades(Vector3(0, 5, 20), Vector3(0, 0, 0), 10).getCount == ShadowCascades.MAX_CASCADES)
+  }
+
+  test("cascade centres are snapped to whole texels") {
+    for (step <- 0 until 20) {
+      val cameraPos = Vector3(step * 0.37f, 5 + step * 0.011f, 20 - step * 0.53f)
+      val c = cascades(cameraPos, Vector3(step * 0.1f, 0, 0))
+      for (i <- 0 until c.getCount; row <- 0 to 1) {
+        val matrix = c.lightSpaceMatrices(i)
+        val texel = 2 / (scale(matrix, row) * resolution)
+        val texels = center(matrix, row) / texel
+        assert (Math.abs(texels - Math.round(texels)) < 0.01f)
+      }
+    }
+  }
+
+  test("cascade sizes don't change as the camera turns") {
+    val cameraPos = Vector3(0, 5, 20)
+    val reference = cascades(cameraPos, Vector3(0, 0, 0))
+    for (target <- Seq(Vector3(10, 0, 0), Vector3(-5, 8, 3), Vector3(0, 5, 0))) {
+      val c = cascades(cameraPos, target)
+      for (i <- 0 until c.getCount) {
+        assert (Math.abs(scale(c.lightSpaceMatrices(i), 0) - scale(reference.lightSpaceMatrices(i), 0)) < 1e-5f)
+      }
+    }
+  }
+
+  test("moving the camera less than a texel moves the cascades a whole texel or not at all") {
+    val before = cascades(Vector3(0, 5, 20), Vector3(0, 0, 0))
+    val after = cascades(Vector3(0.001f, 5, 20), Vector3(0.001f, 0, 0))
+    for (i <- 0 until before.getCount; row <- 0 to 1) {
+      val texel = 2 / (scale(before.lightSpaceMatrices(i), row) * resolution)
+      val moved = (center(after.lightSpaceMatrices(i), row) - center(before.lightSpaceMatrices(i), row)) / texel
+      assert (Math.abs(moved) < 0.01f || Math.abs(Math.abs(moved) - 1) < 0.01f)
+    }
+  }
+}